@@ -7,20 +7,23 @@
  */
 package com.orange.liveobjects.samples.mqtt;
 
-import com.google.gson.Gson;
 import com.orange.liveobjects.samples.utils.DeviceData;
+import com.orange.liveobjects.samples.utils.MessageCodecs;
 import org.eclipse.paho.client.mqttv3.MqttClient;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 
+import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Random;
 
 public class Sample_01_SimpleDevicePushData {
 
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
     public static void main(String[] args) {
 
         Random rand = new Random();
@@ -44,8 +47,8 @@ public class Sample_01_SimpleDevicePushData {
         data.m = "sample01";
         // tags
         data.t = Arrays.asList("sample.01");
-        // encoding to JSON
-        String CONTENT = new Gson().toJson(data);
+        // encoding to JSON (UTF-8)
+        byte[] CONTENT = MessageCodecs.JSON.encode(data);
 
         try {
             MqttClient sampleClient = new MqttClient(SERVER, DEVICE_URN, new MemoryPersistence());
@@ -61,8 +64,8 @@ public class Sample_01_SimpleDevicePushData {
             System.out.println("Connected");
 
             // Publish data
-            System.out.println("Publishing message: " + CONTENT);
-            MqttMessage message = new MqttMessage(CONTENT.getBytes());
+            System.out.println("Publishing message: " + new String(CONTENT, UTF_8));
+            MqttMessage message = new MqttMessage(CONTENT);
             message.setQos(0);
             sampleClient.publish("dev/data", message);
             System.out.println("Message published");
@@ -7,17 +7,27 @@
  */
 package com.orange.liveobjects.samples.mqtt;
 
-import com.google.gson.Gson;
 import com.orange.liveobjects.samples.utils.DeviceConfig;
-import org.eclipse.paho.client.mqttv3.MqttClient;
+import com.orange.liveobjects.samples.utils.DeviceConfigPublisher;
+import com.orange.liveobjects.samples.utils.JsonCodecs;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
-import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 
+/**
+ * Device connects to LO and announces its configuration.
+ *
+ * Usage: [debounceMs]
+ * The configuration goes through a {@link DeviceConfigPublisher}: it is published once, then
+ * the device announces it again several times in a row with a changing "trigger". The changes
+ * are coalesced: the configuration is published once more, with the last value of "trigger".
+ */
 public class Sample_02_SimpleDevicePushConfig {
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws InterruptedException {
+
+        long DEBOUNCE_MS = args.length > 0 ? Long.parseLong(args[0]) : 500;
 
         String API_KEY = "<<< REPLACE WITH valid API key value>>>"; // <-- REPLACE!
 
@@ -31,11 +41,8 @@ public class Sample_02_SimpleDevicePushConfig {
         CONFIG.cfg.put("trigger", new DeviceConfig.CfgParameter("f64", 20.251));
         CONFIG.cfg.put("connDelaySec", new DeviceConfig.CfgParameter("u32", 10002));
 
-        // encode to JSON
-        String CONTENT = new Gson().toJson(CONFIG);
-
         try {
-            MqttClient sampleClient = new MqttClient(SERVER, DEVICE_URN, new MemoryPersistence());
+            MqttAsyncClient sampleClient = new MqttAsyncClient(SERVER, DEVICE_URN, new MemoryPersistence());
             MqttConnectOptions connOpts = new MqttConnectOptions();
             connOpts.setUserName("json+device"); // selecting mode "Device"
             connOpts.setPassword(API_KEY.toCharArray()); // passing API key value as password
@@ -44,18 +51,28 @@ public class Sample_02_SimpleDevicePushConfig {
 
             // Connection
             System.out.println("Connecting to broker: " + SERVER);
-            sampleClient.connect(connOpts);
+            sampleClient.connect(connOpts).waitForCompletion();
             System.out.println("Connected");
 
-            // Publish data
-            System.out.println("Publishing message: " + CONTENT);
-            MqttMessage message = new MqttMessage(CONTENT.getBytes());
-            message.setQos(0);
-            sampleClient.publish("dev/cfg", message);
-            System.out.println("Message published");
+            // Publish the configuration (QoS 1: cached once acknowledged)
+            DeviceConfigPublisher publisher = new DeviceConfigPublisher(sampleClient, 1, DEBOUNCE_MS);
+            System.out.println("Announcing configuration: " + JsonCodecs.gson().toJson(CONFIG));
+            publisher.update(CONFIG);
+            Thread.sleep(2 * DEBOUNCE_MS);
+
+            // Announce it again while "trigger" is being tuned: coalesced into a single message
+            for (int i = 1; i <= 5; i++) {
+                CONFIG.cfg.put("trigger", new DeviceConfig.CfgParameter("f64", 20.251 + i));
+                publisher.update(CONFIG);
+                Thread.sleep(DEBOUNCE_MS / 10);
+            }
+            if (!publisher.close(5000L)) {
+                System.out.println("Configuration not fully published");
+            }
+            System.out.println("Published configuration: " + publisher.summary());
 
             // Disconnection
-            sampleClient.disconnect();
+            sampleClient.disconnect().waitForCompletion();
             System.out.println("Disconnected");
             System.exit(0);
 
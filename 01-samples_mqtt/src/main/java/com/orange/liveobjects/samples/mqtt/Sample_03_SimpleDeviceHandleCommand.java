@@ -7,32 +7,54 @@
  */
 package com.orange.liveobjects.samples.mqtt;
 
-import com.google.gson.Gson;
+import com.orange.liveobjects.samples.utils.CommandDispatcher;
+import com.orange.liveobjects.samples.utils.CommandResponseCache;
 import com.orange.liveobjects.samples.utils.DeviceCommand;
 import com.orange.liveobjects.samples.utils.DeviceCommandResponse;
+import com.orange.liveobjects.samples.utils.InstrumentedMqttCallback;
+import com.orange.liveobjects.samples.utils.MessageCodecs;
+import com.orange.liveobjects.samples.utils.MqttMetrics;
 import org.eclipse.paho.client.mqttv3.*;
 import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Device connects to LO and handles a single command, then disconnects.
+ * Device connects to LO and handles commands for 10 seconds, then disconnects.
+ *
+ * Commands are dispatched by method ("req") by a {@link CommandDispatcher}: "hello" answers
+ * right away, "upgrade" takes a few seconds (one at a time, 10 seconds timeout), any other
+ * method gets the "hello" response.
+ * A command delivered again (same "cid") is not executed again: its response is sent again
+ * from a {@link CommandResponseCache}.
  */
 public class Sample_03_SimpleDeviceHandleCommand {
 
     /**
-     * Basic "MqttCallback" that handles messages as JSON device commands,
-     * and immediately respond.
+     * Basic "MqttCallback" that handles messages as JSON device commands.
+     *
+     * Commands are handled and responded by the workers of the {@link CommandDispatcher}
+     * (not by the Paho callback thread).
+     * Commands already received are answered from the {@link CommandResponseCache}.
+     * The command round trip (reception to response) is recorded in {@link MqttMetrics}.
      */
     public static class SimpleMqttCallback implements MqttCallbackExtended {
 
         private static final String TOPIC_FILTER = "dev/cmd";
         private final MqttClient mqttClient;
-        private Gson gson = new Gson();
-        private Integer counter = 0;
+        private final CommandDispatcher dispatcher;
+        private final CommandResponseCache cache;
+        private final MqttMetrics metrics;
 
-        public SimpleMqttCallback(MqttClient mqttClient) {
+        public SimpleMqttCallback(MqttClient mqttClient, CommandDispatcher dispatcher, CommandResponseCache cache,
+                                  MqttMetrics metrics) {
             this.mqttClient = mqttClient;
+            this.dispatcher = dispatcher;
+            this.cache = cache;
+            this.metrics = metrics;
         }
 
         public void connectionLost(Throwable throwable) {
@@ -43,31 +65,30 @@ public class Sample_03_SimpleDeviceHandleCommand {
             System.out.println("Received message (i.e. command) - " + mqttMessage);
 
             // parse message as command
-            DeviceCommand command = gson.fromJson(new String(mqttMessage.getPayload()), DeviceCommand.class);
+            DeviceCommand command = MessageCodecs.JSON.decode(mqttMessage.getPayload(), DeviceCommand.class);
             System.out.println("received command: " + command);
+            if (command.cid != null) {
+                metrics.commandReceived(command.cid);
+            }
 
-            // return response
-            final DeviceCommandResponse response = new DeviceCommandResponse();
-            response.cid = command.cid;
-            response.res = new HashMap<String, Object>();
-            response.res.put("msg", "hello friend!");
-            response.res.put("method", command.req);
-            response.res.put("counter", this.counter++);
-
-            new Thread(new Runnable() {
-                public void run() {
-                    try {
-                        mqttClient.publish("dev/cmd/res", gson.toJson(response).getBytes(), 0, false);
-                    } catch (MqttException me) {
-                        System.out.println("reason " + me.getReasonCode());
-                        System.out.println("msg " + me.getMessage());
-                        System.out.println("loc " + me.getLocalizedMessage());
-                        System.out.println("cause " + me.getCause());
-                        System.out.println("excep " + me);
-                        me.printStackTrace();
-                    }
+            // delivered again: not executed twice
+            if (command.cid != null) {
+                byte[] cached = cache.begin(command.cid);
+                if (cached == CommandResponseCache.IN_PROGRESS) {
+                    System.out.println("Command " + command.cid + " already being handled");
+                    return;
+                }
+                if (cached != null) {
+                    System.out.println("Command " + command.cid + " already handled, sending its response again");
+                    metrics.publish(mqttClient, "dev/cmd/res", cached, 0, false);
+                    return;
                 }
-            }).start();
+            }
+
+            // handle and respond asynchronously
+            if (!dispatcher.dispatch(command)) {
+                System.out.println("Command " + command.cid + " refused (" + command.req + ")");
+            }
 
         }
 
@@ -102,12 +123,62 @@ public class Sample_03_SimpleDeviceHandleCommand {
         String SERVER = "tcp://liveobjects.orange-business.com:1883";
         String DEVICE_URN = "urn:lo:nsid:sensor:XX56765";
         int KEEP_ALIVE_INTERVAL = 30;// Must be <= 50
+        int COMMAND_WORKERS = 4;
+        int MAX_QUEUED_COMMANDS = 100;
+        int RESPONSE_CACHE_CAPACITY = 4096;
+        long RESPONSE_CACHE_TTL_MS = TimeUnit.MINUTES.toMillis(10);
+
+        // responses of the commands received in the last 10 minutes
+        final CommandResponseCache cache = new CommandResponseCache(RESPONSE_CACHE_CAPACITY, RESPONSE_CACHE_TTL_MS);
+
+        // metrics, also visible in JMX (e.g. with jconsole)
+        final MqttMetrics metrics = new MqttMetrics();
+        metrics.register(DEVICE_URN);
 
         try {
-            MqttClient mqttClient = new MqttClient(SERVER, DEVICE_URN, new MemoryPersistence());
+            final MqttClient mqttClient = new MqttClient(SERVER, DEVICE_URN, new MemoryPersistence());
+
+            // responses published by the workers of each method
+            CommandDispatcher dispatcher = new CommandDispatcher(new CommandDispatcher.Responder() {
+                public void respond(DeviceCommandResponse response, boolean failed) throws MqttException {
+                    byte[] payload = MessageCodecs.JSON.encode(response);
+                    if (response.cid != null) {
+                        // errors are not kept: the command may succeed if delivered again
+                        if (failed) {
+                            cache.abort(response.cid);
+                        } else {
+                            cache.complete(response.cid, payload);
+                        }
+                    }
+                    metrics.publish(mqttClient, "dev/cmd/res", payload, 0, false);
+                    if (response.cid != null) {
+                        metrics.commandResponded(response.cid);
+                    }
+                }
+            });
+            final AtomicInteger counter = new AtomicInteger();
+            CommandDispatcher.Handler hello = new CommandDispatcher.Handler() {
+                public Map<String, Object> handle(DeviceCommand command) {
+                    Map<String, Object> res = new HashMap<String, Object>();
+                    res.put("msg", "hello friend!");
+                    res.put("method", command.req);
+                    res.put("counter", counter.getAndIncrement());
+                    return res;
+                }
+            };
+            dispatcher.register("hello", COMMAND_WORKERS, MAX_QUEUED_COMMANDS, 1000L, hello);
+            dispatcher.register("upgrade", 1, 10, 10000L, new CommandDispatcher.Handler() {
+                public Map<String, Object> handle(DeviceCommand command) throws InterruptedException {
+                    Thread.sleep(3000L); // e.g. downloading a firmware
+                    Map<String, Object> res = new HashMap<String, Object>();
+                    res.put("status", "upgraded");
+                    return res;
+                }
+            });
+            dispatcher.registerDefault(COMMAND_WORKERS, MAX_QUEUED_COMMANDS, 1000L, hello);
 
             // register callback (to handle received commands
-            mqttClient.setCallback(new SimpleMqttCallback(mqttClient));
+            mqttClient.setCallback(new InstrumentedMqttCallback(new SimpleMqttCallback(mqttClient, dispatcher, cache, metrics), metrics));
 
             MqttConnectOptions connOpts = new MqttConnectOptions();
             connOpts.setUserName("json+device"); // selecting mode "Device"
@@ -124,6 +195,12 @@ public class Sample_03_SimpleDeviceHandleCommand {
             // sleep 10 seconds
             Thread.sleep(10000L);
 
+            // let pending responses be published
+            dispatcher.shutdown(5, TimeUnit.SECONDS);
+            System.out.println(dispatcher.summary());
+            System.out.println("response cache: " + cache.summary());
+            System.out.println(metrics.getSummary());
+
             // Disconnection
             mqttClient.disconnect();
             System.out.println("Disconnected");
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.mqtt;
+
+import com.orange.liveobjects.samples.utils.DeviceData;
+import com.orange.liveobjects.samples.utils.DevicePublisher;
+import com.orange.liveobjects.samples.utils.MappedSegmentPersistence;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Device keeps a single connection to LO and pushes data from several producer threads,
+ * with a bounded number of in-flight messages. Prints the sustained publish rate.
+ *
+ * Usage: [serverUri] [producers] [durationSec] [qos] [maxInFlight] [persistenceDir]
+ * e.g. "tcp://localhost:1883 4 30 1 100" to benchmark against a local broker.
+ * With a persistence directory, in-flight QoS 1 messages are kept on disk and sent again
+ * after a restart.
+ */
+public class Sample_04_DevicePushDataPipelined {
+
+    public static void main(String[] args) throws InterruptedException {
+
+        String API_KEY = "<<< REPLACE WITH valid API key value>>>"; // <-- REPLACE!
+
+        String SERVER = args.length > 0 ? args[0] : "tcp://liveobjects.orange-business.com:1883";
+        int PRODUCERS = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int DURATION_SEC = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int QOS = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+        int MAX_IN_FLIGHT = args.length > 4 ? Integer.parseInt(args[4]) : 100;
+        String PERSISTENCE_DIR = args.length > 5 ? args[5] : null;
+        String DEVICE_URN = "urn:lo:nsid:sensor:XX56765";
+
+        try {
+            MqttClientPersistence persistence = PERSISTENCE_DIR == null
+                    ? new MemoryPersistence() : new MappedSegmentPersistence(PERSISTENCE_DIR);
+            // with a durable persistence, the session is resumed after a restart
+            final DevicePublisher publisher = new DevicePublisher(SERVER, DEVICE_URN, API_KEY, QOS, MAX_IN_FLIGHT,
+                    persistence, PERSISTENCE_DIR == null);
+
+            // Connection
+            System.out.println("Connecting to broker: " + SERVER);
+            publisher.connect();
+            System.out.println("Connected");
+
+            // Producers
+            final long deadline = System.currentTimeMillis() + DURATION_SEC * 1000L;
+            Thread[] producers = new Thread[PRODUCERS];
+            for (int i = 0; i < PRODUCERS; i++) {
+                producers[i] = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            while (System.currentTimeMillis() < deadline) {
+                                publisher.publish(newDeviceData());
+                            }
+                        } catch (MqttException me) {
+                            System.out.println("Publication failed: " + me);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }, "producer-" + i);
+                producers[i].start();
+            }
+
+            // Report every second
+            while (System.currentTimeMillis() < deadline) {
+                Thread.sleep(1000L);
+                System.out.printf("published=%d completed=%d failed=%d inFlight=%d rate=%.0f msg/s%n",
+                        publisher.getPublishedCount(), publisher.getCompletedCount(), publisher.getFailedCount(),
+                        publisher.getInFlightCount(), publisher.getThroughput());
+            }
+            for (Thread producer : producers) {
+                producer.join();
+            }
+
+            // Disconnection
+            publisher.close();
+            System.out.printf("Disconnected - %d messages, sustained rate %.0f msg/s%n",
+                    publisher.getCompletedCount(), publisher.getThroughput());
+            System.exit(0);
+
+        } catch (MqttException me) {
+            System.out.println("reason " + me.getReasonCode());
+            System.out.println("msg " + me.getMessage());
+            System.out.println("loc " + me.getLocalizedMessage());
+            System.out.println("cause " + me.getCause());
+            System.out.println("excep " + me);
+            me.printStackTrace();
+        }
+
+    }
+
+    private static DeviceData newDeviceData() {
+        ThreadLocalRandom rand = ThreadLocalRandom.current();
+        DeviceData data = new DeviceData();
+        data.s = "test";
+        data.v = new HashMap<String, Object>();
+        data.v.put("tempC", ((int) (rand.nextDouble() * 3000)) * 0.01 - 5);
+        data.v.put("engineOn", rand.nextBoolean());
+        data.loc = new Double[] { 45.759723, 4.84223 };
+        data.m = "sample01";
+        data.t = Arrays.asList("sample.01");
+        return data;
+    }
+
+}
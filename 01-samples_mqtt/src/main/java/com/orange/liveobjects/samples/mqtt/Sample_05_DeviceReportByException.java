@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.mqtt;
+
+import com.orange.liveobjects.samples.utils.DeadbandFilter;
+import com.orange.liveobjects.samples.utils.DeviceData;
+import com.orange.liveobjects.samples.utils.DevicePublisher;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Device reads its sensors periodically but only publishes the readings that matter
+ * ("report by exception", see {@link DeadbandFilter}): temperature moved by more than 0.5 degree,
+ * humidity by more than 5%, engine switched on or off (right away), or nothing published for
+ * a minute. Prints how many readings were suppressed.
+ *
+ * Usage: [serverUri] [readings] [periodMs]
+ * e.g. "tcp://localhost:1883 600 100" against a local broker.
+ */
+public class Sample_05_DeviceReportByException {
+
+    public static void main(String[] args) throws InterruptedException {
+
+        String API_KEY = "<<< REPLACE WITH valid API key value>>>"; // <-- REPLACE!
+
+        String SERVER = args.length > 0 ? args[0] : "tcp://liveobjects.orange-business.com:1883";
+        int READINGS = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+        long PERIOD_MS = args.length > 2 ? Long.parseLong(args[2]) : 1000L;
+        String DEVICE_URN = "urn:lo:nsid:sensor:XX56765";
+        long MIN_INTERVAL_MS = 5000L;
+        long MAX_INTERVAL_MS = 60000L;
+
+        DeadbandFilter filter = new DeadbandFilter(MIN_INTERVAL_MS, MAX_INTERVAL_MS)
+                .absolute("tempC", 0.5)
+                .percent("humidity", 5)
+                .trigger("engineOn");
+
+        try {
+            DevicePublisher publisher = new DevicePublisher(SERVER, DEVICE_URN, API_KEY, 0, 10);
+
+            // Connection
+            System.out.println("Connecting to broker: " + SERVER);
+            publisher.connect();
+            System.out.println("Connected");
+
+            // simulated sensors: slow drifts, rare engine changes
+            Random rand = new Random();
+            double tempC = 20;
+            double humidity = 50;
+            boolean engineOn = false;
+            for (int i = 0; i < READINGS; i++) {
+                tempC += (rand.nextDouble() - 0.5) * 0.2;
+                humidity = Math.max(0, Math.min(100, humidity + (rand.nextDouble() - 0.5)));
+                if (rand.nextInt(100) == 0) {
+                    engineOn = !engineOn;
+                }
+
+                DeviceData data = new DeviceData();
+                data.s = "test";
+                data.v = new HashMap<String, Object>();
+                data.v.put("tempC", Math.round(tempC * 100) / 100.0);
+                data.v.put("humidity", Math.round(humidity * 10) / 10.0);
+                data.v.put("engineOn", engineOn);
+                data.m = "sample01";
+                data.t = Arrays.asList("sample.05");
+
+                if (filter.accept(data)) {
+                    System.out.println("Publishing reading " + i + ": " + data.v);
+                    publisher.publish(data);
+                }
+                Thread.sleep(PERIOD_MS);
+            }
+
+            // Disconnection
+            publisher.close();
+            System.out.println("Disconnected - " + filter.summary());
+            System.exit(0);
+
+        } catch (MqttException me) {
+            System.out.println("reason " + me.getReasonCode());
+            System.out.println("msg " + me.getMessage());
+            System.out.println("loc " + me.getLocalizedMessage());
+            System.out.println("cause " + me.getCause());
+            System.out.println("excep " + me);
+            me.printStackTrace();
+        }
+
+    }
+
+}
@@ -7,27 +7,85 @@
  */
 package com.orange.liveobjects.samples.mqtt;
 
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.orange.liveobjects.samples.utils.ArchivingMessageHandler;
+import com.orange.liveobjects.samples.utils.ConnectionManager;
+import com.orange.liveobjects.samples.utils.DedupFilter;
+import com.orange.liveobjects.samples.utils.InstrumentedMqttCallback;
+import com.orange.liveobjects.samples.utils.MessageArchive;
+import com.orange.liveobjects.samples.utils.MessageHandler;
+import com.orange.liveobjects.samples.utils.MqttMetrics;
+import com.orange.liveobjects.samples.utils.RecordingMqttCallback;
+import com.orange.liveobjects.samples.utils.RouterEnvelope;
+import com.orange.liveobjects.samples.utils.ShardedMessageDispatcher;
+import com.orange.liveobjects.samples.utils.TrafficRecorder;
+import com.orange.liveobjects.samples.utils.WindowedAggregator;
 import org.eclipse.paho.client.mqttv3.*;
 import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 
-import java.util.UUID;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Application connects to LO and consumes messages from a FIFO queue.
+ *
+ * Usage: [shards] [windowSec] [archiveDir] [recordFile]
+ * Received messages are printed with -Dverbose=true only, metrics being printed every 10 seconds.
+ * With shards > 0, messages are handled by that many worker threads instead of the Paho
+ * callback thread, messages of a same stream staying in order.
+ * With windowSec > 0, messages are not printed but aggregated per stream and numeric value
+ * over tumbling windows of windowSec and sliding windows of 5 x windowSec (see
+ * {@link WindowedAggregator}), closed windows being printed.
+ * With an archive directory, messages are also appended to a {@link MessageArchive}.
+ * With a record file, received messages are recorded by a {@link TrafficRecorder}, to be
+ * replayed by Sample_22.
+ * Messages delivered again (same stream id and timestamp, e.g. after a reconnection) are
+ * dropped by a {@link DedupFilter}.
+ * The connection is kept by a {@link ConnectionManager}: persistent session under a stable
+ * client id, subscription only when the broker lost the session, jittered reconnections.
  */
 public class Sample_10_SimpleAppConsumeRouter_allDataNew {
 
     // Subscribe to commands
     final static String ROUTING_KEY_FILTER = "~event/v1/data/new/#";
+
+    /**
+     * Prints every received message (-Dverbose=true). Off by default: printing is the main
+     * cost per message, the traffic is reported by the periodic metrics summary instead.
+     */
+    static final boolean VERBOSE = Boolean.getBoolean("verbose");
+
     /**
      * Basic "MqttCallback" that handles messages as JSON device commands,
      * and immediately respond.
      */
-    public static class SimpleMqttCallback implements MqttCallbackExtended {
+    public static class SimpleMqttCallback implements MqttCallbackExtended, ConnectionManager.SessionListener {
         private MqttClient mqttClient;
+        private MessageHandler handler;
+        private ShardedMessageDispatcher dispatcher;
+        private DedupFilter dedup;
 
         public SimpleMqttCallback(MqttClient mqttClient) {
+            this(mqttClient, null, null, null);
+        }
+
+        /**
+         * @param handler    handling of the messages inline, or null to print them
+         * @param dispatcher shards handling the messages, or null to handle them inline
+         * @param dedup      filter of the messages already received, or null to handle all of them
+         */
+        public SimpleMqttCallback(MqttClient mqttClient, MessageHandler handler, ShardedMessageDispatcher dispatcher,
+                                  DedupFilter dedup) {
             this.mqttClient = mqttClient;
+            this.handler = handler;
+            this.dispatcher = dispatcher;
+            this.dedup = dedup;
         }
 
         public void connectionLost(Throwable throwable) {
@@ -35,7 +93,25 @@ public class Sample_10_SimpleAppConsumeRouter_allDataNew {
         }
 
         public void messageArrived(String s, MqttMessage mqttMessage) throws Exception {
-            System.out.println("Received message - " + mqttMessage);
+            if (dedup != null && dedup.isDuplicate(DedupFilter.routerKey(mqttMessage.getPayload()))) {
+                return;
+            }
+            if (dispatcher == null) {
+                if (handler == null) {
+                    handle(s, mqttMessage);
+                } else {
+                    handler.handle(s, mqttMessage);
+                }
+            } else {
+                // blocks while the shard of this stream is full
+                dispatcher.dispatch(ShardedMessageDispatcher.routerStreamKey(s), s, mqttMessage);
+            }
+        }
+
+        static void handle(String topic, MqttMessage mqttMessage) {
+            if (VERBOSE) {
+                System.out.println("Received message - " + mqttMessage);
+            }
         }
 
         public void deliveryComplete(IMqttDeliveryToken iMqttDeliveryToken) {
@@ -43,12 +119,12 @@ public class Sample_10_SimpleAppConsumeRouter_allDataNew {
         }
 
         public void connectComplete(boolean b, String s) {
-            System.out.println("Connection is established");
-            try {
-                subscribeToRouter(mqttClient, String.format("router/%s", ROUTING_KEY_FILTER));
-            } catch (MqttException e) {
-                System.out.println("Error during subscription");
-            }
+            System.out.println(b ? "Connection is established again" : "Connection is established");
+        }
+
+        public void sessionStarted(MqttClient client) throws MqttException {
+            // new session: the broker has no subscription for this client
+            subscribeToRouter(client, String.format("router/%s", ROUTING_KEY_FILTER));
         }
 
         private void subscribeToRouter(MqttClient mqttClient, String routingKey) throws MqttException {
@@ -59,45 +135,209 @@ public class Sample_10_SimpleAppConsumeRouter_allDataNew {
         }
     }
 
+    /**
+     * Handling aggregating the numeric values of the messages ("value" field) per stream,
+     * by reception time. The data message is read from the "payload" of the router envelope
+     * ({@link RouterEnvelope}); messages without payload or stream id are ignored.
+     */
+    public static class AggregatingHandler implements MessageHandler {
+
+        private final WindowedAggregator[] aggregators;
+
+        public AggregatingHandler(WindowedAggregator... aggregators) {
+            this.aggregators = aggregators;
+        }
+
+        public void handle(String topic, MqttMessage message) throws Exception {
+            long now = System.currentTimeMillis();
+            // streamId may come after value: values are kept until the end of the message
+            String streamId = null;
+            Map<String, Double> values = new HashMap<String, Double>();
+            Reader payload = RouterEnvelope.payloadReader(message.getPayload());
+            if (payload == null) {
+                return;
+            }
+            JsonReader reader = new JsonReader(payload);
+            try {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    if ("streamId".equals(name) && reader.peek() == JsonToken.STRING) {
+                        streamId = reader.nextString();
+                    } else if ("value".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            String field = reader.nextName();
+                            if (reader.peek() == JsonToken.NUMBER) {
+                                values.put(field, reader.nextDouble());
+                            } else {
+                                reader.skipValue();
+                            }
+                        }
+                        reader.endObject();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+            if (streamId != null) {
+                for (WindowedAggregator aggregator : aggregators) {
+                    aggregator.update(streamId, values, now);
+                }
+            }
+        }
+    }
+
     public static void main(String[] args) throws InterruptedException {
 
+        int SHARDS = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        long WINDOW_MS = TimeUnit.SECONDS.toMillis(args.length > 1 ? Long.parseLong(args[1]) : 0);
+        String ARCHIVE_DIR = args.length > 2 ? args[2] : null;
+        String RECORD_FILE = args.length > 3 ? args[3] : null;
+        int QUEUE_CAPACITY_PER_SHARD = 1000;
+        int DEDUP_CAPACITY = 1 << 20;
+        long DEDUP_TTL_MS = TimeUnit.MINUTES.toMillis(10);
+
         String API_KEY = "<<< REPLACE WITH valid API key value>>>"; // <-- REPLACE!
 
         String SERVER = "tcp://liveobjects.orange-business.com:1883";
-        String APP_ID = "app:" + UUID.randomUUID().toString();
+        String APP_ID = ConnectionManager.stableClientId("app:sample10");
         int KEEP_ALIVE_INTERVAL = 30;// Must be <= 50
 
+        // metrics, also visible in JMX (e.g. with jconsole)
+        MqttMetrics metrics = new MqttMetrics();
+        metrics.register(APP_ID);
+
+        // messages already received in the last 10 minutes
+        DedupFilter dedup = new DedupFilter(DEDUP_CAPACITY, DEDUP_TTL_MS);
+
+        WindowedAggregator tumbling = null;
+        WindowedAggregator sliding = null;
+        MessageHandler handler = null;
+        if (WINDOW_MS > 0) {
+            WindowedAggregator.Listener printer = new WindowedAggregator.Listener() {
+                public void windowClosed(WindowedAggregator.Window window) {
+                    System.out.println(window);
+                }
+            };
+            tumbling = new WindowedAggregator(WINDOW_MS, WINDOW_MS, printer);
+            sliding = new WindowedAggregator(5 * WINDOW_MS, WINDOW_MS, printer);
+            handler = new AggregatingHandler(tumbling, sliding);
+        }
+
+        MessageArchive archive = null;
+        if (ARCHIVE_DIR != null) {
+            try {
+                archive = new MessageArchive(new File(ARCHIVE_DIR));
+            } catch (IOException e) {
+                System.out.println("Cannot open the archive: " + e);
+                return;
+            }
+            // archived, then aggregated or printed
+            handler = new ArchivingMessageHandler(archive, handler != null ? handler : new MessageHandler() {
+                public void handle(String topic, MqttMessage message) {
+                    SimpleMqttCallback.handle(topic, message);
+                }
+            });
+        }
+
+        TrafficRecorder recorder = null;
+        if (RECORD_FILE != null) {
+            try {
+                recorder = new TrafficRecorder(new File(RECORD_FILE));
+            } catch (IOException e) {
+                System.out.println("Cannot create the traffic log: " + e);
+                return;
+            }
+            // the log is completed when the JVM exits (e.g. on Ctrl-C)
+            final TrafficRecorder closing = recorder;
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run() {
+                    try {
+                        closing.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+        }
+
+        ShardedMessageDispatcher dispatcher = null;
+        if (SHARDS > 0) {
+            final MessageHandler shardHandler = handler;
+            dispatcher = new ShardedMessageDispatcher(SHARDS, QUEUE_CAPACITY_PER_SHARD,
+                    new MessageHandler() {
+                        public void handle(String topic, MqttMessage message) throws Exception {
+                            if (shardHandler == null) {
+                                SimpleMqttCallback.handle(topic, message);
+                            } else {
+                                shardHandler.handle(topic, message);
+                            }
+                        }
+                    });
+        }
+
         MqttClient mqttClient = null;
+        ConnectionManager connection = null;
         try {
             mqttClient = new MqttClient(SERVER, APP_ID, new MemoryPersistence());
 
             // register callback (to handle received commands
-            mqttClient.setCallback(new SimpleMqttCallback(mqttClient));
+            SimpleMqttCallback consumer = new SimpleMqttCallback(mqttClient, handler, dispatcher, dedup);
+            MqttCallback callback = recorder == null ? consumer : new RecordingMqttCallback(consumer, recorder);
 
             MqttConnectOptions connOpts = new MqttConnectOptions();
             connOpts.setUserName("json+bridge"); // selecting mode "Bridge"
             connOpts.setPassword(API_KEY.toCharArray()); // passing API key value as password
-            connOpts.setCleanSession(true);
+            connOpts.setCleanSession(false); // messages kept by the broker while disconnected
             connOpts.setKeepAliveInterval(KEEP_ALIVE_INTERVAL);
-            connOpts.setAutomaticReconnect(true);
 
-            // Connection
-            System.out.printf("Connecting to broker: %s ...%n", SERVER);
-            mqttClient.connect(connOpts);
-            System.out.println("... connected.");
+            // Connection, kept with jittered reconnections
+            connection = new ConnectionManager(mqttClient, connOpts, new InstrumentedMqttCallback(callback, metrics),
+                    consumer, metrics);
+            System.out.printf("Connecting to broker: %s as %s ...%n", SERVER, APP_ID);
+            boolean resumed = connection.connect();
+            System.out.println(resumed ? "... connected, session resumed." : "... connected.");
 
-            synchronized (mqttClient) {
-                mqttClient.wait();
+            while (true) {
+                Thread.sleep(WINDOW_MS > 0 ? Math.min(10000L, WINDOW_MS) : 10000L);
+                if (tumbling != null) {
+                    // close the windows of the streams which stopped sending
+                    long now = System.currentTimeMillis();
+                    tumbling.advance(now);
+                    sliding.advance(now);
+                }
+                if (dispatcher != null) {
+                    System.out.println("handled=" + dispatcher.getHandledCount()
+                            + " queue depth per shard=" + Arrays.toString(dispatcher.getQueueDepths()));
+                }
+                System.out.println("dedup: " + dedup.summary());
+                if (archive != null) {
+                    System.out.println("archive: " + archive.summary());
+                }
+                System.out.println(metrics.getSummary());
             }
 
         } catch (MqttException me) {
             me.printStackTrace();
 
         } finally {
+            if (dispatcher != null) {
+                dispatcher.shutdown(5, TimeUnit.SECONDS);
+            }
+            if (archive != null) {
+                try {
+                    archive.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
             // close client
-            if (mqttClient != null && mqttClient.isConnected()) {
+            if (connection != null) {
                 try {
-                    mqttClient.disconnect();
+                    connection.close();
                 } catch (MqttException e) {
                     e.printStackTrace();
                 }
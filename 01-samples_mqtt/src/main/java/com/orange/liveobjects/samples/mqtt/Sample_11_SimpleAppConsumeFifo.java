@@ -7,30 +7,68 @@
  */
 package com.orange.liveobjects.samples.mqtt;
 
+import com.orange.liveobjects.samples.utils.ArchivingMessageHandler;
+import com.orange.liveobjects.samples.utils.ConnectionManager;
+import com.orange.liveobjects.samples.utils.DedupFilter;
+import com.orange.liveobjects.samples.utils.InstrumentedMqttCallback;
+import com.orange.liveobjects.samples.utils.ManualAckFifoConsumer;
+import com.orange.liveobjects.samples.utils.MessageArchive;
+import com.orange.liveobjects.samples.utils.MessageHandler;
+import com.orange.liveobjects.samples.utils.MqttMetrics;
+import com.orange.liveobjects.samples.utils.RecordingMqttCallback;
+import com.orange.liveobjects.samples.utils.TrafficRecorder;
 import org.eclipse.paho.client.mqttv3.*;
 import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 
-import java.util.UUID;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Application connects to LO and consumes messages from a FIFO queue.
  *
  * You MUST first create a FIFO called "~data" in your LO account.
  *
+ * Usage: [workers] [archiveDir] [recordFile]
+ * Received messages are printed with -Dverbose=true only, metrics being printed every 10 seconds.
+ * With workers > 0, messages are consumed at QoS 1 and acknowledged only once handled by
+ * one of the workers (see {@link ManualAckFifoConsumer}): the backlog stays in the FIFO.
+ * Messages delivered again (same stream id and timestamp, e.g. after a reconnection) are
+ * dropped by a {@link DedupFilter}.
+ * With an archive directory, messages are appended to a {@link MessageArchive} before being
+ * handled (and acknowledged).
+ * With a record file, received messages are recorded by a {@link TrafficRecorder}, to be
+ * replayed by Sample_22.
+ * The connection is kept by a {@link ConnectionManager}: persistent session under a stable
+ * client id, subscription only when the broker lost the session, jittered reconnections.
  */
 public class Sample_11_SimpleAppConsumeFifo {
 
     final static String TOPIC_FIFO = "fifo/alarm";
 
+    /**
+     * Prints every received message (-Dverbose=true). Off by default: printing is the main
+     * cost per message, the traffic is reported by the periodic metrics summary instead.
+     */
+    static final boolean VERBOSE = Boolean.getBoolean("verbose");
+
     /**
      * Basic "MqttCallback" that handles messages as JSON device commands,
      * and immediately respond.
      */
-    public static class SimpleMqttCallback implements MqttCallbackExtended {
+    public static class SimpleMqttCallback implements MqttCallbackExtended, ConnectionManager.SessionListener {
         private MqttClient mqttClient;
+        private DedupFilter dedup;
+        private MessageHandler archiver;
 
-        public SimpleMqttCallback(MqttClient mqttClient) {
+        /**
+         * @param dedup    filter of the messages already received, or null to handle all of them
+         * @param archiver archiving of the messages, or null
+         */
+        public SimpleMqttCallback(MqttClient mqttClient, DedupFilter dedup, MessageHandler archiver) {
             this.mqttClient = mqttClient;
+            this.dedup = dedup;
+            this.archiver = archiver;
         }
 
         public void connectionLost(Throwable throwable) {
@@ -38,7 +76,15 @@ public class Sample_11_SimpleAppConsumeFifo {
         }
 
         public void messageArrived(String s, MqttMessage mqttMessage) throws Exception {
-            System.out.println("Received message from FIFO queue - " + mqttMessage);
+            if (dedup != null && dedup.isDuplicate(DedupFilter.routerKey(mqttMessage.getPayload()))) {
+                return;
+            }
+            if (archiver != null) {
+                archiver.handle(s, mqttMessage);
+            }
+            if (VERBOSE) {
+                System.out.println("Received message from FIFO queue - " + mqttMessage);
+            }
         }
 
         public void deliveryComplete(IMqttDeliveryToken iMqttDeliveryToken) {
@@ -46,12 +92,12 @@ public class Sample_11_SimpleAppConsumeFifo {
         }
 
         public void connectComplete(boolean b, String s) {
-            System.out.println("Connection is established");
-            try {
-                subscribeToFifo(mqttClient, TOPIC_FIFO);
-            } catch (MqttException e) {
-                System.out.println("Error during subscription");
-            }
+            System.out.println(b ? "Connection is established again" : "Connection is established");
+        }
+
+        public void sessionStarted(MqttClient client) throws MqttException {
+            // new session: the broker has no subscription for this client
+            subscribeToFifo(client, TOPIC_FIFO);
         }
 
         private void subscribeToFifo(MqttClient mqttClient, String routingKey) throws MqttException {
@@ -62,45 +108,149 @@ public class Sample_11_SimpleAppConsumeFifo {
         }
     }
 
+    /**
+     * Message processing, here simulating some work.
+     */
+    static void handle(String topic, MqttMessage mqttMessage) throws InterruptedException {
+        if (VERBOSE) {
+            System.out.println("Received message from FIFO queue - " + mqttMessage);
+        }
+        Thread.sleep(20L);
+    }
+
     public static void main(String[] args) throws InterruptedException {
 
+        int WORKERS = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        String ARCHIVE_DIR = args.length > 1 ? args[1] : null;
+        String RECORD_FILE = args.length > 2 ? args[2] : null;
+        int MAX_IN_FLIGHT = 100;
+        long ACK_ROUND_TRIP_MS = 50;
+        int DEDUP_CAPACITY = 1 << 20;
+        long DEDUP_TTL_MS = TimeUnit.MINUTES.toMillis(10);
+
         String API_KEY = "<<< REPLACE WITH valid API key value>>>"; // <-- REPLACE!
 
         String SERVER = "tcp://liveobjects.orange-business.com:1883";
-        String APP_ID = "app:" + UUID.randomUUID().toString();
+        String APP_ID = ConnectionManager.stableClientId("app:sample11");
         int KEEP_ALIVE_INTERVAL = 30;// Must be <= 50
 
+        // metrics (reconnections), also visible in JMX (e.g. with jconsole)
+        MqttMetrics metrics = new MqttMetrics();
+        metrics.register(APP_ID);
+
+        // messages already received in the last 10 minutes
+        final DedupFilter dedup = new DedupFilter(DEDUP_CAPACITY, DEDUP_TTL_MS);
+
+        MessageArchive archive = null;
+        if (ARCHIVE_DIR != null) {
+            try {
+                archive = new MessageArchive(new File(ARCHIVE_DIR));
+            } catch (IOException e) {
+                System.out.println("Cannot open the archive: " + e);
+                return;
+            }
+        }
+        final MessageHandler archiver = archive == null ? null : new ArchivingMessageHandler(archive, null);
+
+        TrafficRecorder recorder = null;
+        if (RECORD_FILE != null) {
+            try {
+                recorder = new TrafficRecorder(new File(RECORD_FILE));
+            } catch (IOException e) {
+                System.out.println("Cannot create the traffic log: " + e);
+                return;
+            }
+            // the log is completed when the JVM exits (e.g. on Ctrl-C)
+            final TrafficRecorder closing = recorder;
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run() {
+                    try {
+                        closing.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+        }
+
         MqttClient mqttClient = null;
+        ManualAckFifoConsumer consumer = null;
+        ConnectionManager connection = null;
         try {
             mqttClient = new MqttClient(SERVER, APP_ID, new MemoryPersistence());
+            ConnectionManager.SessionListener listener;
+            MqttCallback callback;
 
-            // register callback (to handle received commands
-            mqttClient.setCallback(new SimpleMqttCallback(mqttClient));
+            if (WORKERS > 0) {
+                // register a consumer acknowledging messages once handled
+                consumer = new ManualAckFifoConsumer(mqttClient, TOPIC_FIFO, WORKERS, MAX_IN_FLIGHT, ACK_ROUND_TRIP_MS,
+                        new MessageHandler() {
+                            public void handle(String topic, MqttMessage message) throws Exception {
+                                // a duplicate is acknowledged without being handled again
+                                if (!dedup.isDuplicate(DedupFilter.routerKey(message.getPayload()))) {
+                                    if (archiver != null) {
+                                        archiver.handle(topic, message);
+                                    }
+                                    Sample_11_SimpleAppConsumeFifo.handle(topic, message);
+                                }
+                            }
+                        });
+                listener = consumer;
+                callback = consumer;
+            } else {
+                // register callback (to handle received commands
+                SimpleMqttCallback simple = new SimpleMqttCallback(mqttClient, dedup, archiver);
+                listener = simple;
+                callback = simple;
+            }
+            if (recorder != null) {
+                callback = new RecordingMqttCallback(callback, recorder);
+            }
 
             MqttConnectOptions connOpts = new MqttConnectOptions();
             connOpts.setUserName("json+bridge"); // selecting mode "Bridge"
             connOpts.setPassword(API_KEY.toCharArray()); // passing API key value as password
-            connOpts.setCleanSession(true);
+            connOpts.setCleanSession(false); // messages kept by the broker while disconnected
             connOpts.setKeepAliveInterval(KEEP_ALIVE_INTERVAL);
-            connOpts.setAutomaticReconnect(true);
 
-            // Connection
-            System.out.printf("Connecting to broker: %s ...%n", SERVER);
-            mqttClient.connect(connOpts);
-            System.out.println("... connected.");
+            // Connection, kept with jittered reconnections
+            connection = new ConnectionManager(mqttClient, connOpts, new InstrumentedMqttCallback(callback, metrics),
+                    listener, metrics);
+            System.out.printf("Connecting to broker: %s as %s ...%n", SERVER, APP_ID);
+            boolean resumed = connection.connect();
+            System.out.println(resumed ? "... connected, session resumed." : "... connected.");
 
-            synchronized (mqttClient) {
-                mqttClient.wait();
+            while (true) {
+                Thread.sleep(10000L);
+                if (consumer != null) {
+                    System.out.println("handled=" + consumer.getHandledCount() + " in flight=" + consumer.getInFlight()
+                            + "/" + consumer.getWindow() + " handler latency: " + consumer.getHandlerLatency().summary());
+                }
+                System.out.println("dedup: " + dedup.summary());
+                if (archive != null) {
+                    System.out.println("archive: " + archive.summary());
+                }
+                System.out.println(metrics.getSummary());
             }
 
         } catch (MqttException me) {
             me.printStackTrace();
 
         } finally {
+            if (consumer != null) {
+                consumer.shutdown(5, TimeUnit.SECONDS);
+            }
+            if (archive != null) {
+                try {
+                    archive.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
             // close client
-            if (mqttClient != null && mqttClient.isConnected()) {
+            if (connection != null) {
                 try {
-                    mqttClient.disconnect();
+                    connection.close();
                 } catch (MqttException e) {
                     e.printStackTrace();
                 }
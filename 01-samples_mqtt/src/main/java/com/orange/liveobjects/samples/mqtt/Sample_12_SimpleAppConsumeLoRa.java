@@ -7,16 +7,48 @@
  */
 package com.orange.liveobjects.samples.mqtt;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonObject;
+import com.orange.liveobjects.samples.utils.ConnectionManager;
+import com.orange.liveobjects.samples.utils.DedupFilter;
+import com.orange.liveobjects.samples.utils.InstrumentedMqttCallback;
 import com.orange.liveobjects.samples.utils.LoraData;
+import com.orange.liveobjects.samples.utils.LoraFrameTracker;
+import com.orange.liveobjects.samples.utils.LoraMessageDecoder;
+import com.orange.liveobjects.samples.utils.MessageArchive;
+import com.orange.liveobjects.samples.utils.MessageHandler;
+import com.orange.liveobjects.samples.utils.MessageRingBuffer;
+import com.orange.liveobjects.samples.utils.MqttMetrics;
+import com.orange.liveobjects.samples.utils.RecordingMqttCallback;
+import com.orange.liveobjects.samples.utils.TopicDispatcher;
+import com.orange.liveobjects.samples.utils.TrafficRecorder;
 import org.eclipse.paho.client.mqttv3.*;
 import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 
-import java.util.UUID;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Application connects to LO and consumes LoRa messages.
+ *
+ * Usage: [ring|inline] [archiveDir] [recordFile] [devEUI...]
+ * Received messages are printed with -Dverbose=true only, metrics being printed every 10 seconds.
+ * With "ring", received messages are only copied to a {@link MessageRingBuffer} by the Paho
+ * callback thread, then decoded and handled by two pipeline stages on other threads.
+ * Uplinks delivered again (same devEUI and frame counter, e.g. after a reconnection) are
+ * dropped by a {@link DedupFilter}. Frame counters are followed per device by a
+ * {@link LoraFrameTracker}, whose loss statistics are printed every 10 seconds.
+ * With an archive directory, the decoded uplinks are appended to a {@link MessageArchive}.
+ * With a record file, received messages are recorded by a {@link TrafficRecorder}, to be
+ * replayed by Sample_22.
+ * The uplinks of the given devices ("inline" only) are also handed to a handler registered on
+ * the topic filter of each device, found by a {@link TopicDispatcher} among all of them, and
+ * printed as received.
+ * The connection is kept by a {@link ConnectionManager}: persistent session under a stable
+ * client id, subscription only when the broker lost the session, jittered reconnections.
  */
 public class Sample_12_SimpleAppConsumeLoRa {
 
@@ -24,18 +56,46 @@ public class Sample_12_SimpleAppConsumeLoRa {
     final static String ROUTING_KEY_FILTER_ALL = "router/~event/v1/data/new/urn/lora/#";
     // For a specific device (change with own DevEUI)
     final static String ROUTING_KEY_FILTER_SPECIFIC = "router/~event/v1/data/new/urn/lora/0123456789ABCDEF/#";
+    // For a device given as argument
+    final static String ROUTING_KEY_FILTER_DEVICE = "router/~event/v1/data/new/urn/lora/%s/#";
+
+    /**
+     * Prints every received message (-Dverbose=true). Off by default: printing is the main
+     * cost per message, the traffic is reported by the periodic metrics summary instead.
+     */
+    static final boolean VERBOSE = Boolean.getBoolean("verbose");
 
     /**
      * Basic "MqttCallback" that handles messages as JSON device commands,
      * and immediately respond.
      */
-    public static class SimpleMqttCallback implements MqttCallbackExtended {
+    public static class SimpleMqttCallback implements MqttCallbackExtended, ConnectionManager.SessionListener {
 
         private MqttClient mqttClient;
-        private Gson gson = new Gson();
+        private final DedupFilter dedup;
+        private final LoraFrameTracker tracker;
+        private final MessageArchive archive;
+        private final TopicDispatcher devices;
+        private final LoraMessageDecoder decoder = new LoraMessageDecoder();
+
+        public SimpleMqttCallback(MqttClient mqttClient, DedupFilter dedup, LoraFrameTracker tracker,
+                                  MessageArchive archive) {
+            this(mqttClient, dedup, tracker, archive, null);
+        }
 
-        public SimpleMqttCallback(MqttClient mqttClient) {
+        /**
+         * @param dedup   filter of the uplinks already received, or null to handle all of them
+         * @param tracker tracker of the frame counters, or null
+         * @param archive archive of the uplinks, or null
+         * @param devices handlers of the uplinks per device topic, or null
+         */
+        public SimpleMqttCallback(MqttClient mqttClient, DedupFilter dedup, LoraFrameTracker tracker,
+                                  MessageArchive archive, TopicDispatcher devices) {
             this.mqttClient = mqttClient;
+            this.dedup = dedup;
+            this.tracker = tracker;
+            this.archive = archive;
+            this.devices = devices;
         }
 
         public void connectionLost(Throwable throwable) {
@@ -43,13 +103,28 @@ public class Sample_12_SimpleAppConsumeLoRa {
         }
 
         public void messageArrived(String s, MqttMessage mqttMessage) throws Exception {
-            System.out.println("Received message - " + mqttMessage);
+            if (VERBOSE) {
+                System.out.println("Received message - " + mqttMessage);
+            }
 
-            // Decoding the LoRa message
-            JsonObject mqttPayload = gson.fromJson(new String(mqttMessage.getPayload()), JsonObject.class);
-            String liveObjectsPayload = mqttPayload.get("payload").getAsString();
-            LoraData loraData = gson.fromJson(liveObjectsPayload, LoraData.class);
-            System.out.println("Decoded LoRa message - " + loraData);
+            // Decoding the LoRa message (single pass over the raw bytes)
+            LoraData loraData = decoder.decode(mqttMessage.getPayload());
+            if (tracker != null) {
+                tracker.track(loraData);
+            }
+            if (dedup != null && dedup.isDuplicate(DedupFilter.loraKey(loraData))) {
+                // counted by the filter
+                return;
+            }
+            if (archive != null) {
+                archive.append(loraData, System.currentTimeMillis());
+            }
+            if (VERBOSE) {
+                System.out.println("Decoded LoRa message - " + loraData);
+            }
+            if (devices != null) {
+                devices.handle(s, mqttMessage);
+            }
         }
 
         public void deliveryComplete(IMqttDeliveryToken iMqttDeliveryToken) {
@@ -57,12 +132,12 @@ public class Sample_12_SimpleAppConsumeLoRa {
         }
 
         public void connectComplete(boolean b, String s) {
-            System.out.println("Connection is established");
-            try {
-                subscribeToRouter(mqttClient, ROUTING_KEY_FILTER_ALL);
-            } catch (MqttException e) {
-                System.out.println("Error during subscription");
-            }
+            System.out.println(b ? "Connection is established again" : "Connection is established");
+        }
+
+        public void sessionStarted(MqttClient client) throws MqttException {
+            // new session: the broker has no subscription for this client
+            subscribeToRouter(client, ROUTING_KEY_FILTER_ALL);
         }
 
         private void subscribeToRouter(MqttClient mqttClient, String routingKey) throws MqttException {
@@ -73,45 +148,234 @@ public class Sample_12_SimpleAppConsumeLoRa {
         }
     }
 
+    /**
+     * Handling of the uplinks of one device, registered on the topic filter of that device:
+     * counted and printed.
+     */
+    public static class DeviceHandler implements MessageHandler {
+        private final String devEUI;
+        private final AtomicLong uplinks = new AtomicLong();
+
+        public DeviceHandler(String devEUI) {
+            this.devEUI = devEUI;
+        }
+
+        public void handle(String topic, MqttMessage message) {
+            uplinks.incrementAndGet();
+            System.out.println("Uplink of " + devEUI + " - " + message);
+        }
+
+        @Override
+        public String toString() {
+            return devEUI + " uplinks=" + uplinks.get();
+        }
+    }
+
+    /**
+     * Pipeline stage decoding the LoRa message of the slot.
+     */
+    public static class DecodeStage implements MessageRingBuffer.Stage {
+        private final LoraMessageDecoder decoder = new LoraMessageDecoder();
+
+        public void onMessage(MessageRingBuffer.Slot slot) throws Exception {
+            slot.setAttachment(decoder.decode(slot.getPayload(), 0, slot.getLength()));
+        }
+    }
+
+    /**
+     * Pipeline stage handling the decoded LoRa message.
+     */
+    public static class HandleStage implements MessageRingBuffer.Stage {
+        private final DedupFilter dedup;
+        private final LoraFrameTracker tracker;
+        private final MessageArchive archive;
+
+        /**
+         * @param dedup   filter of the uplinks already received, or null to handle all of them
+         * @param tracker tracker of the frame counters, or null
+         * @param archive archive of the uplinks, or null
+         */
+        public HandleStage(DedupFilter dedup, LoraFrameTracker tracker, MessageArchive archive) {
+            this.dedup = dedup;
+            this.tracker = tracker;
+            this.archive = archive;
+        }
+
+        public void onMessage(MessageRingBuffer.Slot slot) throws Exception {
+            LoraData loraData = (LoraData) slot.getAttachment();
+            if (tracker != null) {
+                tracker.track(loraData);
+            }
+            if (dedup != null && dedup.isDuplicate(DedupFilter.loraKey(loraData))) {
+                return;
+            }
+            if (archive != null) {
+                archive.append(loraData, System.currentTimeMillis());
+            }
+            if (VERBOSE) {
+                System.out.println("Decoded LoRa message - " + loraData);
+            }
+        }
+    }
+
+    /**
+     * "MqttCallback" handing messages over to the pipeline.
+     */
+    public static class RingMqttCallback extends SimpleMqttCallback {
+
+        private final MessageRingBuffer ring;
+
+        public RingMqttCallback(MqttClient mqttClient, MessageRingBuffer ring) {
+            super(mqttClient, null, null, null);
+            this.ring = ring;
+        }
+
+        @Override
+        public void messageArrived(String s, MqttMessage mqttMessage) throws Exception {
+            if (!ring.publish(s, mqttMessage)) {
+                System.out.println("Pipeline full, message dropped");
+            }
+        }
+    }
+
     public static void main(String[] args) throws InterruptedException {
 
+        boolean RING = args.length > 0 && "ring".equals(args[0]);
+        String ARCHIVE_DIR = args.length > 1 ? args[1] : null;
+        String RECORD_FILE = args.length > 2 ? args[2] : null;
+        int RING_CAPACITY = 4096;
+        int PAYLOAD_CAPACITY = 1024;
+        int DEDUP_CAPACITY = 1 << 20;
+        long DEDUP_TTL_MS = TimeUnit.MINUTES.toMillis(10);
+        int EXPECTED_DEVICES = 100000;
+        String[] DEVICES = args.length > 3 ? Arrays.copyOfRange(args, 3, args.length) : new String[0];
+
         String API_KEY = "<<< REPLACE WITH valid API key value>>>"; // <-- REPLACE!
 
         String SERVER = "tcp://liveobjects.orange-business.com:1883";
-        String APP_ID = "app:" + UUID.randomUUID().toString();
+        String APP_ID = ConnectionManager.stableClientId("app:sample12");
         int KEEP_ALIVE_INTERVAL = 30;// Must be <= 50
 
+        // metrics (reconnections), also visible in JMX (e.g. with jconsole)
+        MqttMetrics metrics = new MqttMetrics();
+        metrics.register(APP_ID);
+
+        // uplinks already received in the last 10 minutes
+        DedupFilter dedup = new DedupFilter(DEDUP_CAPACITY, DEDUP_TTL_MS);
+
+        // frame counters, losses and duplicates per device
+        LoraFrameTracker tracker = new LoraFrameTracker(EXPECTED_DEVICES);
+
+        MessageArchive archive = null;
+        if (ARCHIVE_DIR != null) {
+            try {
+                archive = new MessageArchive(new File(ARCHIVE_DIR));
+            } catch (IOException e) {
+                System.out.println("Cannot open the archive: " + e);
+                return;
+            }
+        }
+
+        TrafficRecorder recorder = null;
+        if (RECORD_FILE != null) {
+            try {
+                recorder = new TrafficRecorder(new File(RECORD_FILE));
+            } catch (IOException e) {
+                System.out.println("Cannot create the traffic log: " + e);
+                return;
+            }
+            // the log is completed when the JVM exits (e.g. on Ctrl-C)
+            final TrafficRecorder closing = recorder;
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run() {
+                    try {
+                        closing.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+        }
+
+        // handlers of the given devices, other uplinks matching none
+        TopicDispatcher devices = new TopicDispatcher(null);
+        List<DeviceHandler> deviceHandlers = new ArrayList<DeviceHandler>();
+        for (String devEUI : DEVICES) {
+            DeviceHandler handler = new DeviceHandler(devEUI);
+            devices.register(String.format(ROUTING_KEY_FILTER_DEVICE, devEUI), handler);
+            deviceHandlers.add(handler);
+        }
+
+        MessageRingBuffer ring = null;
+        if (RING) {
+            // decoding then handling, each on its own thread; the callback thread waits when the ring is full
+            ring = new MessageRingBuffer(RING_CAPACITY, PAYLOAD_CAPACITY, MessageRingBuffer.WaitStrategy.SLEEPING,
+                    MessageRingBuffer.FullPolicy.BLOCK, new DecodeStage(), new HandleStage(dedup, tracker, archive));
+        }
+
         MqttClient mqttClient = null;
+        ConnectionManager connection = null;
         try {
             mqttClient = new MqttClient(SERVER, APP_ID, new MemoryPersistence());
 
             // register callback (to handle received commands
-            mqttClient.setCallback(new SimpleMqttCallback(mqttClient));
+            SimpleMqttCallback consumer = ring == null ? new SimpleMqttCallback(mqttClient, dedup, tracker, archive, devices) : new RingMqttCallback(mqttClient, ring);
+            MqttCallback callback = recorder == null ? consumer : new RecordingMqttCallback(consumer, recorder);
 
             MqttConnectOptions connOpts = new MqttConnectOptions();
             connOpts.setUserName("json+bridge"); // selecting mode "Bridge"
             connOpts.setPassword(API_KEY.toCharArray()); // passing API key value as password
-            connOpts.setCleanSession(true);
+            connOpts.setCleanSession(false); // messages kept by the broker while disconnected
             connOpts.setKeepAliveInterval(KEEP_ALIVE_INTERVAL);
-            connOpts.setAutomaticReconnect(true);
 
-            // Connection
-            System.out.printf("Connecting to broker: %s ...%n", SERVER);
-            mqttClient.connect(connOpts);
-            System.out.println("... connected.");
+            // Connection, kept with jittered reconnections
+            connection = new ConnectionManager(mqttClient, connOpts, new InstrumentedMqttCallback(callback, metrics),
+                    consumer, metrics);
+            System.out.printf("Connecting to broker: %s as %s ...%n", SERVER, APP_ID);
+            boolean resumed = connection.connect();
+            System.out.println(resumed ? "... connected, session resumed." : "... connected.");
 
-            synchronized (mqttClient) {
-                mqttClient.wait();
+            while (true) {
+                Thread.sleep(10000L);
+                System.out.println("frames: " + tracker.summary());
+                System.out.println("dedup: " + dedup.summary());
+                if (ring != null) {
+                    System.out.println("ring: published=" + ring.getPublishedCount() + " backlog=" + ring.getBacklog()
+                            + " dropped=" + ring.getDroppedCount());
+                }
+                for (LoraFrameTracker.DeviceStats device : tracker.getWorstDevices(5)) {
+                    System.out.println("  " + device);
+                }
+                if (archive != null) {
+                    System.out.println("archive: " + archive.summary());
+                }
+                if (!deviceHandlers.isEmpty()) {
+                    System.out.println("devices: " + devices.summary());
+                    for (DeviceHandler device : deviceHandlers) {
+                        System.out.println("  " + device);
+                    }
+                }
+                System.out.println(metrics.getSummary());
             }
 
         } catch (MqttException me) {
             me.printStackTrace();
 
         } finally {
+            if (ring != null) {
+                ring.shutdown(5, TimeUnit.SECONDS);
+            }
+            if (archive != null) {
+                try {
+                    archive.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
             // close client
-            if (mqttClient != null && mqttClient.isConnected()) {
+            if (connection != null) {
                 try {
-                    mqttClient.disconnect();
+                    connection.close();
                 } catch (MqttException e) {
                     e.printStackTrace();
                 }
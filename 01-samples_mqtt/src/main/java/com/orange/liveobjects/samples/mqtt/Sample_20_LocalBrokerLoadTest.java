@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.mqtt;
+
+import com.google.gson.JsonObject;
+import com.orange.liveobjects.samples.utils.DeviceData;
+import com.orange.liveobjects.samples.utils.DevicePublisher;
+import com.orange.liveobjects.samples.utils.JsonCodecs;
+import com.orange.liveobjects.samples.utils.LocalLiveObjectsBroker;
+import com.orange.liveobjects.samples.utils.MessageCodec;
+import com.orange.liveobjects.samples.utils.MessageCodecs;
+import org.eclipse.paho.client.mqttv3.*;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Offline throughput and latency test: starts a local Live Objects stand-in, a device
+ * pushing data (Sample_04 publisher) and an application consuming it from the router
+ * (Sample_10), all on localhost.
+ *
+ * The device messages can be encoded in CBOR instead of JSON (codec argument), to compare
+ * their size; the broker routes them in JSON either way.
+ *
+ * Usage: [producers] [durationSec] [qos] [maxInFlight] [json|cbor]
+ */
+public class Sample_20_LocalBrokerLoadTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Consumes router messages and measures the device-to-application latency from the
+     * "sentAt" value (System.nanoTime() of the publisher, same JVM).
+     */
+    public static class LatencyMqttCallback implements MqttCallback {
+
+        private final long[] latencies;
+        private final AtomicLong received = new AtomicLong();
+
+        public LatencyMqttCallback(int maxSamples) {
+            this.latencies = new long[maxSamples];
+        }
+
+        public void connectionLost(Throwable throwable) {
+            System.out.println("Connection lost");
+        }
+
+        public void messageArrived(String s, MqttMessage mqttMessage) throws Exception {
+            long now = System.nanoTime();
+            JsonObject envelope = JsonCodecs.gson().fromJson(new String(mqttMessage.getPayload(), UTF_8), JsonObject.class);
+            JsonObject stored = JsonCodecs.gson().fromJson(envelope.get("payload").getAsString(), JsonObject.class);
+            long sentAt = stored.getAsJsonObject("value").get("sentAt").getAsLong();
+            long count = received.getAndIncrement();
+            if (count < latencies.length) {
+                latencies[(int) count] = now - sentAt;
+            }
+        }
+
+        public void deliveryComplete(IMqttDeliveryToken iMqttDeliveryToken) {
+            // nothing
+        }
+
+        public long getReceivedCount() {
+            return received.get();
+        }
+
+        public void printLatencies() {
+            int count = (int) Math.min(received.get(), latencies.length);
+            if (count == 0) {
+                return;
+            }
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            System.out.printf("latency (ms): p50=%.2f p90=%.2f p99=%.2f max=%.2f%n",
+                    sorted[count / 2] / 1e6, sorted[count * 9 / 10] / 1e6, sorted[count * 99 / 100] / 1e6,
+                    sorted[count - 1] / 1e6);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        int PRODUCERS = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+        int DURATION_SEC = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int QOS = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        int MAX_IN_FLIGHT = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+        MessageCodec CODEC = MessageCodecs.forName(args.length > 4 ? args[4] : "json");
+        String API_KEY = "local";
+        String DEVICE_URN = "urn:lo:nsid:sensor:XX56765";
+
+        // Live Objects stand-in
+        LocalLiveObjectsBroker broker = new LocalLiveObjectsBroker(0, API_KEY);
+        broker.start();
+        String SERVER = broker.getServerUri();
+        System.out.println("Local broker started: " + SERVER);
+
+        // Application consuming all data
+        MqttClient consumer = new MqttClient(SERVER, "app:load-test", new MemoryPersistence());
+        LatencyMqttCallback callback = new LatencyMqttCallback(10000000);
+        consumer.setCallback(callback);
+        MqttConnectOptions connOpts = new MqttConnectOptions();
+        connOpts.setUserName("json+bridge"); // selecting mode "Bridge"
+        connOpts.setPassword(API_KEY.toCharArray());
+        connOpts.setCleanSession(true);
+        consumer.connect(connOpts);
+        consumer.subscribe("router/~event/v1/data/new/#", QOS);
+
+        // Device pushing data
+        final DevicePublisher publisher = new DevicePublisher(SERVER, DEVICE_URN, API_KEY, QOS, MAX_IN_FLIGHT,
+                new MemoryPersistence(), true, CODEC);
+        publisher.connect();
+        final long deadline = System.currentTimeMillis() + DURATION_SEC * 1000L;
+        Thread[] producers = new Thread[PRODUCERS];
+        for (int i = 0; i < PRODUCERS; i++) {
+            producers[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (System.currentTimeMillis() < deadline) {
+                            DeviceData data = new DeviceData();
+                            data.s = "test";
+                            data.m = "sample01";
+                            data.v = new HashMap<String, Object>();
+                            data.v.put("tempC", 21.5);
+                            data.v.put("sentAt", System.nanoTime());
+                            data.t = Arrays.asList("sample.20");
+                            publisher.publish(data);
+                        }
+                    } catch (Exception e) {
+                        System.out.println("Publication failed: " + e);
+                    }
+                }
+            });
+            producers[i].start();
+        }
+        while (System.currentTimeMillis() < deadline) {
+            Thread.sleep(1000L);
+            System.out.printf("published=%d rate=%.0f msg/s consumed=%d%n",
+                    publisher.getCompletedCount(), publisher.getThroughput(), callback.getReceivedCount());
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        publisher.close();
+        // let the consumer drain the router (at most 10 seconds)
+        long drainDeadline = System.currentTimeMillis() + 10000L;
+        while (callback.getReceivedCount() < publisher.getCompletedCount() && System.currentTimeMillis() < drainDeadline) {
+            Thread.sleep(100L);
+        }
+
+        System.out.printf("%d messages published (%.0f msg/s), %d consumed, %d dropped by the broker%n",
+                publisher.getCompletedCount(), publisher.getThroughput(), callback.getReceivedCount(),
+                broker.getDroppedCount());
+        if (publisher.getPublishedCount() > 0) {
+            System.out.printf("%s payload: %.1f bytes/message%n", CODEC.getName(),
+                    (double) publisher.getPublishedBytes() / publisher.getPublishedCount());
+        }
+        callback.printLatencies();
+
+        consumer.disconnect();
+        broker.stop();
+        System.exit(0);
+    }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.mqtt;
+
+import com.orange.liveobjects.samples.utils.DeviceLoadGenerator;
+import com.orange.liveobjects.samples.utils.LocalLiveObjectsBroker;
+
+/**
+ * Simulates many devices at once, each connected in "json+device" mode with its own URN
+ * and pushing Sample_01 like data, at a given total rate.
+ *
+ * Usage: [serverUri|local] [devices] [totalRate] [durationSec] [qos] [ioThreads]
+ * ("local" starts a local Live Objects stand-in, see Sample_20)
+ */
+public class Sample_21_DeviceLoadGenerator {
+
+    public static void main(String[] args) throws Exception {
+
+        String SERVER = args.length > 0 ? args[0] : "tcp://liveobjects.orange-business.com:1883";
+        int DEVICES = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        double TOTAL_RATE = args.length > 2 ? Double.parseDouble(args[2]) : 1000;
+        int DURATION_SEC = args.length > 3 ? Integer.parseInt(args[3]) : 30;
+        int QOS = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+        int IO_THREADS = args.length > 5 ? Integer.parseInt(args[5]) : 2;
+        String API_KEY = "<<< REPLACE WITH valid API key value with Device profile>>>";
+
+        LocalLiveObjectsBroker broker = null;
+        if ("local".equals(SERVER)) {
+            API_KEY = "local";
+            broker = new LocalLiveObjectsBroker(0, API_KEY);
+            broker.start();
+            SERVER = broker.getServerUri();
+            System.out.println("Local broker started: " + SERVER);
+        }
+
+        DeviceLoadGenerator generator = new DeviceLoadGenerator(SERVER, API_KEY, DEVICES, TOTAL_RATE);
+        generator.setQos(QOS);
+        generator.setIoThreads(IO_THREADS);
+        generator.setValueDistribution(DeviceLoadGenerator.Distribution.GAUSSIAN, -5, 25, 0.5);
+        generator.start();
+        System.out.println("Simulating " + DEVICES + " devices at " + TOTAL_RATE + " msg/s for " + DURATION_SEC + "s");
+
+        long deadline = System.currentTimeMillis() + DURATION_SEC * 1000L;
+        while (System.currentTimeMillis() < deadline) {
+            Thread.sleep(1000L);
+            System.out.printf("connected=%d failed=%d sent=%d acked=%d rate=%.0f msg/s%n",
+                    generator.getConnectedDevices(), generator.getFailedDevices(), generator.getSentCount(),
+                    generator.getAcknowledgedCount(), generator.getAchievedRate());
+        }
+        double rate = generator.getAchievedRate();
+        generator.stop();
+
+        System.out.printf("%d messages sent by %d devices (%.0f msg/s), %d acknowledged, %d connections failed%n",
+                generator.getSentCount(), DEVICES, rate, generator.getAcknowledgedCount(), generator.getFailedDevices());
+        if (QOS > 0) {
+            System.out.println("publish to PUBACK latency: " + generator.getLatency().summary());
+        }
+        if (broker != null) {
+            System.out.println("broker received " + broker.getReceivedCount() + " messages");
+            broker.stop();
+        }
+    }
+
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.mqtt;
+
+import com.orange.liveobjects.samples.utils.LoraFrameTracker;
+import com.orange.liveobjects.samples.utils.TrafficRecorder;
+import com.orange.liveobjects.samples.utils.TrafficReplayer;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Offline tuning of the consumers: replays traffic recorded by Sample_10, Sample_11 or
+ * Sample_12 (record file argument, see {@link TrafficRecorder}) into the callback of one of
+ * them, without any broker, and reports the throughput it sustained.
+ *
+ * Usage: recordFile [speed|max] [router|fifo|lora]
+ * The speed multiplies the original pace (default 1), "max" replays as fast as possible.
+ */
+public class Sample_22_ReplayTraffic {
+
+    public static void main(String[] args) throws IOException {
+
+        if (args.length == 0) {
+            System.out.println("Usage: recordFile [speed|max] [router|fifo|lora]");
+            return;
+        }
+        String RECORD_FILE = args[0];
+        String SPEED_ARG = args.length > 1 ? args[1] : "1";
+        double SPEED = "max".equals(SPEED_ARG) ? 0 : Double.parseDouble(SPEED_ARG);
+        String CONSUMER = args.length > 2 ? args[2] : "router";
+        int EXPECTED_DEVICES = 100000;
+
+        // the callbacks of the samples, not connected (messages are handled as received)
+        MqttCallback callback;
+        if ("fifo".equals(CONSUMER)) {
+            callback = new Sample_11_SimpleAppConsumeFifo.SimpleMqttCallback(null, null, null);
+        } else if ("lora".equals(CONSUMER)) {
+            callback = new Sample_12_SimpleAppConsumeLoRa.SimpleMqttCallback(null, null,
+                    new LoraFrameTracker(EXPECTED_DEVICES), null);
+        } else {
+            callback = new Sample_10_SimpleAppConsumeRouter_allDataNew.SimpleMqttCallback(null);
+        }
+
+        TrafficReplayer.Report report = new TrafficReplayer(new File(RECORD_FILE)).replay(callback, SPEED);
+        System.out.println(report.summary());
+    }
+
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Block format shared by {@link MessageArchive} and {@link MessageArchiveReader}.
+ * <p>
+ * A segment file is a sequence of blocks:
+ * <pre>
+ * int MAGIC, int headerLength, int bodyLength, int CRC32(header)
+ * header: long minTime, long maxTime, varint rows,
+ *         varint streams, stream ids (dictionary of the block),
+ *         varint columns, per column: byte kind, byte type, name, varint rawLength,
+ *                                     varint compressedLength, int CRC32(compressed column)
+ * body:   the deflated columns, in the order of the header
+ * </pre>
+ * The TIME column holds zigzag varint deltas (first one from minTime), the STREAM column the
+ * varint index of the stream id in the dictionary. Other columns start with a bitmap of the
+ * rows having a value, followed by the values of those rows only: raw IEEE bits for DOUBLE,
+ * zigzag varint for LONG, one byte for BOOLEAN, varint length + UTF-8 for STRING and JSON,
+ * varint count + strings for STRING_LIST.
+ */
+final class ArchiveCodec {
+
+    static final int MAGIC = 0x4C4F4142; // "LOAB"
+    static final int FRAME_HEADER_SIZE = 16;
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // column kinds
+    static final byte TIME = 0;
+    static final byte STREAM = 1;
+    static final byte MODEL = 2;
+    static final byte VALUE = 3;
+    static final byte TAGS = 4;
+    static final byte LOCATION = 5;
+    static final byte METADATA = 6;
+    static final int KINDS = 7;
+
+    // value types
+    static final byte DOUBLE = 0;
+    static final byte LONG = 1;
+    static final byte BOOLEAN = 2;
+    static final byte STRING = 3;
+    static final byte STRING_LIST = 4;
+    // any other value, as JSON text
+    static final byte JSON = 5;
+    static final int TYPES = 6;
+
+    private ArchiveCodec() {
+    }
+
+    /**
+     * Growable byte array.
+     */
+    static final class Sink {
+        byte[] bytes;
+        int size;
+
+        Sink(int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        void reset() {
+            size = 0;
+        }
+
+        void reserve(int more) {
+            if (size + more > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + more));
+            }
+        }
+
+        void writeByte(int b) {
+            reserve(1);
+            bytes[size++] = (byte) b;
+        }
+
+        void writeBytes(byte[] b, int offset, int length) {
+            reserve(length);
+            System.arraycopy(b, offset, bytes, size, length);
+            size += length;
+        }
+
+        void writeInt(int v) {
+            reserve(4);
+            bytes[size++] = (byte) (v >>> 24);
+            bytes[size++] = (byte) (v >>> 16);
+            bytes[size++] = (byte) (v >>> 8);
+            bytes[size++] = (byte) v;
+        }
+
+        void writeLong(long v) {
+            writeInt((int) (v >>> 32));
+            writeInt((int) v);
+        }
+
+        void writeVarint(long v) {
+            reserve(10);
+            while ((v & ~0x7FL) != 0) {
+                bytes[size++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            bytes[size++] = (byte) v;
+        }
+
+        void writeZigzag(long v) {
+            writeVarint((v << 1) ^ (v >> 63));
+        }
+
+        void writeString(String s) {
+            byte[] utf8 = s.getBytes(UTF_8);
+            writeVarint(utf8.length);
+            writeBytes(utf8, 0, utf8.length);
+        }
+    }
+
+    /**
+     * Reading cursor over a byte array.
+     */
+    static final class Source {
+        final byte[] bytes;
+        int pos;
+
+        Source(byte[] bytes, int pos) {
+            this.bytes = bytes;
+            this.pos = pos;
+        }
+
+        int readByte() {
+            return bytes[pos++];
+        }
+
+        int readInt() {
+            int v = (bytes[pos] & 0xFF) << 24 | (bytes[pos + 1] & 0xFF) << 16 | (bytes[pos + 2] & 0xFF) << 8
+                    | (bytes[pos + 3] & 0xFF);
+            pos += 4;
+            return v;
+        }
+
+        long readLong() {
+            return (long) readInt() << 32 | (readInt() & 0xFFFFFFFFL);
+        }
+
+        long readVarint() {
+            long v = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = bytes[pos++];
+                v |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return v;
+                }
+            }
+        }
+
+        long readZigzag() {
+            long v = readVarint();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        String readString() {
+            int length = (int) readVarint();
+            String s = new String(bytes, pos, length, UTF_8);
+            pos += length;
+            return s;
+        }
+
+        void skipString() {
+            int length = (int) readVarint();
+            pos += length;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Message read back from a {@link MessageArchive} by a {@link MessageArchiveReader}.
+ * Fields whose columns were not read are null.
+ */
+public class ArchivedMessage {
+
+    /**
+     * Time of the message, in ms since the epoch
+     */
+    public long time;
+
+    /**
+     * Stream identifier
+     */
+    public String streamId;
+
+    /**
+     * Data "model"
+     */
+    public String model;
+
+    /**
+     * Values
+     */
+    public Map<String, Object> values;
+
+    /**
+     * Tags
+     */
+    public List<String> tags;
+
+    /**
+     * Location [latitude, longitude]
+     */
+    public Double[] loc;
+
+    /**
+     * Metadata (e.g. "source")
+     */
+    public Map<String, Object> metadata;
+
+    @Override
+    public String toString() {
+        return "ArchivedMessage{" +
+                "time=" + time +
+                ", streamId='" + streamId + '\'' +
+                ", model='" + model + '\'' +
+                ", values=" + values +
+                ", tags=" + tags +
+                ", loc=" + (loc == null ? null : "[" + loc[0] + ", " + loc[1] + "]") +
+                ", metadata=" + metadata +
+                '}';
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.io.Reader;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Handler appending the data messages consumed from the router or a FIFO ({@link DataMessage},
+ * read from the "payload" of the envelope, see {@link RouterEnvelope}) to a {@link MessageArchive},
+ * before passing them on to another handler.
+ * <p>
+ * Messages without payload or stream id are not archived but counted
+ * ({@link #getSkippedCount()}), and still passed on.
+ */
+public class ArchivingMessageHandler implements MessageHandler {
+
+    private final MessageArchive archive;
+    private final MessageHandler next;
+    private final TypeAdapter<DataMessage> adapter = JsonCodecs.gson().getAdapter(DataMessage.class);
+    private final AtomicLong skipped = new AtomicLong();
+
+    /**
+     * @param next handler of the archived messages, or null
+     */
+    public ArchivingMessageHandler(MessageArchive archive, MessageHandler next) {
+        this.archive = archive;
+        this.next = next;
+    }
+
+    public void handle(String topic, MqttMessage message) throws Exception {
+        Reader payload = RouterEnvelope.payloadReader(message.getPayload());
+        DataMessage data = payload == null ? null : adapter.read(new JsonReader(payload));
+        if (data != null && data.streamId != null && !data.streamId.isEmpty()) {
+            archive.append(data, System.currentTimeMillis());
+        } else {
+            skipped.incrementAndGet();
+        }
+        if (next != null) {
+            next.handle(topic, message);
+        }
+    }
+
+    /**
+     * @return messages not archived for lacking a payload or a stream id
+     */
+    public long getSkippedCount() {
+        return skipped.get();
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import com.google.gson.JsonElement;
+import com.google.gson.TypeAdapter;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * CBOR (RFC 7049), the binary counterpart of JSON: same structure and field names as
+ * {@link JsonMessageCodec}, with binary numbers and length-prefixed strings instead of text.
+ * <p>
+ * Live Objects only accepts JSON: CBOR is meant for links where both ends are under control,
+ * e.g. devices behind a gateway, or {@link LocalLiveObjectsBroker} which decodes both.
+ */
+public class CborMessageCodec implements MessageCodec {
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    public String getName() {
+        return "cbor";
+    }
+
+    public byte[] encode(Object message) {
+        CborWriter writer = new CborWriter(INITIAL_CAPACITY);
+        try {
+            write(writer, message);
+        } catch (IOException e) {
+            // not thrown by an in-memory writer
+            throw new IllegalStateException(e);
+        }
+        return writer.toByteArray();
+    }
+
+    public <T> T decode(byte[] payload, Class<T> type) {
+        return decode(payload, 0, payload.length, type);
+    }
+
+    /**
+     * Decodes a message held in part of an array.
+     */
+    public <T> T decode(byte[] payload, int offset, int length, Class<T> type) {
+        CborReader reader = new CborReader(payload, offset, length);
+        try {
+            if (Map.class.isAssignableFrom(type)) {
+                // the Gson map adapter reads the keys through the internals of JsonReader:
+                // decoded to a tree first
+                JsonElement tree = JsonCodecs.gson().getAdapter(JsonElement.class).read(reader);
+                return JsonCodecs.gson().fromJson(tree, type);
+            }
+            return JsonCodecs.gson().getAdapter(type).read(reader);
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid CBOR " + type.getSimpleName() + ": " + e.getMessage(), e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> void write(CborWriter writer, T message) throws IOException {
+        if (message == null) {
+            writer.nullValue();
+            return;
+        }
+        TypeAdapter<T> adapter = (TypeAdapter<T>) JsonCodecs.gson().getAdapter(message.getClass());
+        adapter.write(writer, message);
+    }
+
+}
@@ -0,0 +1,478 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * {@link JsonReader} reading CBOR (RFC 7049) instead of JSON text, so that the Gson
+ * {@link com.google.gson.TypeAdapter}s of {@link JsonCodecs} decode CBOR unchanged.
+ * <p>
+ * CBOR items are seen as the JSON tokens they stand for: integers and floats as
+ * {@link JsonToken#NUMBER}, "undefined" as {@link JsonToken#NULL}. Definite and indefinite
+ * lengths are accepted, tags are ignored; byte strings and map keys which are not text
+ * strings are refused. As with a JSON reader, numbers can be read as strings and strings
+ * holding numbers as numbers. Not thread-safe: one reader per message.
+ */
+class CborReader extends JsonReader {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // the JSON input of the superclass is never used
+    private static final Reader UNUSED = new Reader() {
+        public int read(char[] chars, int off, int len) {
+            return -1;
+        }
+
+        public void close() {
+        }
+    };
+
+    private static final int BREAK = 0xFF;
+
+    private final byte[] buf;
+    private final int limit;
+    private int pos;
+
+    // per open container: items left (keys and values for objects, -1 if indefinite)
+    private long[] remaining = new long[16];
+    private boolean[] objects = new boolean[16];
+    // in an object, whether the next item is a name
+    private boolean[] names = new boolean[16];
+    private int depth;
+    private boolean consumed;
+
+    CborReader(byte[] payload, int offset, int length) {
+        super(UNUSED);
+        this.buf = payload;
+        this.pos = offset;
+        this.limit = offset + length;
+    }
+
+    @Override
+    public void beginArray() throws IOException {
+        expect(JsonToken.BEGIN_ARRAY);
+        open(false, readArgument(buf[pos++] & 0xFF));
+    }
+
+    @Override
+    public void endArray() throws IOException {
+        expect(JsonToken.END_ARRAY);
+        closeContainer();
+    }
+
+    @Override
+    public void beginObject() throws IOException {
+        expect(JsonToken.BEGIN_OBJECT);
+        long pairs = readArgument(buf[pos++] & 0xFF);
+        open(true, pairs < 0 ? -1 : pairs * 2);
+    }
+
+    @Override
+    public void endObject() throws IOException {
+        expect(JsonToken.END_OBJECT);
+        closeContainer();
+    }
+
+    @Override
+    public boolean hasNext() throws IOException {
+        JsonToken token = peek();
+        return token != JsonToken.END_OBJECT && token != JsonToken.END_ARRAY && token != JsonToken.END_DOCUMENT;
+    }
+
+    @Override
+    public JsonToken peek() throws IOException {
+        if (depth == 0) {
+            if (consumed) {
+                return JsonToken.END_DOCUMENT;
+            }
+        } else {
+            long left = remaining[depth - 1];
+            if (left == 0 || left < 0 && pos < limit && (buf[pos] & 0xFF) == BREAK) {
+                return objects[depth - 1] ? JsonToken.END_OBJECT : JsonToken.END_ARRAY;
+            }
+            if (names[depth - 1]) {
+                return JsonToken.NAME;
+            }
+        }
+        skipTags();
+        int initial = buf[pos] & 0xFF;
+        switch (initial >>> 5) {
+            case 0:
+            case 1:
+                return JsonToken.NUMBER;
+            case 3:
+                return JsonToken.STRING;
+            case 4:
+                return JsonToken.BEGIN_ARRAY;
+            case 5:
+                return JsonToken.BEGIN_OBJECT;
+            case 7:
+                switch (initial & 0x1F) {
+                    case 20:
+                    case 21:
+                        return JsonToken.BOOLEAN;
+                    case 22:
+                    case 23:
+                        return JsonToken.NULL;
+                    case 25:
+                    case 26:
+                    case 27:
+                        return JsonToken.NUMBER;
+                    default:
+                        throw syntaxError("Unexpected simple value " + initial);
+                }
+            default:
+                throw syntaxError("Unsupported CBOR item " + initial);
+        }
+    }
+
+    @Override
+    public String nextName() throws IOException {
+        expect(JsonToken.NAME);
+        if ((buf[pos] & 0xFF) >>> 5 != 3) {
+            throw syntaxError("Map keys must be text strings");
+        }
+        String name = readText();
+        next();
+        return name;
+    }
+
+    @Override
+    public String nextString() throws IOException {
+        JsonToken token = peek();
+        String value;
+        if (token == JsonToken.STRING) {
+            value = readText();
+        } else if (token == JsonToken.NUMBER) {
+            int initial = buf[pos] & 0xFF;
+            value = initial >>> 5 == 7 ? String.valueOf(readFloat()) : String.valueOf(readInteger());
+        } else {
+            throw unexpected(JsonToken.STRING, token);
+        }
+        next();
+        return value;
+    }
+
+    @Override
+    public boolean nextBoolean() throws IOException {
+        expect(JsonToken.BOOLEAN);
+        boolean value = (buf[pos++] & 0xFF) == 0xF5;
+        next();
+        return value;
+    }
+
+    @Override
+    public void nextNull() throws IOException {
+        expect(JsonToken.NULL);
+        pos++;
+        next();
+    }
+
+    @Override
+    public double nextDouble() throws IOException {
+        JsonToken token = peek();
+        double value;
+        if (token == JsonToken.STRING) {
+            value = Double.parseDouble(readText());
+        } else if (token == JsonToken.NUMBER) {
+            value = (buf[pos] & 0xFF) >>> 5 == 7 ? readFloat() : readInteger();
+        } else {
+            throw unexpected(JsonToken.NUMBER, token);
+        }
+        if (!isLenient() && (Double.isNaN(value) || Double.isInfinite(value))) {
+            throw syntaxError("JSON forbids NaN and infinities: " + value);
+        }
+        next();
+        return value;
+    }
+
+    @Override
+    public long nextLong() throws IOException {
+        JsonToken token = peek();
+        long value;
+        if (token == JsonToken.STRING) {
+            String text = readText();
+            try {
+                value = Long.parseLong(text);
+            } catch (NumberFormatException e) {
+                value = toLong(Double.parseDouble(text));
+            }
+        } else if (token == JsonToken.NUMBER) {
+            value = (buf[pos] & 0xFF) >>> 5 == 7 ? toLong(readFloat()) : readInteger();
+        } else {
+            throw unexpected(JsonToken.NUMBER, token);
+        }
+        next();
+        return value;
+    }
+
+    @Override
+    public int nextInt() throws IOException {
+        long value = nextLong();
+        if ((int) value != value) {
+            throw new NumberFormatException("Expected an int but was " + value + " " + location());
+        }
+        return (int) value;
+    }
+
+    @Override
+    public void skipValue() throws IOException {
+        JsonToken token = peek();
+        if (token == JsonToken.END_ARRAY || token == JsonToken.END_OBJECT || token == JsonToken.END_DOCUMENT) {
+            throw syntaxError("No value to skip");
+        }
+        // a name is skipped alone, as with a JSON reader
+        skipItem();
+        next();
+    }
+
+    @Override
+    public void close() {
+        depth = 0;
+        consumed = true;
+    }
+
+    @Override
+    public String getPath() {
+        return "$ at byte " + pos;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " " + location();
+    }
+
+    private void open(boolean object, long items) {
+        if (depth == remaining.length) {
+            remaining = Arrays.copyOf(remaining, depth * 2);
+            objects = Arrays.copyOf(objects, depth * 2);
+            names = Arrays.copyOf(names, depth * 2);
+        }
+        remaining[depth] = items;
+        objects[depth] = object;
+        names[depth] = object;
+        depth++;
+    }
+
+    private void closeContainer() {
+        depth--;
+        if (remaining[depth] < 0) {
+            // break code
+            pos++;
+        }
+        next();
+    }
+
+    /**
+     * An item (or a name) was consumed.
+     */
+    private void next() {
+        if (depth == 0) {
+            consumed = true;
+            return;
+        }
+        if (remaining[depth - 1] > 0) {
+            remaining[depth - 1]--;
+        }
+        if (objects[depth - 1]) {
+            names[depth - 1] = !names[depth - 1];
+        }
+    }
+
+    private void expect(JsonToken expected) throws IOException {
+        JsonToken token = peek();
+        if (token != expected) {
+            throw unexpected(expected, token);
+        }
+    }
+
+    private void skipTags() throws IOException {
+        require(1);
+        while ((buf[pos] & 0xFF) >>> 5 == 6) {
+            readArgument(buf[pos++] & 0xFF);
+            require(1);
+        }
+    }
+
+    /**
+     * Skips the item at the current position, nested items included.
+     */
+    private void skipItem() throws IOException {
+        require(1);
+        int initial = buf[pos++] & 0xFF;
+        int major = initial >>> 5;
+        long argument = readArgument(initial);
+        switch (major) {
+            case 2:
+            case 3:
+                if (argument < 0) {
+                    while (!atBreak()) {
+                        skipItem();
+                    }
+                    pos++;
+                } else {
+                    skip(argument);
+                }
+                break;
+            case 4:
+            case 5:
+                long items = major == 5 && argument > 0 ? argument * 2 : argument;
+                if (items < 0) {
+                    while (!atBreak()) {
+                        skipItem();
+                    }
+                    pos++;
+                } else {
+                    for (long i = 0; i < items; i++) {
+                        skipItem();
+                    }
+                }
+                break;
+            case 6:
+                skipItem();
+                break;
+            default:
+                // integers and simple values: argument already read
+        }
+    }
+
+    private boolean atBreak() throws IOException {
+        require(1);
+        return (buf[pos] & 0xFF) == BREAK;
+    }
+
+    private String readText() throws IOException {
+        long length = readArgument(buf[pos++] & 0xFF);
+        if (length >= 0) {
+            skip(length);
+            return new String(buf, pos - (int) length, (int) length, UTF_8);
+        }
+        // indefinite length: chunks of definite length
+        StringBuilder text = new StringBuilder();
+        while (!atBreak()) {
+            if ((buf[pos] & 0xFF) >>> 5 != 3) {
+                throw syntaxError("Invalid text chunk");
+            }
+            text.append(readText());
+        }
+        pos++;
+        return text.toString();
+    }
+
+    private long readInteger() throws IOException {
+        int initial = buf[pos++] & 0xFF;
+        long argument = readArgument(initial);
+        if (argument < 0) {
+            // beyond the long range (or indefinite length)
+            throw new NumberFormatException("Integer out of range " + location());
+        }
+        return initial >>> 5 == 0 ? argument : -1 - argument;
+    }
+
+    private double readFloat() throws IOException {
+        int initial = buf[pos++] & 0xFF;
+        switch (initial & 0x1F) {
+            case 25:
+                return fromHalf((int) readBytes(2));
+            case 26:
+                return Float.intBitsToFloat((int) readBytes(4));
+            default:
+                return Double.longBitsToDouble(readBytes(8));
+        }
+    }
+
+    static float fromHalf(int half) {
+        int sign = (half & 0x8000) << 16;
+        int exponent = (half >>> 10) & 0x1F;
+        int mantissa = half & 0x3FF;
+        if (exponent == 0x1F) {
+            return Float.intBitsToFloat(sign | 0x7F800000 | mantissa << 13);
+        }
+        if (exponent == 0) {
+            float value = mantissa * 0x1p-24f;
+            return sign == 0 ? value : -value;
+        }
+        return Float.intBitsToFloat(sign | (exponent + 112) << 23 | mantissa << 13);
+    }
+
+    private static long toLong(double value) {
+        long integer = (long) value;
+        if (integer != value) {
+            throw new NumberFormatException("Expected a long but was " + value);
+        }
+        return integer;
+    }
+
+    /**
+     * @return argument of the item header (the initial byte being read), -1 for an indefinite
+     * length or an unsigned value beyond the long range
+     */
+    private long readArgument(int initial) throws IOException {
+        int info = initial & 0x1F;
+        if (info < 24) {
+            return info;
+        }
+        switch (info) {
+            case 24:
+                return readBytes(1);
+            case 25:
+                return readBytes(2);
+            case 26:
+                return readBytes(4);
+            case 27:
+                return readBytes(8);
+            case 31:
+                return -1;
+            default:
+                throw syntaxError("Invalid additional information " + info);
+        }
+    }
+
+    private long readBytes(int size) throws IOException {
+        require(size);
+        long value = 0;
+        for (int i = 0; i < size; i++) {
+            value = value << 8 | (buf[pos++] & 0xFF);
+        }
+        return value;
+    }
+
+    private void skip(long size) throws IOException {
+        if (size > limit - pos) {
+            throw new EOFException("End of payload " + location());
+        }
+        pos += (int) size;
+    }
+
+    private void require(int size) throws IOException {
+        if (limit - pos < size) {
+            throw new EOFException("End of payload " + location());
+        }
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException(message + " " + location());
+    }
+
+    private IllegalStateException unexpected(JsonToken expected, JsonToken token) {
+        return new IllegalStateException("Expected " + expected + " but was " + token + " " + location());
+    }
+
+    private String location() {
+        return "at byte " + pos;
+    }
+
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * {@link JsonWriter} producing CBOR (RFC 7049) instead of JSON text, so that the Gson
+ * {@link com.google.gson.TypeAdapter}s of {@link JsonCodecs} encode to CBOR unchanged.
+ * <p>
+ * Objects and arrays are written with definite lengths (the item count is patched in their
+ * header when they end), integers with the shortest header, and floating point numbers with
+ * the smallest precision (half, single or double) that holds their value exactly.
+ * Names whose value is null are dropped, as by {@link JsonCodecs#gson()} in JSON.
+ * Not thread-safe: one writer per message.
+ */
+class CborWriter extends JsonWriter {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // the JSON output of the superclass is never used
+    private static final Writer UNUSED = new Writer() {
+        public void write(char[] chars, int off, int len) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void flush() {
+        }
+
+        public void close() {
+        }
+    };
+
+    private byte[] buf;
+    private int pos;
+
+    // per open container: position of its header, number of items (pairs for objects)
+    private int[] headers = new int[16];
+    private int[] counts = new int[16];
+    private boolean[] objects = new boolean[16];
+    private int depth;
+    private String pendingName;
+
+    CborWriter(int initialCapacity) {
+        super(UNUSED);
+        this.buf = new byte[Math.max(16, initialCapacity)];
+        setSerializeNulls(false);
+    }
+
+    /**
+     * @return the encoded message
+     */
+    byte[] toByteArray() {
+        if (depth != 0 || pendingName != null) {
+            throw new IllegalStateException("Incomplete document");
+        }
+        return Arrays.copyOf(buf, pos);
+    }
+
+    @Override
+    public JsonWriter beginArray() {
+        return open(false);
+    }
+
+    @Override
+    public JsonWriter endArray() {
+        return closeContainer(false);
+    }
+
+    @Override
+    public JsonWriter beginObject() {
+        return open(true);
+    }
+
+    @Override
+    public JsonWriter endObject() {
+        return closeContainer(true);
+    }
+
+    @Override
+    public JsonWriter name(String name) {
+        if (name == null) {
+            throw new NullPointerException("name == null");
+        }
+        if (depth == 0 || !objects[depth - 1] || pendingName != null) {
+            throw new IllegalStateException("Unexpected name " + name);
+        }
+        pendingName = name;
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(String value) {
+        if (value == null) {
+            return nullValue();
+        }
+        beforeValue();
+        writeText(value);
+        return this;
+    }
+
+    @Override
+    public JsonWriter jsonValue(String value) {
+        throw new UnsupportedOperationException("Raw JSON cannot be written as CBOR");
+    }
+
+    @Override
+    public JsonWriter nullValue() {
+        if (pendingName != null && !getSerializeNulls()) {
+            pendingName = null;
+            return this;
+        }
+        beforeValue();
+        ensure(1);
+        buf[pos++] = (byte) 0xF6;
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(boolean value) {
+        beforeValue();
+        ensure(1);
+        buf[pos++] = (byte) (value ? 0xF5 : 0xF4);
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(Boolean value) {
+        return value == null ? nullValue() : value(value.booleanValue());
+    }
+
+    @Override
+    public JsonWriter value(double value) {
+        if (!isLenient() && (Double.isNaN(value) || Double.isInfinite(value))) {
+            throw new IllegalArgumentException("Numeric values must be finite, but was " + value);
+        }
+        beforeValue();
+        writeDouble(value);
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(long value) {
+        beforeValue();
+        writeLong(value);
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(Number value) {
+        if (value == null) {
+            return nullValue();
+        }
+        if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            return value(value.longValue());
+        }
+        if (value instanceof Double || value instanceof Float) {
+            return value(value.doubleValue());
+        }
+        // BigInteger, BigDecimal, LazilyParsedNumber...: integral if it has no fraction
+        String string = value.toString();
+        try {
+            BigInteger integer = new BigDecimal(string).toBigIntegerExact();
+            if (integer.bitLength() < 64) {
+                return value(integer.longValue());
+            }
+        } catch (ArithmeticException e) {
+            // has a fraction
+        } catch (NumberFormatException e) {
+            // NaN, infinity
+        }
+        return value(Double.parseDouble(string));
+    }
+
+    @Override
+    public void flush() {
+        // nothing: the message is kept in memory
+    }
+
+    @Override
+    public void close() {
+        // nothing
+    }
+
+    private JsonWriter open(boolean object) {
+        beforeValue();
+        if (depth == headers.length) {
+            headers = Arrays.copyOf(headers, depth * 2);
+            counts = Arrays.copyOf(counts, depth * 2);
+            objects = Arrays.copyOf(objects, depth * 2);
+        }
+        ensure(1);
+        headers[depth] = pos;
+        counts[depth] = 0;
+        objects[depth] = object;
+        depth++;
+        // count < 24 assumed, patched when the container ends
+        buf[pos++] = 0;
+        return this;
+    }
+
+    private JsonWriter closeContainer(boolean object) {
+        if (depth == 0 || objects[depth - 1] != object || pendingName != null) {
+            throw new IllegalStateException("Nesting problem");
+        }
+        depth--;
+        int header = headers[depth];
+        int count = counts[depth];
+        int major = object ? 5 : 4;
+        if (count < 24) {
+            buf[header] = (byte) (major << 5 | count);
+        } else {
+            // longer header: shift the items
+            int headerSize = count < 0x100 ? 2 : count < 0x10000 ? 3 : 5;
+            ensure(headerSize - 1);
+            System.arraycopy(buf, header + 1, buf, header + headerSize, pos - header - 1);
+            pos += headerSize - 1;
+            int end = pos;
+            pos = header;
+            writeHead(major, count);
+            pos = end;
+        }
+        return this;
+    }
+
+    private void beforeValue() {
+        if (depth == 0) {
+            if (pos > 0) {
+                throw new IllegalStateException("A document has a single top-level value");
+            }
+            return;
+        }
+        if (objects[depth - 1]) {
+            if (pendingName == null) {
+                throw new IllegalStateException("Value without a name");
+            }
+            String name = pendingName;
+            pendingName = null;
+            writeText(name);
+        }
+        counts[depth - 1]++;
+    }
+
+    private void writeLong(long value) {
+        if (value >= 0) {
+            writeHead(0, value);
+        } else {
+            writeHead(1, -1 - value);
+        }
+    }
+
+    private void writeDouble(double value) {
+        float single = (float) value;
+        if (single != value && !Double.isNaN(value)) {
+            ensure(9);
+            buf[pos++] = (byte) 0xFB;
+            putLong(Double.doubleToLongBits(value), 8);
+            return;
+        }
+        int half = toHalf(single);
+        if (half >= 0) {
+            ensure(3);
+            buf[pos++] = (byte) 0xF9;
+            putLong(half, 2);
+        } else {
+            ensure(5);
+            buf[pos++] = (byte) 0xFA;
+            putLong(Float.floatToIntBits(single) & 0xFFFFFFFFL, 4);
+        }
+    }
+
+    /**
+     * @return bits of the half precision float equal to the value, or -1 if there is none
+     */
+    static int toHalf(float value) {
+        int bits = Float.floatToIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int exponent = (bits >>> 23) & 0xFF;
+        int mantissa = bits & 0x7FFFFF;
+        if (exponent == 0xFF) {
+            // infinity, NaN (canonical)
+            return sign | 0x7C00 | (mantissa == 0 ? 0 : 0x200);
+        }
+        if (exponent == 0 && mantissa == 0) {
+            return sign;
+        }
+        int unbiased = exponent - 127;
+        if (unbiased >= -14 && unbiased <= 15) {
+            // normal half: 10 bits of mantissa
+            return (mantissa & 0x1FFF) == 0 ? sign | (unbiased + 15) << 10 | mantissa >>> 13 : -1;
+        }
+        if (unbiased >= -24 && unbiased < -14) {
+            // subnormal half: implicit bit made explicit, shifted out of the exponent range
+            int full = mantissa | 0x800000;
+            int shift = 13 + (-14 - unbiased);
+            return (full & ((1 << shift) - 1)) == 0 ? sign | full >>> shift : -1;
+        }
+        return -1;
+    }
+
+    private void writeText(String value) {
+        int length = value.length();
+        boolean ascii = true;
+        for (int i = 0; i < length && ascii; i++) {
+            ascii = value.charAt(i) < 0x80;
+        }
+        if (ascii) {
+            writeHead(3, length);
+            ensure(length);
+            for (int i = 0; i < length; i++) {
+                buf[pos++] = (byte) value.charAt(i);
+            }
+        } else {
+            byte[] bytes = value.getBytes(UTF_8);
+            writeHead(3, bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+        }
+    }
+
+    private void writeHead(int major, long argument) {
+        ensure(9);
+        int type = major << 5;
+        if (argument < 24) {
+            buf[pos++] = (byte) (type | argument);
+        } else if (argument < 0x100) {
+            buf[pos++] = (byte) (type | 24);
+            buf[pos++] = (byte) argument;
+        } else if (argument < 0x10000) {
+            buf[pos++] = (byte) (type | 25);
+            putLong(argument, 2);
+        } else if (argument < 0x100000000L) {
+            buf[pos++] = (byte) (type | 26);
+            putLong(argument, 4);
+        } else {
+            // argument read as unsigned
+            buf[pos++] = (byte) (type | 27);
+            putLong(argument, 8);
+        }
+    }
+
+    private void putLong(long value, int size) {
+        for (int shift = (size - 1) * 8; shift >= 0; shift -= 8) {
+            buf[pos++] = (byte) (value >>> shift);
+        }
+    }
+
+    private void ensure(int size) {
+        if (pos + size > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + size));
+        }
+    }
+
+}
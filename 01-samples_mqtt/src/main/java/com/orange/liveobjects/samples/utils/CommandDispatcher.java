@@ -0,0 +1,501 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Dispatches device commands to handlers registered per method ({@link DeviceCommand#req}).
+ * <p>
+ * Each method has its own {@link CommandExecutor}: at most {@code maxConcurrent} commands of
+ * a method run at once and {@code maxQueued} more wait, so a slow method only delays its own
+ * commands. A command not answered within the timeout of its method (counted from its
+ * dispatch, queueing included) gets an error response, and its handler is interrupted.
+ * Responses are sent by the worker of the command, or by a responder thread for the errors
+ * not coming from a handler (so that a slow response does not delay the other timeouts);
+ * never by the thread calling {@link #dispatch} (e.g. the Paho callback thread).
+ * <p>
+ * The routes are held in an open-addressing table rebuilt on each registration: a dispatch
+ * is a lock-free lookup. A command of an unregistered method goes to the default handler if
+ * any ({@link #registerDefault}), otherwise it gets an error response. Error responses hold
+ * a single "error" entry, and are flagged as failures to the {@link Responder}. A replaced
+ * handler completes the commands it accepted, its workers being then released.
+ */
+public class CommandDispatcher {
+
+    /**
+     * Handles the commands of a method, on a worker of the method.
+     */
+    public interface Handler {
+        /**
+         * @return result of the command (the "res" of the response), or null for an empty result
+         */
+        Map<String, Object> handle(DeviceCommand command) throws Exception;
+    }
+
+    /**
+     * Sends the responses (e.g. publishes them on "dev/cmd/res").
+     */
+    public interface Responder {
+        /**
+         * @param failed true for an error response (unknown method, command refused, failed or
+         *               timed out), false for the result of a handler
+         */
+        void respond(DeviceCommandResponse response, boolean failed) throws Exception;
+    }
+
+    public static final String DEFAULT_METHOD = "*";
+
+    private final Responder responder;
+    private final ScheduledExecutorService timer;
+    private final ExecutorService errorResponder;
+    // replaced routes, completing their commands
+    private final List<Route> retired = new ArrayList<Route>();
+    private volatile Table table = new Table(new ArrayList<Route>());
+    private volatile Route defaultRoute;
+    private final AtomicLong unknown = new AtomicLong();
+
+    public CommandDispatcher(Responder responder) {
+        this.responder = responder;
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "command-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.errorResponder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "command-error-responder");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Registers (or replaces) the handler of a method. A replaced handler stops accepting
+     * commands and completes the ones it accepted.
+     *
+     * @param maxConcurrent maximum number of commands of the method running at once
+     * @param maxQueued     maximum number of commands of the method waiting for a worker
+     * @param timeoutMillis maximum time to respond, or 0 for no limit
+     */
+    public synchronized void register(String method, int maxConcurrent, int maxQueued, long timeoutMillis,
+                                      Handler handler) {
+        List<Route> routes = new ArrayList<Route>();
+        for (Route route : table.list) {
+            if (route.method.equals(method)) {
+                retire(route);
+            } else {
+                routes.add(route);
+            }
+        }
+        routes.add(new Route(method, maxConcurrent, maxQueued, timeoutMillis, handler));
+        table = new Table(routes);
+    }
+
+    /**
+     * Registers the handler of the methods not registered.
+     */
+    public synchronized void registerDefault(int maxConcurrent, int maxQueued, long timeoutMillis, Handler handler) {
+        if (defaultRoute != null) {
+            retire(defaultRoute);
+        }
+        defaultRoute = new Route(DEFAULT_METHOD, maxConcurrent, maxQueued, timeoutMillis, handler);
+    }
+
+    private void retire(Route route) {
+        // commands dispatched meanwhile to the old table are rejected, and answered as such
+        try {
+            route.executor.shutdown(0, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        retired.add(route);
+    }
+
+    /**
+     * Submits a command to the workers of its method.
+     *
+     * @return false if the command was refused (unknown method, or its workers and queue are
+     * full): an error response is then sent
+     */
+    public boolean dispatch(DeviceCommand command) {
+        Route route = command.req == null ? null : table.get(command.req);
+        if (route == null) {
+            route = defaultRoute;
+        }
+        if (route == null) {
+            unknown.incrementAndGet();
+            respondLater(command.cid, "unknown method: " + command.req);
+            return false;
+        }
+        route.received.incrementAndGet();
+        Call call = new Call(route, command);
+        boolean accepted;
+        try {
+            accepted = route.executor.execute(call);
+        } catch (RejectedExecutionException e) {
+            accepted = false;
+        }
+        if (!accepted) {
+            route.rejected.incrementAndGet();
+            respondLater(command.cid, "too many pending commands");
+            return false;
+        }
+        if (route.timeoutMillis > 0) {
+            call.schedule(timer);
+        }
+        return true;
+    }
+
+    /**
+     * Stops accepting commands and waits for the accepted ones to complete.
+     *
+     * @return true if all completed within the timeout
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        boolean terminated = true;
+        List<Route> routes;
+        synchronized (this) {
+            routes = new ArrayList<Route>(table.list);
+            if (defaultRoute != null) {
+                routes.add(defaultRoute);
+            }
+            routes.addAll(retired);
+        }
+        for (Route route : routes) {
+            terminated &= route.executor.shutdown(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+        timer.shutdown();
+        terminated &= timer.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        errorResponder.shutdown();
+        terminated &= errorResponder.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        return terminated;
+    }
+
+    /**
+     * @return statistics of a method ({@link #DEFAULT_METHOD} for the default handler), or null
+     */
+    public MethodStats getStats(String method) {
+        Route route = DEFAULT_METHOD.equals(method) ? defaultRoute : table.get(method);
+        return route == null ? null : route.stats();
+    }
+
+    /**
+     * @return statistics of all the methods, in registration order (default handler last)
+     */
+    public List<MethodStats> getAllStats() {
+        List<MethodStats> stats = new ArrayList<MethodStats>();
+        for (Route route : table.list) {
+            stats.add(route.stats());
+        }
+        Route fallback = defaultRoute;
+        if (fallback != null) {
+            stats.add(fallback.stats());
+        }
+        return stats;
+    }
+
+    /**
+     * @return commands of unknown methods (without default handler)
+     */
+    public long getUnknownCount() {
+        return unknown.get();
+    }
+
+    /**
+     * @return one line per method
+     */
+    public String summary() {
+        StringBuilder sb = new StringBuilder();
+        for (MethodStats stats : getAllStats()) {
+            sb.append(stats).append('\n');
+        }
+        sb.append("unknown=").append(unknown.get());
+        return sb.toString();
+    }
+
+    /**
+     * Statistics of a method.
+     */
+    public static class MethodStats {
+        private final String method;
+        private final long received;
+        private final long completed;
+        private final long failed;
+        private final long timedOut;
+        private final long rejected;
+        private final int running;
+        private final int queued;
+        private final LatencyHistogram latency;
+
+        MethodStats(Route route) {
+            this.method = route.method;
+            this.received = route.received.get();
+            this.completed = route.completed.get();
+            this.failed = route.failed.get();
+            this.timedOut = route.timedOut.get();
+            this.rejected = route.rejected.get();
+            this.running = route.executor.getActiveCount();
+            this.queued = route.executor.getQueueDepth();
+            this.latency = route.latency;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public long getReceivedCount() {
+            return received;
+        }
+
+        /**
+         * @return commands answered with the result of the handler
+         */
+        public long getCompletedCount() {
+            return completed;
+        }
+
+        /**
+         * @return commands whose handler threw an exception
+         */
+        public long getFailedCount() {
+            return failed;
+        }
+
+        public long getTimedOutCount() {
+            return timedOut;
+        }
+
+        /**
+         * @return commands refused, the workers and the queue of the method being full
+         */
+        public long getRejectedCount() {
+            return rejected;
+        }
+
+        public int getRunningCount() {
+            return running;
+        }
+
+        public int getQueueDepth() {
+            return queued;
+        }
+
+        /**
+         * @return time from dispatch to response (live histogram, not a copy)
+         */
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        @Override
+        public String toString() {
+            return method + ": received=" + received + " completed=" + completed + " failed=" + failed
+                    + " timedOut=" + timedOut + " rejected=" + rejected + " running=" + running + " queued="
+                    + queued + " latency: " + latency.summary();
+        }
+    }
+
+    /**
+     * Sends an error response from the responder thread.
+     */
+    private void respondLater(final Long cid, final String error) {
+        try {
+            errorResponder.execute(new Runnable() {
+                public void run() {
+                    send(cid, errorResult(error), true);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // shut down
+        }
+    }
+
+    private void send(Long cid, Map<String, Object> result, boolean failed) {
+        try {
+            responder.respond(new DeviceCommandResponse(result == null ? new HashMap<String, Object>() : result, cid),
+                    failed);
+        } catch (Exception e) {
+            System.out.println("Command response " + cid + " not sent: " + e);
+        }
+    }
+
+    private static Map<String, Object> errorResult(String error) {
+        Map<String, Object> result = new HashMap<String, Object>();
+        result.put("error", error);
+        return result;
+    }
+
+    /**
+     * Handler, workers and metrics of a method.
+     */
+    private static final class Route {
+        final String method;
+        final Handler handler;
+        final CommandExecutor executor;
+        final long timeoutMillis;
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong received = new AtomicLong();
+        final AtomicLong completed = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final AtomicLong timedOut = new AtomicLong();
+        final AtomicLong rejected = new AtomicLong();
+
+        Route(String method, int maxConcurrent, int maxQueued, long timeoutMillis, Handler handler) {
+            this.method = method;
+            this.handler = handler;
+            this.executor = new CommandExecutor(maxConcurrent, maxQueued, CommandExecutor.RejectionPolicy.DISCARD);
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        MethodStats stats() {
+            return new MethodStats(this);
+        }
+    }
+
+    /**
+     * Open-addressing table of the routes (load factor at most 0.5).
+     */
+    private static final class Table {
+        final List<Route> list;
+        final Route[] routes;
+        final int mask;
+
+        Table(List<Route> list) {
+            this.list = list;
+            int capacity = Integer.highestOneBit(Math.max(2, list.size()) * 4 - 1);
+            this.routes = new Route[capacity];
+            this.mask = capacity - 1;
+            for (Route route : list) {
+                int i = spread(route.method.hashCode()) & mask;
+                while (routes[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                routes[i] = route;
+            }
+        }
+
+        Route get(String method) {
+            for (int i = spread(method.hashCode()) & mask; ; i = (i + 1) & mask) {
+                Route route = routes[i];
+                if (route == null || route.method.equals(method)) {
+                    return route;
+                }
+            }
+        }
+
+        private static int spread(int h) {
+            return h ^ (h >>> 16);
+        }
+    }
+
+    /**
+     * A dispatched command: answered once, by its handler or by its timeout.
+     */
+    private final class Call implements Runnable {
+        private final Route route;
+        private final DeviceCommand command;
+        private final long dispatchedAt = System.nanoTime();
+        private final AtomicBoolean answered = new AtomicBoolean();
+        private Thread runner;
+        private ScheduledFuture<?> timeout;
+
+        Call(Route route, DeviceCommand command) {
+            this.route = route;
+            this.command = command;
+        }
+
+        void schedule(ScheduledExecutorService timer) {
+            try {
+                ScheduledFuture<?> future = timer.schedule(new Runnable() {
+                    public void run() {
+                        timeout();
+                    }
+                }, route.timeoutMillis, TimeUnit.MILLISECONDS);
+                synchronized (this) {
+                    timeout = future;
+                }
+                if (answered.get()) {
+                    future.cancel(false);
+                }
+            } catch (RejectedExecutionException e) {
+                // shut down: no timeout
+            }
+        }
+
+        public void run() {
+            if (answered.get()) {
+                // timed out while queued
+                return;
+            }
+            synchronized (this) {
+                runner = Thread.currentThread();
+            }
+            Map<String, Object> result = null;
+            Exception error = null;
+            try {
+                result = route.handler.handle(command);
+            } catch (Exception e) {
+                error = e;
+            } finally {
+                synchronized (this) {
+                    runner = null;
+                }
+                // an interruption by the timeout must not reach the next command
+                Thread.interrupted();
+            }
+            if (!answered.compareAndSet(false, true)) {
+                return;
+            }
+            synchronized (this) {
+                if (timeout != null) {
+                    timeout.cancel(false);
+                }
+            }
+            if (error == null) {
+                route.completed.incrementAndGet();
+                send(command.cid, result, false);
+            } else {
+                route.failed.incrementAndGet();
+                send(command.cid, errorResult(String.valueOf(error)), true);
+            }
+            route.latency.record(System.nanoTime() - dispatchedAt);
+        }
+
+        void timeout() {
+            if (!answered.compareAndSet(false, true)) {
+                return;
+            }
+            synchronized (this) {
+                if (runner != null) {
+                    runner.interrupt();
+                }
+            }
+            route.timedOut.incrementAndGet();
+            route.latency.record(System.nanoTime() - dispatchedAt);
+            // not from the timer thread: the next timeouts would wait for the publication
+            respondLater(command.cid, "timeout after " + route.timeoutMillis + " ms");
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded execution engine for device command handling.
+ * <p>
+ * At most {@code workers} tasks run concurrently and at most {@code maxQueued} more wait
+ * for a worker; anything beyond is handled by the {@link RejectionPolicy}. When running on
+ * Java 21+, tasks run on virtual threads (one per task, concurrency still capped to
+ * {@code workers}); otherwise a fixed pool of platform threads is used.
+ */
+public class CommandExecutor {
+
+    /**
+     * What to do with a task submitted while the executor is saturated.
+     */
+    public enum RejectionPolicy {
+        /** throw a {@link RejectedExecutionException} */
+        ABORT,
+        /** drop the task (counted in {@link #getRejectedCount()}) */
+        DISCARD,
+        /** run the task on the submitting thread, slowing down the producer */
+        CALLER_RUNS
+    }
+
+    private final ExecutorService executor;
+    private final boolean virtualThreads;
+    private final RejectionPolicy rejectionPolicy;
+    private final int capacity;
+
+    // running + queued tasks
+    private final Semaphore outstanding;
+    // running tasks (only needed with virtual threads, the platform pool size already caps it)
+    private final Semaphore running;
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public CommandExecutor(int workers, int maxQueued, RejectionPolicy rejectionPolicy) {
+        if (workers < 1 || maxQueued < 0) {
+            throw new IllegalArgumentException("workers must be >= 1 and maxQueued >= 0");
+        }
+        this.rejectionPolicy = rejectionPolicy;
+        this.capacity = workers + maxQueued;
+        this.outstanding = new Semaphore(capacity);
+
+        ExecutorService virtualExecutor = newVirtualThreadExecutor();
+        if (virtualExecutor != null) {
+            this.executor = virtualExecutor;
+            this.virtualThreads = true;
+            this.running = new Semaphore(workers);
+        } else {
+            // queue is bounded by the "outstanding" semaphore
+            this.executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new WorkerThreadFactory());
+            this.virtualThreads = false;
+            this.running = null;
+        }
+    }
+
+    /**
+     * Submits a task.
+     *
+     * @return true if the task was accepted or run by the caller, false if it was discarded
+     * @throws RejectedExecutionException if saturated with the ABORT policy, or shut down
+     */
+    public boolean execute(final Runnable task) {
+        if (!outstanding.tryAcquire()) {
+            rejected.incrementAndGet();
+            switch (rejectionPolicy) {
+                case CALLER_RUNS:
+                    task.run();
+                    return true;
+                case DISCARD:
+                    return false;
+                default:
+                    throw new RejectedExecutionException("command executor saturated (" + capacity + " tasks)");
+            }
+        }
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    runTask(task);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            outstanding.release();
+            rejected.incrementAndGet();
+            throw e;
+        }
+        submitted.incrementAndGet();
+        return true;
+    }
+
+    private void runTask(Runnable task) {
+        try {
+            if (running != null) {
+                running.acquireUninterruptibly();
+            }
+            active.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                active.decrementAndGet();
+                if (running != null) {
+                    running.release();
+                }
+            }
+        } catch (RuntimeException e) {
+            System.out.println("Command execution failed: " + e);
+        } finally {
+            completed.incrementAndGet();
+            outstanding.release();
+        }
+    }
+
+    /**
+     * Stops accepting tasks and waits for the accepted ones to complete.
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        executor.shutdown();
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    /**
+     * @return number of accepted tasks waiting for a worker
+     */
+    public int getQueueDepth() {
+        return Math.max(0, capacity - outstanding.availablePermits() - active.get());
+    }
+
+    public long getSubmittedCount() {
+        return submitted.get();
+    }
+
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * @return Executors.newVirtualThreadPerTaskExecutor() when available (Java 21+), null otherwise
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (Exception e) {
+            // e.g. preview feature not enabled
+            return null;
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "command-worker-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
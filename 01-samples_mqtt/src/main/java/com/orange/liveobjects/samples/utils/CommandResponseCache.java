@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import java.util.Arrays;
+
+/**
+ * Makes device commands idempotent: remembers the serialized response of the recent commands,
+ * by command id ({@link DeviceCommand#cid}), so that a command delivered again (e.g. after a
+ * reconnection) gets the same response without being executed again.
+ * <p>
+ * {@link #begin} is called on reception: it returns null the first time (the command is then
+ * marked in progress and must be executed), {@link #IN_PROGRESS} while it runs, and the
+ * response given to {@link #complete} afterwards. A command whose execution should be allowed
+ * again (e.g. it failed, or was refused for lack of workers) is forgotten with {@link #abort}.
+ * <p>
+ * Entries expire "time to live" after their completion (after their start while in progress).
+ * They are stored as in {@link DedupFilter}: a fixed-size open-addressing table of primitive
+ * arrays, lookups allocating nothing; when the probe window holds only live entries, the
+ * oldest one is evicted ({@link #getEvictedCount()}). This class is thread-safe.
+ */
+public class CommandResponseCache {
+
+    /**
+     * Returned by {@link #begin} for a command being executed.
+     */
+    public static final byte[] IN_PROGRESS = new byte[0];
+
+    private static final int PROBE_WINDOW = 16;
+    // time of an aborted entry: expired whatever the time to live
+    private static final long ABORTED = Long.MIN_VALUE;
+
+    private final long[] cids;
+    // time of the start or completion, in ms since the creation of the cache, +1 (0 = empty slot)
+    private final long[] times;
+    // null while in progress
+    private final byte[][] responses;
+    private final int mask;
+    private final long ttlMillis;
+    private final long origin = System.nanoTime();
+
+    private long started;
+    private long replayed;
+    private long inProgress;
+    private long evicted;
+
+    /**
+     * @param capacity  number of commands kept, rounded up to a power of 2
+     * @param ttlMillis how long a response is kept after the completion of its command
+     */
+    public CommandResponseCache(int capacity, long ttlMillis) {
+        if (capacity < PROBE_WINDOW || ttlMillis <= 0) {
+            throw new IllegalArgumentException("capacity must be >= " + PROBE_WINDOW + " and ttlMillis > 0");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.cids = new long[size];
+        this.times = new long[size];
+        this.responses = new byte[size][];
+        this.mask = size - 1;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Looks for a command received before.
+     *
+     * @return null for a new command (now marked in progress), {@link #IN_PROGRESS} for a command
+     * being executed, otherwise the response of the command
+     */
+    public synchronized byte[] begin(long cid) {
+        long now = now();
+        int slot = find(cid, now);
+        if (slot >= 0) {
+            byte[] response = responses[slot];
+            if (response == null) {
+                inProgress++;
+                return IN_PROGRESS;
+            }
+            replayed++;
+            return response;
+        }
+        put(cid, null, now);
+        started++;
+        return null;
+    }
+
+    /**
+     * Records the response of a command (serialized as published).
+     */
+    public synchronized void complete(long cid, byte[] response) {
+        long now = now();
+        int slot = find(cid, now);
+        if (slot < 0) {
+            // evicted while in progress, or never begun
+            put(cid, response, now);
+        } else {
+            responses[slot] = response;
+            times[slot] = now;
+        }
+    }
+
+    /**
+     * Forgets a command: it is executed again if received again.
+     */
+    public synchronized void abort(long cid) {
+        int slot = find(cid, now());
+        if (slot >= 0) {
+            responses[slot] = null;
+            times[slot] = ABORTED;
+        }
+    }
+
+    /**
+     * Forgets all the commands.
+     */
+    public synchronized void clear() {
+        Arrays.fill(times, 0L);
+        Arrays.fill(responses, null);
+    }
+
+    public int getCapacity() {
+        return cids.length;
+    }
+
+    /**
+     * @return commands received for the first time (executed)
+     */
+    public synchronized long getStartedCount() {
+        return started;
+    }
+
+    /**
+     * @return commands received again after completion (response replayed)
+     */
+    public synchronized long getReplayedCount() {
+        return replayed;
+    }
+
+    /**
+     * @return commands received again while being executed
+     */
+    public synchronized long getInProgressCount() {
+        return inProgress;
+    }
+
+    /**
+     * @return commands still within their time to live that were overwritten for lack of room
+     */
+    public synchronized long getEvictedCount() {
+        return evicted;
+    }
+
+    public synchronized String summary() {
+        return "started=" + started + " replayed=" + replayed + " inProgress=" + inProgress + " evicted=" + evicted;
+    }
+
+    private long now() {
+        return (System.nanoTime() - origin) / 1000000L + 1;
+    }
+
+    /**
+     * @return slot of the live entry of the command, or -1
+     */
+    private int find(long cid, long now) {
+        long expiredBefore = now - ttlMillis;
+        int index = (int) DedupFilter.mix(cid) & mask;
+        for (int i = 0; i < PROBE_WINDOW; i++) {
+            int slot = (index + i) & mask;
+            long time = times[slot];
+            if (time == 0) {
+                // slots are never emptied: the command is not further in the window
+                return -1;
+            }
+            if (cids[slot] == cid) {
+                return time >= expiredBefore ? slot : -1;
+            }
+        }
+        return -1;
+    }
+
+    private void put(long cid, byte[] response, long now) {
+        long expiredBefore = now - ttlMillis;
+        int index = (int) DedupFilter.mix(cid) & mask;
+        // slot of the same command, else first empty or expired slot of the window, else its oldest entry
+        int target = -1;
+        int oldest = index;
+        long oldestTime = Long.MAX_VALUE;
+        for (int i = 0; i < PROBE_WINDOW; i++) {
+            int slot = (index + i) & mask;
+            long time = times[slot];
+            if (time == 0 || cids[slot] == cid) {
+                if (target < 0 || cids[slot] == cid) {
+                    target = slot;
+                }
+                break;
+            }
+            if (time < expiredBefore) {
+                if (target < 0) {
+                    target = slot;
+                }
+            } else if (time < oldestTime) {
+                oldest = slot;
+                oldestTime = time;
+            }
+        }
+        if (target < 0) {
+            target = oldest;
+            evicted++;
+        }
+        cids[target] = cid;
+        times[target] = now;
+        responses[target] = response;
+    }
+}
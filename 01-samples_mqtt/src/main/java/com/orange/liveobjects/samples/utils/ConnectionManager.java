@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps a client connected with a persistent session, without reconnection storms.
+ * <p>
+ * The connection uses a persistent session (clean session = false), so that the broker keeps
+ * the subscriptions and queues the messages while the client is away: use a client id which
+ * is stable across restarts ({@link #stableClientId}). Subscriptions are made by the
+ * {@link SessionListener}, only when the broker has no session for the client (first
+ * connection, session expired or lost in a failover), as told by the CONNACK "session present"
+ * flag. As the broker keeps the new session whether the subscriptions succeed or not, a failed
+ * subscription is not left behind: after a reconnection it is retried (with the same delays)
+ * until it succeeds, again after the next reconnection if the connection is lost meanwhile;
+ * on the first connection, the session is dropped and {@link #connect} fails.
+ * <p>
+ * Paho's automatic reconnection (exponential backoff, the same for all the clients) is replaced
+ * by retries with "decorrelated jitter": every delay is drawn between the base delay and three
+ * times the previous delay, capped. Thousands of clients losing their connection at the same
+ * moment thus spread their reconnections instead of hitting the broker in waves.
+ * Authentication and client id rejections are not retried.
+ * <p>
+ * The manager is the callback of the client: it forwards the events to the given callback
+ * ({@code connectComplete} with reconnect = true after a retry) and records the outages in
+ * {@link MqttMetrics}: reconnection time, attempts, sessions resumed or lost, and an estimate
+ * of the messages lost with a session (reception rate before the loss times the outage).
+ */
+public class ConnectionManager implements MqttCallbackExtended {
+
+    /**
+     * Subscribes when a new session starts.
+     */
+    public interface SessionListener {
+
+        /**
+         * Called after a connection without session present on the broker, and again while it
+         * fails: subscribing to the same topics again must be harmless.
+         */
+        void sessionStarted(MqttClient client) throws MqttException;
+    }
+
+    public static final long DEFAULT_BASE_DELAY_MILLIS = 1000L;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 60000L;
+
+    private final MqttClient client;
+    private final MqttConnectOptions options;
+    private final MqttCallback delegate;
+    private final SessionListener listener;
+    private final MqttMetrics metrics;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+
+    private final AtomicBoolean reconnecting = new AtomicBoolean();
+    private final LongAdder received = new LongAdder();
+    private volatile boolean closed;
+    private volatile boolean reconnect;
+    // the broker session lacks the subscriptions of the listener
+    private volatile boolean subscriptionPending;
+    // System.nanoTime() of the connection and of its loss, messages received before the loss
+    private volatile long connectedAt;
+    private volatile long lostAt;
+    private volatile long receivedAtLoss;
+    private Thread reconnector;
+
+    /**
+     * Same as {@link #ConnectionManager(MqttClient, MqttConnectOptions, MqttCallback, SessionListener,
+     * MqttMetrics, long, long)} with a delay from 1 second to 1 minute.
+     */
+    public ConnectionManager(MqttClient client, MqttConnectOptions options, MqttCallback delegate,
+                             SessionListener listener, MqttMetrics metrics) {
+        this(client, options, delegate, listener, metrics, DEFAULT_BASE_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS);
+    }
+
+    /**
+     * Installs the manager as callback of the client. Automatic reconnection and clean session
+     * are turned off in the options.
+     *
+     * @param delegate        callback receiving the messages and connection events
+     * @param listener        subscribes on new sessions
+     * @param metrics         where the outages are recorded (may be null)
+     * @param baseDelayMillis minimum delay before a reconnection attempt
+     * @param maxDelayMillis  maximum delay before a reconnection attempt
+     */
+    public ConnectionManager(MqttClient client, MqttConnectOptions options, MqttCallback delegate,
+                             SessionListener listener, MqttMetrics metrics, long baseDelayMillis, long maxDelayMillis) {
+        if (baseDelayMillis <= 0 || maxDelayMillis < baseDelayMillis) {
+            throw new IllegalArgumentException("baseDelayMillis must be > 0 and <= maxDelayMillis");
+        }
+        this.client = client;
+        this.options = options;
+        this.delegate = delegate;
+        this.listener = listener;
+        this.metrics = metrics;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        options.setAutomaticReconnect(false);
+        options.setCleanSession(false);
+        client.setCallback(this);
+    }
+
+    /**
+     * @param prefix e.g. "app:sample10"
+     * @return the prefix followed by the host name: the same at every start of the application
+     * on this host (two instances on the same host need different prefixes)
+     */
+    public static String stableClientId(String prefix) {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            host = "localhost";
+        }
+        return prefix + ":" + host;
+    }
+
+    /**
+     * Connects (a single attempt) and subscribes if the broker has no session for the client.
+     * The connection is then kept until {@link #close}. If the subscription fails, the manager
+     * is closed and the new session dropped (clean connection), so that the next start
+     * subscribes again.
+     *
+     * @return true if a session was resumed
+     */
+    public boolean connect() throws MqttException {
+        reconnect = false;
+        IMqttToken token = client.connectWithResult(options);
+        connectedAt = System.nanoTime();
+        boolean sessionPresent = token.getSessionPresent();
+        if (!sessionPresent) {
+            try {
+                listener.sessionStarted(client);
+            } catch (MqttException e) {
+                subscriptionPending = true;
+                close();
+                dropSession();
+                throw e;
+            }
+        }
+        return sessionPresent;
+    }
+
+    /**
+     * Stops reconnecting and disconnects.
+     */
+    public void close() throws MqttException {
+        closed = true;
+        Thread thread;
+        synchronized (this) {
+            thread = reconnector;
+        }
+        if (thread != null) {
+            thread.interrupt();
+        }
+        if (client.isConnected()) {
+            client.disconnect();
+        }
+    }
+
+    public boolean isConnected() {
+        return client.isConnected();
+    }
+
+    // ************************
+    // *** client callback  ***
+    // ************************
+
+    public void connectionLost(Throwable throwable) {
+        lostAt = System.nanoTime();
+        receivedAtLoss = received.sum();
+        delegate.connectionLost(throwable);
+        startReconnecting();
+    }
+
+    public void messageArrived(String topic, MqttMessage message) throws Exception {
+        received.increment();
+        delegate.messageArrived(topic, message);
+    }
+
+    public void deliveryComplete(IMqttDeliveryToken token) {
+        delegate.deliveryComplete(token);
+    }
+
+    public void connectComplete(boolean automatic, String serverURI) {
+        if (!closed && delegate instanceof MqttCallbackExtended) {
+            ((MqttCallbackExtended) delegate).connectComplete(reconnect, serverURI);
+        }
+    }
+
+    // *********************
+    // *** reconnection  ***
+    // *********************
+
+    private void startReconnecting() {
+        if (!closed && reconnecting.compareAndSet(false, true)) {
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    reconnectLoop();
+                }
+            }, "mqtt-reconnect-" + client.getClientId());
+            thread.setDaemon(true);
+            synchronized (this) {
+                reconnector = thread;
+            }
+            thread.start();
+        }
+    }
+
+    private void reconnectLoop() {
+        long delay = baseDelayMillis;
+        boolean fatal = false;
+        try {
+            while (!closed) {
+                delay = nextDelay(delay);
+                Thread.sleep(delay);
+                if (closed) {
+                    return;
+                }
+                if (metrics != null) {
+                    metrics.reconnectAttempt();
+                }
+                IMqttToken token;
+                try {
+                    reconnect = true;
+                    token = client.connectWithResult(options);
+                } catch (MqttException e) {
+                    if (isFatal(e)) {
+                        System.out.println("Reconnection refused, giving up: " + e);
+                        fatal = true;
+                        return;
+                    }
+                    continue;
+                }
+                boolean sessionPresent = token.getSessionPresent();
+                reconnected(sessionPresent);
+                if (!sessionPresent) {
+                    subscriptionPending = true;
+                }
+                if (subscribe()) {
+                    return;
+                }
+                // connection lost while subscribing
+                delay = baseDelayMillis;
+            }
+        } catch (InterruptedException e) {
+            // closed
+        } finally {
+            synchronized (this) {
+                reconnector = null;
+            }
+            reconnecting.set(false);
+        }
+        // connection lost after the last check, its loss not handled by this loop
+        if (!fatal && !client.isConnected()) {
+            startReconnecting();
+        }
+    }
+
+    /**
+     * Calls the listener until it succeeds, if the session lacks its subscriptions.
+     *
+     * @return false if the connection was lost before
+     */
+    private boolean subscribe() throws InterruptedException {
+        long delay = baseDelayMillis;
+        while (subscriptionPending && !closed) {
+            if (!client.isConnected()) {
+                return false;
+            }
+            try {
+                listener.sessionStarted(client);
+                subscriptionPending = false;
+            } catch (MqttException e) {
+                System.out.println("Subscription failed, retrying: " + e);
+                delay = nextDelay(delay);
+                Thread.sleep(delay);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes the session of the client from the broker, with a clean connection.
+     */
+    private void dropSession() {
+        options.setCleanSession(true);
+        try {
+            if (client.isConnected()) {
+                client.disconnect();
+            }
+            client.connect(options);
+            client.disconnect();
+        } catch (MqttException e) {
+            System.out.println("Session could not be dropped: " + e);
+        } finally {
+            options.setCleanSession(false);
+        }
+    }
+
+    private void reconnected(boolean sessionPresent) {
+        long now = System.nanoTime();
+        long outage = now - lostAt;
+        long lostMessages = 0;
+        if (!sessionPresent) {
+            // messages routed while away are lost: estimated at the reception rate before the loss
+            long connectedFor = lostAt - connectedAt;
+            if (connectedFor > 0) {
+                lostMessages = (long) ((double) receivedAtLoss / connectedFor * outage);
+            }
+        }
+        received.reset();
+        connectedAt = now;
+        if (metrics != null) {
+            metrics.reconnected(outage, sessionPresent, lostMessages);
+        }
+    }
+
+    /**
+     * Decorrelated jitter: random between the base delay and 3 times the previous one, capped.
+     */
+    long nextDelay(long previous) {
+        long upper = Math.min(maxDelayMillis, previous * 3);
+        if (upper <= baseDelayMillis) {
+            return baseDelayMillis;
+        }
+        return ThreadLocalRandom.current().nextLong(baseDelayMillis, upper + 1);
+    }
+
+    private static boolean isFatal(MqttException e) {
+        switch (e.getReasonCode()) {
+            case MqttException.REASON_CODE_INVALID_PROTOCOL_VERSION:
+            case MqttException.REASON_CODE_INVALID_CLIENT_ID:
+            case MqttException.REASON_CODE_FAILED_AUTHENTICATION:
+            case MqttException.REASON_CODE_NOT_AUTHORIZED:
+            case MqttException.REASON_CODE_CLIENT_CLOSED:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+}
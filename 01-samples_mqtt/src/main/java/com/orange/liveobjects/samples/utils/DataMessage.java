@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Structure of a "data message" consumed by an application from the router or a FIFO
+ * (e.g. "~event/v1/data/new"): the data pushed by a device, as stored by Live Objects.
+ */
+public class DataMessage {
+
+    /**
+     * Stream identifier
+     */
+    public String streamId;
+
+    /**
+     * timestamp (ISO8601 format)
+     */
+    public String timestamp;
+
+    /**
+     * Data "model" of the field "value"
+     */
+    public String model;
+
+    /**
+     * Value
+     */
+    public Map<String, Object> value;
+
+    /**
+     * Tags
+     */
+    public List<String> tags;
+
+    /**
+     * Location
+     */
+    public Location location;
+
+    /**
+     * Metadata (e.g. "source", "connector")
+     */
+    public Map<String, Object> metadata;
+
+    @Override
+    public String toString() {
+        return "DataMessage{" +
+                "streamId='" + streamId + '\'' +
+                ", timestamp='" + timestamp + '\'' +
+                ", model='" + model + '\'' +
+                ", value=" + value +
+                ", tags=" + tags +
+                ", location=" + location +
+                ", metadata=" + metadata +
+                '}';
+    }
+
+    // *********************
+    // *** INNER CLASSES ***
+    // *********************
+
+    public static class Location {
+
+        public Double lat;
+
+        public Double lon;
+
+        @Override
+        public String toString() {
+            return "Location{" +
+                    "lat=" + lat +
+                    ", lon=" + lon +
+                    '}';
+        }
+    }
+
+}
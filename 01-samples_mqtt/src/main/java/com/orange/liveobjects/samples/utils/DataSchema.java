@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Known "v" fields of a data model ("m"), each with a type and an index, used by
+ * {@link TypedDeviceData} to store values in primitive slots.
+ * <p>
+ * Schemas are registered by model name so that received messages are decoded with the
+ * schema of their model. A schema must be fully defined before being registered or used.
+ */
+public final class DataSchema {
+
+    /**
+     * Type of a field; numbers and booleans are stored unboxed.
+     */
+    public enum FieldType {
+        DOUBLE, LONG, BOOLEAN, STRING
+    }
+
+    /** at most 64 fields (presence of the values is kept in a long) */
+    public static final int MAX_FIELDS = 64;
+
+    private static final Map<String, DataSchema> SCHEMAS = new ConcurrentHashMap<String, DataSchema>();
+
+    /**
+     * Model of the data pushed by Sample_01: "tempC" and "engineOn".
+     */
+    public static final DataSchema SAMPLE01 = register(new DataSchema("sample01")
+            .doubleField("tempC")
+            .booleanField("engineOn"));
+
+    private final String model;
+    private final List<String> names = new ArrayList<String>();
+    private final List<FieldType> types = new ArrayList<FieldType>();
+    private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+
+    public DataSchema(String model) {
+        this.model = model;
+    }
+
+    /**
+     * Makes the schema available to {@link #forModel(String)}, replacing any schema of the same model.
+     */
+    public static DataSchema register(DataSchema schema) {
+        SCHEMAS.put(schema.model, schema);
+        return schema;
+    }
+
+    /**
+     * @return the registered schema of the model, or null if there is none
+     */
+    public static DataSchema forModel(String model) {
+        return model == null ? null : SCHEMAS.get(model);
+    }
+
+    public DataSchema doubleField(String name) {
+        return field(name, FieldType.DOUBLE);
+    }
+
+    public DataSchema longField(String name) {
+        return field(name, FieldType.LONG);
+    }
+
+    public DataSchema booleanField(String name) {
+        return field(name, FieldType.BOOLEAN);
+    }
+
+    public DataSchema stringField(String name) {
+        return field(name, FieldType.STRING);
+    }
+
+    public DataSchema field(String name, FieldType type) {
+        if (indexes.containsKey(name)) {
+            throw new IllegalArgumentException("Duplicate field " + name);
+        }
+        if (names.size() == MAX_FIELDS) {
+            throw new IllegalArgumentException("A schema has at most " + MAX_FIELDS + " fields");
+        }
+        indexes.put(name, names.size());
+        names.add(name);
+        types.add(type);
+        return this;
+    }
+
+    public String getModel() {
+        return model;
+    }
+
+    public int getFieldCount() {
+        return names.size();
+    }
+
+    /**
+     * @return index of the field, or -1 if it is not part of the schema
+     */
+    public int indexOf(String name) {
+        Integer index = indexes.get(name);
+        return index == null ? -1 : index;
+    }
+
+    public String getName(int index) {
+        return names.get(index);
+    }
+
+    public FieldType getType(int index) {
+        return types.get(index);
+    }
+
+    @Override public String toString() {
+        StringBuilder sb = new StringBuilder("DataSchema{model='").append(model).append("', fields={");
+        for (int i = 0; i < names.size(); i++) {
+            sb.append(i == 0 ? "" : ", ").append(names.get(i)).append(':').append(types.get(i));
+        }
+        return sb.append("}}").toString();
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Device-side "report by exception": decides, reading by reading, whether a data message
+ * of a stream is worth publishing on "dev/data", based on the changes of its "v" fields.
+ * <p>
+ * Every field is compared with its value in the last published message:
+ * <ul>
+ * <li>{@link #absolute} field: changed if it moved by more than a fixed amount;</li>
+ * <li>{@link #percent} field: changed if it moved by more than a percentage of the published
+ * value (any move from 0);</li>
+ * <li>{@link #trigger} field (e.g. a boolean state): any change is published right away,
+ * whatever the minimum interval;</li>
+ * <li>other fields: any change (equality).</li>
+ * </ul>
+ * A reading with a changed field is published, unless the last publication is more recent than
+ * the minimum interval (rate limit: the change is published by the next reading after it). A
+ * reading without change is published anyway once the maximum interval has elapsed (heartbeat,
+ * telling the platform the device is alive). Fields appearing or disappearing are changes;
+ * "loc" and "t" are not compared.
+ * <p>
+ * The cost of a reading is a hash lookup and a comparison per field. Once every field was
+ * seen, no field state is created: the iterators over the maps are the only allocations.
+ * One filter per stream; this class is thread-safe.
+ */
+public class DeadbandFilter {
+
+    private enum Rule {
+        EQUALS, ABSOLUTE, PERCENT, TRIGGER
+    }
+
+    private static final class Field {
+        Rule rule = Rule.EQUALS;
+        double threshold;
+        Object published;
+        boolean present;
+    }
+
+    private final long minIntervalMillis;
+    private final long maxIntervalMillis;
+    private final Map<String, Field> fields = new HashMap<String, Field>();
+    private int publishedFieldCount;
+    private long lastPublished;
+    private boolean started;
+
+    private long readings;
+    private long published;
+    private long suppressed;
+    private long rateLimited;
+    private long heartbeats;
+
+    /**
+     * @param minIntervalMillis minimum time between two publications, except for trigger fields
+     *                          (0: no limit)
+     * @param maxIntervalMillis maximum time without publication (0: no heartbeat)
+     */
+    public DeadbandFilter(long minIntervalMillis, long maxIntervalMillis) {
+        if (minIntervalMillis < 0 || maxIntervalMillis < 0
+                || maxIntervalMillis > 0 && maxIntervalMillis < minIntervalMillis) {
+            throw new IllegalArgumentException("Intervals must be >= 0, the maximum >= the minimum");
+        }
+        this.minIntervalMillis = minIntervalMillis;
+        this.maxIntervalMillis = maxIntervalMillis;
+    }
+
+    /**
+     * Numeric field published when it moves by more than delta.
+     */
+    public synchronized DeadbandFilter absolute(String name, double delta) {
+        return rule(name, Rule.ABSOLUTE, delta);
+    }
+
+    /**
+     * Numeric field published when it moves by more than percent % of its published value.
+     */
+    public synchronized DeadbandFilter percent(String name, double percent) {
+        return rule(name, Rule.PERCENT, percent / 100);
+    }
+
+    /**
+     * Field published as soon as it changes, even within the minimum interval.
+     */
+    public synchronized DeadbandFilter trigger(String name) {
+        return rule(name, Rule.TRIGGER, 0);
+    }
+
+    private DeadbandFilter rule(String name, Rule rule, double threshold) {
+        if (threshold < 0 || Double.isNaN(threshold)) {
+            throw new IllegalArgumentException("Negative deadband for " + name);
+        }
+        Field field = field(name);
+        field.rule = rule;
+        field.threshold = threshold;
+        return this;
+    }
+
+    /**
+     * Same as {@link #accept(DeviceData, long)} at the current time.
+     */
+    public boolean accept(DeviceData data) {
+        return accept(data, System.currentTimeMillis());
+    }
+
+    /**
+     * Decides whether a reading is published. If it is, its values become the reference of
+     * the next readings: the caller is expected to publish it.
+     *
+     * @param nowMillis time of the reading
+     * @return true if the reading should be published
+     */
+    public synchronized boolean accept(DeviceData data, long nowMillis) {
+        readings++;
+        Map<String, Object> values = data.v;
+        int count = 0;
+        boolean changed = false;
+        boolean triggered = false;
+        if (values != null) {
+            for (Map.Entry<String, Object> entry : values.entrySet()) {
+                if (entry.getValue() == null) {
+                    continue;
+                }
+                count++;
+                Field field = fields.get(entry.getKey());
+                if (field == null || !field.present || exceeds(field, entry.getValue())) {
+                    changed = true;
+                    triggered |= field != null && field.rule == Rule.TRIGGER;
+                    if (triggered) {
+                        break;
+                    }
+                }
+            }
+        }
+        changed |= count != publishedFieldCount;
+
+        long elapsed = nowMillis - lastPublished;
+        boolean publish;
+        if (!started || triggered) {
+            publish = true;
+        } else if (changed) {
+            publish = elapsed >= minIntervalMillis;
+            if (!publish) {
+                rateLimited++;
+            }
+        } else {
+            publish = maxIntervalMillis > 0 && elapsed >= maxIntervalMillis;
+            if (publish) {
+                heartbeats++;
+            }
+        }
+        if (!publish) {
+            suppressed++;
+            return false;
+        }
+        published++;
+        started = true;
+        lastPublished = nowMillis;
+        remember(values);
+        return true;
+    }
+
+    /**
+     * Forgets the published values: the next reading is published.
+     */
+    public synchronized void reset() {
+        for (Field field : fields.values()) {
+            field.published = null;
+            field.present = false;
+        }
+        publishedFieldCount = 0;
+        started = false;
+    }
+
+    public synchronized long getReadingCount() {
+        return readings;
+    }
+
+    public synchronized long getPublishedCount() {
+        return published;
+    }
+
+    /**
+     * @return readings not published (unchanged, or changed within the minimum interval)
+     */
+    public synchronized long getSuppressedCount() {
+        return suppressed;
+    }
+
+    /**
+     * @return readings with a change, not published for being within the minimum interval
+     */
+    public synchronized long getRateLimitedCount() {
+        return rateLimited;
+    }
+
+    /**
+     * @return readings without change published for the maximum interval having elapsed
+     */
+    public synchronized long getHeartbeatCount() {
+        return heartbeats;
+    }
+
+    /**
+     * @return e.g. "readings=600 published=42 (heartbeats=3) suppressed=558 (rateLimited=12) 93.0%"
+     */
+    public synchronized String summary() {
+        return String.format("readings=%d published=%d (heartbeats=%d) suppressed=%d (rateLimited=%d) %.1f%%",
+                readings, published, heartbeats, suppressed, rateLimited,
+                readings == 0 ? 0.0 : suppressed * 100.0 / readings);
+    }
+
+    private static boolean exceeds(Field field, Object value) {
+        Object reference = field.published;
+        if ((field.rule == Rule.ABSOLUTE || field.rule == Rule.PERCENT)
+                && value instanceof Number && reference instanceof Number) {
+            double current = ((Number) value).doubleValue();
+            double previous = ((Number) reference).doubleValue();
+            double delta = Math.abs(current - previous);
+            if (field.rule == Rule.ABSOLUTE) {
+                return delta > field.threshold;
+            }
+            return previous == 0 ? delta != 0 : delta > field.threshold * Math.abs(previous);
+        }
+        if (value instanceof Number && reference instanceof Number) {
+            // 1 and 1.0 are the same reading
+            return Double.compare(((Number) value).doubleValue(), ((Number) reference).doubleValue()) != 0;
+        }
+        return !value.equals(reference);
+    }
+
+    private void remember(Map<String, Object> values) {
+        for (Field field : fields.values()) {
+            field.published = null;
+            field.present = false;
+        }
+        publishedFieldCount = 0;
+        if (values == null) {
+            return;
+        }
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            if (entry.getValue() != null) {
+                Field field = field(entry.getKey());
+                field.published = entry.getValue();
+                field.present = true;
+                publishedFieldCount++;
+            }
+        }
+    }
+
+    private Field field(String name) {
+        Field field = fields.get(name);
+        if (field == null) {
+            field = new Field();
+            fields.put(name, field);
+        }
+        return field;
+    }
+
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import java.util.Arrays;
+
+/**
+ * Drops messages delivered more than once (QoS 1 redeliveries, e.g. after a reconnection),
+ * by remembering the keys of the messages seen during the last "time to live".
+ * <p>
+ * Keys are 64-bit hashes of what identifies a message: stream id and timestamp of the
+ * data message in the router envelope ({@link #routerKey}), or devEUI and frame counter for LoRa ({@link #loraKey}).
+ * They are stored in a fixed-size open-addressing table of primitive arrays, allocated once:
+ * a key is looked for in a small window of slots, expired entries being reused in place.
+ * When the window holds only live entries, the oldest one is evicted: a later duplicate of
+ * that message would then go through, which {@link #getEvictedCount()} makes visible
+ * (the table is too small for the message rate times the time to live).
+ * <p>
+ * This class is thread-safe; a single consumer thread (e.g. the Paho callback thread) keeps it
+ * uncontended.
+ */
+public class DedupFilter {
+
+    private static final int PROBE_WINDOW = 16;
+
+    private final long[] keys;
+    // time at which the key was first seen, in ms since the creation of the filter, +1 (0 = empty slot)
+    private final long[] times;
+    private final int mask;
+    private final long ttlMillis;
+    private final long origin = System.nanoTime();
+
+    private long checked;
+    private long duplicates;
+    private long evicted;
+
+    /**
+     * @param capacity  number of keys kept, rounded up to a power of 2 (16 bytes each); evictions
+     *                  stay rare up to ~75% of it being used by keys within their time to live
+     * @param ttlMillis how long a key is remembered after its first occurrence
+     */
+    public DedupFilter(int capacity, long ttlMillis) {
+        if (capacity < PROBE_WINDOW || ttlMillis <= 0) {
+            throw new IllegalArgumentException("capacity must be >= " + PROBE_WINDOW + " and ttlMillis > 0");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.keys = new long[size];
+        this.times = new long[size];
+        this.mask = size - 1;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Records the key of a received message.
+     *
+     * @return true if the same key was already recorded less than "time to live" ago
+     */
+    public synchronized boolean isDuplicate(long key) {
+        long now = (System.nanoTime() - origin) / 1000000L + 1;
+        long expiredBefore = now - ttlMillis;
+        checked++;
+
+        int index = (int) mix(key) & mask;
+        // first empty or expired slot of the window, otherwise its oldest entry
+        int target = -1;
+        int oldest = index;
+        long oldestTime = Long.MAX_VALUE;
+        for (int i = 0; i < PROBE_WINDOW; i++) {
+            int slot = (index + i) & mask;
+            long time = times[slot];
+            if (time == 0) {
+                // slots are never emptied: the key is not further in the window
+                if (target < 0) {
+                    target = slot;
+                }
+                break;
+            }
+            if (keys[slot] == key) {
+                if (time >= expiredBefore) {
+                    duplicates++;
+                    return true;
+                }
+                // seen too long ago: new occurrence
+                times[slot] = now;
+                return false;
+            }
+            if (time < expiredBefore) {
+                if (target < 0) {
+                    target = slot;
+                }
+            } else if (time < oldestTime) {
+                oldest = slot;
+                oldestTime = time;
+            }
+        }
+        if (target < 0) {
+            target = oldest;
+            evicted++;
+        }
+        keys[target] = key;
+        times[target] = now;
+        return false;
+    }
+
+    /**
+     * Forgets all the keys.
+     */
+    public synchronized void clear() {
+        Arrays.fill(times, 0L);
+    }
+
+    public int getCapacity() {
+        return keys.length;
+    }
+
+    public synchronized long getCheckedCount() {
+        return checked;
+    }
+
+    public synchronized long getDuplicateCount() {
+        return duplicates;
+    }
+
+    /**
+     * @return keys still within their time to live that were overwritten for lack of room
+     */
+    public synchronized long getEvictedCount() {
+        return evicted;
+    }
+
+    /**
+     * @return share of the checked messages found to be duplicates (0 if none checked)
+     */
+    public synchronized double getHitRate() {
+        return checked == 0 ? 0 : (double) duplicates / checked;
+    }
+
+    public synchronized String summary() {
+        return String.format("checked=%d duplicates=%d hitRate=%.4f%% evicted=%d", checked, duplicates,
+                checked == 0 ? 0 : 100.0 * duplicates / checked, evicted);
+    }
+
+    // ************
+    // *** keys ***
+    // ************
+
+    /**
+     * Key of a message from the router or a FIFO: the "streamId" and "timestamp" fields of the
+     * message held by the envelope "payload" ({@link RouterEnvelope}), hashed while scanning the
+     * raw bytes (nothing is allocated); the same as {@link #key(CharSequence, CharSequence)} of
+     * these fields. Messages lacking one of them, or malformed, are keyed on their whole content.
+     */
+    public static long routerKey(byte[] message, int offset, int length) {
+        int end = offset + length;
+        try {
+            int pos = RouterEnvelope.payloadStart(message, offset, end);
+            if (pos >= 0) {
+                // message serialized as a JSON string, or inline object
+                boolean escaped = pos < end && message[pos] == '"';
+                long fields = dataFields(message, escaped ? pos + 1 : pos, end, escaped);
+                int streamId = (int) (fields >> 32);
+                int timestamp = (int) fields;
+                if (streamId >= 0 && timestamp >= 0) {
+                    return hashString(message, streamId, end, escaped) * 31
+                            + hashString(message, timestamp, end, escaped);
+                }
+            }
+        } catch (RuntimeException e) {
+            // malformed: keyed on the content
+        }
+        return hash(message, offset, end);
+    }
+
+    public static long routerKey(byte[] message) {
+        return routerKey(message, 0, message.length);
+    }
+
+    /**
+     * Key of a message from its stream id and timestamp (e.g. {@link DeviceData#s} and {@link DeviceData#ts}).
+     */
+    public static long key(CharSequence streamId, CharSequence timestamp) {
+        return hash(streamId) * 31 + hash(timestamp);
+    }
+
+    /**
+     * Key of a LoRa uplink: devEUI (from the stream id "urn:lora:&lt;devEUI&gt;!uplink") and frame counter.
+     * Falls back to {@link #key(CharSequence, CharSequence) stream id and timestamp} when the
+     * frame counter or the devEUI is missing.
+     */
+    public static long loraKey(LoraData data) {
+        if (data.value != null && data.value.fcnt != null && LoraFrameTracker.isLoraStream(data.streamId)) {
+            return loraKey(LoraFrameTracker.parseDevEui(data.streamId), data.value.fcnt);
+        }
+        return key(data.streamId, data.timestamp);
+    }
+
+    public static long loraKey(long devEui, int fcnt) {
+        return mix(devEui) * 31 + fcnt;
+    }
+
+    /**
+     * @return positions of the "streamId" and "timestamp" string values of the object at pos,
+     * packed in a long (-1 if absent)
+     */
+    private static long dataFields(byte[] b, int pos, int end, boolean escaped) {
+        int streamId = -1;
+        int timestamp = -1;
+        pos = JsonScanner.skipWhitespace(b, pos, end, escaped);
+        if (JsonScanner.charAt(b, pos, end, escaped) == '{') {
+            pos = JsonScanner.position(JsonScanner.nextChar(b, pos, end, escaped));
+            while (streamId < 0 || timestamp < 0) {
+                pos = JsonScanner.skipWhitespace(b, pos, end, escaped);
+                if (JsonScanner.charAt(b, pos, end, escaped) != '"') {
+                    break;
+                }
+                int name = pos;
+                pos = JsonScanner.skipWhitespace(b, JsonScanner.skipString(b, pos, end, escaped), end, escaped);
+                if (JsonScanner.charAt(b, pos, end, escaped) != ':') {
+                    break;
+                }
+                pos = JsonScanner.skipWhitespace(b, JsonScanner.position(JsonScanner.nextChar(b, pos, end, escaped)),
+                        end, escaped);
+                if (JsonScanner.charAt(b, pos, end, escaped) == '"') {
+                    if (streamId < 0 && JsonScanner.stringEquals(b, name, end, escaped, "streamId")) {
+                        streamId = pos;
+                    } else if (timestamp < 0 && JsonScanner.stringEquals(b, name, end, escaped, "timestamp")) {
+                        timestamp = pos;
+                    }
+                }
+                pos = JsonScanner.skipWhitespace(b, JsonScanner.skipValue(b, pos, end, escaped), end, escaped);
+                if (JsonScanner.charAt(b, pos, end, escaped) == ',') {
+                    pos = JsonScanner.position(JsonScanner.nextChar(b, pos, end, escaped));
+                }
+            }
+        }
+        return (long) streamId << 32 | (timestamp & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Same as {@link #hash(CharSequence)} of the decoded string starting at pos (opening quote).
+     */
+    private static long hashString(byte[] b, int pos, int end, boolean escaped) {
+        long h = 0xcbf29ce484222325L;
+        pos = JsonScanner.position(JsonScanner.nextChar(b, pos, end, escaped));
+        for (long c = JsonScanner.nextStringChar(b, pos, end, escaped); c >= 0;
+             c = JsonScanner.nextStringChar(b, JsonScanner.position(c), end, escaped)) {
+            int codePoint = JsonScanner.codePoint(c);
+            if (codePoint >= 0x10000) {
+                h = (h ^ Character.highSurrogate(codePoint)) * 0x100000001b3L;
+                h = (h ^ Character.lowSurrogate(codePoint)) * 0x100000001b3L;
+            } else {
+                h = (h ^ codePoint) * 0x100000001b3L;
+            }
+        }
+        return h;
+    }
+
+    // 64-bit FNV-1a
+    private static long hash(byte[] b, int start, int end) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = start; i < end; i++) {
+            h = (h ^ (b[i] & 0xFF)) * 0x100000001b3L;
+        }
+        return h;
+    }
+
+    private static long hash(CharSequence s) {
+        long h = 0xcbf29ce484222325L;
+        if (s != null) {
+            for (int i = 0; i < s.length(); i++) {
+                h = (h ^ s.charAt(i)) * 0x100000001b3L;
+            }
+        }
+        return h;
+    }
+
+    // MurmurHash3 finalizer: spreads the bits of the key over the table index
+    static long mix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
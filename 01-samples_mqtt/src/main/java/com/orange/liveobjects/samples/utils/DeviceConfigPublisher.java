@@ -0,0 +1,355 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import com.google.gson.Gson;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes the configuration of a device on "dev/cfg" only when it changed.
+ * <p>
+ * An announcement replaces the configuration known by the platform, so the whole configuration
+ * is published: the latest value of every parameter updated so far. The parameters whose
+ * publication was completed (acknowledged by the broker for QoS 1, sent for QoS 0) are cached.
+ * An update is compared with the cache, or with the publication in flight if any: when no
+ * parameter type or value changed, nothing is published. Changes are not published right away
+ * but coalesced: the first change starts a window of {@code debounceMillis}, at the end of
+ * which the configuration is published in a single message. A failed publication is counted
+ * and retried in the next window, at least {@value #MIN_RETRY_MILLIS} ms later, unless the
+ * parameters were changed back in the meantime. {@link #invalidate()} publishes the
+ * configuration again even if unchanged (e.g. if the platform lost it).
+ * <p>
+ * This class is thread-safe.
+ */
+public class DeviceConfigPublisher {
+
+    public static final String TOPIC_CONFIG = "dev/cfg";
+
+    /**
+     * Minimum delay before publishing again after a failure (e.g. while disconnected).
+     */
+    public static final long MIN_RETRY_MILLIS = 1000;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final IMqttAsyncClient mqttClient;
+    private final int qos;
+    private final long debounceMillis;
+    private final Gson gson = JsonCodecs.gson();
+    private final ScheduledExecutorService scheduler;
+
+    // latest value of every parameter
+    private final Map<String, DeviceConfig.CfgParameter> current = new LinkedHashMap<String, DeviceConfig.CfgParameter>();
+    // completed, being published, changed since and waiting for the end of the window
+    private final Map<String, DeviceConfig.CfgParameter> acknowledged = new HashMap<String, DeviceConfig.CfgParameter>();
+    private Map<String, DeviceConfig.CfgParameter> inFlight;
+    private final Map<String, DeviceConfig.CfgParameter> pending = new LinkedHashMap<String, DeviceConfig.CfgParameter>();
+    private ScheduledFuture<?> scheduled;
+    private boolean closed;
+
+    private long updates;
+    private long unchanged;
+    private long coalesced;
+    private long published;
+    private long publishedParameters;
+    private long publishedBytes;
+    private long failed;
+    private Throwable lastFailure;
+
+    private final Runnable flushTask = new Runnable() {
+        public void run() {
+            synchronized (DeviceConfigPublisher.this) {
+                scheduled = null;
+                flushPending();
+            }
+        }
+    };
+
+    /**
+     * @param mqttClient     client connected in "json+device" mode
+     * @param qos            0 or 1
+     * @param debounceMillis window during which changes are coalesced (0 to publish each change)
+     */
+    public DeviceConfigPublisher(IMqttAsyncClient mqttClient, int qos, long debounceMillis) {
+        if (qos != 0 && qos != 1) {
+            throw new IllegalArgumentException("qos must be 0 or 1");
+        }
+        this.mqttClient = mqttClient;
+        this.qos = qos;
+        this.debounceMillis = debounceMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "config-publisher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Announces the current value of each parameter of the configuration: if any changed, the
+     * configuration is published at the end of the window. Parameters missing from config are
+     * kept.
+     */
+    public synchronized void update(DeviceConfig config) {
+        for (Map.Entry<String, DeviceConfig.CfgParameter> entry : config.cfg.entrySet()) {
+            update(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Announces the current value of a parameter.
+     */
+    public synchronized void update(String name, DeviceConfig.CfgParameter parameter) {
+        if (closed) {
+            throw new IllegalStateException("Publisher closed");
+        }
+        if (parameter == null) {
+            return;
+        }
+        updates++;
+        DeviceConfig.CfgParameter previous = pending.remove(name);
+        if (previous != null) {
+            coalesced++;
+        }
+        current.put(name, parameter);
+        if (sameParameter(parameter, lastPublished(name))) {
+            // back to the published value, or unchanged
+            unchanged++;
+            return;
+        }
+        pending.put(name, parameter);
+        if (scheduled == null && inFlight == null) {
+            scheduled = scheduler.schedule(flushTask, debounceMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Publishes the changed configuration without waiting for the end of the window (unless a
+     * publication is in flight: it is then published again once completed).
+     */
+    public synchronized void flush() {
+        if (scheduled != null) {
+            scheduled.cancel(false);
+            scheduled = null;
+        }
+        flushPending();
+    }
+
+    /**
+     * Forgets the published configuration: it is published again.
+     */
+    public synchronized void invalidate() {
+        for (Map.Entry<String, DeviceConfig.CfgParameter> entry : current.entrySet()) {
+            if (!pending.containsKey(entry.getKey())) {
+                pending.put(entry.getKey(), entry.getValue());
+            }
+        }
+        acknowledged.clear();
+        if (!pending.isEmpty() && scheduled == null && inFlight == null && !closed) {
+            scheduled = scheduler.schedule(flushTask, debounceMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Publishes the pending changes, waits for their publication (at most timeoutMillis)
+     * and stops the scheduling thread. A failed publication is not retried. The client is not
+     * disconnected.
+     *
+     * @return true if all the changes were published
+     */
+    public boolean close(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (this) {
+            closed = true;
+            flush();
+            while (inFlight != null && System.currentTimeMillis() < deadline) {
+                wait(Math.max(1, deadline - System.currentTimeMillis()));
+            }
+        }
+        scheduler.shutdownNow();
+        synchronized (this) {
+            return inFlight == null && pending.isEmpty();
+        }
+    }
+
+    /**
+     * @return copy of the configuration whose publication completed
+     */
+    public synchronized DeviceConfig getAcknowledged() {
+        DeviceConfig config = new DeviceConfig();
+        config.cfg.putAll(acknowledged);
+        return config;
+    }
+
+    /**
+     * @return number of parameter updates
+     */
+    public synchronized long getUpdateCount() {
+        return updates;
+    }
+
+    /**
+     * @return updates not published, the parameter being unchanged
+     */
+    public synchronized long getUnchangedCount() {
+        return unchanged;
+    }
+
+    /**
+     * @return updates replaced by a later one within the window
+     */
+    public synchronized long getCoalescedCount() {
+        return coalesced;
+    }
+
+    public synchronized long getPublishedCount() {
+        return published;
+    }
+
+    public synchronized long getPublishedBytes() {
+        return publishedBytes;
+    }
+
+    public synchronized long getFailedCount() {
+        return failed;
+    }
+
+    /**
+     * @return cause of the last failed publication, or null if none failed
+     */
+    public synchronized Throwable getLastFailure() {
+        return lastFailure;
+    }
+
+    /**
+     * @return e.g. "updates=120 unchanged=95 coalesced=20 published=3 (5 parameters, 310 bytes) failed=0"
+     */
+    public synchronized String summary() {
+        return "updates=" + updates + " unchanged=" + unchanged + " coalesced=" + coalesced + " published="
+                + published + " (" + publishedParameters + " parameters, " + publishedBytes + " bytes) failed="
+                + failed;
+    }
+
+    private DeviceConfig.CfgParameter lastPublished(String name) {
+        if (inFlight != null && inFlight.containsKey(name)) {
+            return inFlight.get(name);
+        }
+        return acknowledged.get(name);
+    }
+
+    // called with the lock held
+    private void flushPending() {
+        if (inFlight != null || pending.isEmpty()) {
+            return;
+        }
+        DeviceConfig config = new DeviceConfig();
+        config.cfg.putAll(current);
+        byte[] payload = gson.toJson(config).getBytes(UTF_8);
+        inFlight = new HashMap<String, DeviceConfig.CfgParameter>(current);
+        pending.clear();
+        try {
+            mqttClient.publish(TOPIC_CONFIG, payload, qos, false, null, deliveryListener);
+            published++;
+            publishedParameters += config.cfg.size();
+            publishedBytes += payload.length;
+        } catch (MqttException e) {
+            lastFailure = e;
+            completed(false);
+        }
+    }
+
+    private final IMqttActionListener deliveryListener = new IMqttActionListener() {
+        public void onSuccess(IMqttToken token) {
+            synchronized (DeviceConfigPublisher.this) {
+                completed(true);
+            }
+        }
+
+        public void onFailure(IMqttToken token, Throwable throwable) {
+            synchronized (DeviceConfigPublisher.this) {
+                lastFailure = throwable;
+                completed(false);
+            }
+        }
+    };
+
+    // called with the lock held
+    private void completed(boolean success) {
+        if (success) {
+            acknowledged.clear();
+            acknowledged.putAll(inFlight);
+        } else {
+            failed++;
+            // retried, unless changed again since
+            for (Map.Entry<String, DeviceConfig.CfgParameter> entry : inFlight.entrySet()) {
+                if (!pending.containsKey(entry.getKey())) {
+                    pending.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        inFlight = null;
+        // changes made during the publication, possibly back to the acknowledged values
+        for (Iterator<Map.Entry<String, DeviceConfig.CfgParameter>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, DeviceConfig.CfgParameter> entry = it.next();
+            if (sameParameter(entry.getValue(), acknowledged.get(entry.getKey()))) {
+                it.remove();
+            }
+        }
+        if (!pending.isEmpty() && scheduled == null) {
+            if (closed) {
+                if (success) {
+                    flushPending();
+                }
+            } else {
+                long delay = success ? debounceMillis : Math.max(debounceMillis, MIN_RETRY_MILLIS);
+                scheduled = scheduler.schedule(flushTask, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Same type and value, numbers being compared by value (e.g. 10 and 10L, or 20.5f and 20.5).
+     */
+    static boolean sameParameter(DeviceConfig.CfgParameter a, DeviceConfig.CfgParameter b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        if (a.t == null ? b.t != null : !a.t.equals(b.t)) {
+            return false;
+        }
+        if (a.v instanceof Number && b.v instanceof Number) {
+            Number x = (Number) a.v;
+            Number y = (Number) b.v;
+            if (isIntegral(x) && isIntegral(y)) {
+                return x.longValue() == y.longValue();
+            }
+            return Double.compare(x.doubleValue(), y.doubleValue()) == 0;
+        }
+        return a.v == null ? b.v == null : a.v.equals(b.v);
+    }
+
+    private static boolean isIntegral(Number n) {
+        return n instanceof Long || n instanceof Integer || n instanceof Short || n instanceof Byte;
+    }
+}
@@ -0,0 +1,487 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Simulates a fleet of devices, each with its own MQTT connection and device URN,
+ * pushing {@link DeviceData} on "dev/data" as Sample_01 does ("json+device" mode).
+ * <p>
+ * Connections are multiplexed on a small fixed number of I/O threads (non-blocking
+ * sockets), not one thread per device. The overall publish rate is spread evenly over the
+ * connected devices; at QoS 1 the publish-to-PUBACK latency is recorded.
+ */
+public class DeviceLoadGenerator {
+
+    /**
+     * Distribution of the generated "tempC" values.
+     */
+    public enum Distribution {
+        /** uniform between min and max */
+        UNIFORM,
+        /** gaussian of mean (min + max) / 2 and standard deviation (max - min) / 4 */
+        GAUSSIAN
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] TOPIC_DATA = MqttPackets.utf8("dev/data");
+    private static final int KEEP_ALIVE_SEC = 30;
+
+    private final InetSocketAddress address;
+    private final String apiKey;
+    private final int deviceCount;
+    private final double totalRate;
+
+    private String urnPrefix = "urn:lo:nsid:loadgen:";
+    private int ioThreads = 2;
+    private int qos = 0;
+    private int maxInflightPerDevice = 10;
+    private Distribution distribution = Distribution.UNIFORM;
+    private double minValue = -5;
+    private double maxValue = 25;
+    private double booleanTrueProbability = 0.5;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final List<Worker> workers = new ArrayList<Worker>();
+    private volatile boolean running;
+    private long startedAt;
+
+    /**
+     * @param serverUri   e.g. "tcp://localhost:1883"
+     * @param apiKey      Live Objects API key
+     * @param deviceCount number of simulated devices (one connection each)
+     * @param totalRate   total number of messages per second, all devices together
+     */
+    public DeviceLoadGenerator(String serverUri, String apiKey, int deviceCount, double totalRate) {
+        URI uri = URI.create(serverUri);
+        this.address = new InetSocketAddress(uri.getHost(), uri.getPort() < 0 ? 1883 : uri.getPort());
+        this.apiKey = apiKey;
+        this.deviceCount = deviceCount;
+        this.totalRate = totalRate;
+    }
+
+    /**
+     * Device URNs are the prefix followed by the device index (default "urn:lo:nsid:loadgen:").
+     */
+    public void setUrnPrefix(String urnPrefix) {
+        this.urnPrefix = urnPrefix;
+    }
+
+    public void setIoThreads(int ioThreads) {
+        this.ioThreads = ioThreads;
+    }
+
+    public void setQos(int qos) {
+        this.qos = qos;
+    }
+
+    /**
+     * At QoS 1, maximum number of messages of a device waiting for their PUBACK (default 10).
+     */
+    public void setMaxInflightPerDevice(int maxInflightPerDevice) {
+        this.maxInflightPerDevice = maxInflightPerDevice;
+    }
+
+    /**
+     * Distribution of "tempC" (default uniform in [-5, 25]) and probability of "engineOn" being true.
+     */
+    public void setValueDistribution(Distribution distribution, double min, double max, double booleanTrueProbability) {
+        this.distribution = distribution;
+        this.minValue = min;
+        this.maxValue = max;
+        this.booleanTrueProbability = booleanTrueProbability;
+    }
+
+    public void start() throws IOException {
+        running = true;
+        startedAt = System.nanoTime();
+        int threads = Math.max(1, Math.min(ioThreads, deviceCount));
+        for (int t = 0; t < threads; t++) {
+            List<Device> devices = new ArrayList<Device>();
+            for (int i = t; i < deviceCount; i += threads) {
+                devices.add(new Device(urnPrefix + i));
+            }
+            double rate = totalRate * devices.size() / deviceCount;
+            Worker worker = new Worker(devices, rate, new Random(t));
+            workers.add(worker);
+            Thread thread = new Thread(worker, "loadgen-io-" + t);
+            thread.setDaemon(true);
+            worker.thread = thread;
+        }
+        for (Worker worker : workers) {
+            worker.thread.start();
+        }
+    }
+
+    /**
+     * Stops publishing and disconnects all the devices.
+     */
+    public void stop() throws InterruptedException {
+        running = false;
+        for (Worker worker : workers) {
+            worker.selector.wakeup();
+            worker.thread.join();
+        }
+    }
+
+    public int getConnectedDevices() {
+        int connected = 0;
+        for (Worker worker : workers) {
+            connected += worker.connected;
+        }
+        return connected;
+    }
+
+    public int getFailedDevices() {
+        int failed = 0;
+        for (Worker worker : workers) {
+            failed += worker.failed;
+        }
+        return failed;
+    }
+
+    public long getSentCount() {
+        long sent = 0;
+        for (Worker worker : workers) {
+            sent += worker.sent;
+        }
+        return sent;
+    }
+
+    public long getAcknowledgedCount() {
+        long acknowledged = 0;
+        for (Worker worker : workers) {
+            acknowledged += worker.acknowledged;
+        }
+        return acknowledged;
+    }
+
+    /**
+     * @return achieved publish rate (msgs/s) since start
+     */
+    public double getAchievedRate() {
+        long elapsed = System.nanoTime() - startedAt;
+        return elapsed <= 0 ? 0 : getSentCount() * 1e9 / elapsed;
+    }
+
+    /**
+     * @return publish-to-PUBACK latencies (QoS 1 only)
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    private static class Device {
+        final String urn;
+        SocketChannel channel;
+        SelectionKey key;
+        boolean connected;
+        boolean closed;
+        ByteBuffer in = ByteBuffer.allocate(512);
+        final ByteBuffer out = ByteBuffer.allocate(4096);
+        int lastMessageId;
+        int[] inflightIds;
+        long[] inflightSentAt;
+        int inflightCount;
+        long lastWrite;
+
+        Device(String urn) {
+            this.urn = urn;
+        }
+    }
+
+    private class Worker implements Runnable {
+
+        final List<Device> devices;
+        final double ratePerNano;
+        final Random random;
+        final Gson gson = JsonCodecs.gson();
+        // reused for every message (values in primitive slots, no map)
+        final TypedDeviceData data = new TypedDeviceData(DataSchema.SAMPLE01);
+        final int tempC = DataSchema.SAMPLE01.indexOf("tempC");
+        final int engineOn = DataSchema.SAMPLE01.indexOf("engineOn");
+        final List<String> tags = Arrays.asList("loadgen");
+        final Selector selector;
+        Thread thread;
+        int cursor;
+
+        // statistics (single writer: this worker)
+        volatile int connected;
+        volatile int failed;
+        volatile long sent;
+        volatile long acknowledged;
+
+        Worker(List<Device> devices, double rate, Random random) throws IOException {
+            this.devices = devices;
+            this.ratePerNano = rate / 1e9;
+            this.random = random;
+            this.selector = Selector.open();
+        }
+
+        public void run() {
+            try {
+                for (Device device : devices) {
+                    open(device);
+                }
+                long start = System.nanoTime();
+                long lastHousekeeping = start;
+                long scheduled = 0;
+                while (running) {
+                    selector.select(1);
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Device device = (Device) key.attachment();
+                        try {
+                            if (key.isValid() && key.isConnectable()) {
+                                onConnectable(device);
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                onReadable(device);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                flush(device);
+                            }
+                        } catch (IOException e) {
+                            close(device, true);
+                        } catch (RuntimeException e) {
+                            close(device, true);
+                        }
+                    }
+
+                    // messages due since start, the backlog being capped to one second
+                    long now = System.nanoTime();
+                    long due = (long) ((now - start) * ratePerNano);
+                    scheduled = Math.max(scheduled, due - (long) (ratePerNano * 1e9));
+                    while (scheduled < due && publishNext(now)) {
+                        scheduled++;
+                    }
+                    for (Device device : devices) {
+                        if (device.out.position() > 0 && !device.closed) {
+                            try {
+                                flush(device);
+                            } catch (IOException e) {
+                                close(device, true);
+                            }
+                        }
+                    }
+
+                    if (now - lastHousekeeping > 1000000000L) {
+                        lastHousekeeping = now;
+                        keepAlive(now);
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Load generator I/O thread stopped: " + e);
+            } finally {
+                for (Device device : devices) {
+                    if (device.connected && device.out.remaining() >= 2) {
+                        device.out.put(MqttPackets.disconnect());
+                        try {
+                            flush(device);
+                        } catch (IOException e) {
+                            // closing anyway
+                        }
+                    }
+                    close(device, false);
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+
+        private void open(Device device) throws IOException {
+            device.channel = SocketChannel.open();
+            device.channel.configureBlocking(false);
+            device.channel.socket().setTcpNoDelay(true);
+            device.inflightIds = new int[maxInflightPerDevice];
+            device.inflightSentAt = new long[maxInflightPerDevice];
+            if (device.channel.connect(address)) {
+                device.key = device.channel.register(selector, SelectionKey.OP_READ, device);
+                sendConnect(device);
+            } else {
+                device.key = device.channel.register(selector, SelectionKey.OP_CONNECT, device);
+            }
+        }
+
+        private void onConnectable(Device device) throws IOException {
+            device.channel.finishConnect();
+            device.key.interestOps(SelectionKey.OP_READ);
+            sendConnect(device);
+        }
+
+        private void sendConnect(Device device) throws IOException {
+            device.out.put(MqttPackets.connect(device.urn, "json+device", apiKey.toCharArray(), true, KEEP_ALIVE_SEC));
+            flush(device);
+        }
+
+        private void onReadable(Device device) throws IOException {
+            if (device.channel.read(device.in) < 0) {
+                close(device, true);
+                return;
+            }
+            ByteBuffer in = device.in;
+            in.flip();
+            while (!device.closed) {
+                int length = MqttPackets.frameLength(in);
+                if (length < 0 || length > in.remaining()) {
+                    if (length > in.capacity()) {
+                        ByteBuffer larger = ByteBuffer.allocate(length);
+                        larger.put(in);
+                        larger.flip();
+                        in = device.in = larger;
+                    }
+                    break;
+                }
+                int end = in.position() + length;
+                int type = MqttPackets.packetType(MqttPackets.readFixedHeader(in));
+                if (type == MqttPackets.CONNACK) {
+                    in.get();
+                    if (in.get() == MqttPackets.CONNACK_ACCEPTED) {
+                        device.connected = true;
+                        connected++;
+                    } else {
+                        close(device, true);
+                    }
+                } else if (type == MqttPackets.PUBACK) {
+                    onPuback(device, in.getShort() & 0xFFFF);
+                }
+                // PINGRESP, or commands: ignored
+                in.position(end);
+            }
+            in.compact();
+        }
+
+        private void onPuback(Device device, int messageId) {
+            for (int i = 0; i < device.inflightCount; i++) {
+                if (device.inflightIds[i] == messageId) {
+                    latency.record(System.nanoTime() - device.inflightSentAt[i]);
+                    int last = --device.inflightCount;
+                    device.inflightIds[i] = device.inflightIds[last];
+                    device.inflightSentAt[i] = device.inflightSentAt[last];
+                    acknowledged++;
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Publishes a message from the next device able to send one.
+         *
+         * @return false if no device can publish right now
+         */
+        private boolean publishNext(long now) {
+            int size = devices.size();
+            for (int attempt = 0; attempt < size; attempt++) {
+                Device device = devices.get(cursor);
+                cursor = (cursor + 1) % size;
+                if (!device.connected || device.closed || (qos > 0 && device.inflightCount >= maxInflightPerDevice)) {
+                    continue;
+                }
+                byte[] payload = gson.toJson(nextDeviceData()).getBytes(UTF_8);
+                int packetSize = MqttPackets.publishSize(TOPIC_DATA, payload.length, qos);
+                if (device.out.remaining() < packetSize) {
+                    continue;
+                }
+                int messageId = 0;
+                if (qos > 0) {
+                    messageId = device.lastMessageId = device.lastMessageId == 65535 ? 1 : device.lastMessageId + 1;
+                    device.inflightIds[device.inflightCount] = messageId;
+                    device.inflightSentAt[device.inflightCount++] = now;
+                }
+                MqttPackets.putPublish(device.out, TOPIC_DATA, payload, 0, payload.length, qos, messageId, false);
+                sent++;
+                return true;
+            }
+            return false;
+        }
+
+        private TypedDeviceData nextDeviceData() {
+            data.clear();
+            data.s = "loadgen";
+            double temperature;
+            if (distribution == Distribution.GAUSSIAN) {
+                temperature = (minValue + maxValue) / 2 + random.nextGaussian() * (maxValue - minValue) / 4;
+            } else {
+                temperature = minValue + random.nextDouble() * (maxValue - minValue);
+            }
+            data.setDouble(tempC, Math.round(temperature * 100) / 100.0);
+            data.setBoolean(engineOn, random.nextDouble() < booleanTrueProbability);
+            data.setLocation(45.759723, 4.84223);
+            data.t = tags;
+            return data;
+        }
+
+        private void keepAlive(long now) {
+            for (Device device : devices) {
+                if (device.connected && !device.closed && now - device.lastWrite > KEEP_ALIVE_SEC * 500000000L
+                        && device.out.remaining() >= 2) {
+                    device.out.put(MqttPackets.pingreq());
+                }
+            }
+        }
+
+        private void flush(Device device) throws IOException {
+            ByteBuffer out = device.out;
+            if (!device.channel.isConnected()) {
+                return;
+            }
+            out.flip();
+            if (out.hasRemaining()) {
+                device.channel.write(out);
+                device.lastWrite = System.nanoTime();
+            }
+            out.compact();
+            if (device.key.isValid() && device.channel.isConnected()) {
+                // wait for the socket to be writable again only if something is left to send
+                device.key.interestOps(out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+            }
+        }
+
+        private void close(Device device, boolean failure) {
+            if (device.closed) {
+                return;
+            }
+            device.closed = true;
+            if (device.connected) {
+                connected--;
+            }
+            if (failure) {
+                failed++;
+            }
+            if (device.key != null) {
+                device.key.cancel();
+            }
+            try {
+                device.channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long-lived device publisher: keeps a single connection to Live Objects open and
+ * pushes {@link DeviceData} on "dev/data" without waiting for each message to complete.
+ * <p>
+ * The number of publishes not yet completed by the client (sent for QoS 0, acknowledged
+ * by the broker for QoS 1) is bounded by an "in-flight window": {@link #publish(DeviceData)}
+ * blocks the calling thread when the window is full. This class is thread-safe and meant
+ * to be shared by many producer threads.
+ * <p>
+ * Messages are encoded in JSON unless another {@link MessageCodec} is given.
+ */
+public class DevicePublisher {
+
+    public static final String TOPIC_DATA = "dev/data";
+
+    private final MqttAsyncClient mqttClient;
+    private final MqttConnectOptions connOpts;
+    private final int qos;
+    private final Semaphore inFlight;
+    private final MessageCodec codec;
+
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong publishedBytes = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile long connectedAt;
+
+    private final IMqttActionListener deliveryListener = new IMqttActionListener() {
+        public void onSuccess(IMqttToken token) {
+            completed.incrementAndGet();
+            inFlight.release();
+        }
+
+        public void onFailure(IMqttToken token, Throwable throwable) {
+            failed.incrementAndGet();
+            inFlight.release();
+        }
+    };
+
+    /**
+     * @param serverUri   broker URI, e.g. "tcp://liveobjects.orange-business.com:1883"
+     * @param deviceUrn   device identifier, used as MQTT client id
+     * @param apiKey      Live Objects API key
+     * @param qos         0 or 1
+     * @param maxInFlight maximum number of publishes not yet completed
+     */
+    public DevicePublisher(String serverUri, String deviceUrn, String apiKey, int qos, int maxInFlight) throws MqttException {
+        this(serverUri, deviceUrn, apiKey, qos, maxInFlight, new MemoryPersistence(), true);
+    }
+
+    /**
+     * With a durable persistence (e.g. {@link MappedSegmentPersistence}) and cleanSession = false,
+     * QoS 1 messages not acknowledged before a restart are sent again.
+     *
+     * @param persistence  storage of the in-flight messages
+     * @param cleanSession false to resume the session kept by the broker and the persistence
+     */
+    public DevicePublisher(String serverUri, String deviceUrn, String apiKey, int qos, int maxInFlight,
+                           MqttClientPersistence persistence, boolean cleanSession) throws MqttException {
+        this(serverUri, deviceUrn, apiKey, qos, maxInFlight, persistence, cleanSession, MessageCodecs.JSON);
+    }
+
+    /**
+     * @param codec encoding of the messages (Live Objects only accepts {@link MessageCodecs#JSON})
+     */
+    public DevicePublisher(String serverUri, String deviceUrn, String apiKey, int qos, int maxInFlight,
+                           MqttClientPersistence persistence, boolean cleanSession, MessageCodec codec)
+            throws MqttException {
+        if (qos != 0 && qos != 1) {
+            throw new IllegalArgumentException("qos must be 0 or 1");
+        }
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be >= 1");
+        }
+        this.qos = qos;
+        this.codec = codec;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.mqttClient = new MqttAsyncClient(serverUri, deviceUrn, persistence);
+
+        this.connOpts = new MqttConnectOptions();
+        connOpts.setUserName("json+device"); // selecting mode "Device"
+        connOpts.setPassword(apiKey.toCharArray()); // passing API key value as password
+        connOpts.setCleanSession(cleanSession);
+        connOpts.setKeepAliveInterval(30); // Must be <= 50
+        connOpts.setAutomaticReconnect(true);
+        // Paho refuses new QoS 1 publishes beyond its own limit: keep it in line with the window
+        connOpts.setMaxInflight(maxInFlight);
+    }
+
+    /**
+     * Connects to the broker, waiting for the connection to be established.
+     */
+    public void connect() throws MqttException {
+        mqttClient.connect(connOpts).waitForCompletion();
+        connectedAt = System.nanoTime();
+    }
+
+    /**
+     * Encodes and publishes a data message. Blocks while the in-flight window is full.
+     */
+    public void publish(DeviceData data) throws MqttException, InterruptedException {
+        publish(codec.encode(data));
+    }
+
+    /**
+     * Encodes and publishes a data message. Blocks while the in-flight window is full.
+     */
+    public void publish(TypedDeviceData data) throws MqttException, InterruptedException {
+        publish(codec.encode(data));
+    }
+
+    private void publish(byte[] payload) throws MqttException, InterruptedException {
+        inFlight.acquire();
+        try {
+            mqttClient.publish(TOPIC_DATA, payload, qos, false, null, deliveryListener);
+        } catch (MqttException e) {
+            failed.incrementAndGet();
+            inFlight.release();
+            throw e;
+        }
+        published.incrementAndGet();
+        publishedBytes.addAndGet(payload.length);
+    }
+
+    /**
+     * Waits for all in-flight publishes to complete, then disconnects and closes the client.
+     */
+    public void close() throws MqttException, InterruptedException {
+        int window = connOpts.getMaxInflight();
+        inFlight.acquire(window);
+        try {
+            if (mqttClient.isConnected()) {
+                mqttClient.disconnect().waitForCompletion();
+            }
+            mqttClient.close();
+        } finally {
+            inFlight.release(window);
+        }
+    }
+
+    public long getPublishedCount() {
+        return published.get();
+    }
+
+    /**
+     * @return total size of the payloads published
+     */
+    public long getPublishedBytes() {
+        return publishedBytes.get();
+    }
+
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    public int getInFlightCount() {
+        return connOpts.getMaxInflight() - inFlight.availablePermits();
+    }
+
+    /**
+     * @return sustained rate of completed publishes (msgs/s) since connection
+     */
+    public double getThroughput() {
+        long elapsed = System.nanoTime() - connectedAt;
+        return elapsed <= 0 ? 0 : completed.get() * 1e9 / elapsed;
+    }
+
+}
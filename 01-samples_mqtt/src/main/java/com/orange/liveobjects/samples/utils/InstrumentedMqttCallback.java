@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * Wraps a callback to record its activity in {@link MqttMetrics}: received messages and
+ * their handling time, completed deliveries, connection losses and reconnections, and
+ * exceptions thrown by the handler (which are then rethrown).
+ */
+public class InstrumentedMqttCallback implements MqttCallbackExtended {
+
+    private final MqttCallback delegate;
+    private final MqttMetrics metrics;
+
+    public InstrumentedMqttCallback(MqttCallback delegate, MqttMetrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    public void connectionLost(Throwable throwable) {
+        metrics.connectionLost();
+        delegate.connectionLost(throwable);
+    }
+
+    public void messageArrived(String s, MqttMessage mqttMessage) throws Exception {
+        long start = System.nanoTime();
+        try {
+            delegate.messageArrived(s, mqttMessage);
+        } catch (Exception e) {
+            metrics.error();
+            throw e;
+        } finally {
+            metrics.messageArrived(mqttMessage.getPayload().length, System.nanoTime() - start);
+        }
+    }
+
+    public void deliveryComplete(IMqttDeliveryToken iMqttDeliveryToken) {
+        metrics.deliveryComplete(iMqttDeliveryToken);
+        delegate.deliveryComplete(iMqttDeliveryToken);
+    }
+
+    public void connectComplete(boolean reconnect, String serverURI) {
+        if (reconnect) {
+            metrics.reconnected();
+        }
+        if (delegate instanceof MqttCallbackExtended) {
+            ((MqttCallbackExtended) delegate).connectComplete(reconnect, serverURI);
+        }
+    }
+
+}
@@ -0,0 +1,901 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Registry of the JSON codecs used for the Live Objects messages.
+ * <p>
+ * Holds a shared {@link Gson} instance (Gson is thread-safe) with hand-written
+ * {@link TypeAdapter}s for every message structure of this package, so that
+ * encoding/decoding them does not go through reflection.
+ * Free-form values ("v", "arg", "res", ...) are mapped the same way Gson does by default
+ * (JSON numbers being read as {@link Double}), except configuration parameters whose
+ * value is typed according to their "t" field.
+ */
+public final class JsonCodecs {
+
+    /**
+     * Used only for values of unknown types nested in free-form maps.
+     */
+    private static final Gson FALLBACK = new Gson();
+
+    private static final Gson GSON = new GsonBuilder()
+            .registerTypeAdapter(DeviceData.class, new DeviceDataAdapter())
+            .registerTypeAdapter(TypedDeviceData.class, new TypedDeviceDataAdapter())
+            .registerTypeAdapter(DeviceConfig.class, new DeviceConfigAdapter())
+            .registerTypeAdapter(DeviceConfig.CfgParameter.class, new CfgParameterAdapter())
+            .registerTypeAdapter(DeviceCommand.class, new DeviceCommandAdapter())
+            .registerTypeAdapter(DeviceCommandResponse.class, new DeviceCommandResponseAdapter())
+            .registerTypeAdapter(DataMessage.class, new DataMessageAdapter())
+            .registerTypeAdapter(LoraData.class, new LoraDataAdapter())
+            .registerTypeAdapter(LoraData.LoraDataValue.class, new LoraDataValueAdapter())
+            .registerTypeAdapter(LoraData.LoraMetadata.class, new LoraMetadataAdapter())
+            .create();
+
+    private JsonCodecs() {
+    }
+
+    /**
+     * @return the shared, thread-safe Gson instance
+     */
+    public static Gson gson() {
+        return GSON;
+    }
+
+    // *************************
+    // *** message adapters  ***
+    // *************************
+
+    static class DeviceDataAdapter extends TypeAdapter<DeviceData> {
+
+        @Override
+        public void write(JsonWriter out, DeviceData data) throws IOException {
+            if (data == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            writeString(out, "s", data.s);
+            writeString(out, "ts", data.ts);
+            writeString(out, "m", data.m);
+            if (data.v != null) {
+                out.name("v");
+                writeMap(out, data.v);
+            }
+            if (data.t != null) {
+                out.name("t");
+                writeStrings(out, data.t);
+            }
+            if (data.loc != null) {
+                out.name("loc").beginArray();
+                for (Double coordinate : data.loc) {
+                    if (coordinate == null) {
+                        out.nullValue();
+                    } else {
+                        out.value(coordinate.doubleValue());
+                    }
+                }
+                out.endArray();
+            }
+            out.endObject();
+        }
+
+        @Override
+        public DeviceData read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            DeviceData data = new DeviceData();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                } else if ("s".equals(name)) {
+                    data.s = in.nextString();
+                } else if ("ts".equals(name)) {
+                    data.ts = in.nextString();
+                } else if ("m".equals(name)) {
+                    data.m = in.nextString();
+                } else if ("v".equals(name)) {
+                    data.v = readMap(in);
+                } else if ("t".equals(name)) {
+                    data.t = readStrings(in);
+                } else if ("loc".equals(name)) {
+                    List<Double> loc = new ArrayList<Double>(2);
+                    in.beginArray();
+                    while (in.hasNext()) {
+                        if (in.peek() == JsonToken.NULL) {
+                            in.nextNull();
+                            loc.add(null);
+                        } else {
+                            loc.add(in.nextDouble());
+                        }
+                    }
+                    in.endArray();
+                    data.loc = loc.toArray(new Double[loc.size()]);
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return data;
+        }
+    }
+
+    /**
+     * Same format as {@link DeviceDataAdapter}; "v" fields are read according to the
+     * {@link DataSchema} registered for "m" (no schema: all fields go to the extra values).
+     */
+    static class TypedDeviceDataAdapter extends TypeAdapter<TypedDeviceData> {
+
+        @Override
+        public void write(JsonWriter out, TypedDeviceData data) throws IOException {
+            if (data == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            writeString(out, "s", data.s);
+            writeString(out, "ts", data.ts);
+            writeString(out, "m", data.getModel());
+            DataSchema schema = data.getSchema();
+            boolean hasValues = data.getExtra() != null;
+            for (int field = 0; field < schema.getFieldCount() && !hasValues; field++) {
+                hasValues = data.isSet(field);
+            }
+            if (hasValues) {
+                out.name("v").beginObject();
+                for (int field = 0; field < schema.getFieldCount(); field++) {
+                    if (!data.isSet(field)) {
+                        continue;
+                    }
+                    out.name(schema.getName(field));
+                    switch (schema.getType(field)) {
+                        case DOUBLE:
+                            out.value(data.getDouble(field));
+                            break;
+                        case LONG:
+                            out.value(data.getLong(field));
+                            break;
+                        case BOOLEAN:
+                            out.value(data.getBoolean(field));
+                            break;
+                        default:
+                            out.value(data.getString(field));
+                    }
+                }
+                if (data.getExtra() != null) {
+                    for (Map.Entry<String, Object> entry : data.getExtra().entrySet()) {
+                        if (entry.getValue() != null) {
+                            out.name(entry.getKey());
+                            writeValue(out, entry.getValue());
+                        }
+                    }
+                }
+                out.endObject();
+            }
+            if (data.t != null) {
+                out.name("t");
+                writeStrings(out, data.t);
+            }
+            if (data.hasLocation()) {
+                out.name("loc").beginArray().value(data.getLatitude()).value(data.getLongitude()).endArray();
+            }
+            out.endObject();
+        }
+
+        @Override
+        public TypedDeviceData read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            String s = null;
+            String ts = null;
+            String m = null;
+            List<String> t = null;
+            double[] loc = null;
+            TypedDeviceData data = null;
+            // "v" read before "m": decoded generically, then typed
+            Map<String, Object> pendingValues = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                } else if ("s".equals(name)) {
+                    s = in.nextString();
+                } else if ("ts".equals(name)) {
+                    ts = in.nextString();
+                } else if ("m".equals(name)) {
+                    m = in.nextString();
+                } else if ("v".equals(name)) {
+                    if (m == null) {
+                        pendingValues = readMap(in);
+                    } else {
+                        data = newTypedDeviceData(m);
+                        readTypedValues(in, data);
+                    }
+                } else if ("t".equals(name)) {
+                    t = readStrings(in);
+                } else if ("loc".equals(name)) {
+                    loc = new double[2];
+                    int i = 0;
+                    in.beginArray();
+                    while (in.hasNext()) {
+                        if (i < 2 && in.peek() == JsonToken.NUMBER) {
+                            loc[i++] = in.nextDouble();
+                        } else {
+                            in.skipValue();
+                        }
+                    }
+                    in.endArray();
+                    if (i < 2) {
+                        loc = null;
+                    }
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            if (data == null) {
+                data = newTypedDeviceData(m);
+            }
+            if (pendingValues != null) {
+                for (Map.Entry<String, Object> entry : pendingValues.entrySet()) {
+                    data.put(entry.getKey(), entry.getValue());
+                }
+            }
+            data.s = s;
+            data.ts = ts;
+            data.t = t;
+            if (loc != null) {
+                data.setLocation(loc[0], loc[1]);
+            }
+            return data;
+        }
+
+        private static TypedDeviceData newTypedDeviceData(String model) {
+            DataSchema schema = DataSchema.forModel(model);
+            return new TypedDeviceData(schema != null ? schema : new DataSchema(model));
+        }
+
+        private static void readTypedValues(JsonReader in, TypedDeviceData data) throws IOException {
+            DataSchema schema = data.getSchema();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                int field = schema.indexOf(name);
+                JsonToken token = in.peek();
+                if (field < 0) {
+                    data.putExtra(name, readValue(in));
+                    continue;
+                }
+                switch (schema.getType(field)) {
+                    case DOUBLE:
+                        if (token == JsonToken.NUMBER) {
+                            data.setDouble(field, in.nextDouble());
+                            continue;
+                        }
+                        break;
+                    case LONG:
+                        if (token == JsonToken.NUMBER) {
+                            try {
+                                data.setLong(field, in.nextLong());
+                            } catch (NumberFormatException e) {
+                                // not an integer: the reader still holds the number
+                                data.putExtra(name, in.nextDouble());
+                            }
+                            continue;
+                        }
+                        break;
+                    case BOOLEAN:
+                        if (token == JsonToken.BOOLEAN) {
+                            data.setBoolean(field, in.nextBoolean());
+                            continue;
+                        }
+                        break;
+                    default:
+                        if (token == JsonToken.STRING) {
+                            data.setString(field, in.nextString());
+                            continue;
+                        }
+                }
+                // unexpected type for the field
+                data.putExtra(name, readValue(in));
+            }
+            in.endObject();
+        }
+    }
+
+    static class DeviceConfigAdapter extends TypeAdapter<DeviceConfig> {
+
+        private final CfgParameterAdapter parameterAdapter = new CfgParameterAdapter();
+
+        @Override
+        public void write(JsonWriter out, DeviceConfig config) throws IOException {
+            if (config == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("cfg").beginObject();
+            for (Map.Entry<String, DeviceConfig.CfgParameter> entry : config.cfg.entrySet()) {
+                if (entry.getValue() != null) {
+                    out.name(entry.getKey());
+                    parameterAdapter.write(out, entry.getValue());
+                }
+            }
+            out.endObject();
+            out.endObject();
+        }
+
+        @Override
+        public DeviceConfig read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            DeviceConfig config = new DeviceConfig();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if ("cfg".equals(name) && in.peek() == JsonToken.BEGIN_OBJECT) {
+                    in.beginObject();
+                    while (in.hasNext()) {
+                        String parameterName = in.nextName();
+                        DeviceConfig.CfgParameter parameter = parameterAdapter.read(in);
+                        if (parameter != null) {
+                            config.cfg.put(parameterName, parameter);
+                        }
+                    }
+                    in.endObject();
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return config;
+        }
+    }
+
+    static class CfgParameterAdapter extends TypeAdapter<DeviceConfig.CfgParameter> {
+
+        @Override
+        public void write(JsonWriter out, DeviceConfig.CfgParameter parameter) throws IOException {
+            if (parameter == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            writeString(out, "t", parameter.t);
+            if (parameter.v != null) {
+                out.name("v");
+                writeValue(out, parameter.v);
+            }
+            out.endObject();
+        }
+
+        @Override
+        public DeviceConfig.CfgParameter read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            String type = null;
+            Object value = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                } else if ("t".equals(name)) {
+                    type = in.nextString();
+                } else if ("v".equals(name)) {
+                    // "t" is expected first; if not, the value is read untyped
+                    value = readTypedValue(in, type);
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return new DeviceConfig.CfgParameter(type, value);
+        }
+
+        private static Object readTypedValue(JsonReader in, String type) throws IOException {
+            if (in.peek() == JsonToken.NUMBER) {
+                if ("u32".equals(type) || "i32".equals(type)) {
+                    return in.nextLong();
+                }
+                if ("f64".equals(type)) {
+                    return in.nextDouble();
+                }
+            }
+            if ("str".equals(type) || "bin".equals(type)) {
+                return in.nextString();
+            }
+            return readValue(in);
+        }
+    }
+
+    static class DeviceCommandAdapter extends TypeAdapter<DeviceCommand> {
+
+        @Override
+        public void write(JsonWriter out, DeviceCommand command) throws IOException {
+            if (command == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            writeString(out, "req", command.req);
+            if (command.arg != null) {
+                out.name("arg");
+                writeMap(out, command.arg);
+            }
+            if (command.cid != null) {
+                out.name("cid").value(command.cid.longValue());
+            }
+            out.endObject();
+        }
+
+        @Override
+        public DeviceCommand read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            DeviceCommand command = new DeviceCommand();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                } else if ("req".equals(name)) {
+                    command.req = in.nextString();
+                } else if ("arg".equals(name)) {
+                    command.arg = readMap(in);
+                } else if ("cid".equals(name)) {
+                    command.cid = in.nextLong();
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return command;
+        }
+    }
+
+    static class DeviceCommandResponseAdapter extends TypeAdapter<DeviceCommandResponse> {
+
+        @Override
+        public void write(JsonWriter out, DeviceCommandResponse response) throws IOException {
+            if (response == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            if (response.res != null) {
+                out.name("res");
+                writeMap(out, response.res);
+            }
+            if (response.cid != null) {
+                out.name("cid").value(response.cid.longValue());
+            }
+            out.endObject();
+        }
+
+        @Override
+        public DeviceCommandResponse read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            DeviceCommandResponse response = new DeviceCommandResponse();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                } else if ("res".equals(name)) {
+                    response.res = readMap(in);
+                } else if ("cid".equals(name)) {
+                    response.cid = in.nextLong();
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return response;
+        }
+    }
+
+    static class DataMessageAdapter extends TypeAdapter<DataMessage> {
+
+        @Override
+        public void write(JsonWriter out, DataMessage data) throws IOException {
+            if (data == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            writeString(out, "streamId", data.streamId);
+            writeString(out, "timestamp", data.timestamp);
+            writeString(out, "model", data.model);
+            if (data.value != null) {
+                out.name("value");
+                writeMap(out, data.value);
+            }
+            if (data.tags != null) {
+                out.name("tags");
+                writeStrings(out, data.tags);
+            }
+            if (data.location != null) {
+                out.name("location").beginObject();
+                if (data.location.lat != null) {
+                    out.name("lat").value(data.location.lat.doubleValue());
+                }
+                if (data.location.lon != null) {
+                    out.name("lon").value(data.location.lon.doubleValue());
+                }
+                out.endObject();
+            }
+            if (data.metadata != null) {
+                out.name("metadata");
+                writeMap(out, data.metadata);
+            }
+            out.endObject();
+        }
+
+        @Override
+        public DataMessage read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            DataMessage data = new DataMessage();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                } else if ("streamId".equals(name)) {
+                    data.streamId = in.nextString();
+                } else if ("timestamp".equals(name)) {
+                    data.timestamp = in.nextString();
+                } else if ("model".equals(name)) {
+                    data.model = in.nextString();
+                } else if ("value".equals(name) && in.peek() == JsonToken.BEGIN_OBJECT) {
+                    data.value = readMap(in);
+                } else if ("tags".equals(name)) {
+                    data.tags = readStrings(in);
+                } else if ("location".equals(name) && in.peek() == JsonToken.BEGIN_OBJECT) {
+                    data.location = new DataMessage.Location();
+                    in.beginObject();
+                    while (in.hasNext()) {
+                        String field = in.nextName();
+                        if ("lat".equals(field) && in.peek() == JsonToken.NUMBER) {
+                            data.location.lat = in.nextDouble();
+                        } else if ("lon".equals(field) && in.peek() == JsonToken.NUMBER) {
+                            data.location.lon = in.nextDouble();
+                        } else {
+                            in.skipValue();
+                        }
+                    }
+                    in.endObject();
+                } else if ("metadata".equals(name) && in.peek() == JsonToken.BEGIN_OBJECT) {
+                    data.metadata = readMap(in);
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return data;
+        }
+    }
+
+    static class LoraDataAdapter extends TypeAdapter<LoraData> {
+
+        @Override
+        public void write(JsonWriter out, LoraData data) throws IOException {
+            if (data == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            writeString(out, "streamId", data.streamId);
+            writeString(out, "timestamp", data.timestamp);
+            writeString(out, "model", data.model);
+            if (data.value != null) {
+                out.name("value");
+                writeLoraDataValue(out, data.value);
+            }
+            if (data.tags != null) {
+                out.name("tags");
+                writeStrings(out, data.tags);
+            }
+            if (data.metadata != null) {
+                out.name("metadata");
+                writeLoraMetadata(out, data.metadata);
+            }
+            out.endObject();
+        }
+
+        @Override
+        public LoraData read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            LoraData data = new LoraData();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                } else if ("streamId".equals(name)) {
+                    data.streamId = in.nextString();
+                } else if ("timestamp".equals(name)) {
+                    data.timestamp = in.nextString();
+                } else if ("model".equals(name)) {
+                    data.model = in.nextString();
+                } else if ("value".equals(name)) {
+                    data.value = readLoraDataValue(in, data);
+                } else if ("tags".equals(name)) {
+                    data.tags = readStrings(in);
+                } else if ("metadata".equals(name)) {
+                    data.metadata = readLoraMetadata(in, data);
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return data;
+        }
+    }
+
+    /**
+     * LoraDataValue is a non-static inner class: a standalone instance is attached to an empty LoraData.
+     */
+    static class LoraDataValueAdapter extends TypeAdapter<LoraData.LoraDataValue> {
+
+        @Override
+        public void write(JsonWriter out, LoraData.LoraDataValue value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+            } else {
+                writeLoraDataValue(out, value);
+            }
+        }
+
+        @Override
+        public LoraData.LoraDataValue read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            return readLoraDataValue(in, new LoraData());
+        }
+    }
+
+    /**
+     * LoraMetadata is a non-static inner class: a standalone instance is attached to an empty LoraData.
+     */
+    static class LoraMetadataAdapter extends TypeAdapter<LoraData.LoraMetadata> {
+
+        @Override
+        public void write(JsonWriter out, LoraData.LoraMetadata metadata) throws IOException {
+            if (metadata == null) {
+                out.nullValue();
+            } else {
+                writeLoraMetadata(out, metadata);
+            }
+        }
+
+        @Override
+        public LoraData.LoraMetadata read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            return readLoraMetadata(in, new LoraData());
+        }
+    }
+
+    private static void writeLoraDataValue(JsonWriter out, LoraData.LoraDataValue value) throws IOException {
+        out.beginObject();
+        writeNumber(out, "port", value.port);
+        writeNumber(out, "fcnt", value.fcnt);
+        writeNumber(out, "signalLevel", value.signalLevel);
+        writeString(out, "payload", value.payload);
+        out.endObject();
+    }
+
+    private static LoraData.LoraDataValue readLoraDataValue(JsonReader in, LoraData data) throws IOException {
+        LoraData.LoraDataValue value = data.new LoraDataValue();
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+            } else if ("port".equals(name)) {
+                value.port = in.nextInt();
+            } else if ("fcnt".equals(name)) {
+                value.fcnt = in.nextInt();
+            } else if ("signalLevel".equals(name)) {
+                value.signalLevel = in.nextInt();
+            } else if ("payload".equals(name)) {
+                value.payload = in.nextString();
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        return value;
+    }
+
+    private static void writeLoraMetadata(JsonWriter out, LoraData.LoraMetadata metadata) throws IOException {
+        out.beginObject();
+        writeString(out, "source", metadata.source);
+        out.endObject();
+    }
+
+    private static LoraData.LoraMetadata readLoraMetadata(JsonReader in, LoraData data) throws IOException {
+        LoraData.LoraMetadata metadata = data.new LoraMetadata();
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+            } else if ("source".equals(name)) {
+                metadata.source = in.nextString();
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        return metadata;
+    }
+
+    // **************************
+    // *** free-form values   ***
+    // **************************
+
+    private static void writeString(JsonWriter out, String name, String value) throws IOException {
+        if (value != null) {
+            out.name(name).value(value);
+        }
+    }
+
+    private static void writeNumber(JsonWriter out, String name, Integer value) throws IOException {
+        if (value != null) {
+            out.name(name).value(value.longValue());
+        }
+    }
+
+    private static void writeStrings(JsonWriter out, List<String> values) throws IOException {
+        out.beginArray();
+        for (String value : values) {
+            out.value(value);
+        }
+        out.endArray();
+    }
+
+    private static List<String> readStrings(JsonReader in) throws IOException {
+        List<String> values = new ArrayList<String>();
+        in.beginArray();
+        while (in.hasNext()) {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                values.add(null);
+            } else {
+                values.add(in.nextString());
+            }
+        }
+        in.endArray();
+        return values;
+    }
+
+    static void writeMap(JsonWriter out, Map<?, ?> map) throws IOException {
+        out.beginObject();
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            if (entry.getValue() != null) {
+                out.name(String.valueOf(entry.getKey()));
+                writeValue(out, entry.getValue());
+            }
+        }
+        out.endObject();
+    }
+
+    static void writeValue(JsonWriter out, Object value) throws IOException {
+        if (value == null) {
+            out.nullValue();
+        } else if (value instanceof String) {
+            out.value((String) value);
+        } else if (value instanceof Boolean) {
+            out.value(((Boolean) value).booleanValue());
+        } else if (value instanceof Double) {
+            out.value(((Double) value).doubleValue());
+        } else if (value instanceof Integer || value instanceof Long) {
+            out.value(((Number) value).longValue());
+        } else if (value instanceof Number) {
+            out.value((Number) value);
+        } else if (value instanceof Character) {
+            out.value(value.toString());
+        } else if (value instanceof Map) {
+            writeMap(out, (Map<?, ?>) value);
+        } else if (value instanceof Collection) {
+            out.beginArray();
+            for (Object item : (Collection<?>) value) {
+                writeValue(out, item);
+            }
+            out.endArray();
+        } else if (value.getClass().isArray()) {
+            out.beginArray();
+            for (int i = 0, length = Array.getLength(value); i < length; i++) {
+                writeValue(out, Array.get(value, i));
+            }
+            out.endArray();
+        } else {
+            FALLBACK.toJson(value, value.getClass(), out);
+        }
+    }
+
+    static Map<String, Object> readMap(JsonReader in) throws IOException {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        in.beginObject();
+        while (in.hasNext()) {
+            map.put(in.nextName(), readValue(in));
+        }
+        in.endObject();
+        return map;
+    }
+
+    static Object readValue(JsonReader in) throws IOException {
+        switch (in.peek()) {
+            case STRING:
+                return in.nextString();
+            case NUMBER:
+                return in.nextDouble();
+            case BOOLEAN:
+                return in.nextBoolean();
+            case NULL:
+                in.nextNull();
+                return null;
+            case BEGIN_OBJECT:
+                return readMap(in);
+            case BEGIN_ARRAY:
+                List<Object> list = new ArrayList<Object>();
+                in.beginArray();
+                while (in.hasNext()) {
+                    list.add(readValue(in));
+                }
+                in.endArray();
+                return list;
+            default:
+                throw new IllegalStateException("Unexpected token " + in.peek());
+        }
+    }
+
+}
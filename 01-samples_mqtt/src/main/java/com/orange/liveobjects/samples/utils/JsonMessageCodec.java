@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import com.google.gson.JsonParseException;
+
+import java.nio.charset.Charset;
+
+/**
+ * JSON, encoded in UTF-8 whatever the platform default charset: the format expected by
+ * Live Objects in "json+device" and "json+bridge" modes.
+ */
+public class JsonMessageCodec implements MessageCodec {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public String getName() {
+        return "json";
+    }
+
+    public byte[] encode(Object message) {
+        return JsonCodecs.gson().toJson(message).getBytes(UTF_8);
+    }
+
+    public <T> T decode(byte[] payload, Class<T> type) {
+        try {
+            return JsonCodecs.gson().fromJson(new String(payload, UTF_8), type);
+        } catch (JsonParseException | NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid JSON " + type.getSimpleName() + ": " + e.getMessage(), e);
+        }
+    }
+
+}
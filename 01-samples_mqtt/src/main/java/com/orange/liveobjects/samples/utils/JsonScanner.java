@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import com.google.gson.JsonParseException;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Scanning of raw JSON bytes, used to find fields (e.g. the "payload" of a
+ * {@link RouterEnvelope}, the key of a {@link DedupFilter}) without decoding the whole document.
+ * <p>
+ * Positions are offsets in the byte array; end is the exclusive end of the document. A
+ * document may itself be held by a JSON string (as the message in a router envelope):
+ * with escaped = true, pos is then within that string, whose escape sequences are decoded
+ * while scanning, and the document ends at its closing quote.
+ * <p>
+ * Characters are returned with the position of the next one, packed in a long
+ * ({@link #codePoint}, {@link #position}), so that scanning allocates nothing.
+ */
+final class JsonScanner {
+
+    private JsonScanner() {
+    }
+
+    /**
+     * @return the code point at pos and the position of the next character, or -1 at the end
+     * of the document
+     * @throws JsonParseException if the UTF-8 or an escape sequence is malformed
+     */
+    static long nextChar(byte[] b, int pos, int end, boolean escaped) {
+        if (pos >= end) {
+            return -1;
+        }
+        int c = b[pos] & 0xFF;
+        if (escaped) {
+            if (c == '"') {
+                return -1;
+            }
+            if (c == '\\') {
+                if (pos + 1 >= end) {
+                    throw new JsonParseException("Unterminated escape sequence");
+                }
+                return unescape(b[pos + 1], b, pos + 2, end, false);
+            }
+        }
+        if (c < 0x80) {
+            return packed(c, pos + 1);
+        }
+        int extra;
+        int codePoint;
+        if ((c & 0xE0) == 0xC0) {
+            extra = 1;
+            codePoint = c & 0x1F;
+        } else if ((c & 0xF0) == 0xE0) {
+            extra = 2;
+            codePoint = c & 0x0F;
+        } else if ((c & 0xF8) == 0xF0) {
+            extra = 3;
+            codePoint = c & 0x07;
+        } else {
+            throw new JsonParseException("Invalid UTF-8 byte at offset " + pos);
+        }
+        if (pos + extra >= end) {
+            throw new JsonParseException("Truncated UTF-8 sequence at offset " + pos);
+        }
+        for (int i = 1; i <= extra; i++) {
+            codePoint = (codePoint << 6) | (b[pos + i] & 0x3F);
+        }
+        return packed(codePoint, pos + extra + 1);
+    }
+
+    /**
+     * Reads a character of a string of the document, its escape sequences being decoded.
+     *
+     * @param pos position within the string (after the opening quote)
+     * @return the code point and the position of the next character, or -1 at the closing quote
+     */
+    static long nextStringChar(byte[] b, int pos, int end, boolean escaped) {
+        long c = nextChar(b, pos, end, escaped);
+        if (c < 0) {
+            throw new JsonParseException("Unterminated string");
+        }
+        if (codePoint(c) == '"') {
+            return -1;
+        }
+        if (codePoint(c) != '\\') {
+            return c;
+        }
+        long e = nextChar(b, position(c), end, escaped);
+        if (e < 0) {
+            throw new JsonParseException("Unterminated escape sequence");
+        }
+        return unescape(codePoint(e), b, position(e), end, escaped);
+    }
+
+    /**
+     * @return the code point at pos, or -1 at the end of the document
+     */
+    static int charAt(byte[] b, int pos, int end, boolean escaped) {
+        long c = nextChar(b, pos, end, escaped);
+        return c < 0 ? -1 : codePoint(c);
+    }
+
+    static int codePoint(long c) {
+        return (int) (c >>> 32);
+    }
+
+    static int position(long c) {
+        return (int) c;
+    }
+
+    private static long packed(int codePoint, int next) {
+        return (long) codePoint << 32 | next;
+    }
+
+    /**
+     * @param c   character following the backslash
+     * @param pos position after that character
+     */
+    private static long unescape(int c, byte[] b, int pos, int end, boolean escaped) {
+        switch (c) {
+            case 'n':
+                return packed('\n', pos);
+            case 't':
+                return packed('\t', pos);
+            case 'r':
+                return packed('\r', pos);
+            case 'b':
+                return packed('\b', pos);
+            case 'f':
+                return packed('\f', pos);
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    long digit = nextChar(b, pos, end, escaped);
+                    int hex = digit < 0 ? -1 : Character.digit(codePoint(digit), 16);
+                    if (hex < 0) {
+                        throw new JsonParseException("Invalid \\u escape sequence");
+                    }
+                    value = (value << 4) | hex;
+                    pos = position(digit);
+                }
+                return packed(value, pos);
+            default:
+                // '"', '\\' and '/'
+                return packed(c, pos);
+        }
+    }
+
+    static int skipWhitespace(byte[] b, int pos, int end, boolean escaped) {
+        while (true) {
+            long c = nextChar(b, pos, end, escaped);
+            if (c < 0) {
+                return pos;
+            }
+            int cp = codePoint(c);
+            if (cp != ' ' && cp != '\n' && cp != '\r' && cp != '\t') {
+                return pos;
+            }
+            pos = position(c);
+        }
+    }
+
+    static void expect(byte[] b, int pos, int end, char c) {
+        if (pos >= end || b[pos] != c) {
+            throw new JsonParseException("Expected '" + c + "' at offset " + pos);
+        }
+    }
+
+    /**
+     * @param pos position of the opening quote
+     * @return position right after the closing quote
+     */
+    static int skipString(byte[] b, int pos, int end, boolean escaped) {
+        pos = position(nextChar(b, pos, end, escaped));
+        while (true) {
+            long c = nextStringChar(b, pos, end, escaped);
+            if (c < 0) {
+                return position(nextChar(b, pos, end, escaped));
+            }
+            pos = position(c);
+        }
+    }
+
+    /**
+     * @return position right after the value starting at pos
+     */
+    static int skipValue(byte[] b, int pos, int end, boolean escaped) {
+        int depth = 0;
+        while (true) {
+            long next = nextChar(b, pos, end, escaped);
+            if (next < 0) {
+                return pos;
+            }
+            int c = codePoint(next);
+            if (c == '"') {
+                pos = skipString(b, pos, end, escaped);
+                if (depth == 0) {
+                    return pos;
+                }
+                continue;
+            }
+            if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                if (depth == 0) {
+                    // end of the enclosing object
+                    return pos;
+                }
+                if (--depth == 0) {
+                    return position(next);
+                }
+            } else if (c == ',' && depth == 0) {
+                return pos;
+            }
+            pos = position(next);
+        }
+    }
+
+    /**
+     * @param pos      position of the opening quote
+     * @param expected ASCII string
+     * @return true if the string at pos is the expected one, once decoded
+     */
+    static boolean stringEquals(byte[] b, int pos, int end, boolean escaped, String expected) {
+        pos = position(nextChar(b, pos, end, escaped));
+        for (int i = 0; ; i++) {
+            long c = nextStringChar(b, pos, end, escaped);
+            if (c < 0) {
+                return i == expected.length();
+            }
+            if (i == expected.length() || codePoint(c) != expected.charAt(i)) {
+                return false;
+            }
+            pos = position(c);
+        }
+    }
+
+    static boolean regionEquals(byte[] b, int start, int end, byte[] expected) {
+        if (end - start != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (b[start + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reader decoding UTF-8 straight from a byte array, optionally unescaping the content
+     * of a JSON string (in which case it ends at the closing quote).
+     */
+    static class Utf8Reader extends Reader {
+
+        private final byte[] bytes;
+        private final int end;
+        private final boolean jsonString;
+        private int pos;
+        private char pendingLowSurrogate;
+
+        Utf8Reader(byte[] bytes, int pos, int end, boolean jsonString) {
+            this.bytes = bytes;
+            this.pos = pos;
+            this.end = end;
+            this.jsonString = jsonString;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            int n = 0;
+            while (n < len) {
+                if (pendingLowSurrogate != 0) {
+                    cbuf[off + n++] = pendingLowSurrogate;
+                    pendingLowSurrogate = 0;
+                    continue;
+                }
+                long c;
+                try {
+                    c = nextChar(bytes, pos, end, jsonString);
+                } catch (JsonParseException e) {
+                    throw new IOException(e.getMessage());
+                }
+                if (c < 0) {
+                    break;
+                }
+                pos = position(c);
+                int codePoint = codePoint(c);
+                if (codePoint >= 0x10000) {
+                    cbuf[off + n++] = Character.highSurrogate(codePoint);
+                    pendingLowSurrogate = Character.lowSurrogate(codePoint);
+                } else {
+                    cbuf[off + n++] = (char) codePoint;
+                }
+            }
+            return n == 0 && len > 0 ? -1 : n;
+        }
+
+        @Override
+        public void close() {
+            // nothing to release
+        }
+    }
+}
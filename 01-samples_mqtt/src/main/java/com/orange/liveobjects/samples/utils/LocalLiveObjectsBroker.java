@@ -0,0 +1,1001 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+
+/**
+ * In-process stand-in for the Live Objects MQTT interface, to run the samples, tests and
+ * load runs on localhost without network.
+ * <p>
+ * It emulates the topic contract used by the samples:
+ * <ul>
+ * <li>"json+device" mode (client id = device URN): "dev/data" messages are stored and
+ * republished on the router, "dev/cfg" is kept as the device current configuration,
+ * commands sent with {@link #sendCommand} are published on "dev/cmd" and completed by
+ * the "dev/cmd/res" response. Device messages may also be encoded in CBOR
+ * ({@link MessageCodecs#detect}), which the platform does not accept;</li>
+ * <li>"json+bridge" mode: "router/&lt;routing key filter&gt;" subscriptions receive every
+ * routed message (routing key "~event/v1/data/new/&lt;source URN with ':' replaced by '/'&gt;"),
+ * "fifo/&lt;name&gt;" subscriptions consume FIFO queues bound to the router with
+ * {@link #bindFifo}, one message going to a single consumer.</li>
+ * </ul>
+ * Router messages are JSON envelopes {"payload": "&lt;stored message as a JSON string&gt;"}.
+ * <p>
+ * MQTT 3.1 and 3.1.1 clients are supported, with QoS 0 and 1 (QoS 2 is refused),
+ * persistent sessions (clean session = false) and keep-alive. FIFO consumers get at most
+ * {@link #setMaxInflight maxInflight} unacknowledged QoS 1 messages, the rest staying in the
+ * queue; unacknowledged messages go back to the queue when the consumer disconnects.
+ * <p>
+ * All the broker state lives in a single I/O thread (non-blocking sockets); the public
+ * methods are thread-safe. Futures returned by this class are completed on the I/O thread:
+ * use the "...Async" variants for non-trivial continuations.
+ */
+public class LocalLiveObjectsBroker {
+
+    public static final String MODE_DEVICE = "json+device";
+    public static final String MODE_BRIDGE = "json+bridge";
+    public static final String ROUTING_KEY_DATA_NEW = "~event/v1/data/new/";
+
+    private static final String DEVICE_URN_PREFIX = "urn:lo:nsid:";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] TOPIC_CMD = MqttPackets.utf8("dev/cmd");
+    private static final int OUT_HIGH_WATERMARK = 1024 * 1024;
+
+    private final int requestedPort;
+    private final String apiKey;
+    private volatile int maxInflight = 10;
+    private volatile int maxQueuedPerSession = 100000;
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread ioThread;
+    private volatile boolean running;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    // I/O thread state
+    private final Set<Connection> connections = new HashSet<Connection>();
+    private final List<Connection> dirty = new ArrayList<Connection>();
+    private final Map<String, Session> sessions = new HashMap<String, Session>();
+    private final Map<String, Fifo> fifos = new LinkedHashMap<String, Fifo>();
+    private final Map<Long, CompletableFuture<DeviceCommandResponse>> pendingCommands =
+            new HashMap<Long, CompletableFuture<DeviceCommandResponse>>();
+    private long nextCid = 1;
+    private long lastKeepAliveCheck;
+
+    private final Map<String, DeviceConfig> deviceConfigs = new ConcurrentHashMap<String, DeviceConfig>();
+
+    // statistics (single writer: the I/O thread)
+    private volatile int connectionCount;
+    private volatile long receivedCount;
+    private volatile long routedCount;
+    private volatile long deliveredCount;
+    private volatile long droppedCount;
+
+    /**
+     * @param port   TCP port on the loopback interface, 0 for an ephemeral port
+     * @param apiKey expected API key (MQTT password), null to accept any
+     */
+    public LocalLiveObjectsBroker(int port, String apiKey) {
+        this.requestedPort = port;
+        this.apiKey = apiKey;
+    }
+
+    /**
+     * Maximum number of unacknowledged QoS 1 messages sent to a FIFO consumer (default 10).
+     */
+    public void setMaxInflight(int maxInflight) {
+        this.maxInflight = maxInflight;
+    }
+
+    /**
+     * Maximum number of QoS 1 messages kept for a disconnected persistent session (default 100000).
+     */
+    public void setMaxQueuedPerSession(int maxQueuedPerSession) {
+        this.maxQueuedPerSession = maxQueuedPerSession;
+    }
+
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), requestedPort));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        ioThread = new Thread(new Runnable() {
+            public void run() {
+                loop();
+            }
+        }, "lo-broker-io");
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    public synchronized void stop() throws InterruptedException {
+        if (!running) {
+            return;
+        }
+        running = false;
+        selector.wakeup();
+        ioThread.join();
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * @return URI to give to the MQTT clients, e.g. "tcp://127.0.0.1:1883"
+     */
+    public String getServerUri() {
+        return "tcp://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + getPort();
+    }
+
+    // ******************
+    // *** public API ***
+    // ******************
+
+    /**
+     * Binds a FIFO queue (created if needed) to the router: routed messages whose routing
+     * key matches the filter are enqueued, to be consumed on "fifo/&lt;fifoName&gt;".
+     */
+    public void bindFifo(final String fifoName, final String routingKeyFilter) {
+        execute(new Runnable() {
+            public void run() {
+                fifo(fifoName).bindings.add(routingKeyFilter);
+            }
+        });
+    }
+
+    /**
+     * @return number of messages waiting in a FIFO queue (not delivered yet)
+     */
+    public int getFifoDepth(final String fifoName) throws InterruptedException {
+        final CompletableFuture<Integer> depth = new CompletableFuture<Integer>();
+        execute(new Runnable() {
+            public void run() {
+                Fifo fifo = fifos.get(fifoName);
+                depth.complete(fifo == null ? 0 : fifo.messages.size());
+            }
+        });
+        try {
+            return depth.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Routes a stored message (JSON) with the given routing key, as the platform does for
+     * every stored message.
+     */
+    public void publishToRouter(final String routingKey, final String storedMessage) {
+        execute(new Runnable() {
+            public void run() {
+                route(routingKey, storedMessage);
+            }
+        });
+    }
+
+    /**
+     * Closes all the client connections, as a broker failover would. Persistent sessions are
+     * kept: their messages are queued until the clients reconnect.
+     */
+    public void disconnectAll() {
+        execute(new Runnable() {
+            public void run() {
+                for (Connection connection : new ArrayList<Connection>(connections)) {
+                    close(connection);
+                }
+            }
+        });
+    }
+
+    /**
+     * Emulates a LoRa uplink received from the LoRa network for the given device.
+     */
+    public void publishLoraUplink(String devEui, int port, int fcnt, int signalLevel, String hexPayload) {
+        LoraData data = new LoraData();
+        data.streamId = "urn:lora:" + devEui + "!uplink";
+        data.timestamp = now();
+        data.model = "lora_v0";
+        data.value = data.new LoraDataValue();
+        data.value.port = port;
+        data.value.fcnt = fcnt;
+        data.value.signalLevel = signalLevel;
+        data.value.payload = hexPayload;
+        data.metadata = data.new LoraMetadata();
+        data.metadata.source = "urn:lora:" + devEui;
+        publishToRouter(ROUTING_KEY_DATA_NEW + "urn/lora/" + devEui, JsonCodecs.gson().toJson(data));
+    }
+
+    /**
+     * Sends a command to a connected device (published on its "dev/cmd" subscription).
+     *
+     * @return completed by the device response, or exceptionally if the device is not
+     * connected or not subscribed to its commands
+     */
+    public CompletableFuture<DeviceCommandResponse> sendCommand(final String deviceUrn, final String req,
+                                                                final Map<String, Object> arg) {
+        final CompletableFuture<DeviceCommandResponse> response = new CompletableFuture<DeviceCommandResponse>();
+        execute(new Runnable() {
+            public void run() {
+                Session session = sessions.get(deviceUrn);
+                Integer qos = session == null ? null : session.subscriptions.get("dev/cmd");
+                if (qos == null || (session.connection == null && session.cleanSession)) {
+                    response.completeExceptionally(new IllegalStateException("Device " + deviceUrn + " is not listening to commands"));
+                    return;
+                }
+                final DeviceCommand command = new DeviceCommand();
+                command.req = req;
+                command.arg = arg;
+                command.cid = nextCid++;
+                pendingCommands.put(command.cid, response);
+                byte[] payload = JsonCodecs.gson().toJson(command).getBytes(UTF_8);
+                deliver(session, new Outgoing(TOPIC_CMD, payload, qos, null));
+                response.whenComplete(new BiConsumer<DeviceCommandResponse, Throwable>() {
+                    public void accept(DeviceCommandResponse r, Throwable t) {
+                        // cancelled or timed out by the caller
+                        execute(new Runnable() {
+                            public void run() {
+                                pendingCommands.remove(command.cid);
+                            }
+                        });
+                    }
+                });
+            }
+        });
+        return response;
+    }
+
+    /**
+     * @return last configuration announced by the device on "dev/cfg", or null
+     */
+    public DeviceConfig getDeviceConfig(String deviceUrn) {
+        return deviceConfigs.get(deviceUrn);
+    }
+
+    public int getConnectionCount() {
+        return connectionCount;
+    }
+
+    /**
+     * @return number of PUBLISH packets received from the clients
+     */
+    public long getReceivedCount() {
+        return receivedCount;
+    }
+
+    /**
+     * @return number of messages published on the router
+     */
+    public long getRoutedCount() {
+        return routedCount;
+    }
+
+    /**
+     * @return number of PUBLISH packets sent to the clients
+     */
+    public long getDeliveredCount() {
+        return deliveredCount;
+    }
+
+    /**
+     * @return number of messages lost: QoS 0 for an offline client, queue overflow
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    private void execute(Runnable task) {
+        tasks.add(task);
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    // ****************
+    // *** I/O loop ***
+    // ****************
+
+    private void loop() {
+        try {
+            while (running) {
+                selector.select(1000);
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            read(connection);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            flush(connection);
+                        }
+                    } catch (IOException e) {
+                        close(connection);
+                    } catch (RuntimeException e) {
+                        // malformed packet
+                        close(connection);
+                    }
+                }
+                flushDirty();
+                checkKeepAlive();
+            }
+        } catch (IOException e) {
+            System.out.println("Local broker stopped: " + e);
+        } finally {
+            for (Connection connection : new ArrayList<Connection>(connections)) {
+                close(connection);
+            }
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        connections.add(connection);
+    }
+
+    private void read(Connection connection) throws IOException {
+        int n = connection.channel.read(connection.in);
+        if (n < 0) {
+            close(connection);
+            return;
+        }
+        connection.lastActivity = System.currentTimeMillis();
+        ByteBuffer in = connection.in;
+        in.flip();
+        while (!connection.closed) {
+            int length = MqttPackets.frameLength(in);
+            if (length < 0 || length > in.remaining()) {
+                if (length > in.capacity()) {
+                    ByteBuffer larger = ByteBuffer.allocate(Math.max(length, in.capacity() * 2));
+                    larger.put(in);
+                    larger.flip();
+                    in = connection.in = larger;
+                }
+                break;
+            }
+            ByteBuffer packet = in.slice();
+            packet.limit(length);
+            in.position(in.position() + length);
+            handle(connection, packet);
+        }
+        in.compact();
+    }
+
+    private void flushDirty() {
+        for (int i = 0; i < dirty.size(); i++) {
+            Connection connection = dirty.get(i);
+            connection.dirty = false;
+            if (!connection.closed) {
+                try {
+                    flush(connection);
+                } catch (IOException e) {
+                    close(connection);
+                }
+            }
+        }
+        dirty.clear();
+    }
+
+    private void flush(Connection connection) throws IOException {
+        ByteBuffer out = connection.out;
+        out.flip();
+        connection.channel.write(out);
+        out.compact();
+        boolean pending = out.position() > 0;
+        connection.key.interestOps(pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        if (!pending && connection.session != null) {
+            // room for more FIFO messages
+            pumpFifos(connection.session);
+        }
+    }
+
+    /**
+     * @return the output buffer of the connection, with at least size bytes available
+     */
+    private ByteBuffer reserve(Connection connection, int size) {
+        ByteBuffer out = connection.out;
+        if (out.remaining() < size) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + size));
+            out.flip();
+            larger.put(out);
+            out = connection.out = larger;
+        }
+        if (!connection.dirty) {
+            connection.dirty = true;
+            dirty.add(connection);
+        }
+        return out;
+    }
+
+    private void write(Connection connection, byte[] packet) {
+        reserve(connection, packet.length).put(packet);
+    }
+
+    private void checkKeepAlive() {
+        long now = System.currentTimeMillis();
+        if (now - lastKeepAliveCheck < 1000) {
+            return;
+        }
+        lastKeepAliveCheck = now;
+        for (Connection connection : new ArrayList<Connection>(connections)) {
+            if (connection.keepAliveMs > 0 && now - connection.lastActivity > connection.keepAliveMs * 3 / 2) {
+                close(connection);
+            }
+        }
+    }
+
+    private void close(Connection connection) {
+        if (connection.closed) {
+            return;
+        }
+        connection.closed = true;
+        connections.remove(connection);
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        Session session = connection.session;
+        if (session == null || session.connection != connection) {
+            return;
+        }
+        connectionCount--;
+        session.connection = null;
+
+        // unacknowledged messages: back to their FIFO, kept for a persistent session or lost
+        List<Outgoing> unacknowledged = new ArrayList<Outgoing>(session.inflight.values());
+        session.inflight.clear();
+        Set<Fifo> toPump = new HashSet<Fifo>();
+        for (int i = unacknowledged.size() - 1; i >= 0; i--) {
+            Outgoing outgoing = unacknowledged.get(i);
+            outgoing.dup = true;
+            if (outgoing.fifo != null) {
+                outgoing.fifo.messages.addFirst(outgoing);
+                toPump.add(outgoing.fifo);
+            } else if (!session.cleanSession) {
+                session.pending.addFirst(outgoing);
+            } else {
+                droppedCount++;
+            }
+        }
+        for (Fifo fifo : fifos.values()) {
+            fifo.consumers.remove(session);
+        }
+        if (session.cleanSession) {
+            sessions.remove(session.clientId);
+        }
+        for (Fifo fifo : toPump) {
+            pump(fifo);
+        }
+    }
+
+    // ***************
+    // *** packets ***
+    // ***************
+
+    private void handle(Connection connection, ByteBuffer packet) {
+        int first = MqttPackets.readFixedHeader(packet);
+        int type = MqttPackets.packetType(first);
+        if (connection.session == null && type != MqttPackets.CONNECT) {
+            close(connection);
+            return;
+        }
+        switch (type) {
+            case MqttPackets.CONNECT:
+                handleConnect(connection, packet);
+                break;
+            case MqttPackets.PUBLISH:
+                handlePublish(connection, first, packet);
+                break;
+            case MqttPackets.PUBACK:
+                handlePuback(connection.session, packet.getShort() & 0xFFFF);
+                break;
+            case MqttPackets.SUBSCRIBE:
+                handleSubscribe(connection, packet);
+                break;
+            case MqttPackets.UNSUBSCRIBE:
+                handleUnsubscribe(connection, packet);
+                break;
+            case MqttPackets.PINGREQ:
+                write(connection, MqttPackets.pingresp());
+                break;
+            case MqttPackets.DISCONNECT:
+                close(connection);
+                break;
+            default:
+                // QoS 2 flows and server-to-client packets are not expected
+                close(connection);
+        }
+    }
+
+    private void handleConnect(Connection connection, ByteBuffer packet) {
+        if (connection.session != null) {
+            close(connection);
+            return;
+        }
+        String protocol = MqttPackets.getString(packet);
+        int level = packet.get() & 0xFF;
+        int flags = packet.get() & 0xFF;
+        int keepAliveSec = packet.getShort() & 0xFFFF;
+        String clientId = MqttPackets.getString(packet);
+        if ((flags & 0x04) != 0) {
+            // will topic and message, ignored
+            MqttPackets.getString(packet);
+            MqttPackets.getBytes(packet);
+        }
+        String username = (flags & 0x80) != 0 ? MqttPackets.getString(packet) : null;
+        String password = (flags & 0x40) != 0 ? new String(MqttPackets.getBytes(packet), UTF_8) : null;
+        boolean cleanSession = (flags & 0x02) != 0;
+        boolean device = MODE_DEVICE.equals(username);
+
+        int returnCode = MqttPackets.CONNACK_ACCEPTED;
+        if (!("MQTT".equals(protocol) && level == 4) && !("MQIsdp".equals(protocol) && level == 3)) {
+            returnCode = MqttPackets.CONNACK_BAD_PROTOCOL_VERSION;
+        } else if (!device && !MODE_BRIDGE.equals(username)) {
+            returnCode = MqttPackets.CONNACK_BAD_USERNAME_OR_PASSWORD;
+        } else if (apiKey != null && !apiKey.equals(password)) {
+            returnCode = MqttPackets.CONNACK_BAD_USERNAME_OR_PASSWORD;
+        } else if (clientId.isEmpty() || (device && !clientId.startsWith(DEVICE_URN_PREFIX))) {
+            returnCode = MqttPackets.CONNACK_IDENTIFIER_REJECTED;
+        }
+        if (returnCode != MqttPackets.CONNACK_ACCEPTED) {
+            write(connection, MqttPackets.connack(false, returnCode));
+            try {
+                flush(connection);
+            } catch (IOException e) {
+                // closing anyway
+            }
+            close(connection);
+            return;
+        }
+
+        Session session = sessions.get(clientId);
+        if (session != null && session.connection != null) {
+            // session take-over
+            close(session.connection);
+            session = sessions.get(clientId);
+        }
+        boolean sessionPresent = session != null && !cleanSession && session.device == device;
+        if (!sessionPresent) {
+            if (session != null) {
+                droppedCount += session.pending.size();
+            }
+            session = new Session(clientId, device);
+            sessions.put(clientId, session);
+        }
+        session.cleanSession = cleanSession;
+        session.connection = connection;
+        connection.session = session;
+        connection.keepAliveMs = keepAliveSec * 1000L;
+        connectionCount++;
+        write(connection, MqttPackets.connack(sessionPresent && level == 4, MqttPackets.CONNACK_ACCEPTED));
+
+        // resume the session: FIFO subscriptions, then messages kept while disconnected
+        for (String filter : session.subscriptions.keySet()) {
+            if (filter.startsWith("fifo/")) {
+                fifo(filter.substring(5)).consumers.add(session);
+            }
+        }
+        while (!session.pending.isEmpty()) {
+            send(session, session.pending.pollFirst());
+        }
+        pumpFifos(session);
+    }
+
+    private void handlePublish(Connection connection, int first, ByteBuffer packet) {
+        int qos = (first >> 1) & 0x03;
+        String topic = MqttPackets.getString(packet);
+        int messageId = qos > 0 ? packet.getShort() & 0xFFFF : 0;
+        byte[] payload = new byte[packet.remaining()];
+        packet.get(payload);
+        receivedCount++;
+        if (qos > 1) {
+            // not supported by Live Objects
+            close(connection);
+            return;
+        }
+        Session session = connection.session;
+        if (session.device) {
+            try {
+                handleDeviceMessage(session, topic, payload);
+            } catch (RuntimeException e) {
+                System.out.println("Local broker: invalid message on " + topic + " from " + session.clientId + ": " + e);
+            }
+        }
+        if (qos == 1) {
+            MqttPackets.putAck(reserve(connection, 4), MqttPackets.PUBACK, messageId);
+        }
+    }
+
+    private void handleDeviceMessage(Session session, String topic, byte[] payload) {
+        MessageCodec codec = MessageCodecs.detect(payload);
+        if ("dev/data".equals(topic)) {
+            DeviceData data = codec.decode(payload, DeviceData.class);
+            route(ROUTING_KEY_DATA_NEW + session.clientId.replace(':', '/'), storedMessage(session.clientId, data));
+        } else if ("dev/cfg".equals(topic)) {
+            deviceConfigs.put(session.clientId, codec.decode(payload, DeviceConfig.class));
+        } else if ("dev/cmd/res".equals(topic)) {
+            DeviceCommandResponse response = codec.decode(payload, DeviceCommandResponse.class);
+            CompletableFuture<DeviceCommandResponse> pending = response.cid == null ? null : pendingCommands.remove(response.cid);
+            if (pending != null) {
+                pending.complete(response);
+            }
+        }
+    }
+
+    private void handlePuback(Session session, int messageId) {
+        Outgoing outgoing = session.inflight.remove(messageId);
+        if (outgoing != null && outgoing.fifo != null) {
+            pump(outgoing.fifo);
+        }
+    }
+
+    private void handleSubscribe(Connection connection, ByteBuffer packet) {
+        Session session = connection.session;
+        int messageId = packet.getShort() & 0xFFFF;
+        List<Integer> returnCodes = new ArrayList<Integer>();
+        while (packet.hasRemaining()) {
+            String filter = MqttPackets.getString(packet);
+            int qos = Math.min(packet.get() & 0x03, 1);
+            if (session.device ? filter.startsWith("dev/") : filter.startsWith("router/")) {
+                session.subscriptions.put(filter, qos);
+                returnCodes.add(qos);
+            } else if (!session.device && filter.startsWith("fifo/") && filter.length() > 5
+                    && filter.indexOf('+') < 0 && filter.indexOf('#') < 0) {
+                session.subscriptions.put(filter, qos);
+                Fifo fifo = fifo(filter.substring(5));
+                if (!fifo.consumers.contains(session)) {
+                    fifo.consumers.add(session);
+                }
+                returnCodes.add(qos);
+            } else {
+                returnCodes.add(MqttPackets.SUBACK_FAILURE);
+            }
+        }
+        int[] codes = new int[returnCodes.size()];
+        for (int i = 0; i < codes.length; i++) {
+            codes[i] = returnCodes.get(i);
+        }
+        write(connection, MqttPackets.suback(messageId, codes));
+        pumpFifos(session);
+    }
+
+    private void handleUnsubscribe(Connection connection, ByteBuffer packet) {
+        Session session = connection.session;
+        int messageId = packet.getShort() & 0xFFFF;
+        while (packet.hasRemaining()) {
+            String filter = MqttPackets.getString(packet);
+            session.subscriptions.remove(filter);
+            if (filter.startsWith("fifo/")) {
+                Fifo fifo = fifos.get(filter.substring(5));
+                if (fifo != null) {
+                    fifo.consumers.remove(session);
+                }
+            }
+        }
+        MqttPackets.putAck(reserve(connection, 4), MqttPackets.UNSUBACK, messageId);
+    }
+
+    // ***************
+    // *** routing ***
+    // ***************
+
+    /**
+     * Message as stored by Live Objects, built from a device data message.
+     */
+    private static String storedMessage(String source, DeviceData data) {
+        StringWriter buffer = new StringWriter();
+        try {
+            JsonWriter out = new JsonWriter(buffer);
+            out.beginObject();
+            out.name("streamId").value(data.s != null ? data.s : source);
+            out.name("timestamp").value(data.ts != null ? data.ts : now());
+            if (data.m != null) {
+                out.name("model").value(data.m);
+            }
+            if (data.v != null) {
+                out.name("value");
+                JsonCodecs.writeMap(out, data.v);
+            }
+            if (data.t != null) {
+                out.name("tags").beginArray();
+                for (String tag : data.t) {
+                    out.value(tag);
+                }
+                out.endArray();
+            }
+            if (data.loc != null && data.loc.length == 2 && data.loc[0] != null && data.loc[1] != null) {
+                out.name("location").beginObject();
+                out.name("lat").value(data.loc[0].doubleValue());
+                out.name("lon").value(data.loc[1].doubleValue());
+                out.endObject();
+            }
+            out.name("metadata").beginObject().name("source").value(source).endObject();
+            out.endObject();
+            out.close();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return buffer.toString();
+    }
+
+    private static String now() {
+        return java.time.Instant.now().toString();
+    }
+
+    private void route(String routingKey, String storedMessage) {
+        routedCount++;
+        StringWriter buffer = new StringWriter();
+        try {
+            JsonWriter out = new JsonWriter(buffer);
+            out.beginObject().name("payload").value(storedMessage).endObject();
+            out.close();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] envelope = buffer.toString().getBytes(UTF_8);
+
+        String routerTopic = "router/" + routingKey;
+        byte[] topic = null;
+        for (Session session : sessions.values()) {
+            if (session.device) {
+                continue;
+            }
+            int qos = -1;
+            for (Map.Entry<String, Integer> subscription : session.subscriptions.entrySet()) {
+                if (subscription.getKey().startsWith("router/") && TopicTrie.matches(subscription.getKey(), routerTopic)) {
+                    qos = Math.max(qos, subscription.getValue());
+                }
+            }
+            if (qos >= 0) {
+                if (topic == null) {
+                    topic = MqttPackets.utf8(routerTopic);
+                }
+                deliver(session, new Outgoing(topic, envelope, qos, null));
+            }
+        }
+        for (Fifo fifo : fifos.values()) {
+            for (String binding : fifo.bindings) {
+                if (TopicTrie.matches(binding, routingKey)) {
+                    fifo.messages.add(new Outgoing(fifo.topic, envelope, 1, fifo));
+                    pump(fifo);
+                    break;
+                }
+            }
+        }
+    }
+
+    private Fifo fifo(String name) {
+        Fifo fifo = fifos.get(name);
+        if (fifo == null) {
+            fifo = new Fifo(name);
+            fifos.put(name, fifo);
+        }
+        return fifo;
+    }
+
+    private void pumpFifos(Session session) {
+        for (String filter : session.subscriptions.keySet()) {
+            if (filter.startsWith("fifo/")) {
+                Fifo fifo = fifos.get(filter.substring(5));
+                if (fifo != null) {
+                    pump(fifo);
+                }
+            }
+        }
+    }
+
+    /**
+     * Delivers FIFO messages, round-robin, to the consumers having room for them.
+     */
+    private void pump(Fifo fifo) {
+        int consumers = fifo.consumers.size();
+        while (!fifo.messages.isEmpty() && consumers > 0) {
+            Session target = null;
+            for (int i = 0; i < consumers; i++) {
+                int index = (fifo.next + i) % consumers;
+                Session candidate = fifo.consumers.get(index);
+                if (candidate.connection != null && candidate.inflight.size() < maxInflight
+                        && candidate.connection.out.position() < OUT_HIGH_WATERMARK) {
+                    target = candidate;
+                    fifo.next = (index + 1) % consumers;
+                    break;
+                }
+            }
+            if (target == null) {
+                return;
+            }
+            Outgoing outgoing = fifo.messages.pollFirst();
+            Integer qos = target.subscriptions.get(fifo.topicName);
+            outgoing.qos = qos == null ? 0 : qos;
+            send(target, outgoing);
+        }
+    }
+
+    private void deliver(Session session, Outgoing outgoing) {
+        if (session.connection != null) {
+            send(session, outgoing);
+        } else if (outgoing.qos > 0 && !session.cleanSession) {
+            if (session.pending.size() >= maxQueuedPerSession) {
+                session.pending.pollFirst();
+                droppedCount++;
+            }
+            session.pending.addLast(outgoing);
+        } else {
+            droppedCount++;
+        }
+    }
+
+    private void send(Session session, Outgoing outgoing) {
+        int messageId = 0;
+        if (outgoing.qos > 0) {
+            messageId = session.nextMessageId();
+            session.inflight.put(messageId, outgoing);
+        }
+        ByteBuffer out = reserve(session.connection,
+                MqttPackets.publishSize(outgoing.topic, outgoing.payload.length, outgoing.qos));
+        MqttPackets.putPublish(out, outgoing.topic, outgoing.payload, 0, outgoing.payload.length,
+                outgoing.qos, messageId, outgoing.dup);
+        deliveredCount++;
+    }
+
+    // *************
+    // *** state ***
+    // *************
+
+    private static class Connection {
+        final SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(16 * 1024);
+        ByteBuffer out = ByteBuffer.allocate(16 * 1024);
+        Session session;
+        long lastActivity = System.currentTimeMillis();
+        long keepAliveMs;
+        boolean dirty;
+        boolean closed;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private static class Session {
+        final String clientId;
+        final boolean device;
+        boolean cleanSession;
+        Connection connection;
+        final Map<String, Integer> subscriptions = new LinkedHashMap<String, Integer>();
+        final Map<Integer, Outgoing> inflight = new LinkedHashMap<Integer, Outgoing>();
+        final ArrayDeque<Outgoing> pending = new ArrayDeque<Outgoing>();
+        private int lastMessageId;
+
+        Session(String clientId, boolean device) {
+            this.clientId = clientId;
+            this.device = device;
+        }
+
+        int nextMessageId() {
+            do {
+                lastMessageId = lastMessageId == 65535 ? 1 : lastMessageId + 1;
+            } while (inflight.containsKey(lastMessageId));
+            return lastMessageId;
+        }
+    }
+
+    private static class Outgoing {
+        final byte[] topic;
+        final byte[] payload;
+        final Fifo fifo;
+        int qos;
+        boolean dup;
+
+        Outgoing(byte[] topic, byte[] payload, int qos, Fifo fifo) {
+            this.topic = topic;
+            this.payload = payload;
+            this.qos = qos;
+            this.fifo = fifo;
+        }
+    }
+
+    private static class Fifo {
+        final String topicName;
+        final byte[] topic;
+        final List<String> bindings = new ArrayList<String>();
+        final ArrayDeque<Outgoing> messages = new ArrayDeque<Outgoing>();
+        final List<Session> consumers = new ArrayList<Session>();
+        int next;
+
+        Fifo(String name) {
+            this.topicName = "fifo/" + name;
+            this.topic = MqttPackets.utf8(topicName);
+        }
+    }
+
+    /**
+     * Runs a stand-alone broker.
+     *
+     * Usage: [port] [apiKey|-] [fifoName=routingKeyFilter ...]
+     * e.g. "1883 - alarm=~event/v1/data/new/#"
+     */
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 1883;
+        String apiKey = args.length > 1 && !"-".equals(args[1]) ? args[1] : null;
+        LocalLiveObjectsBroker broker = new LocalLiveObjectsBroker(port, apiKey);
+        for (int i = 2; i < args.length; i++) {
+            int separator = args[i].indexOf('=');
+            broker.bindFifo(args[i].substring(0, separator), args[i].substring(separator + 1));
+        }
+        broker.start();
+        System.out.println("Local Live Objects broker listening on " + broker.getServerUri());
+        while (true) {
+            Thread.sleep(5000L);
+            System.out.printf("connections=%d received=%d routed=%d delivered=%d dropped=%d%n",
+                    broker.getConnectionCount(), broker.getReceivedCount(), broker.getRoutedCount(),
+                    broker.getDeliveredCount(), broker.getDroppedCount());
+        }
+    }
+
+}
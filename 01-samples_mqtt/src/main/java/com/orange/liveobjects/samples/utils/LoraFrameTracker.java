@@ -0,0 +1,463 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Follows the uplink frame counter ("fcnt") of each LoRa device to count lost, duplicated
+ * and late frames, and counter resets (e.g. after the device joined again), along with
+ * the signal level of the received frames.
+ * <p>
+ * Devices are identified by their devEUI, parsed from the stream id without allocation and
+ * used as the key of a primitive open-addressing table; the state of a device is kept in
+ * parallel arrays. Besides the last counter, the frames received among the 64 previous ones
+ * are remembered, so that a frame arriving late is not counted as a duplicate (nor as lost).
+ * Each message is tracked in constant time.
+ * <p>
+ * This class is thread-safe.
+ */
+public class LoraFrameTracker {
+
+    /**
+     * What a frame counter tells about the frame.
+     */
+    public enum Outcome {
+        /** first frame of the device */
+        FIRST,
+        /** next expected frame */
+        NEXT,
+        /** frames were missed before this one (counted as lost) */
+        GAP,
+        /** frame already received, or too old to tell (older than the 64 previous frames) */
+        DUPLICATE,
+        /** frame previously counted as lost, received out of order */
+        LATE,
+        /** counter restarted (or jumped too far ahead): losses are not counted across */
+        RESET
+    }
+
+    /**
+     * Larger jumps of the counter are taken as a reset rather than as lost frames (LoRaWAN MAX_FCNT_GAP).
+     */
+    public static final long MAX_FCNT_GAP = 16384;
+
+    /**
+     * A counter going back to this value or less is taken as a restart (the device joined
+     * again); going back further, as a stale frame.
+     */
+    public static final long MAX_RESTART_FCNT = 64;
+
+    private static final String LORA_STREAM_PREFIX = "urn:lora:";
+    private static final int WINDOW = 64;
+
+    // hash table: devEUI -> index of the device + 1 (0 = empty)
+    private long[] keys;
+    private int[] slots;
+    private int mask;
+
+    // device state, by index
+    private int devices;
+    private long[] devEuis;
+    private long[] lastFcnts;
+    // counter of the first frame since the last reset: earlier frames were never counted as lost
+    private long[] firstFcnts;
+    // bit i set if frame lastFcnt - 1 - i was received
+    private long[] windows;
+    private long[] received;
+    private long[] lost;
+    private int[] duplicates;
+    private int[] resets;
+    private long[] signalSums;
+    private int[] signalCounts;
+
+    private long totalReceived;
+    private long totalLost;
+    private long totalDuplicates;
+    private long totalResets;
+
+    /**
+     * @param expectedDevices initial capacity (grown as needed)
+     */
+    public LoraFrameTracker(int expectedDevices) {
+        int capacity = Math.max(16, expectedDevices);
+        int tableSize = Integer.highestOneBit(capacity * 2 - 1) << 1;
+        keys = new long[tableSize];
+        slots = new int[tableSize];
+        mask = tableSize - 1;
+        allocate(capacity);
+    }
+
+    /**
+     * @return true if the stream id is the one of a LoRa device, "urn:lora:&lt;devEUI&gt;!uplink"
+     */
+    public static boolean isLoraStream(CharSequence streamId) {
+        return devEuiEnd(streamId) >= 0;
+    }
+
+    /**
+     * Extracts the devEUI of the stream id of a LoRa device (see {@link #isLoraStream}).
+     *
+     * @throws IllegalArgumentException if the stream id is not the one of a LoRa device
+     */
+    public static long parseDevEui(CharSequence streamId) {
+        int end = devEuiEnd(streamId);
+        if (end < 0) {
+            throw new IllegalArgumentException("Not a LoRa stream id: " + streamId);
+        }
+        long devEui = 0;
+        for (int i = LORA_STREAM_PREFIX.length(); i < end; i++) {
+            devEui = devEui << 4 | Character.digit(streamId.charAt(i), 16);
+        }
+        return devEui;
+    }
+
+    /**
+     * @return end of the devEUI in the stream id, or -1 if it is not the one of a LoRa device
+     */
+    private static int devEuiEnd(CharSequence streamId) {
+        int length = streamId == null ? 0 : streamId.length();
+        int start = LORA_STREAM_PREFIX.length();
+        if (length <= start) {
+            return -1;
+        }
+        for (int i = 0; i < start; i++) {
+            if (streamId.charAt(i) != LORA_STREAM_PREFIX.charAt(i)) {
+                return -1;
+            }
+        }
+        int i = start;
+        while (i < length && i - start < 16 && Character.digit(streamId.charAt(i), 16) >= 0) {
+            i++;
+        }
+        if (i == start || (i < length && streamId.charAt(i) != '!')) {
+            return -1;
+        }
+        return i;
+    }
+
+    /**
+     * Tracks a decoded LoRa message.
+     *
+     * @return the outcome, or null if the message has no devEUI or frame counter
+     */
+    public Outcome track(LoraData data) {
+        if (data.value == null || data.value.fcnt == null) {
+            return null;
+        }
+        if (!isLoraStream(data.streamId)) {
+            return null;
+        }
+        long devEui = parseDevEui(data.streamId);
+        int signalLevel = data.value.signalLevel == null ? 0 : data.value.signalLevel;
+        return track(devEui, data.value.fcnt & 0xFFFFFFFFL, signalLevel);
+    }
+
+    /**
+     * @param signalLevel signal level of the frame, 0 if unknown
+     */
+    public synchronized Outcome track(long devEui, long fcnt, int signalLevel) {
+        int index = indexOf(devEui, true);
+        if (signalLevel > 0) {
+            signalSums[index] += signalLevel;
+            signalCounts[index]++;
+        }
+        if (received[index] == 0) {
+            firstFcnts[index] = fcnt;
+            lastFcnts[index] = fcnt;
+            received[index] = 1;
+            totalReceived++;
+            return Outcome.FIRST;
+        }
+        long last = lastFcnts[index];
+        if (fcnt == last) {
+            duplicates[index]++;
+            totalDuplicates++;
+            return Outcome.DUPLICATE;
+        }
+        if (fcnt > last && fcnt - last <= MAX_FCNT_GAP) {
+            long gap = fcnt - last - 1;
+            // the last frame joins the window of previous frames
+            windows[index] = gap >= WINDOW ? 0 : (windows[index] << 1 | 1) << gap;
+            lastFcnts[index] = fcnt;
+            received[index]++;
+            totalReceived++;
+            if (gap == 0) {
+                return Outcome.NEXT;
+            }
+            lost[index] += gap;
+            totalLost += gap;
+            return Outcome.GAP;
+        }
+        if (fcnt < last && last - fcnt <= WINDOW && fcnt > firstFcnts[index]) {
+            long bit = 1L << (last - fcnt - 1);
+            if ((windows[index] & bit) != 0) {
+                duplicates[index]++;
+                totalDuplicates++;
+                return Outcome.DUPLICATE;
+            }
+            windows[index] |= bit;
+            received[index]++;
+            totalReceived++;
+            if (lost[index] > 0) {
+                lost[index]--;
+                totalLost--;
+            }
+            return Outcome.LATE;
+        }
+        if (fcnt < last && fcnt > MAX_RESTART_FCNT) {
+            // older than the window but not a restart: a stale copy, the counter stays
+            duplicates[index]++;
+            totalDuplicates++;
+            return Outcome.DUPLICATE;
+        }
+        firstFcnts[index] = fcnt;
+        lastFcnts[index] = fcnt;
+        windows[index] = 0;
+        resets[index]++;
+        totalResets++;
+        received[index]++;
+        totalReceived++;
+        return Outcome.RESET;
+    }
+
+    /**
+     * @return statistics of the device, or null if no frame of it was tracked
+     */
+    public synchronized DeviceStats getStats(long devEui) {
+        int index = indexOf(devEui, false);
+        return index < 0 ? null : stats(index);
+    }
+
+    /**
+     * @return statistics of the devices with the highest loss rates, highest first
+     */
+    public synchronized List<DeviceStats> getWorstDevices(int count) {
+        List<DeviceStats> worst = new ArrayList<DeviceStats>();
+        if (count <= 0) {
+            return worst;
+        }
+        Comparator<DeviceStats> byLossRate = new Comparator<DeviceStats>() {
+            public int compare(DeviceStats a, DeviceStats b) {
+                return Double.compare(b.getLossRate(), a.getLossRate());
+            }
+        };
+        double threshold = 0;
+        for (int i = 0; i < devices; i++) {
+            if (lost[i] == 0) {
+                continue;
+            }
+            double lossRate = (double) lost[i] / (received[i] + lost[i]);
+            if (worst.size() == count && lossRate <= threshold) {
+                continue;
+            }
+            worst.add(stats(i));
+            Collections.sort(worst, byLossRate);
+            if (worst.size() > count) {
+                worst.remove(count);
+            }
+            threshold = worst.get(worst.size() - 1).getLossRate();
+        }
+        return worst;
+    }
+
+    public synchronized int getDeviceCount() {
+        return devices;
+    }
+
+    public synchronized long getReceivedCount() {
+        return totalReceived;
+    }
+
+    public synchronized long getLostCount() {
+        return totalLost;
+    }
+
+    public synchronized long getDuplicateCount() {
+        return totalDuplicates;
+    }
+
+    public synchronized long getResetCount() {
+        return totalResets;
+    }
+
+    /**
+     * @return share of the frames of the fleet that were lost
+     */
+    public synchronized double getLossRate() {
+        return totalLost == 0 ? 0 : (double) totalLost / (totalReceived + totalLost);
+    }
+
+    public synchronized String summary() {
+        return String.format("devices=%d received=%d lost=%d (%.3f%%) duplicates=%d resets=%d", devices,
+                totalReceived, totalLost, 100 * getLossRate(), totalDuplicates, totalResets);
+    }
+
+    private DeviceStats stats(int index) {
+        return new DeviceStats(devEuis[index], lastFcnts[index], received[index], lost[index], duplicates[index],
+                resets[index], signalCounts[index] == 0 ? 0 : (double) signalSums[index] / signalCounts[index]);
+    }
+
+    // *******************
+    // *** hash table  ***
+    // *******************
+
+    /**
+     * @return index of the device, or -1 if unknown and not to be added
+     */
+    private int indexOf(long devEui, boolean add) {
+        int slot = (int) mix(devEui) & mask;
+        while (slots[slot] != 0) {
+            if (keys[slot] == devEui) {
+                return slots[slot] - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (!add) {
+            return -1;
+        }
+        if (devices == devEuis.length) {
+            allocate(devices * 2);
+        }
+        int index = devices++;
+        devEuis[index] = devEui;
+        keys[slot] = devEui;
+        slots[slot] = index + 1;
+        if (devices * 2 > keys.length) {
+            rehash(keys.length * 2);
+        }
+        return index;
+    }
+
+    private void rehash(int tableSize) {
+        keys = new long[tableSize];
+        slots = new int[tableSize];
+        mask = tableSize - 1;
+        for (int index = 0; index < devices; index++) {
+            int slot = (int) mix(devEuis[index]) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = devEuis[index];
+            slots[slot] = index + 1;
+        }
+    }
+
+    private void allocate(int capacity) {
+        if (devEuis == null) {
+            devEuis = new long[capacity];
+            lastFcnts = new long[capacity];
+            firstFcnts = new long[capacity];
+            windows = new long[capacity];
+            received = new long[capacity];
+            lost = new long[capacity];
+            duplicates = new int[capacity];
+            resets = new int[capacity];
+            signalSums = new long[capacity];
+            signalCounts = new int[capacity];
+        } else {
+            devEuis = Arrays.copyOf(devEuis, capacity);
+            lastFcnts = Arrays.copyOf(lastFcnts, capacity);
+            firstFcnts = Arrays.copyOf(firstFcnts, capacity);
+            windows = Arrays.copyOf(windows, capacity);
+            received = Arrays.copyOf(received, capacity);
+            lost = Arrays.copyOf(lost, capacity);
+            duplicates = Arrays.copyOf(duplicates, capacity);
+            resets = Arrays.copyOf(resets, capacity);
+            signalSums = Arrays.copyOf(signalSums, capacity);
+            signalCounts = Arrays.copyOf(signalCounts, capacity);
+        }
+    }
+
+    // MurmurHash3 finalizer
+    private static long mix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    // *********************
+    // *** INNER CLASSES ***
+    // *********************
+
+    /**
+     * Snapshot of the statistics of a device.
+     */
+    public static final class DeviceStats {
+
+        private final long devEui;
+        private final long lastFcnt;
+        private final long received;
+        private final long lost;
+        private final int duplicates;
+        private final int resets;
+        private final double meanSignalLevel;
+
+        DeviceStats(long devEui, long lastFcnt, long received, long lost, int duplicates, int resets,
+                    double meanSignalLevel) {
+            this.devEui = devEui;
+            this.lastFcnt = lastFcnt;
+            this.received = received;
+            this.lost = lost;
+            this.duplicates = duplicates;
+            this.resets = resets;
+            this.meanSignalLevel = meanSignalLevel;
+        }
+
+        public long getDevEui() {
+            return devEui;
+        }
+
+        public long getLastFcnt() {
+            return lastFcnt;
+        }
+
+        public long getReceivedCount() {
+            return received;
+        }
+
+        public long getLostCount() {
+            return lost;
+        }
+
+        public int getDuplicateCount() {
+            return duplicates;
+        }
+
+        public int getResetCount() {
+            return resets;
+        }
+
+        /**
+         * @return mean signal level of the received frames, 0 if unknown
+         */
+        public double getMeanSignalLevel() {
+            return meanSignalLevel;
+        }
+
+        /**
+         * @return share of the frames of the device that were lost
+         */
+        public double getLossRate() {
+            return lost == 0 ? 0 : (double) lost / (received + lost);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%016X: received=%d lost=%d (%.2f%%) duplicates=%d resets=%d lastFcnt=%d signal=%.2f",
+                    devEui, received, lost, 100 * getLossRate(), duplicates, resets, lastFcnt, meanSignalLevel);
+        }
+    }
+}
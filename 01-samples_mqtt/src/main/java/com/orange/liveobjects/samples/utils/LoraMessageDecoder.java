@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Single-pass decoder for LoRa messages consumed from the Live Objects router.
+ * <p>
+ * A router message is a JSON envelope whose "payload" field holds the LoRa data message,
+ * usually as a JSON-encoded string. Instead of decoding the envelope, extracting the
+ * string and decoding it again, this decoder locates "payload" in the raw bytes and
+ * streams its content (UTF-8 and JSON string escapes being decoded on the fly) into a
+ * Gson {@link JsonReader} read by the {@link JsonCodecs} adapter of {@link LoraData}.
+ * <p>
+ * Instances are stateless and thread-safe.
+ */
+public class LoraMessageDecoder {
+
+    private final TypeAdapter<LoraData> loraDataAdapter = JsonCodecs.gson().getAdapter(LoraData.class);
+
+    /**
+     * Decodes a router message (raw MQTT payload).
+     *
+     * @throws JsonParseException if the message is malformed or has no "payload" field
+     */
+    public LoraData decode(byte[] message) {
+        return decode(message, 0, message.length);
+    }
+
+    public LoraData decode(byte[] message, int offset, int length) {
+        Reader reader = RouterEnvelope.payloadReader(message, offset, length);
+        if (reader == null) {
+            throw new JsonParseException("No 'payload' field in router message");
+        }
+        try {
+            return loraDataAdapter.read(new JsonReader(reader));
+        } catch (IOException e) {
+            throw new JsonParseException("Invalid LoRa message", e);
+        } catch (IllegalStateException e) {
+            throw new JsonParseException("Invalid LoRa message", e);
+        }
+    }
+
+}
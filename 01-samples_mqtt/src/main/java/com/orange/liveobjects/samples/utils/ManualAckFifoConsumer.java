@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Consumes a Live Objects FIFO at QoS 1 with manual acknowledgements: a message is
+ * acknowledged only once its {@link MessageHandler} has completed, so messages not yet
+ * handled when the application stops or crashes stay in the FIFO.
+ * <p>
+ * At most a window of messages is taken from the FIFO and not yet acknowledged; when it is
+ * full, the Paho callback thread waits, the client stops reading and the backlog stays on
+ * the Live Objects side. The window follows Little's law: to keep {@code workers} handlers
+ * busy while acknowledgements travel back to the broker, about
+ * {@code workers * (1 + ackRoundTrip / handlerLatency)} messages must be outstanding. It is
+ * recomputed from the measured handler latency, between {@code workers} and {@code maxInFlight}.
+ * <p>
+ * A failing handler is logged and counted, and the message is not acknowledged: it stays in
+ * the FIFO and is delivered again after the next reconnection.
+ */
+public class ManualAckFifoConsumer implements MqttCallbackExtended, ConnectionManager.SessionListener {
+
+    private static final int RETUNE_EVERY = 100;
+
+    private final MqttClient mqttClient;
+    private final String topic;
+    private final MessageHandler handler;
+    private final int workers;
+    private final int maxInFlight;
+    private final long ackRoundTripNanos;
+    private final ThreadPoolExecutor executor;
+
+    // window of unacknowledged messages
+    private final Object windowLock = new Object();
+    private int window;
+    private int inFlight;
+
+    // incremented on each connection loss: messages received before are redelivered by the broker
+    private final AtomicInteger connectionEpoch = new AtomicInteger();
+
+    private final LatencyHistogram handlerLatency = new LatencyHistogram();
+    // moving average of the handler latency, in ns (bits of a double), updated by all the workers
+    private final AtomicLong averageLatencyBits = new AtomicLong();
+    private final AtomicLong handled = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong abandoned = new AtomicLong();
+
+    /**
+     * Registers the consumer as the callback of the client and enables manual acks; the
+     * client must then be connected by a {@link ConnectionManager} with the consumer as
+     * session listener (the FIFO is subscribed when a new session starts).
+     *
+     * @param ackRoundTripMillis estimated network round trip to the broker
+     */
+    public ManualAckFifoConsumer(MqttClient mqttClient, String fifoTopic, int workers, int maxInFlight,
+                                 long ackRoundTripMillis, MessageHandler handler) {
+        if (workers < 1 || maxInFlight < workers) {
+            throw new IllegalArgumentException("workers must be >= 1 and maxInFlight >= workers");
+        }
+        this.mqttClient = mqttClient;
+        this.topic = fifoTopic;
+        this.handler = handler;
+        this.workers = workers;
+        this.maxInFlight = maxInFlight;
+        this.ackRoundTripNanos = TimeUnit.MILLISECONDS.toNanos(ackRoundTripMillis);
+        this.window = workers;
+        // the queue never holds more than the window
+        this.executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(maxInFlight), new ThreadFactory() {
+                    private final AtomicInteger index = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "fifo-worker-" + index.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        mqttClient.setManualAcks(true);
+        mqttClient.setCallback(this);
+    }
+
+    public void connectionLost(Throwable throwable) {
+        System.out.println("Connection lost");
+        connectionEpoch.incrementAndGet();
+    }
+
+    public void connectComplete(boolean reconnect, String serverURI) {
+        System.out.println(reconnect ? "Connection is established again" : "Connection is established");
+    }
+
+    public void sessionStarted(MqttClient client) throws MqttException {
+        System.out.printf("Consuming from FIFO '%s' (QoS 1, manual acks)...%n", topic);
+        client.subscribe(topic, 1);
+        System.out.println("... subscribed.");
+    }
+
+    public void messageArrived(final String s, final MqttMessage mqttMessage) throws Exception {
+        acquire();
+        final int epoch = connectionEpoch.get();
+        try {
+            execute(s, mqttMessage, epoch);
+        } catch (RejectedExecutionException e) {
+            // shut down: not acknowledged, the message stays in the FIFO and the exception
+            // closes the connection so that the broker delivers it again
+            abandoned.incrementAndGet();
+            release();
+            throw e;
+        }
+    }
+
+    private void execute(final String s, final MqttMessage mqttMessage, final int epoch) {
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    if (epoch != connectionEpoch.get()) {
+                        // not acknowledged on the lost connection: the broker delivers it again
+                        abandoned.incrementAndGet();
+                        return;
+                    }
+                    long start = System.nanoTime();
+                    boolean success = false;
+                    try {
+                        handler.handle(s, mqttMessage);
+                        handled.incrementAndGet();
+                        success = true;
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                        System.out.println("Message handling failed, left in the FIFO: " + e);
+                    }
+                    onHandled(System.nanoTime() - start);
+                    if (success) {
+                        mqttClient.messageArrivedComplete(mqttMessage.getId(), mqttMessage.getQos());
+                    }
+                } catch (MqttException e) {
+                    System.out.println("Acknowledgement failed, reason " + e.getReasonCode());
+                } finally {
+                    release();
+                }
+            }
+        });
+    }
+
+    public void deliveryComplete(IMqttDeliveryToken iMqttDeliveryToken) {
+        // nothing
+    }
+
+    public int getInFlight() {
+        synchronized (windowLock) {
+            return inFlight;
+        }
+    }
+
+    public int getWindow() {
+        synchronized (windowLock) {
+            return window;
+        }
+    }
+
+    public long getHandledCount() {
+        return handled.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * @return messages received but dropped without acknowledgement because the connection was
+     * lost or the consumer was shut down
+     */
+    public long getAbandonedCount() {
+        return abandoned.get();
+    }
+
+    public LatencyHistogram getHandlerLatency() {
+        return handlerLatency;
+    }
+
+    /**
+     * Waits for the received messages to be handled and acknowledged.
+     *
+     * @return true if all were handled in time
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        executor.shutdown();
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    private void acquire() throws InterruptedException {
+        synchronized (windowLock) {
+            while (inFlight >= window) {
+                windowLock.wait();
+            }
+            inFlight++;
+        }
+    }
+
+    private void release() {
+        synchronized (windowLock) {
+            inFlight--;
+            windowLock.notifyAll();
+        }
+    }
+
+    private void onHandled(long latencyNanos) {
+        handlerLatency.record(latencyNanos);
+        double average;
+        while (true) {
+            long bits = averageLatencyBits.get();
+            double previous = Double.longBitsToDouble(bits);
+            average = previous == 0 ? latencyNanos : previous * 0.9 + latencyNanos * 0.1;
+            if (averageLatencyBits.compareAndSet(bits, Double.doubleToRawLongBits(average))) {
+                break;
+            }
+        }
+        if ((handled.get() + failed.get()) % RETUNE_EVERY == 0) {
+            double latency = Math.max(1, average);
+            long target = workers + (long) Math.ceil(workers * ackRoundTripNanos / latency);
+            synchronized (windowLock) {
+                window = (int) Math.max(workers, Math.min(maxInFlight, target));
+                windowLock.notifyAll();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,572 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Durable {@link MqttClientPersistence} writing to an append-only log of memory-mapped
+ * segment files, instead of one file per message as {@code MqttDefaultFilePersistence}.
+ * <p>
+ * A put or a remove is a record appended to the current segment (a memory copy); an
+ * in-memory index gives the location of the live record of each key. Segments are flushed
+ * to disk ({@code force}) every {@code syncEvery} writes, or on each write with
+ * {@code syncEvery = 1}: between two syncs, records survive a crash of the JVM but not of
+ * the machine. When the current segment is full a new one is started, and the oldest
+ * segments are compacted: dropped if they hold no live record anymore (the usual case,
+ * QoS 1 messages being removed once acknowledged), their live records copied to the
+ * current segment otherwise. A compacted segment is emptied before being deleted, so that a
+ * file which could not be deleted holds no record when the log is opened again (and is
+ * deleted then). Records are checksummed, a torn last record is ignored when the log is
+ * opened again.
+ * <p>
+ * As with the other Paho persistences, messages are kept across restarts only if the client
+ * connects with cleanSession = false.
+ */
+public class MappedSegmentPersistence implements MqttClientPersistence {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final byte CLEAR = 3;
+
+    // record: length (of what follows the checksum), CRC32 (of what follows the checksum), type,
+    // key length, key, header length, header, payload
+    private static final int RECORD_OVERHEAD = 4 + 4 + 1 + 2 + 4;
+
+    private final File baseDirectory;
+    private final int segmentSize;
+    private final int syncEvery;
+
+    private File directory;
+    private RandomAccessFile lockFile;
+    private FileLock lock;
+
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+    private final Map<String, Location> index = new HashMap<String, Location>();
+    private final CRC32 crc = new CRC32();
+    private Segment current;
+    private int unsynced;
+
+    /**
+     * @param directory   where the segments of each client are stored (in a sub-directory per client id and server)
+     * @param segmentSize size of a segment file
+     * @param syncEvery   number of writes between two flushes to disk (1 to flush on each write)
+     */
+    public MappedSegmentPersistence(String directory, int segmentSize, int syncEvery) {
+        if (segmentSize < 1024 || syncEvery < 1) {
+            throw new IllegalArgumentException("segmentSize must be >= 1024 and syncEvery >= 1");
+        }
+        this.baseDirectory = new File(directory);
+        this.segmentSize = segmentSize;
+        this.syncEvery = syncEvery;
+    }
+
+    public MappedSegmentPersistence(String directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE, 64);
+    }
+
+    private static class Segment {
+        final long id;
+        final File file;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        // bytes of the records still live
+        int liveBytes;
+
+        Segment(long id, File file, FileChannel channel, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+
+    private static class Location {
+        final Segment segment;
+        final int position;
+        final int length;
+
+        Location(Segment segment, int position, int length) {
+            this.segment = segment;
+            this.position = position;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Persisted data as read back from a segment.
+     */
+    private static class StoredData implements MqttPersistable {
+        private final byte[] header;
+        private final byte[] payload;
+
+        StoredData(byte[] header, byte[] payload) {
+            this.header = header;
+            this.payload = payload;
+        }
+
+        public byte[] getHeaderBytes() {
+            return header;
+        }
+
+        public int getHeaderLength() {
+            return header.length;
+        }
+
+        public int getHeaderOffset() {
+            return 0;
+        }
+
+        public byte[] getPayloadBytes() {
+            return payload;
+        }
+
+        public int getPayloadLength() {
+            return payload == null ? 0 : payload.length;
+        }
+
+        public int getPayloadOffset() {
+            return 0;
+        }
+    }
+
+    // **************************
+    // *** MqttClientPersistence ***
+    // **************************
+
+    public synchronized void open(String clientId, String serverURI) throws MqttPersistenceException {
+        directory = new File(baseDirectory, sanitize(clientId + "-" + serverURI));
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new MqttPersistenceException(new IOException("Cannot create directory " + directory));
+        }
+        try {
+            lockFile = new RandomAccessFile(new File(directory, ".lck"), "rw");
+            try {
+                lock = lockFile.getChannel().tryLock();
+            } catch (OverlappingFileLockException e) {
+                // already open in this JVM
+                lock = null;
+            }
+            if (lock == null) {
+                lockFile.close();
+                throw new MqttPersistenceException(MqttPersistenceException.REASON_CODE_PERSISTENCE_IN_USE);
+            }
+            boolean recovered = false;
+            try {
+                recover();
+                if (current == null) {
+                    roll(segmentSize);
+                }
+                recovered = true;
+            } finally {
+                if (!recovered) {
+                    // neither the segments nor the lock are kept: the persistence can be opened again
+                    release();
+                }
+            }
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+    }
+
+    public synchronized void close() throws MqttPersistenceException {
+        try {
+            for (Segment segment : segments.values()) {
+                segment.buffer.force();
+                segment.channel.close();
+            }
+            segments.clear();
+            index.clear();
+            current = null;
+            if (lock != null) {
+                lock.release();
+                lockFile.close();
+                lock = null;
+            }
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+    }
+
+    /**
+     * Closes the segments and releases the lock, ignoring the failures.
+     */
+    private void release() {
+        for (Segment segment : segments.values()) {
+            try {
+                segment.channel.close();
+            } catch (IOException e) {
+                // closing the others anyway
+            }
+        }
+        segments.clear();
+        index.clear();
+        current = null;
+        try {
+            lock.release();
+            lockFile.close();
+        } catch (IOException e) {
+            // released when the file is closed, or when the JVM exits
+        }
+        lock = null;
+    }
+
+    public synchronized void put(String key, MqttPersistable persistable) throws MqttPersistenceException {
+        checkOpen();
+        byte[] keyBytes = key.getBytes(UTF_8);
+        int length = RECORD_OVERHEAD + keyBytes.length + persistable.getHeaderLength() + persistable.getPayloadLength();
+        ensureRoom(length);
+        int position = current.buffer.position();
+        writeRecord(PUT, keyBytes, persistable.getHeaderBytes(), persistable.getHeaderOffset(), persistable.getHeaderLength(),
+                persistable.getPayloadBytes(), persistable.getPayloadOffset(), persistable.getPayloadLength());
+        Location previous = index.put(key, new Location(current, position, length));
+        if (previous != null) {
+            previous.segment.liveBytes -= previous.length;
+        }
+        current.liveBytes += length;
+        written();
+    }
+
+    public synchronized MqttPersistable get(String key) throws MqttPersistenceException {
+        checkOpen();
+        Location location = index.get(key);
+        if (location == null) {
+            return null;
+        }
+        ByteBuffer record = location.segment.buffer.duplicate();
+        record.position(location.position + 4 + 4 + 1);
+        record.position(record.position() + 2 + (record.getShort() & 0xFFFF));
+        byte[] header = new byte[record.getInt()];
+        record.get(header);
+        byte[] payload = new byte[location.position + location.length - record.position()];
+        record.get(payload);
+        return new StoredData(header, payload);
+    }
+
+    public synchronized void remove(String key) throws MqttPersistenceException {
+        checkOpen();
+        Location location = index.remove(key);
+        if (location == null) {
+            return;
+        }
+        location.segment.liveBytes -= location.length;
+        byte[] keyBytes = key.getBytes(UTF_8);
+        ensureRoom(RECORD_OVERHEAD + keyBytes.length);
+        writeRecord(REMOVE, keyBytes, null, 0, 0, null, 0, 0);
+        written();
+    }
+
+    public synchronized Enumeration<String> keys() throws MqttPersistenceException {
+        checkOpen();
+        return Collections.enumeration(new ArrayList<String>(index.keySet()));
+    }
+
+    public synchronized void clear() throws MqttPersistenceException {
+        checkOpen();
+        index.clear();
+        for (Segment segment : segments.values()) {
+            segment.liveBytes = 0;
+        }
+        ensureRoom(RECORD_OVERHEAD);
+        writeRecord(CLEAR, new byte[0], null, 0, 0, null, 0, 0);
+        sync();
+        compact();
+    }
+
+    public synchronized boolean containsKey(String key) throws MqttPersistenceException {
+        checkOpen();
+        return index.containsKey(key);
+    }
+
+    /**
+     * Flushes the records written since the last sync to disk.
+     */
+    public synchronized void sync() {
+        if (current != null && unsynced > 0) {
+            current.buffer.force();
+            unsynced = 0;
+        }
+    }
+
+    /**
+     * @return number of segment files in use
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    // ***************
+    // *** log     ***
+    // ***************
+
+    private void checkOpen() throws MqttPersistenceException {
+        if (current == null) {
+            throw new MqttPersistenceException(MqttException.REASON_CODE_CLIENT_CLOSED);
+        }
+    }
+
+    private void writeRecord(byte type, byte[] key, byte[] header, int headerOffset, int headerLength,
+                             byte[] payload, int payloadOffset, int payloadLength) {
+        crc.reset();
+        crc.update(type);
+        crc.update(key.length >> 8);
+        crc.update(key.length);
+        crc.update(key, 0, key.length);
+        crc.update(headerLength >> 24);
+        crc.update(headerLength >> 16);
+        crc.update(headerLength >> 8);
+        crc.update(headerLength);
+        if (header != null) {
+            crc.update(header, headerOffset, headerLength);
+        }
+        if (payload != null) {
+            crc.update(payload, payloadOffset, payloadLength);
+        }
+        MappedByteBuffer out = current.buffer;
+        out.putInt(RECORD_OVERHEAD - 8 + key.length + headerLength + payloadLength);
+        out.putInt((int) crc.getValue());
+        out.put(type);
+        out.putShort((short) key.length);
+        out.put(key);
+        out.putInt(headerLength);
+        if (header != null) {
+            out.put(header, headerOffset, headerLength);
+        }
+        if (payload != null) {
+            out.put(payload, payloadOffset, payloadLength);
+        }
+        // end marker, overwritten by the next record
+        out.putInt(out.position(), 0);
+    }
+
+    private void written() {
+        if (++unsynced >= syncEvery) {
+            sync();
+        }
+    }
+
+    /**
+     * Makes sure the current segment can take a record of the given length (plus the end marker).
+     */
+    private void ensureRoom(int length) throws MqttPersistenceException {
+        if (current.buffer.remaining() >= length + 4) {
+            return;
+        }
+        try {
+            current.buffer.force();
+            unsynced = 0;
+            roll(Math.max(segmentSize, length + 4));
+            compact();
+            if (current.buffer.remaining() < length + 4) {
+                // filled up by the compaction
+                current.buffer.force();
+                roll(Math.max(segmentSize, length + 4));
+            }
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+    }
+
+    private void roll(int size) throws IOException {
+        long id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        current = map(id, new File(directory, String.format("%016d%s", id, SEGMENT_SUFFIX)), size);
+        segments.put(id, current);
+    }
+
+    private Segment map(long id, File file, int minSize) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        FileChannel channel = raf.getChannel();
+        int size = (int) Math.max(minSize, channel.size());
+        return new Segment(id, file, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+    }
+
+    /**
+     * Deletes the oldest segments holding no live record, or copies their live records to
+     * the current segment if they are mostly dead (or if the whole log is). Only the oldest
+     * segments are compacted: their REMOVE records can then be dropped, an older PUT of the
+     * same key no longer existing.
+     */
+    private void compact() throws MqttPersistenceException {
+        while (segments.size() > 1) {
+            Segment oldest = segments.firstEntry().getValue();
+            if (oldest == current) {
+                return;
+            }
+            if (oldest.liveBytes > oldest.buffer.capacity() / 4) {
+                long live = 0;
+                long capacity = 0;
+                for (Segment segment : segments.values()) {
+                    live += segment.liveBytes;
+                    capacity += segment.buffer.capacity();
+                }
+                if (live * 2 > capacity) {
+                    return;
+                }
+            }
+            if (oldest.liveBytes > 0) {
+                List<String> keys = new ArrayList<String>();
+                for (Map.Entry<String, Location> entry : index.entrySet()) {
+                    if (entry.getValue().segment == oldest) {
+                        keys.add(entry.getKey());
+                    }
+                }
+                for (String key : keys) {
+                    MqttPersistable persistable = get(key);
+                    if (current.buffer.remaining() < index.get(key).length + 4) {
+                        // no room left: compact again after the next roll
+                        return;
+                    }
+                    put(key, persistable);
+                }
+                current.buffer.force();
+                unsynced = 0;
+            }
+            // emptied first: if the file cannot be deleted, its records are not replayed on next open
+            oldest.buffer.putInt(0, 0);
+            oldest.buffer.force();
+            segments.remove(oldest.id);
+            try {
+                oldest.channel.close();
+            } catch (IOException e) {
+                // deleted anyway
+            }
+            if (!oldest.file.delete()) {
+                // still mapped (on some platforms until garbage collected): holding no record, it
+                // is deleted on next open, by the compaction following the recovery
+                oldest.file.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Replays the segments of the directory, rebuilding the index.
+     */
+    private void recover() throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(SEGMENT_SUFFIX)) {
+                continue;
+            }
+            long id = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            Segment segment = map(id, file, 0);
+            segments.put(id, segment);
+            current = segment;
+            replay(segment);
+        }
+        if (current != null) {
+            try {
+                compact();
+            } catch (MqttPersistenceException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    private void replay(Segment segment) {
+        MappedByteBuffer in = segment.buffer;
+        while (in.remaining() >= RECORD_OVERHEAD) {
+            int position = in.position();
+            int length = in.getInt();
+            int checksum = in.getInt();
+            if (length < RECORD_OVERHEAD - 8 || length > in.remaining()) {
+                // end of the log (or torn record)
+                in.position(position);
+                break;
+            }
+            byte type = in.get();
+            byte[] key = new byte[in.getShort() & 0xFFFF];
+            if (key.length > in.remaining()) {
+                in.position(position);
+                break;
+            }
+            in.get(key);
+            int dataLength = position + 8 + length - in.position();
+            crc.reset();
+            crc.update(type);
+            crc.update(key.length >> 8);
+            crc.update(key.length);
+            crc.update(key, 0, key.length);
+            ByteBuffer data = in.duplicate();
+            data.position(in.position());
+            data.limit(in.position() + dataLength);
+            byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            crc.update(bytes, 0, bytes.length);
+            if ((int) crc.getValue() != checksum) {
+                in.position(position);
+                break;
+            }
+            in.position(in.position() + dataLength);
+            String k = new String(key, UTF_8);
+            Location previous;
+            if (type == PUT) {
+                previous = index.put(k, new Location(segment, position, 8 + length));
+                segment.liveBytes += 8 + length;
+            } else if (type == REMOVE) {
+                previous = index.remove(k);
+            } else {
+                for (Segment s : segments.values()) {
+                    s.liveBytes = 0;
+                }
+                index.clear();
+                previous = null;
+            }
+            if (previous != null) {
+                previous.segment.liveBytes -= previous.length;
+            }
+        }
+        // the next records (if this segment is the last one) overwrite whatever follows
+        if (in.remaining() >= 4) {
+            in.putInt(in.position(), 0);
+        }
+    }
+
+    private static String sanitize(String name) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (Character.isLetterOrDigit(c) || c == '-' || c == '_' || c == '.') {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,671 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Append-only archive of consumed messages ({@link DeviceData}, {@link DataMessage},
+ * {@link LoraData}), kept for reprocessing and read back with a {@link MessageArchiveReader}.
+ * <p>
+ * Messages are buffered column-wise into blocks of rows: times (delta-encoded), stream ids
+ * (through a dictionary of the block), then one column per value field, tags, location and
+ * metadata. A full block is sealed and handed over to a writer thread which deflates each
+ * column separately (so that a reader only inflates the columns it needs) and appends the
+ * block to the current segment file through a {@link FileChannel}, rolling to a new segment
+ * past a size. The writer thread syncs the file once per batch of blocks written (group
+ * commit); a block not full after a delay is sealed anyway, bounding the time a message stays
+ * in memory. Appenders wait when too many sealed blocks are pending.
+ * <p>
+ * This class is thread-safe. Each instance writes new segment files: existing ones are never
+ * modified.
+ */
+public class MessageArchive implements Closeable {
+
+    static final String SEGMENT_PREFIX = "archive-";
+    static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final int MAX_PENDING_BLOCKS = 16;
+
+    private final File dir;
+    private final int blockRows;
+    private final long segmentSize;
+    private final long maxDelayNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // wakes up the writer thread
+    private final Condition sealedOrDue = lock.newCondition();
+    // wakes up appenders and flushers
+    private final Condition written = lock.newCondition();
+
+    // guarded by lock
+    private Block current;
+    private long currentStartNanos;
+    private final ArrayDeque<Block> sealed = new ArrayDeque<Block>();
+    private final ArrayDeque<Block> free = new ArrayDeque<Block>();
+    private long sealedCount;
+    private long durableCount;
+    private long appendedCount;
+    private IOException failure;
+    private boolean closed;
+
+    private final Thread writer;
+
+    // writer thread only
+    private int segmentIndex;
+    private FileChannel channel;
+    private long segmentPosition;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final CRC32 crc = new CRC32();
+    private final ArchiveCodec.Sink raw = new ArchiveCodec.Sink(64 * 1024);
+    private final ArchiveCodec.Sink header = new ArchiveCodec.Sink(4 * 1024);
+    private final ArchiveCodec.Sink body = new ArchiveCodec.Sink(64 * 1024);
+    private final ByteBuffer frame = ByteBuffer.allocate(ArchiveCodec.FRAME_HEADER_SIZE);
+
+    private volatile long blockCount;
+    private volatile long rawBytes;
+    private volatile long compressedBytes;
+    private volatile long syncCount;
+
+    /**
+     * @param dir            directory of the segment files (created if needed)
+     * @param blockRows      messages per block
+     * @param segmentSize    size from which a new segment file is started
+     * @param maxDelayMillis longest time a message is buffered before being written
+     */
+    public MessageArchive(File dir, int blockRows, long segmentSize, long maxDelayMillis) throws IOException {
+        if (blockRows < 1 || segmentSize < 1 || maxDelayMillis < 1) {
+            throw new IllegalArgumentException("blockRows, segmentSize and maxDelayMillis must be positive");
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create directory " + dir);
+        }
+        this.dir = dir;
+        this.blockRows = blockRows;
+        this.segmentSize = segmentSize;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        for (File segment : segments(dir)) {
+            segmentIndex = Math.max(segmentIndex, segmentIndex(segment) + 1);
+        }
+        this.writer = new Thread(new Runnable() {
+            public void run() {
+                runWriter();
+            }
+        }, "archive-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * 4096 messages per block, 64 MB segments, messages written within a second.
+     */
+    public MessageArchive(File dir) throws IOException {
+        this(dir, 4096, 64L * 1024 * 1024, 1000);
+    }
+
+    /**
+     * @param receivedMillis time used when the message has no valid timestamp
+     */
+    public void append(DeviceData data, long receivedMillis) throws IOException, InterruptedException {
+        append(parseTime(data.ts, receivedMillis), data.s, data.m, data.v, data.t, data.loc, null);
+    }
+
+    /**
+     * @param receivedMillis time used when the message has no valid timestamp
+     */
+    public void append(DataMessage data, long receivedMillis) throws IOException, InterruptedException {
+        Double[] loc = null;
+        if (data.location != null && data.location.lat != null && data.location.lon != null) {
+            loc = new Double[] { data.location.lat, data.location.lon };
+        }
+        append(parseTime(data.timestamp, receivedMillis), data.streamId, data.model, data.value, data.tags, loc,
+                data.metadata);
+    }
+
+    /**
+     * The LoRa value ("port", "fcnt", "signalLevel", "payload") and metadata ("source") are archived
+     * as values and metadata.
+     *
+     * @param receivedMillis time used when the message has no valid timestamp
+     */
+    public void append(LoraData data, long receivedMillis) throws IOException, InterruptedException {
+        Map<String, Object> values = null;
+        if (data.value != null) {
+            values = new LinkedHashMap<String, Object>();
+            values.put("port", data.value.port);
+            values.put("fcnt", data.value.fcnt);
+            values.put("signalLevel", data.value.signalLevel);
+            values.put("payload", data.value.payload);
+        }
+        Map<String, Object> metadata = null;
+        if (data.metadata != null && data.metadata.source != null) {
+            metadata = new HashMap<String, Object>();
+            metadata.put("source", data.metadata.source);
+        }
+        append(parseTime(data.timestamp, receivedMillis), data.streamId, data.model, values, data.tags, null,
+                metadata);
+    }
+
+    /**
+     * Buffers a message; blocks while too many blocks are waiting to be written.
+     *
+     * @param time     time of the message, in ms since the epoch
+     * @param values   numbers, booleans and strings get typed columns, other values are kept as JSON
+     * @param loc      [latitude, longitude], or null
+     * @param metadata null if none
+     * @throws IOException if writing previous blocks failed
+     */
+    public void append(long time, String streamId, String model, Map<String, ?> values, List<String> tags,
+                       Double[] loc, Map<String, ?> metadata) throws IOException, InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            checkOpen();
+            while (sealed.size() >= MAX_PENDING_BLOCKS) {
+                written.await();
+                checkOpen();
+            }
+            if (current == null) {
+                current = free.isEmpty() ? new Block(blockRows) : free.poll();
+                currentStartNanos = System.nanoTime();
+                // the writer thread now has a delay to watch
+                sealedOrDue.signal();
+            }
+            current.add(time, streamId, model, values, tags, loc, metadata);
+            appendedCount++;
+            if (current.rows == blockRows) {
+                seal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the buffered messages and waits until they are synced to disk.
+     */
+    public void flush() throws IOException, InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            checkOpen();
+            if (current != null) {
+                seal();
+            }
+            long target = sealedCount;
+            while (durableCount < target && failure == null) {
+                written.await();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the buffered messages and closes the current segment.
+     */
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            if (current != null) {
+                seal();
+            }
+            closed = true;
+            sealedOrDue.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    public long getAppendedCount() {
+        lock.lock();
+        try {
+            return appendedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getBlockCount() {
+        return blockCount;
+    }
+
+    /**
+     * @return size of the columns before compression
+     */
+    public long getRawBytes() {
+        return rawBytes;
+    }
+
+    /**
+     * @return bytes written to the segment files
+     */
+    public long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    public long getSyncCount() {
+        return syncCount;
+    }
+
+    public String summary() {
+        long compressed = compressedBytes;
+        return String.format("messages=%d blocks=%d raw=%dKB written=%dKB (x%.1f) syncs=%d", getAppendedCount(),
+                blockCount, rawBytes / 1024, compressed / 1024, compressed == 0 ? 0 : (double) rawBytes / compressed,
+                syncCount);
+    }
+
+    // ***************
+    // *** writer  ***
+    // ***************
+
+    private void checkOpen() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (closed) {
+            throw new IOException("Archive closed");
+        }
+    }
+
+    private void seal() {
+        sealed.add(current);
+        current = null;
+        sealedCount++;
+        sealedOrDue.signal();
+    }
+
+    private void runWriter() {
+        List<Block> batch = new ArrayList<Block>();
+        try {
+            while (true) {
+                lock.lock();
+                try {
+                    while (sealed.isEmpty()) {
+                        if (closed) {
+                            return;
+                        }
+                        if (current == null) {
+                            sealedOrDue.await();
+                        } else {
+                            long remaining = maxDelayNanos - (System.nanoTime() - currentStartNanos);
+                            if (remaining <= 0) {
+                                seal();
+                            } else {
+                                sealedOrDue.awaitNanos(remaining);
+                            }
+                        }
+                    }
+                    batch.addAll(sealed);
+                    sealed.clear();
+                } finally {
+                    lock.unlock();
+                }
+
+                for (Block block : batch) {
+                    write(block);
+                }
+                // group commit: one sync for the whole batch
+                channel.force(false);
+                syncCount++;
+
+                lock.lock();
+                try {
+                    durableCount += batch.size();
+                    for (Block block : batch) {
+                        block.reset();
+                        free.add(block);
+                    }
+                    written.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                batch.clear();
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (InterruptedException e) {
+            fail(new IOException("Archive writer interrupted"));
+        } finally {
+            deflater.end();
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        }
+    }
+
+    private void fail(IOException e) {
+        lock.lock();
+        try {
+            if (failure == null) {
+                failure = e;
+            }
+            written.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void write(Block block) throws IOException {
+        encode(block);
+        int size = ArchiveCodec.FRAME_HEADER_SIZE + header.size + body.size;
+        if (channel == null || (segmentPosition > 0 && segmentPosition + size > segmentSize)) {
+            if (channel != null) {
+                channel.force(false);
+                channel.close();
+            }
+            File file = new File(dir, segmentName(segmentIndex++));
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            segmentPosition = 0;
+        }
+        crc.reset();
+        crc.update(header.bytes, 0, header.size);
+        frame.clear();
+        frame.putInt(ArchiveCodec.MAGIC).putInt(header.size).putInt(body.size).putInt((int) crc.getValue());
+        frame.flip();
+        ByteBuffer[] buffers = { frame, ByteBuffer.wrap(header.bytes, 0, header.size),
+                ByteBuffer.wrap(body.bytes, 0, body.size) };
+        long remaining = size;
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+        segmentPosition += size;
+        blockCount++;
+        compressedBytes += size;
+    }
+
+    private void encode(Block block) {
+        header.reset();
+        body.reset();
+        header.writeLong(block.minTime);
+        header.writeLong(block.maxTime);
+        header.writeVarint(block.rows);
+        header.writeVarint(block.streamIds.size());
+        for (String streamId : block.streamIds) {
+            header.writeString(streamId);
+        }
+        header.writeVarint(2 + block.columns.size());
+
+        raw.reset();
+        long previous = block.minTime;
+        for (int row = 0; row < block.rows; row++) {
+            raw.writeZigzag(block.times[row] - previous);
+            previous = block.times[row];
+        }
+        writeColumn(ArchiveCodec.TIME, ArchiveCodec.LONG, "");
+
+        raw.reset();
+        for (int row = 0; row < block.rows; row++) {
+            raw.writeVarint(block.streams[row]);
+        }
+        writeColumn(ArchiveCodec.STREAM, ArchiveCodec.LONG, "");
+
+        int presenceBytes = (block.rows + 7) / 8;
+        for (Column column : block.columns) {
+            raw.reset();
+            raw.reserve(presenceBytes);
+            for (int i = 0; i < presenceBytes; i++) {
+                raw.bytes[raw.size++] = (byte) (column.presence[i >> 3] >>> ((i & 7) << 3));
+            }
+            raw.writeBytes(column.data.bytes, 0, column.data.size);
+            writeColumn(column.kind, column.type, column.name);
+        }
+    }
+
+    /**
+     * Deflates the raw column into the body and describes it in the header.
+     */
+    private void writeColumn(byte kind, byte type, String name) {
+        int start = body.size;
+        deflater.reset();
+        deflater.setInput(raw.bytes, 0, raw.size);
+        deflater.finish();
+        while (!deflater.finished()) {
+            body.reserve(Math.max(1024, raw.size / 4));
+            body.size += deflater.deflate(body.bytes, body.size, body.bytes.length - body.size);
+        }
+        crc.reset();
+        crc.update(body.bytes, start, body.size - start);
+        header.writeByte(kind);
+        header.writeByte(type);
+        header.writeString(name);
+        header.writeVarint(raw.size);
+        header.writeVarint(body.size - start);
+        header.writeInt((int) crc.getValue());
+        rawBytes += raw.size;
+    }
+
+    // ****************
+    // *** segments ***
+    // ****************
+
+    static String segmentName(int index) {
+        return String.format("%s%08d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX);
+    }
+
+    static int segmentIndex(File segment) {
+        String name = segment.getName();
+        return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * @return segment files of the directory, oldest first
+     */
+    static List<File> segments(File dir) {
+        List<File> segments = new ArrayList<File>();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)
+                        && name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())
+                        .matches("[0-9]+")) {
+                    segments.add(file);
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    /**
+     * @return the ISO8601 timestamp in ms since the epoch, or the default value if absent or invalid
+     */
+    static long parseTime(String timestamp, long defaultValue) {
+        if (timestamp == null) {
+            return defaultValue;
+        }
+        try {
+            return OffsetDateTime.parse(timestamp, DateTimeFormatter.ISO_OFFSET_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return defaultValue;
+        }
+    }
+
+    // **************
+    // *** blocks ***
+    // **************
+
+    /**
+     * Rows being buffered, column-wise.
+     */
+    private static final class Block {
+        private final long[] times;
+        private final int[] streams;
+        private final List<String> streamIds = new ArrayList<String>();
+        private final Map<String, Integer> streamIndexes = new HashMap<String, Integer>();
+        // columns by kind and type, then name
+        private final List<Map<String, Column>> columnsByKindType =
+                new ArrayList<Map<String, Column>>(ArchiveCodec.KINDS * ArchiveCodec.TYPES);
+        private final List<Column> columns = new ArrayList<Column>();
+        private int rows;
+        private long minTime;
+        private long maxTime;
+
+        Block(int capacity) {
+            times = new long[capacity];
+            streams = new int[capacity];
+            for (int i = 0; i < ArchiveCodec.KINDS * ArchiveCodec.TYPES; i++) {
+                columnsByKindType.add(new HashMap<String, Column>());
+            }
+        }
+
+        void reset() {
+            rows = 0;
+            streamIds.clear();
+            streamIndexes.clear();
+            for (Map<String, Column> byName : columnsByKindType) {
+                byName.clear();
+            }
+            columns.clear();
+        }
+
+        void add(long time, String streamId, String model, Map<String, ?> values, List<String> tags,
+                 Double[] loc, Map<String, ?> metadata) {
+            int row = rows++;
+            times[row] = time;
+            if (row == 0) {
+                minTime = time;
+                maxTime = time;
+            } else {
+                minTime = Math.min(minTime, time);
+                maxTime = Math.max(maxTime, time);
+            }
+            String stream = streamId == null ? "" : streamId;
+            Integer index = streamIndexes.get(stream);
+            if (index == null) {
+                index = streamIds.size();
+                streamIds.add(stream);
+                streamIndexes.put(stream, index);
+            }
+            streams[row] = index;
+            if (model != null) {
+                column(ArchiveCodec.MODEL, ArchiveCodec.STRING, "").set(row).data.writeString(model);
+            }
+            if (values != null) {
+                for (Map.Entry<String, ?> entry : values.entrySet()) {
+                    addValue(ArchiveCodec.VALUE, entry.getKey(), entry.getValue(), row);
+                }
+            }
+            if (tags != null) {
+                ArchiveCodec.Sink data = column(ArchiveCodec.TAGS, ArchiveCodec.STRING_LIST, "").set(row).data;
+                data.writeVarint(tags.size());
+                for (String tag : tags) {
+                    data.writeString(tag == null ? "" : tag);
+                }
+            }
+            if (loc != null && loc.length >= 2) {
+                addValue(ArchiveCodec.LOCATION, "lat", loc[0], row);
+                addValue(ArchiveCodec.LOCATION, "lon", loc[1], row);
+            }
+            if (metadata != null) {
+                for (Map.Entry<String, ?> entry : metadata.entrySet()) {
+                    addValue(ArchiveCodec.METADATA, entry.getKey(), entry.getValue(), row);
+                }
+            }
+        }
+
+        private void addValue(byte kind, String name, Object value, int row) {
+            if (value == null || name == null) {
+                return;
+            }
+            if (value instanceof Boolean) {
+                column(kind, ArchiveCodec.BOOLEAN, name).set(row).data.writeByte((Boolean) value ? 1 : 0);
+            } else if (value instanceof Long || value instanceof Integer || value instanceof Short
+                    || value instanceof Byte) {
+                column(kind, ArchiveCodec.LONG, name).set(row).data.writeZigzag(((Number) value).longValue());
+            } else if (value instanceof Number) {
+                column(kind, ArchiveCodec.DOUBLE, name).set(row).data
+                        .writeLong(Double.doubleToRawLongBits(((Number) value).doubleValue()));
+            } else if (value instanceof String) {
+                column(kind, ArchiveCodec.STRING, name).set(row).data.writeString((String) value);
+            } else {
+                column(kind, ArchiveCodec.JSON, name).set(row).data.writeString(JsonCodecs.gson().toJson(value));
+            }
+        }
+
+        private Column column(byte kind, byte type, String name) {
+            Map<String, Column> byName = columnsByKindType.get(kind * ArchiveCodec.TYPES + type);
+            Column column = byName.get(name);
+            if (column == null) {
+                column = new Column(kind, type, name, times.length);
+                byName.put(name, column);
+                columns.add(column);
+            }
+            return column;
+        }
+    }
+
+    /**
+     * Values of one field: bitmap of the rows having a value, and the encoded values.
+     */
+    private static final class Column {
+        private final byte kind;
+        private final byte type;
+        private final String name;
+        private final long[] presence;
+        private final ArchiveCodec.Sink data = new ArchiveCodec.Sink(256);
+
+        Column(byte kind, byte type, String name, int capacity) {
+            this.kind = kind;
+            this.type = type;
+            this.name = name;
+            this.presence = new long[(capacity + 63) / 64];
+        }
+
+        Column set(int row) {
+            presence[row >> 6] |= 1L << (row & 63);
+            return this;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MessageArchive{dir=" + dir + ", " + summary() + '}';
+    }
+}
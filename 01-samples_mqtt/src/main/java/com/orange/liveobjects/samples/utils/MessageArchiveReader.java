@@ -0,0 +1,386 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import com.google.gson.stream.JsonReader;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads back the messages of a {@link MessageArchive} directory.
+ * <p>
+ * A scan selects a time range, optionally a single stream and a subset of the value fields.
+ * Blocks are skipped from their header alone when their time range does not overlap, or when
+ * the stream is not in their dictionary; in the other blocks, only the time and stream columns
+ * and the selected columns are read and inflated. A segment ends at the first incomplete or
+ * corrupted block (e.g. the tail of a segment being written when the process stopped): the
+ * scan goes on with the next segment.
+ * <p>
+ * Instances are not thread-safe (the counters are updated by each scan).
+ */
+public class MessageArchiveReader implements Closeable {
+
+    /**
+     * Receives the messages of a scan, in the order they were appended.
+     */
+    public interface Visitor {
+        void visit(ArchivedMessage message);
+    }
+
+    private final File dir;
+    private final CRC32 crc = new CRC32();
+    private final Inflater inflater = new Inflater();
+    private final ByteBuffer frame = ByteBuffer.allocate(ArchiveCodec.FRAME_HEADER_SIZE);
+
+    private long blocksRead;
+    private long blocksSkipped;
+    private long blocksCorrupted;
+    private long columnsInflated;
+    private long bytesRead;
+
+    public MessageArchiveReader(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * @param streamId   stream to read, or null for all streams
+     * @param fromMillis start of the time range (inclusive), in ms since the epoch
+     * @param toMillis   end of the time range (exclusive)
+     * @param fields     value fields to read, or null to read all the columns (model, values,
+     *                   tags, location and metadata); with a set of fields, only those values
+     *                   are read
+     * @return number of messages visited
+     */
+    public long scan(String streamId, long fromMillis, long toMillis, Collection<String> fields, Visitor visitor)
+            throws IOException {
+        long count = 0;
+        for (File segment : MessageArchive.segments(dir)) {
+            FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.READ);
+            try {
+                long size = channel.size();
+                long pos = 0;
+                while (pos + ArchiveCodec.FRAME_HEADER_SIZE <= size) {
+                    frame.clear();
+                    readFully(channel, frame, pos);
+                    frame.flip();
+                    int magic = frame.getInt();
+                    int headerLength = frame.getInt();
+                    int bodyLength = frame.getInt();
+                    int headerCrc = frame.getInt();
+                    long end = pos + ArchiveCodec.FRAME_HEADER_SIZE + (long) headerLength + bodyLength;
+                    if (magic != ArchiveCodec.MAGIC || headerLength < 0 || bodyLength < 0 || end > size) {
+                        break;
+                    }
+                    byte[] header = new byte[headerLength];
+                    readFully(channel, ByteBuffer.wrap(header), pos + ArchiveCodec.FRAME_HEADER_SIZE);
+                    crc.reset();
+                    crc.update(header, 0, headerLength);
+                    if ((int) crc.getValue() != headerCrc) {
+                        break;
+                    }
+                    long visited = scanBlock(channel, header, pos + ArchiveCodec.FRAME_HEADER_SIZE + headerLength,
+                            streamId, fromMillis, toMillis, fields, visitor);
+                    if (visited < 0) {
+                        blocksCorrupted++;
+                        break;
+                    }
+                    count += visited;
+                    pos = end;
+                }
+            } finally {
+                channel.close();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return blocks whose columns were read, by all the scans
+     */
+    public long getBlocksRead() {
+        return blocksRead;
+    }
+
+    /**
+     * @return blocks skipped from their header, by all the scans
+     */
+    public long getBlocksSkipped() {
+        return blocksSkipped;
+    }
+
+    /**
+     * @return blocks which ended their segment because of a corrupted column, by all the scans
+     */
+    public long getBlocksCorrupted() {
+        return blocksCorrupted;
+    }
+
+    public long getColumnsInflated() {
+        return columnsInflated;
+    }
+
+    /**
+     * @return compressed column bytes read, by all the scans
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Releases the native memory of the inflater; the reader cannot be used anymore.
+     */
+    public void close() {
+        inflater.end();
+    }
+
+    /**
+     * @return messages visited, or -1 if the block is corrupted (no message visited)
+     */
+    private long scanBlock(FileChannel channel, byte[] header, long bodyPosition, String streamId, long fromMillis,
+                           long toMillis, Collection<String> fields, Visitor visitor) throws IOException {
+        ArchiveCodec.Source in = new ArchiveCodec.Source(header, 0);
+        long minTime = in.readLong();
+        long maxTime = in.readLong();
+        int rows = (int) in.readVarint();
+        if (maxTime < fromMillis || minTime >= toMillis) {
+            blocksSkipped++;
+            return 0;
+        }
+        int streamCount = (int) in.readVarint();
+        String[] streamIds = new String[streamCount];
+        int target = -1;
+        for (int i = 0; i < streamCount; i++) {
+            streamIds[i] = in.readString();
+            if (streamIds[i].equals(streamId)) {
+                target = i;
+            }
+        }
+        if (streamId != null && target < 0) {
+            blocksSkipped++;
+            return 0;
+        }
+        blocksRead++;
+
+        int columnCount = (int) in.readVarint();
+        ArchiveCodec.Source times = null;
+        ArchiveCodec.Source streams = null;
+        List<ColumnReader> columns = new ArrayList<ColumnReader>();
+        long offset = bodyPosition;
+        for (int i = 0; i < columnCount; i++) {
+            byte kind = (byte) in.readByte();
+            byte type = (byte) in.readByte();
+            String name = in.readString();
+            int rawLength = (int) in.readVarint();
+            int compressedLength = (int) in.readVarint();
+            int columnCrc = in.readInt();
+            boolean needed = kind == ArchiveCodec.TIME || kind == ArchiveCodec.STREAM
+                    || fields == null || kind == ArchiveCodec.VALUE && fields.contains(name);
+            if (needed) {
+                byte[] raw = inflate(channel, offset, compressedLength, rawLength, columnCrc);
+                if (raw == null) {
+                    return -1;
+                }
+                if (kind == ArchiveCodec.TIME) {
+                    times = new ArchiveCodec.Source(raw, 0);
+                } else if (kind == ArchiveCodec.STREAM) {
+                    streams = new ArchiveCodec.Source(raw, 0);
+                } else {
+                    columns.add(new ColumnReader(kind, type, name, raw, rows));
+                }
+            }
+            offset += compressedLength;
+        }
+        if (times == null || streams == null) {
+            return -1;
+        }
+
+        long count = 0;
+        long time = minTime;
+        for (int row = 0; row < rows; row++) {
+            time += times.readZigzag();
+            int stream = (int) streams.readVarint();
+            boolean selected = (target < 0 || stream == target) && time >= fromMillis && time < toMillis;
+            ArchivedMessage message = null;
+            if (selected) {
+                message = new ArchivedMessage();
+                message.time = time;
+                message.streamId = streamIds[stream];
+            }
+            for (ColumnReader column : columns) {
+                if (column.isPresent(row)) {
+                    if (selected) {
+                        column.readInto(message);
+                    } else {
+                        column.skip();
+                    }
+                }
+            }
+            if (selected) {
+                visitor.visit(message);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the raw column, or null if corrupted or truncated
+     */
+    private byte[] inflate(FileChannel channel, long position, int compressedLength, int rawLength, int expectedCrc)
+            throws IOException {
+        byte[] compressed = new byte[compressedLength];
+        readFully(channel, ByteBuffer.wrap(compressed), position);
+        crc.reset();
+        crc.update(compressed, 0, compressedLength);
+        if ((int) crc.getValue() != expectedCrc) {
+            return null;
+        }
+        byte[] raw = new byte[rawLength];
+        inflater.reset();
+        inflater.setInput(compressed);
+        try {
+            int length = 0;
+            while (length < rawLength && !inflater.finished()) {
+                int n = inflater.inflate(raw, length, rawLength - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += n;
+            }
+            if (length != rawLength) {
+                return null;
+            }
+        } catch (DataFormatException e) {
+            return null;
+        }
+        columnsInflated++;
+        bytesRead += compressedLength;
+        return raw;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of segment");
+            }
+            position += n;
+        }
+    }
+
+    /**
+     * Cursor over a value column: presence bitmap then the values of the present rows.
+     */
+    private static final class ColumnReader {
+        private final byte kind;
+        private final byte type;
+        private final String name;
+        private final byte[] raw;
+        private final ArchiveCodec.Source values;
+
+        ColumnReader(byte kind, byte type, String name, byte[] raw, int rows) {
+            this.kind = kind;
+            this.type = type;
+            this.name = name;
+            this.raw = raw;
+            this.values = new ArchiveCodec.Source(raw, (rows + 7) / 8);
+        }
+
+        boolean isPresent(int row) {
+            return (raw[row >> 3] & (1 << (row & 7))) != 0;
+        }
+
+        void skip() {
+            switch (type) {
+                case ArchiveCodec.DOUBLE:
+                    values.pos += 8;
+                    break;
+                case ArchiveCodec.LONG:
+                    values.readVarint();
+                    break;
+                case ArchiveCodec.BOOLEAN:
+                    values.pos++;
+                    break;
+                case ArchiveCodec.STRING_LIST:
+                    for (int i = (int) values.readVarint(); i > 0; i--) {
+                        values.skipString();
+                    }
+                    break;
+                default:
+                    values.skipString();
+            }
+        }
+
+        void readInto(ArchivedMessage message) throws IOException {
+            Object value;
+            switch (type) {
+                case ArchiveCodec.DOUBLE:
+                    value = Double.longBitsToDouble(values.readLong());
+                    break;
+                case ArchiveCodec.LONG:
+                    value = values.readZigzag();
+                    break;
+                case ArchiveCodec.BOOLEAN:
+                    value = values.readByte() != 0;
+                    break;
+                case ArchiveCodec.STRING_LIST:
+                    List<String> list = new ArrayList<String>();
+                    for (int i = (int) values.readVarint(); i > 0; i--) {
+                        list.add(values.readString());
+                    }
+                    value = list;
+                    break;
+                case ArchiveCodec.JSON:
+                    value = JsonCodecs.readValue(new JsonReader(new StringReader(values.readString())));
+                    break;
+                default:
+                    value = values.readString();
+            }
+            switch (kind) {
+                case ArchiveCodec.MODEL:
+                    message.model = (String) value;
+                    break;
+                case ArchiveCodec.TAGS:
+                    @SuppressWarnings("unchecked")
+                    List<String> tags = (List<String>) value;
+                    message.tags = tags;
+                    break;
+                case ArchiveCodec.LOCATION:
+                    if (message.loc == null) {
+                        message.loc = new Double[2];
+                    }
+                    message.loc["lat".equals(name) ? 0 : 1] = ((Number) value).doubleValue();
+                    break;
+                case ArchiveCodec.METADATA:
+                    if (message.metadata == null) {
+                        message.metadata = new LinkedHashMap<String, Object>();
+                    }
+                    message.metadata.put(name, value);
+                    break;
+                default:
+                    if (message.values == null) {
+                        message.values = new LinkedHashMap<String, Object>();
+                    }
+                    message.values.put(name, value);
+            }
+        }
+    }
+}
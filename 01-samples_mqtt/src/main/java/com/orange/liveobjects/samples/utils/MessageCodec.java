@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+/**
+ * Wire format of the messages of this package ({@link DeviceData}, {@link DeviceConfig},
+ * {@link DeviceCommand}, ...): converts them to and from MQTT payloads.
+ * <p>
+ * Implementations are thread-safe. The built-in ones ({@link MessageCodecs#JSON},
+ * {@link MessageCodecs#CBOR}) use the adapters of {@link JsonCodecs}, so that both formats
+ * carry the same fields; others can be plugged in as services (see {@link MessageCodecs#forName}).
+ */
+public interface MessageCodec {
+
+    /**
+     * @return short name of the format, e.g. "json"
+     */
+    String getName();
+
+    /**
+     * @return MQTT payload of the message
+     */
+    byte[] encode(Object message);
+
+    /**
+     * @throws IllegalArgumentException if the payload is not a valid encoding of the type
+     */
+    <T> T decode(byte[] payload, Class<T> type);
+
+}
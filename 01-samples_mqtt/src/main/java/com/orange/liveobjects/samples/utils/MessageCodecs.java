@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import java.util.ServiceLoader;
+
+/**
+ * Registry of the {@link MessageCodec}s.
+ * <p>
+ * Besides the built-in codecs, implementations listed in
+ * "META-INF/services/com.orange.liveobjects.samples.utils.MessageCodec" on the classpath are
+ * found by {@link #forName}.
+ */
+public final class MessageCodecs {
+
+    /**
+     * UTF-8 JSON, the Live Objects format.
+     */
+    public static final MessageCodec JSON = new JsonMessageCodec();
+
+    /**
+     * CBOR, see {@link CborMessageCodec}.
+     */
+    public static final MessageCodec CBOR = new CborMessageCodec();
+
+    private MessageCodecs() {
+    }
+
+    /**
+     * @param name e.g. "json", "cbor"
+     * @throws IllegalArgumentException if no codec has this name
+     */
+    public static MessageCodec forName(String name) {
+        if (JSON.getName().equals(name)) {
+            return JSON;
+        }
+        if (CBOR.getName().equals(name)) {
+            return CBOR;
+        }
+        for (MessageCodec codec : ServiceLoader.load(MessageCodec.class)) {
+            if (codec.getName().equals(name)) {
+                return codec;
+            }
+        }
+        throw new IllegalArgumentException("Unknown codec " + name);
+    }
+
+    /**
+     * Tells the built-in formats apart: a JSON text starts with an ASCII character, a CBOR
+     * array or map with a byte between 0x80 and 0xBF.
+     *
+     * @return codec of a payload holding an object or an array
+     */
+    public static MessageCodec detect(byte[] payload) {
+        return payload.length > 0 && (payload[0] & 0xC0) == 0x80 ? CBOR : JSON;
+    }
+
+}
@@ -0,0 +1,20 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * Application processing of a received message, run by a worker thread rather than the
+ * Paho callback thread.
+ */
+public interface MessageHandler {
+
+    void handle(String topic, MqttMessage message) throws Exception;
+
+}
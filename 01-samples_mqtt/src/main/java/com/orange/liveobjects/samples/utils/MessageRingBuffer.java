@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hand-off of received messages from the Paho callback thread to processing threads,
+ * through a preallocated ring of slots (Disruptor style, single producer).
+ * <p>
+ * {@link #publish} copies the topic and the payload into the next free slot and returns:
+ * the callback thread does not decode nor handle anything. Each slot then goes through the
+ * {@link Stage}s in order, each stage running on its own thread (e.g. decoding, then
+ * handling); a stage may leave a result in the slot for the next ones. A slot is reused once
+ * the last stage is done with it; when the ring is full, {@link #publish} either drops the
+ * message or waits, depending on the {@link FullPolicy}.
+ * <p>
+ * Threads waiting for messages (stages) or for room (producer) behave according to the
+ * {@link WaitStrategy}: the more they spin, the lower the latency and the higher the CPU use.
+ */
+public class MessageRingBuffer {
+
+    /**
+     * How threads wait for the ring to progress.
+     */
+    public enum WaitStrategy {
+        /** spin on the CPU: lowest latency, one core per waiting thread */
+        BUSY_SPIN,
+        /** spin a little, then yield the CPU to other threads */
+        YIELDING,
+        /** spin, yield, then sleep ~0.1 ms between checks */
+        SLEEPING,
+        /** wait on a lock until signalled: lowest CPU use, highest latency */
+        BLOCKING
+    }
+
+    /**
+     * What {@link #publish} does when all the slots are still in use.
+     */
+    public enum FullPolicy {
+        /** drop the message (counted in {@link #getDroppedCount()}), the callback thread never waits */
+        DROP,
+        /** wait for a slot, slowing down the reception of messages */
+        BLOCK
+    }
+
+    /**
+     * A processing step; called in sequence order from the thread of the stage.
+     */
+    public interface Stage {
+        void onMessage(Slot slot) throws Exception;
+    }
+
+    /**
+     * Preallocated entry of the ring, overwritten for each message.
+     */
+    public static final class Slot {
+        private String topic;
+        private byte[] payload;
+        private int length;
+        private int qos;
+        private Object attachment;
+        private long sequence;
+
+        Slot(int payloadCapacity) {
+            this.payload = new byte[payloadCapacity];
+        }
+
+        public String getTopic() {
+            return topic;
+        }
+
+        /**
+         * @return the payload buffer, valid from offset 0 to {@link #getLength()}
+         */
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public int getQos() {
+            return qos;
+        }
+
+        /**
+         * @return the value set by a previous stage (e.g. the decoded message), null by default
+         */
+        public Object getAttachment() {
+            return attachment;
+        }
+
+        public void setAttachment(Object attachment) {
+            this.attachment = attachment;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+    }
+
+    /**
+     * Sequence padded against false sharing with the neighbouring sequences.
+     */
+    @SuppressWarnings("unused")
+    private static final class Sequence extends AtomicLong {
+        private static final long serialVersionUID = 1L;
+
+        long p1, p2, p3, p4, p5, p6, p7;
+
+        Sequence() {
+            super(-1);
+        }
+    }
+
+    private final Slot[] slots;
+    private final int mask;
+    private final WaitStrategy waitStrategy;
+    private final FullPolicy fullPolicy;
+
+    // last published sequence
+    private final Sequence cursor = new Sequence();
+    // last sequence processed by each stage
+    private final Sequence[] stageSequences;
+    private final Stage[] stages;
+    private final Thread[] threads;
+    private volatile boolean running = true;
+
+    // single producer: plain fields
+    private long nextSequence;
+    private long cachedGate = -1;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition progressed = lock.newCondition();
+
+    /**
+     * @param capacity        number of slots, rounded up to a power of 2
+     * @param payloadCapacity initial size of the payload buffer of each slot (grown for larger messages)
+     * @param stages          processing steps, in order
+     */
+    public MessageRingBuffer(int capacity, int payloadCapacity, WaitStrategy waitStrategy, FullPolicy fullPolicy,
+                             Stage... stages) {
+        if (capacity < 1 || stages.length == 0) {
+            throw new IllegalArgumentException("capacity must be >= 1 and at least one stage is needed");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot(payloadCapacity);
+        }
+        this.mask = size - 1;
+        this.waitStrategy = waitStrategy;
+        this.fullPolicy = fullPolicy;
+        this.stages = stages.clone();
+        this.stageSequences = new Sequence[stages.length];
+        this.threads = new Thread[stages.length];
+        for (int i = 0; i < stages.length; i++) {
+            stageSequences[i] = new Sequence();
+        }
+        for (int i = 0; i < stages.length; i++) {
+            final int stage = i;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    runStage(stage);
+                }
+            }, "ring-stage-" + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+    /**
+     * Copies a message into the ring. Must always be called from the same thread (the Paho
+     * callback thread).
+     *
+     * @return false if the message was dropped (ring full with {@link FullPolicy#DROP}, or shut down)
+     */
+    public boolean publish(String topic, MqttMessage message) throws InterruptedException {
+        byte[] payload = message.getPayload();
+        return publish(topic, payload, 0, payload.length, message.getQos());
+    }
+
+    public boolean publish(String topic, byte[] payload, int offset, int length, int qos) throws InterruptedException {
+        if (!running) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        long sequence = nextSequence;
+        long wrapPoint = sequence - slots.length;
+        if (wrapPoint > cachedGate) {
+            Sequence gate = stageSequences[stages.length - 1];
+            cachedGate = gate.get();
+            if (wrapPoint > cachedGate) {
+                if (fullPolicy == FullPolicy.DROP) {
+                    dropped.incrementAndGet();
+                    return false;
+                }
+                cachedGate = waitFor(wrapPoint, gate);
+                if (wrapPoint > cachedGate) {
+                    // shut down while waiting
+                    dropped.incrementAndGet();
+                    return false;
+                }
+            }
+        }
+        Slot slot = slots[(int) sequence & mask];
+        if (slot.payload.length < length) {
+            slot.payload = new byte[length];
+        }
+        System.arraycopy(payload, offset, slot.payload, 0, length);
+        slot.topic = topic;
+        slot.length = length;
+        slot.qos = qos;
+        slot.attachment = null;
+        slot.sequence = sequence;
+        nextSequence = sequence + 1;
+        cursor.set(sequence);
+        signal();
+        return true;
+    }
+
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    public long getPublishedCount() {
+        return cursor.get() + 1;
+    }
+
+    /**
+     * @return messages published but not yet through all the stages
+     */
+    public long getBacklog() {
+        return cursor.get() - stageSequences[stages.length - 1].get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return slots on which a stage threw an exception (the slot then goes on to the next stage)
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * Stops accepting messages and waits for the published ones to go through all the stages.
+     *
+     * @return true if the ring was drained in time
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        running = false;
+        signal();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Thread thread : threads) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining > 0) {
+                TimeUnit.NANOSECONDS.timedJoin(thread, remaining);
+            }
+        }
+        boolean drained = true;
+        for (Thread thread : threads) {
+            if (thread.isAlive()) {
+                thread.interrupt();
+                drained = false;
+            }
+        }
+        return drained;
+    }
+
+    private void runStage(int index) {
+        Stage stage = stages[index];
+        Sequence own = stageSequences[index];
+        Sequence upstream = index == 0 ? cursor : stageSequences[index - 1];
+        long next = own.get() + 1;
+        try {
+            while (true) {
+                long available = upstream.get();
+                if (available < next) {
+                    if (!running) {
+                        // done once the upstream stage is done and everything it passed on is processed
+                        boolean upstreamDone = index == 0 || !threads[index - 1].isAlive();
+                        if (upstreamDone && upstream.get() < next) {
+                            return;
+                        }
+                        Thread.yield();
+                        continue;
+                    }
+                    available = waitFor(next, upstream);
+                    if (available < next) {
+                        continue;
+                    }
+                }
+                // process the whole available batch before publishing progress
+                for (; next <= available; next++) {
+                    try {
+                        stage.onMessage(slots[(int) next & mask]);
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                        System.out.println("Stage " + index + " failed on message " + next + ": " + e);
+                    }
+                }
+                own.set(available);
+                signal();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits until the sequence reaches the given value, or the ring is shut down.
+     *
+     * @return the current value of the sequence
+     */
+    private long waitFor(long value, Sequence sequence) throws InterruptedException {
+        int counter = 0;
+        long current;
+        while ((current = sequence.get()) < value && running) {
+            switch (waitStrategy) {
+                case BUSY_SPIN:
+                    break;
+                case YIELDING:
+                    if (++counter > 100) {
+                        Thread.yield();
+                    }
+                    break;
+                case SLEEPING:
+                    if (++counter > 200) {
+                        LockSupport.parkNanos(100000L);
+                    } else if (counter > 100) {
+                        Thread.yield();
+                    }
+                    break;
+                default:
+                    lock.lockInterruptibly();
+                    try {
+                        if (sequence.get() < value && running) {
+                            // timed: a signal may be missed between the check and the wait
+                            progressed.await(1, TimeUnit.MILLISECONDS);
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        return current;
+    }
+
+    private void signal() {
+        if (waitStrategy == WaitStrategy.BLOCKING) {
+            lock.lock();
+            try {
+                progressed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+}
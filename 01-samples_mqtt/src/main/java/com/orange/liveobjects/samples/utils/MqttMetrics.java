@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of an MQTT client: messages and bytes received and
+ * published, connection losses, reconnections and errors, publish latency (until
+ * {@code deliveryComplete}), message handling time and device command round trip (from
+ * reception of a command to publication of its response, by "cid").
+ * Clients connected through a {@link ConnectionManager} also report their reconnection
+ * time (outage duration), attempts, sessions resumed or lost, and an estimate of the
+ * messages lost with the sessions.
+ * <p>
+ * Recording takes no lock: counters are {@link LongAdder}s, histograms are
+ * {@link LatencyHistogram}s and pending commands are kept in a fixed lock-free table.
+ * Values are read (pulled) through the getters, {@link #getSummary()} or JMX once
+ * {@link #register registered}. Callbacks are instrumented by {@link InstrumentedMqttCallback}.
+ */
+public class MqttMetrics implements MqttMetricsMBean {
+
+    // pending commands table; a command colliding with a pending one overwrites it
+    private static final int COMMAND_SLOTS = 1024;
+
+    private final LongAdder messagesReceived = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder messagesPublished = new LongAdder();
+    private final LongAdder bytesPublished = new LongAdder();
+    private final LongAdder deliveriesCompleted = new LongAdder();
+    private final LongAdder connectionsLost = new LongAdder();
+    private final LongAdder reconnects = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder reconnectAttempts = new LongAdder();
+    private final LongAdder sessionsResumed = new LongAdder();
+    private final LongAdder sessionsLost = new LongAdder();
+    private final LongAdder estimatedLostMessages = new LongAdder();
+
+    private final LatencyHistogram publishLatency = new LatencyHistogram();
+    private final LatencyHistogram handlingTime = new LatencyHistogram();
+    private final LatencyHistogram commandRoundTrip = new LatencyHistogram();
+    private final LatencyHistogram reconnectTime = new LatencyHistogram();
+
+    private final AtomicLongArray commandIds = new AtomicLongArray(COMMAND_SLOTS);
+    private final AtomicLongArray commandStarts = new AtomicLongArray(COMMAND_SLOTS);
+
+    public MqttMetrics() {
+        // no command pending: a cid of 0 must not match an unused slot
+        for (int i = 0; i < COMMAND_SLOTS; i++) {
+            commandIds.set(i, Long.MIN_VALUE);
+        }
+    }
+
+    /**
+     * Registers these metrics in the platform MBean server, under
+     * "com.orange.liveobjects.samples:type=MqttMetrics,name=&lt;name&gt;".
+     */
+    public void register(String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("com.orange.liveobjects.samples:type=MqttMetrics,name=" + ObjectName.quote(name)));
+        } catch (JMException e) {
+            System.out.println("Metrics not registered in JMX: " + e);
+        }
+    }
+
+    // ******************
+    // *** recording  ***
+    // ******************
+
+    /**
+     * Publishes with a blocking client, the publish latency being the duration of the call
+     * (until the broker acknowledgement at QoS 1).
+     */
+    public void publish(MqttClient client, String topic, byte[] payload, int qos, boolean retained) throws MqttException {
+        long start = System.nanoTime();
+        try {
+            client.publish(topic, payload, qos, retained);
+        } catch (MqttException e) {
+            errors.increment();
+            throw e;
+        }
+        publishLatency.record(System.nanoTime() - start);
+        messagesPublished.increment();
+        bytesPublished.add(payload.length);
+    }
+
+    /**
+     * Publishes with an asynchronous client; the publish latency is recorded by
+     * {@link InstrumentedMqttCallback#deliveryComplete} (the start time is the token user context).
+     */
+    public IMqttDeliveryToken publish(MqttAsyncClient client, String topic, MqttMessage message) throws MqttException {
+        IMqttDeliveryToken token;
+        try {
+            token = client.publish(topic, message, System.nanoTime(), null);
+        } catch (MqttException e) {
+            errors.increment();
+            throw e;
+        }
+        messagesPublished.increment();
+        bytesPublished.add(message.getPayload().length);
+        return token;
+    }
+
+    void messageArrived(int bytes, long handlingNanos) {
+        messagesReceived.increment();
+        bytesReceived.add(bytes);
+        handlingTime.record(handlingNanos);
+    }
+
+    void deliveryComplete(IMqttDeliveryToken token) {
+        deliveriesCompleted.increment();
+        Object context = token.getUserContext();
+        if (context instanceof Long) {
+            publishLatency.record(System.nanoTime() - (Long) context);
+        }
+    }
+
+    void connectionLost() {
+        connectionsLost.increment();
+    }
+
+    void reconnected() {
+        reconnects.increment();
+    }
+
+    public void error() {
+        errors.increment();
+    }
+
+    void reconnectAttempt() {
+        reconnectAttempts.increment();
+    }
+
+    /**
+     * @param outageNanos time from the connection loss to the new connection
+     * @param lostMessages estimate of the messages lost with the session (0 if resumed)
+     */
+    void reconnected(long outageNanos, boolean sessionPresent, long lostMessages) {
+        reconnectTime.record(outageNanos);
+        if (sessionPresent) {
+            sessionsResumed.increment();
+        } else {
+            sessionsLost.increment();
+            estimatedLostMessages.add(lostMessages);
+        }
+    }
+
+    /**
+     * Marks the reception of a device command.
+     */
+    public void commandReceived(long cid) {
+        int slot = slotOf(cid);
+        // the slot is released while its start is updated, so that no response pairs it with another id
+        commandIds.set(slot, Long.MIN_VALUE);
+        commandStarts.set(slot, System.nanoTime());
+        commandIds.set(slot, cid);
+    }
+
+    /**
+     * Marks the publication of the response of a device command, recording its round trip.
+     */
+    public void commandResponded(long cid) {
+        int slot = slotOf(cid);
+        if (cid != Long.MIN_VALUE && commandIds.compareAndSet(slot, cid, Long.MIN_VALUE)) {
+            commandRoundTrip.record(System.nanoTime() - commandStarts.get(slot));
+        }
+    }
+
+    private static int slotOf(long cid) {
+        long h = cid * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 54) & (COMMAND_SLOTS - 1);
+    }
+
+    // ******************
+    // *** reading    ***
+    // ******************
+
+    public long getMessagesReceived() {
+        return messagesReceived.sum();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    public long getMessagesPublished() {
+        return messagesPublished.sum();
+    }
+
+    public long getBytesPublished() {
+        return bytesPublished.sum();
+    }
+
+    public long getDeliveriesCompleted() {
+        return deliveriesCompleted.sum();
+    }
+
+    public long getConnectionsLost() {
+        return connectionsLost.sum();
+    }
+
+    public long getReconnects() {
+        return reconnects.sum();
+    }
+
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    public double getPublishLatencyP50() {
+        return publishLatency.getPercentile(50) / 1e6;
+    }
+
+    public double getPublishLatencyP99() {
+        return publishLatency.getPercentile(99) / 1e6;
+    }
+
+    public double getPublishLatencyMax() {
+        return publishLatency.getMax() / 1e6;
+    }
+
+    public double getHandlingTimeP50() {
+        return handlingTime.getPercentile(50) / 1e6;
+    }
+
+    public double getHandlingTimeP99() {
+        return handlingTime.getPercentile(99) / 1e6;
+    }
+
+    public double getHandlingTimeMax() {
+        return handlingTime.getMax() / 1e6;
+    }
+
+    public long getCommandsCompleted() {
+        return commandRoundTrip.getCount();
+    }
+
+    public double getCommandRoundTripP50() {
+        return commandRoundTrip.getPercentile(50) / 1e6;
+    }
+
+    public double getCommandRoundTripP99() {
+        return commandRoundTrip.getPercentile(99) / 1e6;
+    }
+
+    public double getCommandRoundTripMax() {
+        return commandRoundTrip.getMax() / 1e6;
+    }
+
+    public long getReconnectAttempts() {
+        return reconnectAttempts.sum();
+    }
+
+    public long getSessionsResumed() {
+        return sessionsResumed.sum();
+    }
+
+    public long getSessionsLost() {
+        return sessionsLost.sum();
+    }
+
+    public long getEstimatedLostMessages() {
+        return estimatedLostMessages.sum();
+    }
+
+    public double getReconnectTimeP50() {
+        return reconnectTime.getPercentile(50) / 1e6;
+    }
+
+    public double getReconnectTimeP99() {
+        return reconnectTime.getPercentile(99) / 1e6;
+    }
+
+    public double getReconnectTimeMax() {
+        return reconnectTime.getMax() / 1e6;
+    }
+
+    public LatencyHistogram getPublishLatency() {
+        return publishLatency;
+    }
+
+    public LatencyHistogram getHandlingTime() {
+        return handlingTime;
+    }
+
+    public LatencyHistogram getCommandRoundTrip() {
+        return commandRoundTrip;
+    }
+
+    public LatencyHistogram getReconnectTime() {
+        return reconnectTime;
+    }
+
+    public String getSummary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("received=").append(getMessagesReceived()).append(" (").append(getBytesReceived()).append(" B)")
+                .append(" published=").append(getMessagesPublished()).append(" (").append(getBytesPublished()).append(" B)")
+                .append(" delivered=").append(getDeliveriesCompleted())
+                .append(" connectionsLost=").append(getConnectionsLost())
+                .append(" reconnects=").append(getReconnects())
+                .append(" errors=").append(getErrors());
+        if (publishLatency.getCount() > 0) {
+            sb.append("\n  publish latency: ").append(publishLatency.summary());
+        }
+        if (handlingTime.getCount() > 0) {
+            sb.append("\n  handling time: ").append(handlingTime.summary());
+        }
+        if (commandRoundTrip.getCount() > 0) {
+            sb.append("\n  command round trip: ").append(commandRoundTrip.summary());
+        }
+        if (reconnectTime.getCount() > 0) {
+            sb.append("\n  reconnect time: ").append(reconnectTime.summary())
+                    .append(" attempts=").append(getReconnectAttempts())
+                    .append(" sessionsResumed=").append(getSessionsResumed())
+                    .append(" sessionsLost=").append(getSessionsLost())
+                    .append(" estimatedLostMessages=").append(getEstimatedLostMessages());
+        }
+        return sb.toString();
+    }
+
+    public void reset() {
+        messagesReceived.reset();
+        bytesReceived.reset();
+        messagesPublished.reset();
+        bytesPublished.reset();
+        deliveriesCompleted.reset();
+        connectionsLost.reset();
+        reconnects.reset();
+        errors.reset();
+        publishLatency.reset();
+        handlingTime.reset();
+        commandRoundTrip.reset();
+        reconnectAttempts.reset();
+        sessionsResumed.reset();
+        sessionsLost.reset();
+        estimatedLostMessages.reset();
+        reconnectTime.reset();
+    }
+
+}
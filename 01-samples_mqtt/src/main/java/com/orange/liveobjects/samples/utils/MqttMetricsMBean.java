@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+/**
+ * JMX view of {@link MqttMetrics} (durations in milliseconds).
+ */
+public interface MqttMetricsMBean {
+
+    long getMessagesReceived();
+
+    long getBytesReceived();
+
+    long getMessagesPublished();
+
+    long getBytesPublished();
+
+    long getDeliveriesCompleted();
+
+    long getConnectionsLost();
+
+    long getReconnects();
+
+    long getErrors();
+
+    double getPublishLatencyP50();
+
+    double getPublishLatencyP99();
+
+    double getPublishLatencyMax();
+
+    double getHandlingTimeP50();
+
+    double getHandlingTimeP99();
+
+    double getHandlingTimeMax();
+
+    long getCommandsCompleted();
+
+    double getCommandRoundTripP50();
+
+    double getCommandRoundTripP99();
+
+    double getCommandRoundTripMax();
+
+    long getReconnectAttempts();
+
+    long getSessionsResumed();
+
+    long getSessionsLost();
+
+    long getEstimatedLostMessages();
+
+    double getReconnectTimeP50();
+
+    double getReconnectTimeP99();
+
+    double getReconnectTimeMax();
+
+    String getSummary();
+
+    void reset();
+
+}
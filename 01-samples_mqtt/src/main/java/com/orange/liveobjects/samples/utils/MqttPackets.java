@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Minimal MQTT 3.1/3.1.1 wire format: framing of packets in {@link ByteBuffer}s and
+ * encoding of the packets used by the Live Objects samples (QoS 0 and 1 only).
+ * <p>
+ * Decoding methods read from the buffer position; encoding methods either return a
+ * complete packet or write it at the buffer position (the caller reserving the size).
+ */
+public final class MqttPackets {
+
+    public static final int CONNECT = 1;
+    public static final int CONNACK = 2;
+    public static final int PUBLISH = 3;
+    public static final int PUBACK = 4;
+    public static final int SUBSCRIBE = 8;
+    public static final int SUBACK = 9;
+    public static final int UNSUBSCRIBE = 10;
+    public static final int UNSUBACK = 11;
+    public static final int PINGREQ = 12;
+    public static final int PINGRESP = 13;
+    public static final int DISCONNECT = 14;
+
+    /** CONNACK return codes */
+    public static final int CONNACK_ACCEPTED = 0;
+    public static final int CONNACK_BAD_PROTOCOL_VERSION = 1;
+    public static final int CONNACK_IDENTIFIER_REJECTED = 2;
+    public static final int CONNACK_BAD_USERNAME_OR_PASSWORD = 4;
+
+    /** SUBACK return code of a refused subscription */
+    public static final int SUBACK_FAILURE = 0x80;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] MQTT = { 'M', 'Q', 'T', 'T' };
+
+    private MqttPackets() {
+    }
+
+    // ****************
+    // *** framing  ***
+    // ****************
+
+    /**
+     * Peeks the fixed header of the packet at the buffer position.
+     *
+     * @return total packet length (fixed header included), or -1 if the fixed header is not complete yet
+     * @throws IllegalArgumentException if the remaining length is malformed
+     */
+    public static int frameLength(ByteBuffer in) {
+        int pos = in.position();
+        int value = 0;
+        int multiplier = 1;
+        for (int i = 1; i <= 4; i++) {
+            if (pos + i >= in.limit()) {
+                return -1;
+            }
+            byte b = in.get(pos + i);
+            value += (b & 0x7F) * multiplier;
+            if ((b & 0x80) == 0) {
+                return 1 + i + value;
+            }
+            multiplier *= 128;
+        }
+        throw new IllegalArgumentException("Malformed remaining length");
+    }
+
+    /**
+     * Reads the fixed header of a complete packet.
+     *
+     * @return the first byte of the packet (type and flags); the buffer is positioned on the variable header
+     */
+    public static int readFixedHeader(ByteBuffer in) {
+        int first = in.get() & 0xFF;
+        while ((in.get() & 0x80) != 0) {
+            // skip remaining length
+        }
+        return first;
+    }
+
+    public static int packetType(int firstByte) {
+        return (firstByte >> 4) & 0x0F;
+    }
+
+    public static int remainingLengthSize(int remainingLength) {
+        if (remainingLength < 128) {
+            return 1;
+        } else if (remainingLength < 16384) {
+            return 2;
+        } else if (remainingLength < 2097152) {
+            return 3;
+        }
+        return 4;
+    }
+
+    private static void putRemainingLength(ByteBuffer out, int remainingLength) {
+        do {
+            int digit = remainingLength % 128;
+            remainingLength /= 128;
+            out.put((byte) (remainingLength > 0 ? digit | 0x80 : digit));
+        } while (remainingLength > 0);
+    }
+
+    public static String getString(ByteBuffer in) {
+        int length = in.getShort() & 0xFFFF;
+        if (length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    public static byte[] getBytes(ByteBuffer in) {
+        byte[] value = new byte[in.getShort() & 0xFFFF];
+        in.get(value);
+        return value;
+    }
+
+    private static void putBytes(ByteBuffer out, byte[] value) {
+        out.putShort((short) value.length);
+        out.put(value);
+    }
+
+    public static byte[] utf8(String value) {
+        return value.getBytes(UTF_8);
+    }
+
+    // *****************
+    // *** packets   ***
+    // *****************
+
+    public static byte[] connect(String clientId, String username, char[] password, boolean cleanSession, int keepAliveSec) {
+        byte[] id = utf8(clientId);
+        byte[] user = username == null ? null : utf8(username);
+        byte[] pass = password == null ? null : utf8(new String(password));
+        int length = 2 + MQTT.length + 1 + 1 + 2 + 2 + id.length
+                + (user == null ? 0 : 2 + user.length) + (pass == null ? 0 : 2 + pass.length);
+        ByteBuffer out = ByteBuffer.allocate(1 + remainingLengthSize(length) + length);
+        out.put((byte) (CONNECT << 4));
+        putRemainingLength(out, length);
+        putBytes(out, MQTT);
+        out.put((byte) 4); // MQTT 3.1.1
+        int flags = (cleanSession ? 0x02 : 0) | (user == null ? 0 : 0x80) | (pass == null ? 0 : 0x40);
+        out.put((byte) flags);
+        out.putShort((short) keepAliveSec);
+        putBytes(out, id);
+        if (user != null) {
+            putBytes(out, user);
+        }
+        if (pass != null) {
+            putBytes(out, pass);
+        }
+        return out.array();
+    }
+
+    public static byte[] connack(boolean sessionPresent, int returnCode) {
+        return new byte[] { (byte) (CONNACK << 4), 2, (byte) (sessionPresent ? 1 : 0), (byte) returnCode };
+    }
+
+    public static int publishSize(byte[] topic, int payloadLength, int qos) {
+        int length = 2 + topic.length + (qos > 0 ? 2 : 0) + payloadLength;
+        return 1 + remainingLengthSize(length) + length;
+    }
+
+    public static void putPublish(ByteBuffer out, byte[] topic, byte[] payload, int offset, int length,
+                                  int qos, int messageId, boolean dup) {
+        out.put((byte) ((PUBLISH << 4) | (dup ? 0x08 : 0) | (qos << 1)));
+        putRemainingLength(out, 2 + topic.length + (qos > 0 ? 2 : 0) + length);
+        putBytes(out, topic);
+        if (qos > 0) {
+            out.putShort((short) messageId);
+        }
+        out.put(payload, offset, length);
+    }
+
+    /**
+     * Writes a packet made of a message identifier only (PUBACK, UNSUBACK).
+     */
+    public static void putAck(ByteBuffer out, int type, int messageId) {
+        out.put((byte) (type << 4));
+        out.put((byte) 2);
+        out.putShort((short) messageId);
+    }
+
+    public static byte[] suback(int messageId, int[] returnCodes) {
+        int length = 2 + returnCodes.length;
+        ByteBuffer out = ByteBuffer.allocate(1 + remainingLengthSize(length) + length);
+        out.put((byte) (SUBACK << 4));
+        putRemainingLength(out, length);
+        out.putShort((short) messageId);
+        for (int returnCode : returnCodes) {
+            out.put((byte) returnCode);
+        }
+        return out.array();
+    }
+
+    public static byte[] pingreq() {
+        return new byte[] { (byte) (PINGREQ << 4), 0 };
+    }
+
+    public static byte[] pingresp() {
+        return new byte[] { (byte) (PINGRESP << 4), 0 };
+    }
+
+    public static byte[] disconnect() {
+        return new byte[] { (byte) (DISCONNECT << 4), 0 };
+    }
+
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wraps a callback to record the received messages with a {@link TrafficRecorder}, before
+ * they are handled.
+ * <p>
+ * A recording failure (e.g. disk full) is counted ({@link #getFailedCount()}) and the message
+ * is still handled: it does not break the connection.
+ */
+public class RecordingMqttCallback implements MqttCallbackExtended {
+
+    private final MqttCallback delegate;
+    private final TrafficRecorder recorder;
+    private final AtomicLong failed = new AtomicLong();
+
+    public RecordingMqttCallback(MqttCallback delegate, TrafficRecorder recorder) {
+        this.delegate = delegate;
+        this.recorder = recorder;
+    }
+
+    public void connectionLost(Throwable throwable) {
+        delegate.connectionLost(throwable);
+    }
+
+    public void messageArrived(String s, MqttMessage mqttMessage) throws Exception {
+        try {
+            recorder.record(s, mqttMessage);
+        } catch (IOException e) {
+            failed.incrementAndGet();
+        }
+        delegate.messageArrived(s, mqttMessage);
+    }
+
+    public void deliveryComplete(IMqttDeliveryToken iMqttDeliveryToken) {
+        delegate.deliveryComplete(iMqttDeliveryToken);
+    }
+
+    public void connectComplete(boolean reconnect, String serverURI) {
+        if (delegate instanceof MqttCallbackExtended) {
+            ((MqttCallbackExtended) delegate).connectComplete(reconnect, serverURI);
+        }
+    }
+
+    /**
+     * @return messages that could not be recorded
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+}
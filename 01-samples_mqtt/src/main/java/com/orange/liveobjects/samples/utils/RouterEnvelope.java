@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import com.google.gson.JsonParseException;
+
+import java.io.Reader;
+
+/**
+ * Envelope of the messages consumed from the router or a FIFO: {"payload":"&lt;message&gt;"},
+ * the stored message (e.g. a {@link DataMessage}) being a JSON-encoded string, or sometimes
+ * an inline JSON object.
+ * <p>
+ * The "payload" field is located in the raw bytes (see {@link JsonScanner}) and its
+ * content streamed, JSON string escapes being decoded on the fly, so that the message is
+ * decoded once, without building the intermediate string.
+ */
+public final class RouterEnvelope {
+
+    private static final byte[] PAYLOAD_KEY = { 'p', 'a', 'y', 'l', 'o', 'a', 'd' };
+
+    private RouterEnvelope() {
+    }
+
+    /**
+     * @return reader of the message held by the "payload" field, or null if the envelope
+     * has no such field
+     * @throws JsonParseException if the envelope is malformed
+     */
+    public static Reader payloadReader(byte[] message, int offset, int length) {
+        int end = offset + length;
+        int pos = payloadStart(message, offset, end);
+        if (pos < 0) {
+            return null;
+        }
+        if (pos < end && message[pos] == '"') {
+            // message serialized as a JSON string
+            return new JsonScanner.Utf8Reader(message, pos + 1, end, true);
+        }
+        return new JsonScanner.Utf8Reader(message, pos, end, false);
+    }
+
+    public static Reader payloadReader(byte[] message) {
+        return payloadReader(message, 0, message.length);
+    }
+
+    /**
+     * @return position of the value of the top-level "payload" field, -1 if there is none
+     * @throws JsonParseException if the envelope is malformed
+     */
+    static int payloadStart(byte[] message, int offset, int end) {
+        int pos = JsonScanner.skipWhitespace(message, offset, end, false);
+        JsonScanner.expect(message, pos++, end, '{');
+        while (true) {
+            pos = JsonScanner.skipWhitespace(message, pos, end, false);
+            if (pos >= end || message[pos] == '}') {
+                return -1;
+            }
+            JsonScanner.expect(message, pos, end, '"');
+            int keyStart = pos + 1;
+            pos = JsonScanner.skipString(message, pos, end, false);
+            boolean isPayload = JsonScanner.regionEquals(message, keyStart, pos - 1, PAYLOAD_KEY);
+            pos = JsonScanner.skipWhitespace(message, pos, end, false);
+            JsonScanner.expect(message, pos++, end, ':');
+            pos = JsonScanner.skipWhitespace(message, pos, end, false);
+            if (isPayload) {
+                return pos;
+            }
+            pos = JsonScanner.skipValue(message, pos, end, false);
+            pos = JsonScanner.skipWhitespace(message, pos, end, false);
+            if (pos < end && message[pos] == ',') {
+                pos++;
+            }
+        }
+    }
+
+}
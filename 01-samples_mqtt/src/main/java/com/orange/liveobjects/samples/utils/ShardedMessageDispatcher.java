@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Spreads received messages over N single-threaded shards, the shard being chosen from a
+ * key (stream id, device URN...): messages of the same key are handled in arrival order,
+ * messages of different keys in parallel.
+ * <p>
+ * Each shard has a bounded queue; when it is full, {@link #dispatch} blocks, which stops
+ * the Paho callback thread from reading more messages (back-pressure up to the broker).
+ * The {@link MessageHandler} is called from the shard threads.
+ */
+public class ShardedMessageDispatcher {
+
+    private static final String ROUTER_DATA_PREFIX = "router/~event/v1/data/new/";
+
+    private static final class Entry {
+        final String topic;
+        final MqttMessage message;
+
+        Entry(String topic, MqttMessage message) {
+            this.topic = topic;
+            this.message = message;
+        }
+    }
+
+    private final MessageHandler handler;
+    private final List<BlockingQueue<Entry>> queues;
+    private final Thread[] threads;
+    private final AtomicLong dispatched = new AtomicLong();
+    private final AtomicLong handled = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile boolean running = true;
+    // held (shared) by dispatch while checking running then queuing, (exclusive) by shutdown to
+    // stop: once stopped, no message is queued and the shards exit when their queue is empty
+    private final ReadWriteLock stateLock = new ReentrantReadWriteLock();
+
+    public ShardedMessageDispatcher(int shards, int queueCapacityPerShard, MessageHandler handler) {
+        if (shards < 1 || queueCapacityPerShard < 1) {
+            throw new IllegalArgumentException("shards and queueCapacityPerShard must be >= 1");
+        }
+        this.handler = handler;
+        this.queues = new ArrayList<BlockingQueue<Entry>>(shards);
+        this.threads = new Thread[shards];
+        for (int i = 0; i < shards; i++) {
+            final BlockingQueue<Entry> queue = new ArrayBlockingQueue<Entry>(queueCapacityPerShard);
+            queues.add(queue);
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    consume(queue);
+                }
+            }, "shard-" + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+    /**
+     * Key of a message received from the router: the part of the topic after the routing
+     * key prefix, i.e. the stream (device URN) it was published on.
+     */
+    public static String routerStreamKey(String topic) {
+        return topic.startsWith(ROUTER_DATA_PREFIX) ? topic.substring(ROUTER_DATA_PREFIX.length()) : topic;
+    }
+
+    /**
+     * Queues a message on the shard of the given key, waiting for room if that shard is full.
+     */
+    public void dispatch(String key, String topic, MqttMessage message) throws InterruptedException {
+        stateLock.readLock().lockInterruptibly();
+        try {
+            if (!running) {
+                throw new IllegalStateException("Dispatcher is shut down");
+            }
+            queues.get(shardOf(key)).put(new Entry(topic, message));
+            dispatched.incrementAndGet();
+        } finally {
+            stateLock.readLock().unlock();
+        }
+    }
+
+    public int shardOf(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return (h & 0x7FFFFFFF) % queues.size();
+    }
+
+    public int getShardCount() {
+        return queues.size();
+    }
+
+    public int getQueueDepth(int shard) {
+        return queues.get(shard).size();
+    }
+
+    /**
+     * @return current queue depth of every shard
+     */
+    public int[] getQueueDepths() {
+        int[] depths = new int[queues.size()];
+        for (int i = 0; i < depths.length; i++) {
+            depths[i] = queues.get(i).size();
+        }
+        return depths;
+    }
+
+    public long getDispatchedCount() {
+        return dispatched.get();
+    }
+
+    public long getHandledCount() {
+        return handled.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * Stops accepting messages (once the dispatches in progress have queued theirs) and waits
+     * for the queued ones to be handled.
+     *
+     * @return true if all the shards were drained in time
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        stateLock.writeLock().lockInterruptibly();
+        try {
+            running = false;
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Thread thread : threads) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining > 0) {
+                TimeUnit.NANOSECONDS.timedJoin(thread, remaining);
+            }
+        }
+        boolean drained = true;
+        for (Thread thread : threads) {
+            if (thread.isAlive()) {
+                thread.interrupt();
+                drained = false;
+            }
+        }
+        return drained;
+    }
+
+    private void consume(BlockingQueue<Entry> queue) {
+        try {
+            while (running || !queue.isEmpty()) {
+                Entry entry = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (entry == null) {
+                    continue;
+                }
+                try {
+                    handler.handle(entry.topic, entry.message);
+                    handled.incrementAndGet();
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                    System.out.println("Message handling failed on " + entry.topic + ": " + e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
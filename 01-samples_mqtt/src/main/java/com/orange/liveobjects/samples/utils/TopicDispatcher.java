@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Dispatches the messages received on a wide subscription (e.g.
+ * "router/~event/v1/data/new/urn/lora/#") to the {@link MessageHandler}s registered on finer
+ * topic filters (e.g. "router/~event/v1/data/new/urn/lora/0123456789ABCDEF/#"), thousands of
+ * them if needed: the handlers are found by a {@link TopicTrie}, at a cost depending on the
+ * depth of the topic and not on the number of handlers.
+ * <p>
+ * A message is handled by every handler whose filter matches its topic (once per filter), in
+ * the calling thread; if one fails, the others are still called and the first exception is
+ * thrown. Handlers may be registered and unregistered while messages are dispatched, and may
+ * dispatch other messages themselves (e.g. a handler of a gateway topic dispatching the
+ * messages it carries per device).
+ */
+public class TopicDispatcher implements MessageHandler {
+
+    private final TopicTrie<MessageHandler> trie = new TopicTrie<MessageHandler>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final MessageHandler unmatchedHandler;
+
+    // handlers of the messages being dispatched, per thread (dispatching allocates nothing): a
+    // dispatch from a handler appends its own handlers and removes only them
+    private final ThreadLocal<List<MessageHandler>> matches = new ThreadLocal<List<MessageHandler>>() {
+        protected List<MessageHandler> initialValue() {
+            return new ArrayList<MessageHandler>();
+        }
+    };
+
+    private final AtomicLong dispatched = new AtomicLong();
+    private final AtomicLong unmatched = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * @param unmatchedHandler handling of the messages matching no filter, or null to drop them
+     */
+    public TopicDispatcher(MessageHandler unmatchedHandler) {
+        this.unmatchedHandler = unmatchedHandler;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the filter is not a valid MQTT topic filter
+     */
+    public TopicDispatcher register(String filter, MessageHandler handler) {
+        lock.writeLock().lock();
+        try {
+            trie.add(filter, handler);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return this;
+    }
+
+    /**
+     * @return false if the handler was not registered on the filter
+     */
+    public boolean unregister(String filter, MessageHandler handler) {
+        lock.writeLock().lock();
+        try {
+            return trie.remove(filter, handler);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void handle(String topic, MqttMessage message) throws Exception {
+        dispatched.incrementAndGet();
+        List<MessageHandler> handlers = matches.get();
+        int start = handlers.size();
+        int end;
+        lock.readLock().lock();
+        try {
+            end = start + trie.match(topic, handlers);
+        } finally {
+            lock.readLock().unlock();
+        }
+        try {
+            if (end == start) {
+                unmatched.incrementAndGet();
+                if (unmatchedHandler != null) {
+                    unmatchedHandler.handle(topic, message);
+                }
+                return;
+            }
+            Exception failure = null;
+            for (int i = start; i < end; i++) {
+                try {
+                    handlers.get(i).handle(topic, message);
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            for (int i = handlers.size() - 1; i >= start; i--) {
+                handlers.remove(i);
+            }
+        }
+    }
+
+    /**
+     * @return the number of registrations
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return trie.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getDispatchedCount() {
+        return dispatched.get();
+    }
+
+    public long getUnmatchedCount() {
+        return unmatched.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * @return e.g. "handlers=10000 dispatched=52000 unmatched=12 failed=0"
+     */
+    public String summary() {
+        return "handlers=" + size() + " dispatched=" + dispatched.get() + " unmatched=" + unmatched.get()
+                + " failed=" + failed.get();
+    }
+
+}
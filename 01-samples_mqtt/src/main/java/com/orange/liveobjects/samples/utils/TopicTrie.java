@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Index of MQTT topic filters ('+' single level, '#' remaining levels), giving the values
+ * registered on the filters matching a topic.
+ * <p>
+ * Filters are stored as a trie of their levels: matching a topic walks its levels, following
+ * at each node the child of the same name, the '+' child and the '#' child, so that its cost
+ * depends on the depth of the topic and the number of wildcards on the way, not on the number
+ * of filters. The level names are looked up in an open addressing table by hashing the region
+ * of the topic, without substring: a match allocates nothing but the growth of the result list.
+ * <p>
+ * As in MQTT, "a/#" also matches "a", and wildcards in the first level do not match topics
+ * starting with '$'. A value registered on several matching filters is returned once per
+ * filter. Not thread-safe: see {@link TopicDispatcher} for concurrent use.
+ *
+ * @param <V> type of the registered values (e.g. handlers)
+ */
+public class TopicTrie<V> {
+
+    private static final class Node {
+        // children by level name, linear probing; '+' and '#' apart
+        String[] names = new String[4];
+        Node[] children = new Node[4];
+        int childCount;
+        Node single;
+        Node multi;
+        // values of the filters ending here
+        List<Object> values;
+
+        Node child(String topic, int start, int end) {
+            if (childCount == 0) {
+                return null;
+            }
+            int length = end - start;
+            int mask = names.length - 1;
+            for (int i = mix(hash(topic, start, end)) & mask; names[i] != null; i = (i + 1) & mask) {
+                String name = names[i];
+                if (name.length() == length && topic.regionMatches(start, name, 0, length)) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        Node addChild(String name) {
+            Node child = child(name, 0, name.length());
+            if (child != null) {
+                return child;
+            }
+            if ((childCount + 1) * 4 > names.length * 3) {
+                String[] oldNames = names;
+                Node[] oldChildren = children;
+                names = new String[oldNames.length * 2];
+                children = new Node[oldNames.length * 2];
+                for (int i = 0; i < oldNames.length; i++) {
+                    if (oldNames[i] != null) {
+                        put(oldNames[i], oldChildren[i]);
+                    }
+                }
+            }
+            child = new Node();
+            put(name, child);
+            childCount++;
+            return child;
+        }
+
+        void removeChild(String name) {
+            int mask = names.length - 1;
+            int i = mix(name.hashCode()) & mask;
+            while (!name.equals(names[i])) {
+                i = (i + 1) & mask;
+            }
+            names[i] = null;
+            children[i] = null;
+            childCount--;
+            // entries of the same cluster placed after the hole are placed again
+            for (i = (i + 1) & mask; names[i] != null; i = (i + 1) & mask) {
+                String movedName = names[i];
+                Node moved = children[i];
+                names[i] = null;
+                children[i] = null;
+                put(movedName, moved);
+            }
+        }
+
+        private void put(String name, Node child) {
+            int mask = names.length - 1;
+            int i = mix(name.hashCode()) & mask;
+            while (names[i] != null) {
+                i = (i + 1) & mask;
+            }
+            names[i] = name;
+            children[i] = child;
+        }
+
+        boolean isEmpty() {
+            return childCount == 0 && single == null && multi == null && (values == null || values.isEmpty());
+        }
+    }
+
+    private final Node root = new Node();
+    private int size;
+
+    /**
+     * Registers a value on a filter.
+     *
+     * @throws IllegalArgumentException if the filter is not a valid MQTT topic filter
+     */
+    public void add(String filter, V value) {
+        validate(filter);
+        Node node = root;
+        int start = 0;
+        while (true) {
+            int end = filter.indexOf('/', start);
+            if (end < 0) {
+                end = filter.length();
+            }
+            node = next(node, filter, start, end);
+            if (end == filter.length()) {
+                break;
+            }
+            start = end + 1;
+        }
+        if (node.values == null) {
+            node.values = new ArrayList<Object>(1);
+        }
+        node.values.add(value);
+        size++;
+    }
+
+    /**
+     * Unregisters a value from a filter (once, if it was registered several times).
+     *
+     * @return false if the value was not registered on the filter
+     */
+    public boolean remove(String filter, V value) {
+        String[] levels = levels(filter);
+        Node[] path = new Node[levels.length + 1];
+        path[0] = root;
+        for (int i = 0; i < levels.length; i++) {
+            path[i + 1] = find(path[i], levels[i]);
+            if (path[i + 1] == null) {
+                return false;
+            }
+        }
+        Node node = path[levels.length];
+        if (node.values == null || !node.values.remove(value)) {
+            return false;
+        }
+        size--;
+        // prune the nodes left without filter
+        for (int i = levels.length; i > 0 && path[i].isEmpty(); i--) {
+            Node parent = path[i - 1];
+            if ("+".equals(levels[i - 1])) {
+                parent.single = null;
+            } else if ("#".equals(levels[i - 1])) {
+                parent.multi = null;
+            } else {
+                parent.removeChild(levels[i - 1]);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the values registered on the filters matching the topic
+     */
+    public List<V> match(String topic) {
+        List<V> matches = new ArrayList<V>();
+        match(topic, matches);
+        return matches;
+    }
+
+    /**
+     * Adds to a list the values registered on the filters matching the topic, in no
+     * particular order.
+     *
+     * @return the number of values added
+     */
+    public int match(String topic, List<? super V> matches) {
+        int before = matches.size();
+        if (topic.length() > 0 && topic.charAt(0) == '$') {
+            // wildcards in the first level do not match system topics
+            int end = topic.indexOf('/');
+            Node child = root.child(topic, 0, end < 0 ? topic.length() : end);
+            if (child != null) {
+                collect(child, topic, end < 0 ? -1 : end + 1, matches);
+            }
+        } else {
+            collect(root, topic, 0, matches);
+        }
+        return matches.size() - before;
+    }
+
+    /**
+     * @return the number of registrations
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param start start of the next level of the topic, -1 past its last level
+     */
+    private static <V> void collect(Node node, String topic, int start, List<? super V> matches) {
+        if (node.multi != null) {
+            addAll(node.multi.values, matches);
+        }
+        if (start < 0) {
+            addAll(node.values, matches);
+            return;
+        }
+        int end = topic.indexOf('/', start);
+        int next = end < 0 ? -1 : end + 1;
+        if (end < 0) {
+            end = topic.length();
+        }
+        Node child = node.child(topic, start, end);
+        if (child != null) {
+            collect(child, topic, next, matches);
+        }
+        if (node.single != null) {
+            collect(node.single, topic, next, matches);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> void addAll(List<Object> values, List<? super V> matches) {
+        if (values != null) {
+            // indexed loop: no iterator, no array copy
+            for (int i = 0; i < values.size(); i++) {
+                matches.add((V) values.get(i));
+            }
+        }
+    }
+
+    private static Node next(Node node, String filter, int start, int end) {
+        if (end - start == 1 && filter.charAt(start) == '+') {
+            if (node.single == null) {
+                node.single = new Node();
+            }
+            return node.single;
+        }
+        if (end - start == 1 && filter.charAt(start) == '#') {
+            if (node.multi == null) {
+                node.multi = new Node();
+            }
+            return node.multi;
+        }
+        return node.addChild(filter.substring(start, end));
+    }
+
+    private static Node find(Node node, String level) {
+        if ("+".equals(level)) {
+            return node.single;
+        }
+        if ("#".equals(level)) {
+            return node.multi;
+        }
+        return node.child(level, 0, level.length());
+    }
+
+    private static String[] levels(String filter) {
+        // split() would drop the trailing empty levels
+        List<String> levels = new ArrayList<String>();
+        int start = 0;
+        int end;
+        while ((end = filter.indexOf('/', start)) >= 0) {
+            levels.add(filter.substring(start, end));
+            start = end + 1;
+        }
+        levels.add(filter.substring(start));
+        return levels.toArray(new String[levels.size()]);
+    }
+
+    private static void validate(String filter) {
+        if (filter.isEmpty()) {
+            throw new IllegalArgumentException("Empty topic filter");
+        }
+        for (int i = 0; i < filter.length(); i++) {
+            char c = filter.charAt(i);
+            if (c != '+' && c != '#') {
+                continue;
+            }
+            boolean alone = (i == 0 || filter.charAt(i - 1) == '/')
+                    && (i == filter.length() - 1 || filter.charAt(i + 1) == '/');
+            if (!alone || c == '#' && i != filter.length() - 1) {
+                throw new IllegalArgumentException("Invalid topic filter " + filter);
+            }
+        }
+    }
+
+    /**
+     * Same value as {@code topic.substring(start, end).hashCode()}.
+     */
+    private static int hash(String topic, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + topic.charAt(i);
+        }
+        return h;
+    }
+
+    private static int mix(int h) {
+        // level names often differ in their last characters only (e.g. devEUIs)
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * MQTT topic filter matching ('+' single level, '#' remaining levels), of a single filter.
+     */
+    public static boolean matches(String filter, String topic) {
+        int f = 0;
+        int t = 0;
+        int filterLength = filter.length();
+        int topicLength = topic.length();
+        while (f < filterLength) {
+            char c = filter.charAt(f);
+            if (c == '#') {
+                return true;
+            }
+            if (c == '+') {
+                while (t < topicLength && topic.charAt(t) != '/') {
+                    t++;
+                }
+                f++;
+            } else if (t < topicLength && topic.charAt(t) == c) {
+                f++;
+                t++;
+            } else {
+                // "a/#" also matches "a"
+                return t == topicLength && c == '/' && f + 2 == filterLength && filter.charAt(f + 1) == '#';
+            }
+        }
+        return t == topicLength;
+    }
+
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records the received messages (topic, payload, arrival time) to a compact binary log,
+ * to be replayed later by a {@link TrafficReplayer}.
+ * <p>
+ * Log format:
+ * <pre>
+ * header: int MAGIC, long start time (ms since the epoch)
+ * record: varint arrival time (ns since the previous record, or since the start),
+ *         byte flags (qos | duplicate &lt;&lt; 2 | retained &lt;&lt; 3),
+ *         varint topic code, [topic], varint payload length, payload
+ * </pre>
+ * The topic code is the index + 1 of a topic already seen, or the size of the dictionary + 1
+ * for a new topic (then added to the dictionary), or 0 for a topic written inline once the
+ * dictionary is full. Records are buffered and written when the buffer is full, on
+ * {@link #flush()} and on {@link #close()}; an incomplete last record is ignored on replay.
+ * <p>
+ * Thread-safe.
+ */
+public class TrafficRecorder implements Closeable {
+
+    static final int MAGIC = 0x4C4F5452; // "LOTR"
+    static final int HEADER_SIZE = 4 + 8;
+    static final int MAX_TOPICS = 65536;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final FileChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final Map<String, Integer> topics = new HashMap<String, Integer>();
+    private final long startNanos;
+
+    private long lastNanos;
+    private long recordedCount;
+    private long recordedBytes;
+    private boolean closed;
+
+    /**
+     * Creates the log, replacing an existing file.
+     */
+    public TrafficRecorder(File file) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.startNanos = System.nanoTime();
+        this.lastNanos = startNanos;
+        buffer.putInt(MAGIC);
+        buffer.putLong(System.currentTimeMillis());
+    }
+
+    /**
+     * Records a message arrived now.
+     */
+    public void record(String topic, MqttMessage message) throws IOException {
+        record(System.nanoTime(), topic, message);
+    }
+
+    /**
+     * @param arrivalNanos arrival time of the message, from System.nanoTime()
+     */
+    public synchronized void record(long arrivalNanos, String topic, MqttMessage message) throws IOException {
+        if (closed) {
+            throw new IOException("Recorder closed");
+        }
+        byte[] payload = message.getPayload();
+        Integer known = topics.get(topic);
+        byte[] topicBytes = known == null ? topic.getBytes(UTF_8) : null;
+        ensure(10 + 1 + 5 + (topicBytes == null ? 0 : 5 + topicBytes.length) + 5 + payload.length);
+
+        // the arrival times of concurrent callers may not be ordered
+        long delta = Math.max(0, arrivalNanos - lastNanos);
+        lastNanos += delta;
+        putVarint(delta);
+        buffer.put((byte) (message.getQos() | (message.isDuplicate() ? 4 : 0) | (message.isRetained() ? 8 : 0)));
+        if (known != null) {
+            putVarint(known + 1);
+        } else if (topics.size() < MAX_TOPICS) {
+            putVarint(topics.size() + 1);
+            topics.put(topic, topics.size());
+            putBytes(topicBytes);
+        } else {
+            putVarint(0);
+            putBytes(topicBytes);
+        }
+        putBytes(payload);
+        recordedCount++;
+        recordedBytes += payload.length;
+    }
+
+    /**
+     * Writes the buffered records to the file.
+     */
+    public synchronized void flush() throws IOException {
+        if (!closed) {
+            drain();
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            drain();
+        } finally {
+            closed = true;
+            channel.close();
+        }
+    }
+
+    public synchronized long getRecordedCount() {
+        return recordedCount;
+    }
+
+    /**
+     * @return payload bytes recorded
+     */
+    public synchronized long getRecordedBytes() {
+        return recordedBytes;
+    }
+
+    /**
+     * @return time elapsed since the start of the recording, in ns
+     */
+    public long getElapsedNanos() {
+        return System.nanoTime() - startNanos;
+    }
+
+    private void ensure(int size) throws IOException {
+        if (buffer.remaining() < size) {
+            drain();
+            if (buffer.capacity() < size) {
+                // message larger than the buffer
+                buffer = ByteBuffer.allocateDirect(size);
+            }
+        }
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void putBytes(byte[] bytes) {
+        putVarint(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private void putVarint(long v) {
+        while ((v & ~0x7FL) != 0) {
+            buffer.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        buffer.put((byte) v);
+    }
+}
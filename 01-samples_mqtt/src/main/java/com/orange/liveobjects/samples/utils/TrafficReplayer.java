@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a log of a {@link TrafficRecorder} into a callback ({@code messageArrived}), on the
+ * calling thread, and measures how fast the callback handles the messages.
+ * <p>
+ * The log is read from memory-mapped windows of up to 1 GB. The messages are delivered at
+ * the original pace ({@code speed = 1}), at a multiple of it (e.g. 10 for ten times faster),
+ * or as fast as the callback handles them ({@code speed <= 0}). When the callback cannot
+ * keep the pace, messages are delivered late, without being dropped: the report then shows
+ * the lag. Exceptions thrown by the callback are counted and the replay goes on.
+ */
+public class TrafficReplayer {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final long MAX_WINDOW = 1L << 30;
+
+    private final File file;
+
+    /**
+     * Message with the duplicate flag of the recording ({@code setDuplicate} is not public).
+     */
+    private static final class ReplayedMessage extends MqttMessage {
+        ReplayedMessage(byte[] payload, boolean duplicate) {
+            super(payload);
+            setDuplicate(duplicate);
+        }
+    }
+
+    public TrafficReplayer(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Result of a replay.
+     */
+    public static class Report {
+        private final long recordingStartMillis;
+        private final double speed;
+        private final LatencyHistogram handling = new LatencyHistogram();
+        private long messages;
+        private long payloadBytes;
+        private long errors;
+        private long recordedNanos;
+        private long elapsedNanos;
+        private long maxLagNanos;
+
+        Report(long recordingStartMillis, double speed) {
+            this.recordingStartMillis = recordingStartMillis;
+            this.speed = speed;
+        }
+
+        /**
+         * @return start of the recording, in ms since the epoch
+         */
+        public long getRecordingStartMillis() {
+            return recordingStartMillis;
+        }
+
+        public long getMessageCount() {
+            return messages;
+        }
+
+        public long getPayloadBytes() {
+            return payloadBytes;
+        }
+
+        /**
+         * @return messages whose handling threw an exception
+         */
+        public long getErrorCount() {
+            return errors;
+        }
+
+        /**
+         * @return time between the first and the last recorded messages, in ns
+         */
+        public long getRecordedNanos() {
+            return recordedNanos;
+        }
+
+        /**
+         * @return duration of the replay, in ns
+         */
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * @return largest delay of a delivery behind its schedule, in ns (0 at maximum speed)
+         */
+        public long getMaxLagNanos() {
+            return maxLagNanos;
+        }
+
+        /**
+         * @return handling time of the messages by the callback
+         */
+        public LatencyHistogram getHandling() {
+            return handling;
+        }
+
+        /**
+         * @return messages delivered per second over the replay
+         */
+        public double getThroughput() {
+            return elapsedNanos == 0 ? 0 : messages * 1e9 / elapsedNanos;
+        }
+
+        /**
+         * @return messages per second the callback would handle if it were never idle
+         */
+        public double getHandlerCapacity() {
+            double mean = handling.getMean();
+            return mean == 0 ? 0 : 1e9 / mean;
+        }
+
+        public String summary() {
+            return String.format("speed=%s messages=%d errors=%d recorded=%.1fs replayed=%.1fs "
+                            + "throughput=%.0f msg/s (%.1f MB/s) capacity=%.0f msg/s maxLag=%.1fms handling: %s",
+                    speed > 0 ? "x" + speed : "max", messages, errors, recordedNanos / 1e9, elapsedNanos / 1e9,
+                    getThroughput(), elapsedNanos == 0 ? 0 : payloadBytes * 1e3 / elapsedNanos,
+                    getHandlerCapacity(), maxLagNanos / 1e6, handling.summary());
+        }
+
+        @Override
+        public String toString() {
+            return "Report{" + summary() + '}';
+        }
+    }
+
+    /**
+     * Replays the whole log.
+     *
+     * @param speed factor applied to the original pace, or 0 to replay as fast as possible
+     */
+    public Report replay(MqttCallback callback, double speed) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            ByteBuffer in = map(channel, 0, size);
+            if (size < TrafficRecorder.HEADER_SIZE || in.getInt() != TrafficRecorder.MAGIC) {
+                throw new IOException("Not a traffic log: " + file);
+            }
+            Report report = new Report(in.getLong(), speed);
+            List<String> topics = new ArrayList<String>();
+            long windowStart = 0;
+            long recordedNanos = 0;
+            long firstNanos = -1;
+            long replayStart = System.nanoTime();
+
+            while (in.hasRemaining() || windowStart + in.limit() < size) {
+                // a record is decoded completely before anything is updated: on an underflow,
+                // it is decoded again from a window starting at the record
+                int recordStart = in.position();
+                String topic;
+                MqttMessage message;
+                boolean newTopic;
+                long arrivalNanos;
+                try {
+                    arrivalNanos = recordedNanos + readVarint(in);
+                    int flags = in.get();
+                    int code = (int) readVarint(in);
+                    newTopic = code == topics.size() + 1;
+                    if (code == 0 || newTopic) {
+                        topic = new String(readBytes(in), UTF_8);
+                    } else if (code <= topics.size()) {
+                        topic = topics.get(code - 1);
+                    } else {
+                        throw new IOException("Corrupted traffic log at offset " + (windowStart + recordStart));
+                    }
+                    message = new ReplayedMessage(readBytes(in), (flags & 4) != 0);
+                    message.setQos(flags & 3);
+                    message.setRetained((flags & 8) != 0);
+                } catch (BufferUnderflowException e) {
+                    if (windowStart + in.limit() >= size) {
+                        // incomplete last record
+                        break;
+                    }
+                    windowStart += recordStart;
+                    in = map(channel, windowStart, size);
+                    continue;
+                }
+                if (newTopic) {
+                    topics.add(topic);
+                }
+                recordedNanos = arrivalNanos;
+                if (firstNanos < 0) {
+                    firstNanos = arrivalNanos;
+                }
+
+                if (speed > 0) {
+                    long due = replayStart + (long) ((arrivalNanos - firstNanos) / speed);
+                    long now;
+                    while ((now = System.nanoTime()) < due) {
+                        LockSupport.parkNanos(due - now);
+                    }
+                    report.maxLagNanos = Math.max(report.maxLagNanos, now - due);
+                }
+                long start = System.nanoTime();
+                try {
+                    callback.messageArrived(topic, message);
+                } catch (Exception e) {
+                    report.errors++;
+                }
+                report.handling.record(System.nanoTime() - start);
+                report.messages++;
+                report.payloadBytes += message.getPayload().length;
+            }
+            report.recordedNanos = firstNanos < 0 ? 0 : recordedNanos - firstNanos;
+            report.elapsedNanos = System.nanoTime() - replayStart;
+            return report;
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static ByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAX_WINDOW, size - position));
+    }
+
+    private static byte[] readBytes(ByteBuffer in) throws IOException {
+        long length = readVarint(in);
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            throw new IOException("Corrupted traffic log");
+        }
+        if (length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[(int) length];
+        in.get(bytes);
+        return bytes;
+    }
+
+    private static long readVarint(ByteBuffer in) {
+        long v = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            v |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return v;
+            }
+        }
+    }
+}
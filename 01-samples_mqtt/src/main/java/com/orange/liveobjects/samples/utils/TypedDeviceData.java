@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Same "data message" as {@link DeviceData} (same JSON format, see {@link JsonCodecs}),
+ * with the values of the fields known by the {@link DataSchema} of the model stored in
+ * primitive slots rather than boxed in a map, and the location as two doubles.
+ * <p>
+ * Values not described by the schema are kept in an "extra" map. An instance can be
+ * {@link #clear() cleared} and reused for the next message.
+ */
+public class TypedDeviceData {
+
+    /**
+     * Stream identifier
+     */
+    public String s;
+
+    /**
+     * timestamp (ISO8601 format)
+     */
+    public String ts;
+
+    /**
+     * Tags
+     */
+    public List<String> t;
+
+    private final DataSchema schema;
+    // doubles as raw bits, longs, booleans as 0/1
+    private final long[] values;
+    private final String[] strings;
+    // bit i set if field i has a value
+    private long present;
+
+    private boolean hasLocation;
+    private double latitude;
+    private double longitude;
+
+    private Map<String, Object> extra;
+
+    /**
+     * @param schema schema of the model ("m")
+     */
+    public TypedDeviceData(DataSchema schema) {
+        this.schema = schema;
+        this.values = new long[schema.getFieldCount()];
+        this.strings = new String[schema.getFieldCount()];
+    }
+
+    public DataSchema getSchema() {
+        return schema;
+    }
+
+    /**
+     * Data "model"
+     */
+    public String getModel() {
+        return schema.getModel();
+    }
+
+    // ***************
+    // *** values  ***
+    // ***************
+
+    public boolean isSet(int field) {
+        return (present & (1L << field)) != 0;
+    }
+
+    public void unset(int field) {
+        present &= ~(1L << field);
+        strings[field] = null;
+    }
+
+    public double getDouble(int field) {
+        check(field, DataSchema.FieldType.DOUBLE);
+        return Double.longBitsToDouble(values[field]);
+    }
+
+    public void setDouble(int field, double value) {
+        check(field, DataSchema.FieldType.DOUBLE);
+        values[field] = Double.doubleToRawLongBits(value);
+        present |= 1L << field;
+    }
+
+    public long getLong(int field) {
+        check(field, DataSchema.FieldType.LONG);
+        return values[field];
+    }
+
+    public void setLong(int field, long value) {
+        check(field, DataSchema.FieldType.LONG);
+        values[field] = value;
+        present |= 1L << field;
+    }
+
+    public boolean getBoolean(int field) {
+        check(field, DataSchema.FieldType.BOOLEAN);
+        return values[field] != 0;
+    }
+
+    public void setBoolean(int field, boolean value) {
+        check(field, DataSchema.FieldType.BOOLEAN);
+        values[field] = value ? 1 : 0;
+        present |= 1L << field;
+    }
+
+    public String getString(int field) {
+        check(field, DataSchema.FieldType.STRING);
+        return strings[field];
+    }
+
+    public void setString(int field, String value) {
+        check(field, DataSchema.FieldType.STRING);
+        if (value == null) {
+            unset(field);
+        } else {
+            strings[field] = value;
+            present |= 1L << field;
+        }
+    }
+
+    /**
+     * @return values not described by the schema, null if there are none
+     */
+    public Map<String, Object> getExtra() {
+        return extra;
+    }
+
+    public void putExtra(String name, Object value) {
+        if (extra == null) {
+            extra = new LinkedHashMap<String, Object>();
+        }
+        extra.put(name, value);
+    }
+
+    /**
+     * Sets a value given as an object (e.g. decoded from JSON): stored in its slot if the
+     * field is known and the value has a compatible type, in the extra values otherwise.
+     */
+    public void put(String name, Object value) {
+        int field = schema.indexOf(name);
+        if (field >= 0 && value != null) {
+            switch (schema.getType(field)) {
+                case DOUBLE:
+                    if (value instanceof Number) {
+                        setDouble(field, ((Number) value).doubleValue());
+                        return;
+                    }
+                    break;
+                case LONG:
+                    if (value instanceof Number && ((Number) value).doubleValue() == ((Number) value).longValue()) {
+                        setLong(field, ((Number) value).longValue());
+                        return;
+                    }
+                    break;
+                case BOOLEAN:
+                    if (value instanceof Boolean) {
+                        setBoolean(field, (Boolean) value);
+                        return;
+                    }
+                    break;
+                default:
+                    if (value instanceof String) {
+                        setString(field, (String) value);
+                        return;
+                    }
+            }
+        }
+        putExtra(name, value);
+    }
+
+    // ****************
+    // *** location ***
+    // ****************
+
+    public boolean hasLocation() {
+        return hasLocation;
+    }
+
+    public double getLatitude() {
+        return latitude;
+    }
+
+    public double getLongitude() {
+        return longitude;
+    }
+
+    public void setLocation(double latitude, double longitude) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.hasLocation = true;
+    }
+
+    public void clearLocation() {
+        hasLocation = false;
+    }
+
+    /**
+     * Resets the message for reuse (same schema).
+     */
+    public void clear() {
+        s = null;
+        ts = null;
+        t = null;
+        present = 0;
+        Arrays.fill(strings, null);
+        hasLocation = false;
+        extra = null;
+    }
+
+    /**
+     * @return the same message as a {@link DeviceData}
+     */
+    public DeviceData toDeviceData() {
+        DeviceData data = new DeviceData();
+        data.s = s;
+        data.ts = ts;
+        data.m = getModel();
+        data.t = t;
+        if (present != 0 || extra != null) {
+            data.v = new HashMap<String, Object>();
+            for (int field = 0; field < values.length; field++) {
+                if (isSet(field)) {
+                    data.v.put(schema.getName(field), getValue(field));
+                }
+            }
+            if (extra != null) {
+                data.v.putAll(extra);
+            }
+        }
+        if (hasLocation) {
+            data.loc = new Double[] { latitude, longitude };
+        }
+        return data;
+    }
+
+    /**
+     * @return the value of the field, boxed; null if not set
+     */
+    public Object getValue(int field) {
+        if (!isSet(field)) {
+            return null;
+        }
+        switch (schema.getType(field)) {
+            case DOUBLE:
+                return getDouble(field);
+            case LONG:
+                return getLong(field);
+            case BOOLEAN:
+                return getBoolean(field);
+            default:
+                return getString(field);
+        }
+    }
+
+    private void check(int field, DataSchema.FieldType type) {
+        if (schema.getType(field) != type) {
+            throw new IllegalArgumentException("Field " + schema.getName(field) + " is a " + schema.getType(field)
+                    + ", not a " + type);
+        }
+    }
+
+    @Override public String toString() {
+        return "TypedDeviceData{" +
+                "s='" + s + '\'' +
+                ", ts='" + ts + '\'' +
+                ", m='" + getModel() + '\'' +
+                ", v=" + toDeviceData().v +
+                ", t=" + t +
+                ", loc=" + (hasLocation ? "[" + latitude + ", " + longitude + "]" : null) +
+                '}';
+    }
+}
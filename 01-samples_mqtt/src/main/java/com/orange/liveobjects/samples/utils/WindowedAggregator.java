@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Rolling statistics (count, min, max, mean, last) of the numeric values of each stream and
+ * field, over time windows of a fixed size moving by a fixed slide: tumbling windows when the
+ * slide equals the size, sliding (overlapping) windows when it divides it.
+ * <p>
+ * Values are aggregated as they arrive into "panes" of one slide each; a window is the
+ * combination of the size / slide latest panes. Each (stream, field) series only keeps the
+ * panes of one window, so memory depends on the number of active series, not on the number
+ * of messages. A window is emitted to the {@link Listener} once closed: when a value of the
+ * series falls after its end, or when {@link #advance(long)} is called past its end. Series
+ * with no value in their last window are then forgotten.
+ * <p>
+ * Values older than the window being filled are counted as late and ignored. This class is
+ * thread-safe; windows are emitted from the thread calling {@link #update} or {@link #advance}.
+ */
+public class WindowedAggregator {
+
+    /**
+     * Receives the closed windows.
+     */
+    public interface Listener {
+        void windowClosed(Window window);
+    }
+
+    private final long sizeMillis;
+    private final long slideMillis;
+    private final int panes;
+    private final Listener listener;
+
+    // stream id -> field -> series
+    private final Map<String, Map<String, Series>> streams = new HashMap<String, Map<String, Series>>();
+    private int seriesCount;
+    private long lateCount;
+    private long emittedCount;
+
+    /**
+     * @param sizeMillis  duration of a window
+     * @param slideMillis duration between the starts of two windows; sizeMillis for tumbling windows
+     */
+    public WindowedAggregator(long sizeMillis, long slideMillis, Listener listener) {
+        if (slideMillis <= 0 || sizeMillis < slideMillis || sizeMillis % slideMillis != 0) {
+            throw new IllegalArgumentException("The window size must be a positive multiple of the slide");
+        }
+        this.sizeMillis = sizeMillis;
+        this.slideMillis = slideMillis;
+        this.panes = (int) (sizeMillis / slideMillis);
+        this.listener = listener;
+    }
+
+    /**
+     * Aggregates a value.
+     *
+     * @param timeMillis time of the value (e.g. reception or message timestamp), in ms since the epoch
+     */
+    public synchronized void update(String streamId, String field, long timeMillis, double value) {
+        Map<String, Series> fields = streams.get(streamId);
+        if (fields == null) {
+            fields = new HashMap<String, Series>();
+            streams.put(streamId, fields);
+        }
+        Series series = fields.get(field);
+        long pane = Math.floorDiv(timeMillis, slideMillis);
+        if (series == null) {
+            series = new Series(streamId, field, pane);
+            fields.put(field, series);
+            seriesCount++;
+        } else if (pane > series.currentPane) {
+            series.close(pane);
+        } else if (pane <= series.currentPane - panes) {
+            lateCount++;
+            return;
+        }
+        series.add(pane, timeMillis, value);
+    }
+
+    /**
+     * Aggregates the numeric values of a message (e.g. {@link DeviceData#v}); others are ignored.
+     */
+    public synchronized void update(String streamId, Map<String, ?> values, long timeMillis) {
+        if (values == null) {
+            return;
+        }
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            if (entry.getValue() instanceof Number) {
+                update(streamId, entry.getKey(), timeMillis, ((Number) entry.getValue()).doubleValue());
+            }
+        }
+    }
+
+    /**
+     * Closes the windows ending before the given time (e.g. now, periodically), and forgets
+     * the series left without values.
+     */
+    public synchronized void advance(long timeMillis) {
+        long pane = Math.floorDiv(timeMillis, slideMillis);
+        Iterator<Map<String, Series>> streamIterator = streams.values().iterator();
+        while (streamIterator.hasNext()) {
+            Map<String, Series> fields = streamIterator.next();
+            Iterator<Series> seriesIterator = fields.values().iterator();
+            while (seriesIterator.hasNext()) {
+                Series series = seriesIterator.next();
+                if (pane > series.currentPane) {
+                    series.close(pane);
+                }
+                if (series.isEmpty()) {
+                    seriesIterator.remove();
+                    seriesCount--;
+                }
+            }
+            if (fields.isEmpty()) {
+                streamIterator.remove();
+            }
+        }
+    }
+
+    public long getSizeMillis() {
+        return sizeMillis;
+    }
+
+    public long getSlideMillis() {
+        return slideMillis;
+    }
+
+    /**
+     * @return (stream, field) pairs currently aggregated
+     */
+    public synchronized int getSeriesCount() {
+        return seriesCount;
+    }
+
+    public synchronized long getLateCount() {
+        return lateCount;
+    }
+
+    public synchronized long getEmittedCount() {
+        return emittedCount;
+    }
+
+    /**
+     * Statistics of a stream field, one slot per pane of a window.
+     */
+    private final class Series {
+        private final String streamId;
+        private final String field;
+        // latest pane having received a value, or reached by advance()
+        private long currentPane;
+        private final long[] paneIndexes = new long[panes];
+        private final long[] counts = new long[panes];
+        private final double[] mins = new double[panes];
+        private final double[] maxs = new double[panes];
+        private final double[] sums = new double[panes];
+        private final double[] lasts = new double[panes];
+        private final long[] lastTimes = new long[panes];
+
+        Series(String streamId, String field, long pane) {
+            this.streamId = streamId;
+            this.field = field;
+            this.currentPane = pane;
+            // no slot holds a pane of the current window yet
+            for (int i = 0; i < panes; i++) {
+                paneIndexes[i] = Long.MIN_VALUE;
+            }
+        }
+
+        void add(long pane, long timeMillis, double value) {
+            int slot = (int) Math.floorMod(pane, (long) panes);
+            if (paneIndexes[slot] != pane) {
+                paneIndexes[slot] = pane;
+                counts[slot] = 0;
+                sums[slot] = 0;
+                mins[slot] = Double.POSITIVE_INFINITY;
+                maxs[slot] = Double.NEGATIVE_INFINITY;
+                lastTimes[slot] = Long.MIN_VALUE;
+            }
+            counts[slot]++;
+            sums[slot] += value;
+            mins[slot] = Math.min(mins[slot], value);
+            maxs[slot] = Math.max(maxs[slot], value);
+            if (timeMillis >= lastTimes[slot]) {
+                lasts[slot] = value;
+                lastTimes[slot] = timeMillis;
+            }
+        }
+
+        /**
+         * Emits the windows ending after the current pane and up to the start of the given pane
+         * (only those which may hold values), which becomes the current one.
+         */
+        void close(long pane) {
+            long lastEnd = Math.min(pane, currentPane + panes);
+            for (long end = currentPane + 1; end <= lastEnd; end++) {
+                emit(end);
+            }
+            currentPane = pane;
+        }
+
+        /**
+         * Emits the window made of the panes before the given one, if it has values.
+         */
+        private void emit(long endPane) {
+            long count = 0;
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            double sum = 0;
+            double last = 0;
+            long lastTime = Long.MIN_VALUE;
+            for (int slot = 0; slot < panes; slot++) {
+                long index = paneIndexes[slot];
+                if (index >= endPane - panes && index < endPane && counts[slot] > 0) {
+                    count += counts[slot];
+                    sum += sums[slot];
+                    min = Math.min(min, mins[slot]);
+                    max = Math.max(max, maxs[slot]);
+                    if (lastTimes[slot] >= lastTime) {
+                        last = lasts[slot];
+                        lastTime = lastTimes[slot];
+                    }
+                }
+            }
+            if (count > 0) {
+                emittedCount++;
+                long endMillis = endPane * slideMillis;
+                listener.windowClosed(new Window(streamId, field, endMillis - sizeMillis, endMillis, count, min, max,
+                        sum / count, last));
+            }
+        }
+
+        /**
+         * @return true if no pane of the current window holds values
+         */
+        boolean isEmpty() {
+            for (int slot = 0; slot < panes; slot++) {
+                if (paneIndexes[slot] > currentPane - panes && counts[slot] > 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // *********************
+    // *** INNER CLASSES ***
+    // *********************
+
+    /**
+     * Statistics of a field of a stream over a closed window.
+     */
+    public static final class Window {
+
+        private final String streamId;
+        private final String field;
+        private final long startMillis;
+        private final long endMillis;
+        private final long count;
+        private final double min;
+        private final double max;
+        private final double mean;
+        private final double last;
+
+        Window(String streamId, String field, long startMillis, long endMillis, long count, double min, double max,
+               double mean, double last) {
+            this.streamId = streamId;
+            this.field = field;
+            this.startMillis = startMillis;
+            this.endMillis = endMillis;
+            this.count = count;
+            this.min = min;
+            this.max = max;
+            this.mean = mean;
+            this.last = last;
+        }
+
+        public String getStreamId() {
+            return streamId;
+        }
+
+        public String getField() {
+            return field;
+        }
+
+        /**
+         * @return start of the window (inclusive), in ms since the epoch
+         */
+        public long getStartMillis() {
+            return startMillis;
+        }
+
+        /**
+         * @return end of the window (exclusive), in ms since the epoch
+         */
+        public long getEndMillis() {
+            return endMillis;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMin() {
+            return min;
+        }
+
+        public double getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        /**
+         * @return latest value of the window
+         */
+        public double getLast() {
+            return last;
+        }
+
+        @Override
+        public String toString() {
+            return "Window{" +
+                    "streamId='" + streamId + '\'' +
+                    ", field='" + field + '\'' +
+                    ", start=" + startMillis +
+                    ", end=" + endMillis +
+                    ", count=" + count +
+                    ", min=" + min +
+                    ", max=" + max +
+                    ", mean=" + mean +
+                    ", last=" + last +
+                    '}';
+        }
+    }
+}
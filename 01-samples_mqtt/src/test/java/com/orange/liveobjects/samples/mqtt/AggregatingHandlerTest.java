@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.mqtt;
+
+import com.orange.liveobjects.samples.utils.RouterMessages;
+import com.orange.liveobjects.samples.utils.WindowedAggregator;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class AggregatingHandlerTest {
+
+    @Test
+    public void aggregatesRoutedMessages() throws Exception {
+        final List<WindowedAggregator.Window> windows = new ArrayList<WindowedAggregator.Window>();
+        WindowedAggregator aggregator = new WindowedAggregator(1000, 1000, new WindowedAggregator.Listener() {
+            public void windowClosed(WindowedAggregator.Window window) {
+                windows.add(window);
+            }
+        });
+        Sample_10_SimpleAppConsumeRouter_allDataNew.AggregatingHandler handler =
+                new Sample_10_SimpleAppConsumeRouter_allDataNew.AggregatingHandler(aggregator);
+
+        List<MqttMessage> messages = RouterMessages.roundTrip(
+                RouterMessages.deviceData("stream-1", "2016-08-29T08:50:04.421Z", 20),
+                RouterMessages.deviceData("stream-1", "2016-08-29T08:50:05.421Z", 22),
+                RouterMessages.deviceData("stream-2", "2016-08-29T08:50:05.421Z", 10));
+        for (MqttMessage message : messages) {
+            handler.handle("router/~event/v1/data/new/urn/lo/nsid/sensor/test01", message);
+        }
+        assertEquals(2, aggregator.getSeriesCount());
+
+        aggregator.advance(System.currentTimeMillis() + 5000);
+        double sum = 0;
+        long count = 0;
+        for (WindowedAggregator.Window window : windows) {
+            if ("stream-1".equals(window.getStreamId())) {
+                assertEquals("tempC", window.getField());
+                sum += window.getMean() * window.getCount();
+                count += window.getCount();
+            }
+        }
+        assertEquals(2, count);
+        assertEquals(42, sum, 1e-9);
+    }
+
+    @Test
+    public void ignoresMessageWithoutPayload() throws Exception {
+        WindowedAggregator aggregator = new WindowedAggregator(1000, 1000, null);
+        new Sample_10_SimpleAppConsumeRouter_allDataNew.AggregatingHandler(aggregator)
+                .handle("router/x", new MqttMessage("{\"streamId\":\"s\",\"value\":{\"a\":1}}".getBytes("UTF-8")));
+
+        assertEquals(0, aggregator.getSeriesCount());
+    }
+
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class ArchivingMessageHandlerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void archivesRoutedMessages() throws Exception {
+        File dir = folder.newFolder();
+        MessageArchive archive = new MessageArchive(dir);
+        final List<String> passedOn = new ArrayList<String>();
+        ArchivingMessageHandler handler = new ArchivingMessageHandler(archive, new MessageHandler() {
+            public void handle(String topic, MqttMessage message) {
+                passedOn.add(topic);
+            }
+        });
+
+        List<MqttMessage> messages = RouterMessages.roundTrip(
+                RouterMessages.deviceData("stream-1", "2016-08-29T08:50:04.421Z", 20),
+                RouterMessages.deviceData("stream-2", "2016-08-29T08:50:05.421Z", 22));
+        for (MqttMessage message : messages) {
+            handler.handle("router/x", message);
+        }
+        // no payload, no stream id
+        handler.handle("router/x", new MqttMessage("{\"streamId\":\"s\"}".getBytes(RouterMessages.UTF_8)));
+        handler.handle("router/x", new MqttMessage("{\"payload\":\"{\\\"value\\\":{}}\"}".getBytes(RouterMessages.UTF_8)));
+        archive.close();
+
+        assertEquals(2, archive.getAppendedCount());
+        assertEquals(2, handler.getSkippedCount());
+        assertEquals(4, passedOn.size());
+
+        final List<ArchivedMessage> archived = new ArrayList<ArchivedMessage>();
+        MessageArchiveReader reader = new MessageArchiveReader(dir);
+        reader.scan(null, 0, Long.MAX_VALUE, null, new MessageArchiveReader.Visitor() {
+            public void visit(ArchivedMessage message) {
+                archived.add(message);
+            }
+        });
+        reader.close();
+        assertEquals(2, archived.size());
+        assertEquals("stream-1", archived.get(0).streamId);
+        assertEquals(20, ((Number) archived.get(0).values.get("tempC")).doubleValue(), 0);
+        assertEquals("a \"quoted\" label", archived.get(0).values.get("label"));
+        assertEquals("stream-2", archived.get(1).streamId);
+        assertEquals(1472460605421L, archived.get(1).time);
+    }
+
+}
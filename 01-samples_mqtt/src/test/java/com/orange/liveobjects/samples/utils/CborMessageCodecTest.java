@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CborMessageCodecTest {
+
+    private static final MessageCodec CBOR = MessageCodecs.CBOR;
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    private static byte[] encodeLong(long value) {
+        CborWriter writer = new CborWriter(16);
+        writer.value(value);
+        return writer.toByteArray();
+    }
+
+    private static byte[] encodeDouble(double value) {
+        CborWriter writer = new CborWriter(16);
+        writer.value(value);
+        return writer.toByteArray();
+    }
+
+    private static double decodeDouble(byte[] bytes) throws IOException {
+        return new CborReader(bytes, 0, bytes.length).nextDouble();
+    }
+
+    private static DeviceData deviceData() {
+        DeviceData data = new DeviceData();
+        data.s = "urn:lo:nsid:sensor:test01!temperature";
+        data.ts = "2016-08-29T08:50:04.421Z";
+        data.m = "tempV1";
+        data.v = new LinkedHashMap<String, Object>();
+        data.v.put("temp", 20.5);
+        data.v.put("count", 1000000000000L);
+        data.v.put("negative", -1000L);
+        data.v.put("label", "caf\u00e9 \ud83d\ude00 \"quoted\"");
+        data.v.put("on", true);
+        data.v.put("list", Arrays.<Object>asList(1L, "two", 3.25));
+        Map<String, Object> nested = new LinkedHashMap<String, Object>();
+        nested.put("depth", 2L);
+        data.v.put("nested", nested);
+        data.t = Arrays.asList("a", "b");
+        data.loc = new Double[]{45.4535, 4.5032};
+        return data;
+    }
+
+    @Test
+    public void roundTripIsTheSameAsJson() {
+        DeviceData data = deviceData();
+        byte[] cbor = CBOR.encode(data);
+        byte[] json = MessageCodecs.JSON.encode(data);
+
+        assertTrue(cbor.length < json.length);
+        DeviceData decoded = CBOR.decode(cbor, DeviceData.class);
+        // numbers are decoded as doubles by both
+        DeviceData fromJson = MessageCodecs.JSON.decode(json, DeviceData.class);
+        assertEquals(new String(MessageCodecs.JSON.encode(fromJson), RouterMessages.UTF_8),
+                new String(MessageCodecs.JSON.encode(decoded), RouterMessages.UTF_8));
+        assertEquals("caf\u00e9 \ud83d\ude00 \"quoted\"", decoded.v.get("label"));
+        assertArrayEquals(data.loc, decoded.loc);
+    }
+
+    @Test
+    public void decodesAtAnOffset() {
+        byte[] cbor = CBOR.encode(deviceData());
+        byte[] framed = new byte[cbor.length + 4];
+        System.arraycopy(cbor, 0, framed, 2, cbor.length);
+
+        DeviceData decoded = ((CborMessageCodec) CBOR).decode(framed, 2, cbor.length, DeviceData.class);
+        assertEquals("tempV1", decoded.m);
+    }
+
+    @Test
+    public void encodesRfcExamples() {
+        assertArrayEquals(bytes(0x00), encodeLong(0));
+        assertArrayEquals(bytes(0x17), encodeLong(23));
+        assertArrayEquals(bytes(0x18, 0x18), encodeLong(24));
+        assertArrayEquals(bytes(0x1a, 0x00, 0x0f, 0x42, 0x40), encodeLong(1000000));
+        assertArrayEquals(bytes(0x1b, 0x00, 0x00, 0x00, 0xe8, 0xd4, 0xa5, 0x10, 0x00), encodeLong(1000000000000L));
+        assertArrayEquals(bytes(0x20), encodeLong(-1));
+        assertArrayEquals(bytes(0x39, 0x03, 0xe7), encodeLong(-1000));
+
+        // shortest exact float
+        assertArrayEquals(bytes(0xf9, 0x00, 0x00), encodeDouble(0.0));
+        assertArrayEquals(bytes(0xf9, 0x3e, 0x00), encodeDouble(1.5));
+        assertArrayEquals(bytes(0xf9, 0x7b, 0xff), encodeDouble(65504.0));
+        assertArrayEquals(bytes(0xf9, 0x00, 0x01), encodeDouble(5.960464477539063e-8));
+        assertArrayEquals(bytes(0xfa, 0x47, 0xc3, 0x50, 0x00), encodeDouble(100000.0));
+        assertArrayEquals(bytes(0xfb, 0x3f, 0xf1, 0x99, 0x99, 0x99, 0x99, 0x99, 0x9a), encodeDouble(1.1));
+
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("a", 1L);
+        map.put("b", Arrays.asList(2L, 3L));
+        assertArrayEquals(bytes(0xa2, 0x61, 0x61, 0x01, 0x61, 0x62, 0x82, 0x02, 0x03), CBOR.encode(map));
+    }
+
+    @Test
+    public void decodesRfcExamples() throws IOException {
+        assertEquals(1.5, decodeDouble(bytes(0xf9, 0x3e, 0x00)), 0);
+        assertEquals(5.960464477539063e-8, decodeDouble(bytes(0xf9, 0x00, 0x01)), 0);
+        assertEquals(100000.0, decodeDouble(bytes(0xfa, 0x47, 0xc3, 0x50, 0x00)), 0);
+        assertEquals(-4.1, decodeDouble(bytes(0xfb, 0xc0, 0x10, 0x66, 0x66, 0x66, 0x66, 0x66, 0x66)), 0);
+        assertEquals(-1000, decodeDouble(bytes(0x39, 0x03, 0xe7)), 0);
+
+        // indefinite lengths: {_ "a": 1, "b": [_ 2, 3]}
+        @SuppressWarnings("unchecked")
+        Map<String, Object> map = CBOR.decode(bytes(0xbf, 0x61, 0x61, 0x01, 0x61, 0x62, 0x9f, 0x02, 0x03, 0xff, 0xff),
+                Map.class);
+        assertEquals(1, ((Number) map.get("a")).intValue());
+        List<?> list = (List<?>) map.get("b");
+        assertEquals(2, list.size());
+        assertEquals(3, ((Number) list.get(1)).intValue());
+    }
+
+    @Test
+    public void nullsAreSkipped() {
+        DeviceData data = new DeviceData();
+        data.s = "stream";
+        DeviceData decoded = CBOR.decode(CBOR.encode(data), DeviceData.class);
+        assertEquals("stream", decoded.s);
+        assertNull(decoded.v);
+        // a map of one entry
+        assertEquals(0xa1, CBOR.encode(data)[0] & 0xff);
+    }
+
+    @Test
+    public void rejectsInvalidPayloads() {
+        List<byte[]> invalid = new ArrayList<byte[]>();
+        // truncated map, text key cut short, byte string (unsupported)
+        invalid.add(bytes(0xa2, 0x61, 0x73, 0x61));
+        invalid.add(bytes(0xa1, 0x65, 0x61));
+        invalid.add(bytes(0xa1, 0x61, 0x73, 0x42, 0x00, 0x00));
+        for (byte[] payload : invalid) {
+            try {
+                CBOR.decode(payload, DeviceData.class);
+                fail("Accepted " + Arrays.toString(payload));
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void detectsTheFormat() {
+        assertSame(MessageCodecs.CBOR, MessageCodecs.detect(CBOR.encode(deviceData())));
+        assertSame(MessageCodecs.JSON, MessageCodecs.detect(MessageCodecs.JSON.encode(deviceData())));
+        assertSame(MessageCodecs.CBOR, MessageCodecs.forName("cbor"));
+        assertFalse(MessageCodecs.detect(new byte[0]) == MessageCodecs.CBOR);
+    }
+
+}
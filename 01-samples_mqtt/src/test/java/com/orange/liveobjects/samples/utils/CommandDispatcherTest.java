@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class CommandDispatcherTest {
+
+    /**
+     * Response and its failure flag.
+     */
+    private static final class Sent {
+        final DeviceCommandResponse response;
+        final boolean failed;
+
+        Sent(DeviceCommandResponse response, boolean failed) {
+            this.response = response;
+            this.failed = failed;
+        }
+    }
+
+    private final BlockingQueue<Sent> sent = new LinkedBlockingQueue<Sent>();
+    private final CommandDispatcher dispatcher = new CommandDispatcher(new CommandDispatcher.Responder() {
+        public void respond(DeviceCommandResponse response, boolean failed) {
+            sent.add(new Sent(response, failed));
+        }
+    });
+
+    @After
+    public void shutdown() throws InterruptedException {
+        dispatcher.shutdown(5, TimeUnit.SECONDS);
+    }
+
+    private static DeviceCommand command(String req, long cid) {
+        DeviceCommand command = new DeviceCommand();
+        command.req = req;
+        command.cid = cid;
+        return command;
+    }
+
+    private Sent next() throws InterruptedException {
+        Sent response = sent.poll(5, TimeUnit.SECONDS);
+        assertNotNull("No response", response);
+        return response;
+    }
+
+    @Test
+    public void resultWithErrorKeyIsNotAFailure() throws Exception {
+        dispatcher.register("m", 1, 10, 0, new CommandDispatcher.Handler() {
+            public Map<String, Object> handle(DeviceCommand command) {
+                return Collections.<String, Object>singletonMap("error", "none");
+            }
+        });
+
+        assertTrue(dispatcher.dispatch(command("m", 1)));
+        Sent response = next();
+        assertFalse(response.failed);
+        assertEquals("none", response.response.res.get("error"));
+        assertEquals(Long.valueOf(1), response.response.cid);
+    }
+
+    @Test
+    public void errorsAreFailures() throws Exception {
+        dispatcher.register("m", 1, 10, 0, new CommandDispatcher.Handler() {
+            public Map<String, Object> handle(DeviceCommand command) throws Exception {
+                throw new IllegalStateException("broken");
+            }
+        });
+
+        assertTrue(dispatcher.dispatch(command("m", 1)));
+        assertTrue(next().failed);
+        assertFalse(dispatcher.dispatch(command("unknown", 2)));
+        Sent unknown = next();
+        assertTrue(unknown.failed);
+        assertEquals("unknown method: unknown", unknown.response.res.get("error"));
+        assertEquals(1, dispatcher.getStats("m").getFailedCount());
+        assertEquals(1, dispatcher.getUnknownCount());
+    }
+
+    @Test
+    public void slowErrorResponseDoesNotDelayTimeouts() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        CommandDispatcher blocking = new CommandDispatcher(new CommandDispatcher.Responder() {
+            public void respond(DeviceCommandResponse response, boolean failed) throws InterruptedException {
+                // e.g. a publication waiting for the network
+                release.await();
+            }
+        });
+        blocking.register("slow", 4, 10, 50, new CommandDispatcher.Handler() {
+            public Map<String, Object> handle(DeviceCommand command) throws InterruptedException {
+                Thread.sleep(10000);
+                return null;
+            }
+        });
+        try {
+            for (long cid = 1; cid <= 3; cid++) {
+                assertTrue(blocking.dispatch(command("slow", cid)));
+            }
+            // all the timeouts fire, although the first response is stuck
+            long deadline = System.currentTimeMillis() + 2000;
+            while (blocking.getStats("slow").getTimedOutCount() < 3 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(3, blocking.getStats("slow").getTimedOutCount());
+        } finally {
+            release.countDown();
+            blocking.shutdown(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void replacedHandlerCompletesAndReleasesItsWorkers() throws Exception {
+        // other tests may leave workers still exiting: only the new ones are counted
+        Set<Thread> before = workerThreads();
+        final CountDownLatch release = new CountDownLatch(1);
+        dispatcher.register("m", 1, 10, 0, new CommandDispatcher.Handler() {
+            public Map<String, Object> handle(DeviceCommand command) throws InterruptedException {
+                release.await();
+                return Collections.<String, Object>singletonMap("version", 1);
+            }
+        });
+        assertTrue(dispatcher.dispatch(command("m", 1)));
+        for (int version = 2; version <= 5; version++) {
+            final Map<String, Object> result = new HashMap<String, Object>();
+            result.put("version", version);
+            dispatcher.register("m", 1, 10, 0, new CommandDispatcher.Handler() {
+                public Map<String, Object> handle(DeviceCommand command) {
+                    return result;
+                }
+            });
+            assertTrue(dispatcher.dispatch(command("m", version)));
+            assertEquals(version, next().response.res.get("version"));
+        }
+
+        // the command accepted by the first handler is completed by it
+        release.countDown();
+        assertEquals(1, next().response.res.get("version"));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (newWorkerThreads(before) > 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, newWorkerThreads(before));
+    }
+
+    private static Set<Thread> workerThreads() {
+        Set<Thread> workers = new HashSet<Thread>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && thread.getName().startsWith("command-worker-")) {
+                workers.add(thread);
+            }
+        }
+        return workers;
+    }
+
+    private static int newWorkerThreads(Set<Thread> before) {
+        Set<Thread> workers = workerThreads();
+        workers.removeAll(before);
+        return workers.size();
+    }
+
+}
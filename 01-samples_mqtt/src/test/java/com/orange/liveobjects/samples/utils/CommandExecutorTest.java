@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CommandExecutorTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicInteger concurrent = new AtomicInteger();
+    private final AtomicInteger maxConcurrent = new AtomicInteger();
+
+    private final Runnable blocked = new Runnable() {
+        public void run() {
+            int now = concurrent.incrementAndGet();
+            int max;
+            while (now > (max = maxConcurrent.get()) && !maxConcurrent.compareAndSet(max, now)) {
+                // retry
+            }
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                concurrent.decrementAndGet();
+            }
+        }
+    };
+
+    /**
+     * Fills the executor (2 workers, 3 queued) with blocked tasks.
+     */
+    private CommandExecutor saturated(CommandExecutor.RejectionPolicy policy) throws InterruptedException {
+        CommandExecutor executor = new CommandExecutor(2, 3, policy);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(executor.execute(blocked));
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (executor.getActiveCount() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(2, executor.getActiveCount());
+        assertEquals(3, executor.getQueueDepth());
+        return executor;
+    }
+
+    private void drain(CommandExecutor executor, long tasks) throws InterruptedException {
+        release.countDown();
+        assertTrue(executor.shutdown(10, TimeUnit.SECONDS));
+        assertEquals(tasks, executor.getCompletedCount());
+        assertEquals(2, maxConcurrent.get());
+    }
+
+    @Test
+    public void abort() throws InterruptedException {
+        CommandExecutor executor = saturated(CommandExecutor.RejectionPolicy.ABORT);
+        try {
+            executor.execute(blocked);
+            fail("Accepted beyond capacity");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        assertEquals(1, executor.getRejectedCount());
+        drain(executor, 5);
+    }
+
+    @Test
+    public void discard() throws InterruptedException {
+        CommandExecutor executor = saturated(CommandExecutor.RejectionPolicy.DISCARD);
+        assertFalse(executor.execute(blocked));
+        assertEquals(1, executor.getRejectedCount());
+        assertEquals(5, executor.getSubmittedCount());
+        drain(executor, 5);
+    }
+
+    @Test
+    public void callerRuns() throws InterruptedException {
+        CommandExecutor executor = saturated(CommandExecutor.RejectionPolicy.CALLER_RUNS);
+        final Thread caller = Thread.currentThread();
+        final AtomicInteger ranOnCaller = new AtomicInteger();
+        assertTrue(executor.execute(new Runnable() {
+            public void run() {
+                if (Thread.currentThread() == caller) {
+                    ranOnCaller.incrementAndGet();
+                }
+            }
+        }));
+        assertEquals(1, ranOnCaller.get());
+        assertEquals(1, executor.getRejectedCount());
+        drain(executor, 5);
+    }
+
+    @Test
+    public void failingTaskFreesItsSlot() throws InterruptedException {
+        CommandExecutor executor = new CommandExecutor(1, 0, CommandExecutor.RejectionPolicy.ABORT);
+        final CountDownLatch failed = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            public void run() {
+                failed.countDown();
+                throw new IllegalStateException("command failed");
+            }
+        });
+        assertTrue(failed.await(10, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + 10000;
+        while (executor.getCompletedCount() < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        final AtomicInteger ran = new AtomicInteger();
+        assertTrue(executor.execute(new Runnable() {
+            public void run() {
+                ran.incrementAndGet();
+            }
+        }));
+        assertTrue(executor.shutdown(10, TimeUnit.SECONDS));
+        assertEquals(1, ran.get());
+        assertEquals(2, executor.getCompletedCount());
+    }
+
+    @Test
+    public void rejectsAfterShutdown() throws InterruptedException {
+        CommandExecutor executor = new CommandExecutor(1, 1, CommandExecutor.RejectionPolicy.CALLER_RUNS);
+        assertTrue(executor.shutdown(1, TimeUnit.SECONDS));
+        try {
+            executor.execute(blocked);
+            fail("Accepted after shutdown");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        assertEquals(1, executor.getRejectedCount());
+        assertEquals(0, executor.getQueueDepth());
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class CommandResponseCacheTest {
+
+    private static final byte[] RESPONSE = "{\"cid\":1,\"res\":{}}".getBytes(RouterMessages.UTF_8);
+
+    @Test
+    public void replaysTheResponse() {
+        CommandResponseCache cache = new CommandResponseCache(64, 60000);
+
+        assertNull(cache.begin(1));
+        assertSame(CommandResponseCache.IN_PROGRESS, cache.begin(1));
+        cache.complete(1, RESPONSE);
+        assertArrayEquals(RESPONSE, cache.begin(1));
+        assertNull(cache.begin(2));
+
+        assertEquals(2, cache.getStartedCount());
+        assertEquals(1, cache.getInProgressCount());
+        assertEquals(1, cache.getReplayedCount());
+    }
+
+    @Test
+    public void abortedCommandIsExecutedAgain() {
+        CommandResponseCache cache = new CommandResponseCache(64, 60000);
+
+        assertNull(cache.begin(1));
+        cache.abort(1);
+        assertNull(cache.begin(1));
+        cache.complete(1, RESPONSE);
+        assertArrayEquals(RESPONSE, cache.begin(1));
+
+        cache.clear();
+        assertNull(cache.begin(1));
+    }
+
+    @Test
+    public void responsesExpire() throws InterruptedException {
+        CommandResponseCache cache = new CommandResponseCache(64, 20);
+
+        assertNull(cache.begin(1));
+        cache.complete(1, RESPONSE);
+        Thread.sleep(50);
+        assertNull(cache.begin(1));
+        assertEquals(2, cache.getStartedCount());
+    }
+
+    @Test
+    public void completedAfterEviction() {
+        CommandResponseCache cache = new CommandResponseCache(16, 60000);
+        assertEquals(16, cache.getCapacity());
+
+        for (long cid = 0; cid < 17; cid++) {
+            assertNull(cache.begin(cid));
+        }
+        assertEquals(1, cache.getEvictedCount());
+        // a response is kept even if its command was evicted while in progress
+        for (long cid = 0; cid < 17; cid++) {
+            cache.complete(cid, RESPONSE);
+        }
+        assertArrayEquals(RESPONSE, cache.begin(16));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSmallCapacities() {
+        new CommandResponseCache(8, 60000);
+    }
+
+}
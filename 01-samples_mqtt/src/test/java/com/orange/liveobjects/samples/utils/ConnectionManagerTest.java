@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ConnectionManagerTest {
+
+    private static final String FILTER = "router/" + LocalLiveObjectsBroker.ROUTING_KEY_DATA_NEW + "#";
+    private static final String ROUTING_KEY = LocalLiveObjectsBroker.ROUTING_KEY_DATA_NEW + "x";
+
+    private LocalLiveObjectsBroker broker;
+    private final AtomicInteger received = new AtomicInteger();
+    private final AtomicInteger subscriptions = new AtomicInteger();
+    // number of the next subscriptions failing
+    private final AtomicInteger failures = new AtomicInteger();
+    private MqttMetrics metrics = new MqttMetrics();
+
+    private final MqttCallback callback = new MqttCallback() {
+        public void connectionLost(Throwable cause) {
+        }
+
+        public void messageArrived(String topic, MqttMessage message) {
+            received.incrementAndGet();
+        }
+
+        public void deliveryComplete(IMqttDeliveryToken token) {
+        }
+    };
+
+    private final ConnectionManager.SessionListener listener = new ConnectionManager.SessionListener() {
+        public void sessionStarted(MqttClient client) throws MqttException {
+            if (failures.getAndDecrement() > 0) {
+                throw new MqttException(MqttException.REASON_CODE_CLIENT_TIMEOUT);
+            }
+            client.subscribe(FILTER, 1);
+            subscriptions.incrementAndGet();
+        }
+    };
+
+    @Before
+    public void startBroker() throws Exception {
+        broker = new LocalLiveObjectsBroker(0, null);
+        broker.start();
+    }
+
+    @After
+    public void stopBroker() throws Exception {
+        broker.stop();
+    }
+
+    private ConnectionManager manager() throws MqttException {
+        MqttClient client = new MqttClient(broker.getServerUri(), "app:test", new MemoryPersistence());
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setUserName(LocalLiveObjectsBroker.MODE_BRIDGE);
+        options.setPassword("test".toCharArray());
+        return new ConnectionManager(client, options, callback, listener, metrics, 10, 50);
+    }
+
+    @Test
+    public void resumesSessionWithoutSubscribing() throws Exception {
+        ConnectionManager connection = manager();
+        assertFalse(connection.connect());
+        assertEquals(1, subscriptions.get());
+
+        broker.disconnectAll();
+        Thread.sleep(50);
+        // queued for the persistent session
+        for (int i = 0; i < 10; i++) {
+            broker.publishToRouter(ROUTING_KEY, "{}");
+        }
+        awaitReceived(10);
+
+        assertEquals(1, subscriptions.get());
+        assertEquals(1, metrics.getSessionsResumed());
+        connection.close();
+    }
+
+    @Test
+    public void retriesFailedSubscriptionAfterReconnection() throws Exception {
+        ConnectionManager connection = manager();
+        connection.connect();
+        int port = broker.getPort();
+
+        // session lost with the broker
+        broker.stop();
+        failures.set(3);
+        broker = new LocalLiveObjectsBroker(port, null);
+        broker.start();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (subscriptions.get() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, subscriptions.get());
+        assertEquals(1, metrics.getSessionsLost());
+
+        broker.publishToRouter(ROUTING_KEY, "{}");
+        awaitReceived(1);
+        connection.close();
+    }
+
+    @Test
+    public void dropsSessionWhenFirstSubscriptionFails() throws Exception {
+        failures.set(1);
+        try {
+            manager().connect();
+            fail("Subscription failure not reported");
+        } catch (MqttException e) {
+            assertEquals(MqttException.REASON_CODE_CLIENT_TIMEOUT, e.getReasonCode());
+        }
+        assertEquals(0, subscriptions.get());
+
+        // no session left without subscriptions: the next start subscribes
+        ConnectionManager connection = manager();
+        assertFalse(connection.connect());
+        assertEquals(1, subscriptions.get());
+        broker.publishToRouter(ROUTING_KEY, "{}");
+        awaitReceived(1);
+        connection.close();
+    }
+
+    @Test
+    public void jitteredDelaysStayWithinBounds() throws Exception {
+        ConnectionManager connection = manager();
+        long delay = 10;
+        boolean varied = false;
+        for (int i = 0; i < 1000; i++) {
+            long next = connection.nextDelay(delay);
+            assertTrue(next >= 10 && next <= Math.min(50, delay * 3));
+            varied |= next != delay;
+            delay = next;
+        }
+        assertTrue(varied);
+    }
+
+    private void awaitReceived(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (received.get() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, received.get());
+    }
+
+}
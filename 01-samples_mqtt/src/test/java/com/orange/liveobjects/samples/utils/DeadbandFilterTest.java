@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DeadbandFilterTest {
+
+    private static DeviceData reading(double temp, String status) {
+        DeviceData data = new DeviceData();
+        data.v = new HashMap<String, Object>();
+        data.v.put("temp", temp);
+        data.v.put("status", status);
+        return data;
+    }
+
+    @Test
+    public void publishesChangesBeyondTheDeadband() {
+        DeadbandFilter filter = new DeadbandFilter(0, 0).absolute("temp", 0.5);
+
+        assertTrue(filter.accept(reading(20, "ok"), 0));
+        assertFalse(filter.accept(reading(20.4, "ok"), 1));
+        assertTrue(filter.accept(reading(20.6, "ok"), 2));
+        // compared with the published value, not the previous reading
+        assertFalse(filter.accept(reading(21, "ok"), 3));
+        assertTrue(filter.accept(reading(21, "alarm"), 4));
+        assertEquals(3, filter.getPublishedCount());
+        assertEquals(2, filter.getSuppressedCount());
+    }
+
+    @Test
+    public void limitsRateExceptForTriggers() {
+        DeadbandFilter filter = new DeadbandFilter(1000, 0).percent("temp", 10).trigger("status");
+
+        assertTrue(filter.accept(reading(20, "ok"), 0));
+        assertFalse(filter.accept(reading(30, "ok"), 500));
+        assertEquals(1, filter.getRateLimitedCount());
+        assertTrue(filter.accept(reading(20, "alarm"), 600));
+        assertTrue(filter.accept(reading(30, "alarm"), 1600));
+    }
+
+    @Test
+    public void heartbeatAndReset() {
+        DeadbandFilter filter = new DeadbandFilter(0, 1000);
+
+        assertTrue(filter.accept(reading(20, "ok"), 0));
+        assertFalse(filter.accept(reading(20, "ok"), 999));
+        assertTrue(filter.accept(reading(20, "ok"), 1000));
+        assertEquals(1, filter.getHeartbeatCount());
+
+        filter.reset();
+        assertTrue(filter.accept(reading(20, "ok"), 1001));
+        // a field disappearing is a change
+        DeviceData partial = reading(20, "ok");
+        partial.v.remove("status");
+        assertTrue(filter.accept(partial, 1002));
+    }
+
+}
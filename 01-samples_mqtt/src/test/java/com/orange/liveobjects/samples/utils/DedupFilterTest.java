@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DedupFilterTest {
+
+    @Test
+    public void routerKeyFromEnvelope() throws Exception {
+        List<MqttMessage> messages = RouterMessages.roundTrip(
+                RouterMessages.deviceData("stream-1", "2016-08-29T08:50:04.421Z", 20),
+                RouterMessages.deviceData("stream-1", "2016-08-29T08:50:04.421Z", 21),
+                RouterMessages.deviceData("stream-1", "2016-08-29T08:50:05.421Z", 20));
+
+        long key = DedupFilter.routerKey(messages.get(0).getPayload());
+        assertEquals(DedupFilter.key("stream-1", "2016-08-29T08:50:04.421Z"), key);
+        // same stream and timestamp: the same message, whatever the rest
+        assertEquals(key, DedupFilter.routerKey(messages.get(1).getPayload()));
+        assertNotEquals(key, DedupFilter.routerKey(messages.get(2).getPayload()));
+    }
+
+    @Test
+    public void routerKeyDecodesTheFields() throws Exception {
+        // escaped twice in the envelope, non-ASCII characters in UTF-8
+        String streamId = "caf\u00e9 \"quoted\" \\ \ud83d\ude00";
+        List<MqttMessage> messages = RouterMessages.roundTrip(
+                RouterMessages.deviceData(streamId, "2016-08-29T08:50:04.421Z", 20));
+        assertEquals(DedupFilter.key(streamId, "2016-08-29T08:50:04.421Z"),
+                DedupFilter.routerKey(messages.get(0).getPayload()));
+
+        // inline message, fields after nested values
+        byte[] inline = ("{\"payload\":{\"value\":{\"a\":[1,{\"b\":\"},\"}]},\"streamId\":1,"
+                + "\"timestamp\" : \"t\", \"streamId\":\"s\\u0041\"}}").getBytes(RouterMessages.UTF_8);
+        assertEquals(DedupFilter.key("sA", "t"), DedupFilter.routerKey(inline));
+    }
+
+    @Test
+    public void routerKeyWithoutFieldsIsContentHash() {
+        byte[] a = "{\"payload\":\"{\\\"streamId\\\":\\\"s\\\"}\"}".getBytes(RouterMessages.UTF_8);
+        byte[] b = "{\"payload\":\"{\\\"streamId\\\":\\\"t\\\"}\"}".getBytes(RouterMessages.UTF_8);
+        byte[] malformed = "{\"payload\":\"{\\\"streamId".getBytes(RouterMessages.UTF_8);
+
+        assertEquals(DedupFilter.routerKey(a), DedupFilter.routerKey(a.clone()));
+        assertNotEquals(DedupFilter.routerKey(a), DedupFilter.routerKey(b));
+        assertEquals(DedupFilter.routerKey(malformed), DedupFilter.routerKey(malformed.clone()));
+    }
+
+    @Test
+    public void detectsDuplicates() {
+        DedupFilter filter = new DedupFilter(1024, 60000);
+
+        assertFalse(filter.isDuplicate(1));
+        assertFalse(filter.isDuplicate(2));
+        assertTrue(filter.isDuplicate(1));
+        assertEquals(3, filter.getCheckedCount());
+        assertEquals(1, filter.getDuplicateCount());
+
+        filter.clear();
+        assertFalse(filter.isDuplicate(1));
+    }
+
+    @Test
+    public void forgetsExpiredKeys() throws InterruptedException {
+        DedupFilter filter = new DedupFilter(1024, 20);
+
+        assertFalse(filter.isDuplicate(1));
+        Thread.sleep(50);
+        assertFalse(filter.isDuplicate(1));
+        assertTrue(filter.isDuplicate(1));
+    }
+
+    @Test
+    public void evictsWhenFull() {
+        DedupFilter filter = new DedupFilter(16, 60000);
+
+        for (long key = 0; key < 100; key++) {
+            assertFalse(filter.isDuplicate(key));
+        }
+        assertEquals(100 - 16, filter.getEvictedCount());
+        // the most recent key is still there
+        assertTrue(filter.isDuplicate(99));
+    }
+
+    @Test
+    public void loraKey() {
+        LoraData data = new LoraData();
+        data.streamId = "urn:lora:0123456789ABCDEF!uplink";
+        data.timestamp = "2016-08-29T08:50:04.421Z";
+        data.value = data.new LoraDataValue();
+        data.value.fcnt = 7;
+
+        assertEquals(DedupFilter.loraKey(0x0123456789ABCDEFL, 7), DedupFilter.loraKey(data));
+        data.streamId = "urn:lora:FFFFFFFFFFFFFFFF!uplink";
+        assertEquals(DedupFilter.loraKey(-1L, 7), DedupFilter.loraKey(data));
+        data.value.fcnt = null;
+        assertEquals(DedupFilter.key(data.streamId, data.timestamp), DedupFilter.loraKey(data));
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceConfigPublisherTest {
+
+    private LocalLiveObjectsBroker broker;
+    private MqttAsyncClient client;
+
+    @Before
+    public void start() throws Exception {
+        broker = new LocalLiveObjectsBroker(0, null);
+        broker.start();
+        client = new MqttAsyncClient(broker.getServerUri(), RouterMessages.DEVICE_URN, new MemoryPersistence());
+    }
+
+    @After
+    public void stop() throws Exception {
+        if (client.isConnected()) {
+            client.disconnect().waitForCompletion();
+        }
+        client.close();
+        broker.stop();
+    }
+
+    private void connect() throws MqttException {
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setUserName(LocalLiveObjectsBroker.MODE_DEVICE);
+        options.setPassword("test".toCharArray());
+        client.connect(options).waitForCompletion();
+    }
+
+    @Test
+    public void publishesTheWholeConfigurationWhenChanged() throws Exception {
+        connect();
+        DeviceConfigPublisher publisher = new DeviceConfigPublisher(client, 1, 50);
+
+        publisher.update("log_level", new DeviceConfig.CfgParameter("str", "DEBUG"));
+        publisher.update("period", new DeviceConfig.CfgParameter("u32", 10));
+        publisher.update("period", new DeviceConfig.CfgParameter("u32", 20));
+        publisher.flush();
+        assertTrue(publisher.close(5000));
+        assertEquals(1, publisher.getPublishedCount());
+        assertEquals(1, publisher.getCoalescedCount());
+
+        DeviceConfig announced = broker.getDeviceConfig(RouterMessages.DEVICE_URN);
+        assertEquals("DEBUG", announced.cfg.get("log_level").v);
+        assertEquals(20, ((Number) announced.cfg.get("period").v).intValue());
+        assertTrue(DeviceConfigPublisher.sameParameter(new DeviceConfig.CfgParameter("u32", 20L),
+                publisher.getAcknowledged().cfg.get("period")));
+    }
+
+    @Test
+    public void keepsTheUnchangedParametersInTheAnnouncement() throws Exception {
+        connect();
+        DeviceConfigPublisher publisher = new DeviceConfigPublisher(client, 1, 0);
+
+        publisher.update("log_level", new DeviceConfig.CfgParameter("str", "DEBUG"));
+        publisher.update("period", new DeviceConfig.CfgParameter("u32", 10));
+        publisher.flush();
+        awaitAcknowledged(publisher, "period", 10);
+
+        // the broker replaces the configuration with each announcement
+        publisher.update("log_level", new DeviceConfig.CfgParameter("str", "DEBUG"));
+        publisher.update("period", new DeviceConfig.CfgParameter("u32", 30));
+        publisher.flush();
+        awaitAcknowledged(publisher, "period", 30);
+        assertEquals(2, publisher.getPublishedCount());
+        DeviceConfig announced = broker.getDeviceConfig(RouterMessages.DEVICE_URN);
+        assertEquals(2, announced.cfg.size());
+        assertEquals("DEBUG", announced.cfg.get("log_level").v);
+        assertEquals(30, ((Number) announced.cfg.get("period").v).intValue());
+
+        // nothing changed: not published
+        publisher.update("period", new DeviceConfig.CfgParameter("u32", 30L));
+        publisher.flush();
+        assertEquals(2, publisher.getPublishedCount());
+        assertEquals(2, publisher.getUnchangedCount());
+
+        // published again even if unchanged
+        publisher.invalidate();
+        assertTrue(publisher.close(5000));
+        assertEquals(3, publisher.getPublishedCount());
+        assertEquals(2, publisher.getAcknowledged().cfg.size());
+    }
+
+    private static void awaitAcknowledged(DeviceConfigPublisher publisher, String name, long value)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!DeviceConfigPublisher.sameParameter(new DeviceConfig.CfgParameter("u32", value),
+                publisher.getAcknowledged().cfg.get(name)) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(DeviceConfigPublisher.sameParameter(new DeviceConfig.CfgParameter("u32", value),
+                publisher.getAcknowledged().cfg.get(name)));
+    }
+
+    @Test
+    public void retriesWithoutSpinningWhileDisconnected() throws Exception {
+        DeviceConfigPublisher publisher = new DeviceConfigPublisher(client, 1, 0);
+
+        publisher.update("period", new DeviceConfig.CfgParameter("u32", 10));
+        Thread.sleep(DeviceConfigPublisher.MIN_RETRY_MILLIS / 2);
+        assertEquals(1, publisher.getFailedCount());
+        assertEquals(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED,
+                ((MqttException) publisher.getLastFailure()).getReasonCode());
+
+        // published once connected
+        connect();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (publisher.getAcknowledged().cfg.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(publisher.getAcknowledged().cfg.isEmpty());
+        assertTrue(publisher.close(1000));
+    }
+
+}
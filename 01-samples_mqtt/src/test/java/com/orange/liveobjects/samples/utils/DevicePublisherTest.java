@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class DevicePublisherTest {
+
+    private static final int MESSAGES = 500;
+
+    private LocalLiveObjectsBroker broker;
+    private MqttClient app;
+    private final BlockingQueue<MqttMessage> received = new LinkedBlockingQueue<MqttMessage>();
+
+    @Before
+    public void start() throws Exception {
+        broker = new LocalLiveObjectsBroker(0, null);
+        broker.start();
+        app = new MqttClient(broker.getServerUri(), "app:test", new MemoryPersistence());
+        app.setCallback(new MqttCallback() {
+            public void connectionLost(Throwable cause) {
+            }
+
+            public void messageArrived(String topic, MqttMessage message) {
+                received.add(message);
+            }
+
+            public void deliveryComplete(IMqttDeliveryToken token) {
+            }
+        });
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setUserName(LocalLiveObjectsBroker.MODE_BRIDGE);
+        options.setPassword("test".toCharArray());
+        app.connect(options);
+        app.subscribe("router/" + LocalLiveObjectsBroker.ROUTING_KEY_DATA_NEW + "#", 1);
+    }
+
+    @After
+    public void stop() throws Exception {
+        app.disconnect();
+        app.close();
+        broker.stop();
+    }
+
+    private DataMessage receive() throws InterruptedException {
+        MqttMessage message = received.poll(10, TimeUnit.SECONDS);
+        assertNotNull("Message not routed", message);
+        return JsonCodecs.gson().fromJson(RouterEnvelope.payloadReader(message.getPayload()), DataMessage.class);
+    }
+
+    @Test
+    public void pipelinedPublishesInOrder() throws Exception {
+        DevicePublisher publisher = new DevicePublisher(broker.getServerUri(), RouterMessages.DEVICE_URN, "test", 1, 8);
+        publisher.connect();
+        for (int i = 0; i < MESSAGES; i++) {
+            publisher.publish(RouterMessages.deviceData(RouterMessages.DEVICE_URN + "!temp", null, i));
+        }
+        publisher.close();
+
+        assertEquals(MESSAGES, publisher.getPublishedCount());
+        assertEquals(MESSAGES, publisher.getCompletedCount());
+        assertEquals(0, publisher.getFailedCount());
+        assertEquals(0, publisher.getInFlightCount());
+        for (int i = 0; i < MESSAGES; i++) {
+            assertEquals((double) i, receive().value.get("tempC"));
+        }
+    }
+
+    @Test
+    public void typedDeviceData() throws Exception {
+        DevicePublisher publisher = new DevicePublisher(broker.getServerUri(), RouterMessages.DEVICE_URN, "test", 0, 1);
+        publisher.connect();
+        TypedDeviceData data = new TypedDeviceData(DataSchema.SAMPLE01);
+        data.s = RouterMessages.DEVICE_URN + "!sample01";
+        data.setDouble(DataSchema.SAMPLE01.indexOf("tempC"), 21.5);
+        data.setBoolean(DataSchema.SAMPLE01.indexOf("engineOn"), true);
+        publisher.publish(data);
+        publisher.close();
+
+        DataMessage routed = receive();
+        assertEquals("sample01", routed.model);
+        assertEquals(21.5, routed.value.get("tempC"));
+        assertEquals(Boolean.TRUE, routed.value.get("engineOn"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsQos2() throws Exception {
+        new DevicePublisher(broker.getServerUri(), RouterMessages.DEVICE_URN, "test", 2, 8);
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParser;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class JsonCodecsTest {
+
+    /**
+     * What the adapters replace: the output must stay the same.
+     */
+    private static final Gson REFLECTIVE = new Gson();
+
+    private static void assertSameJson(String expected, String actual) {
+        assertEquals(new JsonParser().parse(expected), new JsonParser().parse(actual));
+    }
+
+    private static <T> void assertSameAsReflective(T message, Class<T> type) {
+        String json = JsonCodecs.gson().toJson(message);
+        assertSameJson(REFLECTIVE.toJson(message), json);
+        // and reading it back gives the same message
+        assertSameJson(REFLECTIVE.toJson(REFLECTIVE.fromJson(json, type)),
+                JsonCodecs.gson().toJson(JsonCodecs.gson().fromJson(json, type)));
+    }
+
+    private static Map<String, Object> freeForm() {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("temp", 20.5);
+        map.put("count", 12L);
+        map.put("label", "caf\u00e9 \"quoted\"");
+        map.put("on", true);
+        map.put("list", Arrays.<Object>asList(1L, "two", null));
+        Map<String, Object> nested = new LinkedHashMap<String, Object>();
+        nested.put("depth", 2L);
+        map.put("nested", nested);
+        return map;
+    }
+
+    @Test
+    public void deviceData() {
+        DeviceData data = new DeviceData();
+        data.s = "urn:lo:nsid:sensor:test01!temperature";
+        data.ts = "2016-08-29T08:50:04.421Z";
+        data.m = "tempV1";
+        data.v = freeForm();
+        data.t = Arrays.asList("a", "b");
+        data.loc = new Double[]{45.4535, 4.5032};
+        assertSameAsReflective(data, DeviceData.class);
+
+        DeviceData decoded = JsonCodecs.gson().fromJson(JsonCodecs.gson().toJson(data), DeviceData.class);
+        // as with reflection, free-form numbers are read as doubles
+        assertEquals(12.0, decoded.v.get("count"));
+        assertSameAsReflective(new DeviceData(), DeviceData.class);
+    }
+
+    @Test
+    public void commands() {
+        DeviceCommand command = new DeviceCommand();
+        command.req = "reboot";
+        command.arg = freeForm();
+        command.cid = 123456789012L;
+        assertSameAsReflective(command, DeviceCommand.class);
+
+        DeviceCommandResponse response = new DeviceCommandResponse(freeForm(), 123456789012L);
+        assertSameAsReflective(response, DeviceCommandResponse.class);
+        assertEquals(Long.valueOf(123456789012L), JsonCodecs.gson().fromJson(
+                "{\"unknown\":[{}],\"cid\":123456789012}", DeviceCommandResponse.class).cid);
+    }
+
+    @Test
+    public void dataMessage() {
+        DataMessage message = new DataMessage();
+        message.streamId = "urn:lo:nsid:sensor:test01!temperature";
+        message.timestamp = "2016-08-29T08:50:04.421Z";
+        message.model = "tempV1";
+        message.value = freeForm();
+        message.tags = Arrays.asList("a");
+        message.location = new DataMessage.Location();
+        message.location.lat = 45.4535;
+        message.location.lon = 4.5032;
+        message.metadata = freeForm();
+        assertSameAsReflective(message, DataMessage.class);
+    }
+
+    @Test
+    public void configValuesAreTyped() {
+        DeviceConfig config = JsonCodecs.gson().fromJson("{\"cfg\":{"
+                + "\"period\":{\"t\":\"u32\",\"v\":10000},"
+                + "\"offset\":{\"t\":\"i32\",\"v\":-5},"
+                + "\"gain\":{\"t\":\"f64\",\"v\":1.5},"
+                + "\"name\":{\"t\":\"str\",\"v\":\"sensor\"},"
+                + "\"untyped\":{\"v\":2},"
+                + "\"empty\":{\"t\":\"str\",\"v\":null}}}", DeviceConfig.class);
+
+        assertEquals(10000L, config.cfg.get("period").v);
+        assertEquals(-5L, config.cfg.get("offset").v);
+        assertEquals(1.5, config.cfg.get("gain").v);
+        assertEquals("sensor", config.cfg.get("name").v);
+        assertEquals(2.0, config.cfg.get("untyped").v);
+        assertNull(config.cfg.get("empty").v);
+        assertSameJson("{\"cfg\":{\"period\":{\"t\":\"u32\",\"v\":10000}}}",
+                JsonCodecs.gson().toJson(singleParameter("period", new DeviceConfig.CfgParameter("u32", 10000L))));
+    }
+
+    private static DeviceConfig singleParameter(String name, DeviceConfig.CfgParameter parameter) {
+        DeviceConfig config = new DeviceConfig();
+        config.cfg.put(name, parameter);
+        return config;
+    }
+
+}
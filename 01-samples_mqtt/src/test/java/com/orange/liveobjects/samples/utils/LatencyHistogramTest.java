@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void smallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 50; i++) {
+            histogram.record(i);
+        }
+        assertEquals(50, histogram.getCount());
+        assertEquals(50, histogram.getMax());
+        assertEquals(25.5, histogram.getMean(), 1e-9);
+        assertEquals(25, histogram.getPercentile(50));
+        assertEquals(1, histogram.getPercentile(0));
+        assertEquals(50, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void percentilesWithinThreePercent() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 1000000; i++) {
+            histogram.record(i * 1000);
+        }
+        for (double percentile : new double[]{10, 50, 90, 99, 99.9}) {
+            double expected = percentile * 1e7;
+            long actual = histogram.getPercentile(percentile);
+            assertTrue(percentile + ": " + actual, Math.abs(actual - expected) / expected < 0.03);
+        }
+        assertEquals(1000000000L, histogram.getPercentile(100));
+        assertEquals(Long.MAX_VALUE, record(Long.MAX_VALUE).getPercentile(50));
+    }
+
+    private static LatencyHistogram record(long value) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(value);
+        return histogram;
+    }
+
+    @Test
+    public void negativeValuesCountAsZero() {
+        LatencyHistogram histogram = record(-5);
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(50));
+        assertEquals(0, histogram.getMax());
+    }
+
+    @Test
+    public void emptyAndReset() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(99));
+        assertEquals(0, histogram.getMean(), 0);
+
+        histogram.record(1000);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(99));
+        assertEquals(0, histogram.getMax());
+    }
+
+    @Test
+    public void concurrentRecording() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 1; i <= 100000; i++) {
+                        histogram.record(i);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(400000, histogram.getCount());
+        assertEquals(100000, histogram.getMax());
+        assertEquals(50000.5, histogram.getMean(), 1e-6);
+    }
+
+}
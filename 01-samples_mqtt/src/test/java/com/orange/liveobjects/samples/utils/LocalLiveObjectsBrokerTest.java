@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class LocalLiveObjectsBrokerTest {
+
+    private static final String API_KEY = "secret";
+    private static final String ROUTER_FILTER = "router/" + LocalLiveObjectsBroker.ROUTING_KEY_DATA_NEW + "#";
+
+    private LocalLiveObjectsBroker broker;
+    private final List<MqttClient> clients = new ArrayList<MqttClient>();
+
+    @Before
+    public void startBroker() throws Exception {
+        broker = new LocalLiveObjectsBroker(0, API_KEY);
+        broker.start();
+    }
+
+    @After
+    public void stopBroker() throws Exception {
+        for (MqttClient client : clients) {
+            if (client.isConnected()) {
+                client.disconnect();
+            }
+            client.close();
+        }
+        broker.stop();
+    }
+
+    private static MqttConnectOptions options(String mode, String apiKey, boolean cleanSession) {
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setUserName(mode);
+        options.setPassword(apiKey.toCharArray());
+        options.setCleanSession(cleanSession);
+        return options;
+    }
+
+    private MqttClient client(String clientId, final BlockingQueue<MqttMessage> received) throws MqttException {
+        MqttClient client = new MqttClient(broker.getServerUri(), clientId, new MemoryPersistence());
+        client.setCallback(new MqttCallback() {
+            public void connectionLost(Throwable cause) {
+            }
+
+            public void messageArrived(String topic, MqttMessage message) {
+                received.add(message);
+            }
+
+            public void deliveryComplete(IMqttDeliveryToken token) {
+            }
+        });
+        clients.add(client);
+        return client;
+    }
+
+    private static String storedValue(MqttMessage message) {
+        DataMessage data = JsonCodecs.gson().fromJson(RouterEnvelope.payloadReader(message.getPayload()), DataMessage.class);
+        return String.valueOf(data.value.get("n"));
+    }
+
+    private static String storedMessage(int n) {
+        return "{\"streamId\":\"s\",\"value\":{\"n\":" + n + "}}";
+    }
+
+    @Test
+    public void refusesBadConnections() throws MqttException {
+        assertRefused(RouterMessages.DEVICE_URN, options(LocalLiveObjectsBroker.MODE_DEVICE, "wrong", true),
+                MqttException.REASON_CODE_FAILED_AUTHENTICATION);
+        assertRefused(RouterMessages.DEVICE_URN, options("json+unknown", API_KEY, true),
+                MqttException.REASON_CODE_FAILED_AUTHENTICATION);
+        // devices are identified by their URN
+        assertRefused("device01", options(LocalLiveObjectsBroker.MODE_DEVICE, API_KEY, true),
+                MqttException.REASON_CODE_INVALID_CLIENT_ID);
+    }
+
+    private void assertRefused(String clientId, MqttConnectOptions options, int reasonCode) throws MqttException {
+        try {
+            client(clientId, new LinkedBlockingQueue<MqttMessage>()).connect(options);
+            fail("Connected " + clientId);
+        } catch (MqttException e) {
+            assertEquals(reasonCode, e.getReasonCode());
+        }
+    }
+
+    @Test
+    public void routesDeviceData() throws Exception {
+        BlockingQueue<MqttMessage> received = new LinkedBlockingQueue<MqttMessage>();
+        MqttClient app = client("app:test", received);
+        app.connect(options(LocalLiveObjectsBroker.MODE_BRIDGE, API_KEY, true));
+        app.subscribe("router/" + LocalLiveObjectsBroker.ROUTING_KEY_DATA_NEW + "urn/lo/nsid/sensor/+", 1);
+
+        MqttClient device = client(RouterMessages.DEVICE_URN, new LinkedBlockingQueue<MqttMessage>());
+        device.connect(options(LocalLiveObjectsBroker.MODE_DEVICE, API_KEY, true));
+        device.publish("dev/data", MessageCodecs.JSON.encode(RouterMessages.deviceData("s", null, 20.5)), 1, false);
+        // CBOR is accepted too
+        device.publish("dev/data", MessageCodecs.CBOR.encode(RouterMessages.deviceData("s", null, 21.5)), 1, false);
+
+        for (double expected : new double[]{20.5, 21.5}) {
+            MqttMessage message = received.poll(10, TimeUnit.SECONDS);
+            assertNotNull(message);
+            DataMessage data = JsonCodecs.gson().fromJson(RouterEnvelope.payloadReader(message.getPayload()),
+                    DataMessage.class);
+            assertEquals(expected, data.value.get("tempC"));
+        }
+        assertEquals(2, broker.getRoutedCount());
+    }
+
+    @Test
+    public void commandRoundTrip() throws Exception {
+        BlockingQueue<MqttMessage> commands = new LinkedBlockingQueue<MqttMessage>();
+        MqttClient device = client(RouterMessages.DEVICE_URN, commands);
+        device.connect(options(LocalLiveObjectsBroker.MODE_DEVICE, API_KEY, true));
+        device.subscribe("dev/cmd", 1);
+
+        Future<DeviceCommandResponse> pending = broker.sendCommand(RouterMessages.DEVICE_URN, "reboot",
+                Collections.<String, Object>emptyMap());
+        // responded from the test thread: a blocking publish must not be made from the Paho callback
+        MqttMessage message = commands.poll(10, TimeUnit.SECONDS);
+        assertNotNull(message);
+        DeviceCommand command = MessageCodecs.JSON.decode(message.getPayload(), DeviceCommand.class);
+        Map<String, Object> res = new HashMap<String, Object>();
+        res.put("done", command.req);
+        device.publish("dev/cmd/res", MessageCodecs.JSON.encode(new DeviceCommandResponse(res, command.cid)), 1, false);
+
+        assertEquals("reboot", pending.get(10, TimeUnit.SECONDS).res.get("done"));
+    }
+
+    @Test
+    public void fifoMessagesGoToASingleConsumer() throws Exception {
+        broker.bindFifo("test", LocalLiveObjectsBroker.ROUTING_KEY_DATA_NEW + "#");
+        for (int i = 0; i < 20; i++) {
+            broker.publishToRouter(LocalLiveObjectsBroker.ROUTING_KEY_DATA_NEW + "s", storedMessage(i));
+        }
+        assertEquals(20, broker.getFifoDepth("test"));
+
+        BlockingQueue<MqttMessage> received = new LinkedBlockingQueue<MqttMessage>();
+        for (int i = 0; i < 2; i++) {
+            MqttClient consumer = client("app:consumer" + i, received);
+            consumer.connect(options(LocalLiveObjectsBroker.MODE_BRIDGE, API_KEY, true));
+            consumer.subscribe("fifo/test", 1);
+        }
+        List<String> values = new ArrayList<String>();
+        for (int i = 0; i < 20; i++) {
+            MqttMessage message = received.poll(10, TimeUnit.SECONDS);
+            assertNotNull(message);
+            values.add(storedValue(message));
+        }
+        assertNull(received.poll(200, TimeUnit.MILLISECONDS));
+        Collections.sort(values);
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 20; i++) {
+            expected.add(String.valueOf((double) i));
+        }
+        Collections.sort(expected);
+        assertEquals(expected, values);
+        assertEquals(0, broker.getFifoDepth("test"));
+    }
+
+    @Test
+    public void persistentSessionKeepsMessages() throws Exception {
+        BlockingQueue<MqttMessage> received = new LinkedBlockingQueue<MqttMessage>();
+        MqttClient app = client("app:persistent", received);
+        app.connect(options(LocalLiveObjectsBroker.MODE_BRIDGE, API_KEY, false));
+        app.subscribe(ROUTER_FILTER, 1);
+        app.disconnect();
+        app.close();
+        clients.remove(app);
+
+        for (int i = 0; i < 3; i++) {
+            broker.publishToRouter(LocalLiveObjectsBroker.ROUTING_KEY_DATA_NEW + "s", storedMessage(i));
+        }
+        // application restarted, without subscribing again: the session still has the subscription
+        client("app:persistent", received).connect(options(LocalLiveObjectsBroker.MODE_BRIDGE, API_KEY, false));
+        for (int i = 0; i < 3; i++) {
+            MqttMessage message = received.poll(10, TimeUnit.SECONDS);
+            assertNotNull(message);
+            assertEquals(String.valueOf((double) i), storedValue(message));
+        }
+    }
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static com.orange.liveobjects.samples.utils.LoraFrameTracker.Outcome;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LoraFrameTrackerTest {
+
+    private static final long DEV_EUI = 0x0123456789ABCDEFL;
+
+    private final LoraFrameTracker tracker = new LoraFrameTracker(4);
+
+    @Test
+    public void parsesDevEui() {
+        assertTrue(LoraFrameTracker.isLoraStream("urn:lora:0123456789ABCDEF!uplink"));
+        assertEquals(DEV_EUI, LoraFrameTracker.parseDevEui("urn:lora:0123456789abcdef!uplink"));
+        assertEquals(0x12L, LoraFrameTracker.parseDevEui("urn:lora:12"));
+        // a valid devEUI, not a "not LoRa" value
+        assertTrue(LoraFrameTracker.isLoraStream("urn:lora:FFFFFFFFFFFFFFFF!uplink"));
+        assertEquals(-1L, LoraFrameTracker.parseDevEui("urn:lora:FFFFFFFFFFFFFFFF!uplink"));
+
+        assertFalse(LoraFrameTracker.isLoraStream(null));
+        assertFalse(LoraFrameTracker.isLoraStream("urn:lora:"));
+        assertFalse(LoraFrameTracker.isLoraStream("urn:lo:nsid:sensor:test01"));
+        assertFalse(LoraFrameTracker.isLoraStream("urn:lora:XYZ!uplink"));
+        assertFalse(LoraFrameTracker.isLoraStream("urn:lora:0123456789ABCDEF0!uplink"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOtherStreams() {
+        LoraFrameTracker.parseDevEui("urn:lo:nsid:sensor:test01");
+    }
+
+    @Test
+    public void tracksMessagesOfAllDevEuis() {
+        LoraData data = new LoraData();
+        data.streamId = "urn:lora:FFFFFFFFFFFFFFFF!uplink";
+        data.value = data.new LoraDataValue();
+        data.value.fcnt = 1;
+        assertEquals(Outcome.FIRST, tracker.track(data));
+        assertEquals(1, tracker.getStats(-1L).getReceivedCount());
+
+        data.streamId = "urn:lo:nsid:sensor:test01";
+        assertNull(tracker.track(data));
+        assertEquals(1, tracker.getDeviceCount());
+    }
+
+    @Test
+    public void countsLostLateAndDuplicateFrames() {
+        assertEquals(Outcome.FIRST, tracker.track(DEV_EUI, 100, 0));
+        assertEquals(Outcome.NEXT, tracker.track(DEV_EUI, 101, 0));
+        assertEquals(Outcome.GAP, tracker.track(DEV_EUI, 105, 0));
+        assertEquals(3, tracker.getLostCount());
+        assertEquals(Outcome.LATE, tracker.track(DEV_EUI, 103, 0));
+        assertEquals(Outcome.DUPLICATE, tracker.track(DEV_EUI, 103, 0));
+        assertEquals(Outcome.DUPLICATE, tracker.track(DEV_EUI, 105, 0));
+        // before the first frame tracked: never counted as lost
+        assertEquals(Outcome.DUPLICATE, tracker.track(DEV_EUI, 99, 0));
+
+        LoraFrameTracker.DeviceStats stats = tracker.getStats(DEV_EUI);
+        assertEquals(105, stats.getLastFcnt());
+        assertEquals(4, stats.getReceivedCount());
+        assertEquals(2, stats.getLostCount());
+        assertEquals(3, stats.getDuplicateCount());
+        assertEquals(0, stats.getResetCount());
+    }
+
+    @Test
+    public void staleFrameKeepsTheCounter() {
+        tracker.track(DEV_EUI, 1000, 0);
+        tracker.track(DEV_EUI, 1001, 0);
+
+        assertEquals(Outcome.DUPLICATE, tracker.track(DEV_EUI, 900, 0));
+        assertEquals(Outcome.NEXT, tracker.track(DEV_EUI, 1002, 0));
+        assertEquals(0, tracker.getResetCount());
+        assertEquals(0, tracker.getLostCount());
+        assertEquals(1002, tracker.getStats(DEV_EUI).getLastFcnt());
+    }
+
+    @Test
+    public void restartedCounterIsAReset() {
+        tracker.track(DEV_EUI, 1000, 0);
+
+        // joined again
+        assertEquals(Outcome.RESET, tracker.track(DEV_EUI, 0, 0));
+        assertEquals(Outcome.NEXT, tracker.track(DEV_EUI, 1, 0));
+        // too far ahead
+        assertEquals(Outcome.RESET, tracker.track(DEV_EUI, 1 + LoraFrameTracker.MAX_FCNT_GAP + 1, 0));
+        assertEquals(2, tracker.getResetCount());
+        assertEquals(0, tracker.getLostCount());
+    }
+
+    @Test
+    public void worstDevicesAndSignal() {
+        for (long devEui = 1; devEui <= 20; devEui++) {
+            tracker.track(devEui, 0, 10);
+            // devEui - 1 frames lost
+            tracker.track(devEui, devEui, 20);
+        }
+
+        assertEquals(20, tracker.getDeviceCount());
+        assertEquals(15, tracker.getStats(3).getMeanSignalLevel(), 0);
+        List<LoraFrameTracker.DeviceStats> worst = tracker.getWorstDevices(3);
+        assertEquals(3, worst.size());
+        assertEquals(20, worst.get(0).getDevEui());
+        assertEquals(19, worst.get(1).getDevEui());
+        assertEquals(18, worst.get(2).getDevEui());
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class LoraMessageDecoderTest {
+
+    private final LoraMessageDecoder decoder = new LoraMessageDecoder();
+
+    private static LoraData loraData() {
+        LoraData data = new LoraData();
+        data.streamId = "urn:lora:0123456789ABCDEF!uplink";
+        data.timestamp = "2016-08-29T08:50:04.421Z";
+        data.model = "lora_v0";
+        data.value = data.new LoraDataValue();
+        data.value.port = 2;
+        data.value.fcnt = 4000000;
+        data.value.signalLevel = 5;
+        data.value.payload = "0a1b2c";
+        data.tags = Arrays.asList("caf\u00e9", "\ud83d\ude00", "tab\there", "quote\"back\\slash");
+        data.metadata = data.new LoraMetadata();
+        data.metadata.source = "urn:lora:0123456789ABCDEF";
+        return data;
+    }
+
+    private static byte[] envelope(LoraData data) {
+        JsonObject envelope = new JsonObject();
+        envelope.addProperty("metadata", "{\"payload\":\"decoy\"}");
+        envelope.addProperty("payload", JsonCodecs.gson().toJson(data));
+        return envelope.toString().getBytes(RouterMessages.UTF_8);
+    }
+
+    private static void assertSameData(LoraData expected, LoraData actual) {
+        assertEquals(JsonCodecs.gson().toJson(expected), JsonCodecs.gson().toJson(actual));
+    }
+
+    @Test
+    public void decodesStringPayload() {
+        LoraData data = loraData();
+        LoraData decoded = decoder.decode(envelope(data));
+
+        assertSameData(data, decoded);
+        assertEquals(Integer.valueOf(4000000), decoded.value.fcnt);
+        assertEquals("\ud83d\ude00", decoded.tags.get(1));
+    }
+
+    @Test
+    public void sameAsTwoPassDecoding() {
+        byte[] message = envelope(loraData());
+        String payload = new JsonParser().parse(new String(message, RouterMessages.UTF_8))
+                .getAsJsonObject().get("payload").getAsString();
+
+        assertSameData(JsonCodecs.gson().fromJson(payload, LoraData.class), decoder.decode(message));
+    }
+
+    @Test
+    public void decodesInlinePayloadAtAnOffset() {
+        LoraData data = loraData();
+        byte[] inline = ("  {\"payload\" : " + JsonCodecs.gson().toJson(data) + "}").getBytes(RouterMessages.UTF_8);
+        byte[] framed = new byte[inline.length + 10];
+        System.arraycopy(inline, 0, framed, 5, inline.length);
+
+        assertSameData(data, decoder.decode(framed, 5, inline.length));
+    }
+
+    @Test
+    public void missingFieldsAreNull() {
+        LoraData decoded = decoder.decode("{\"payload\":\"{\\\"streamId\\\":\\\"s\\\"}\"}".getBytes(RouterMessages.UTF_8));
+        assertEquals("s", decoded.streamId);
+        assertNull(decoded.value);
+    }
+
+    @Test
+    public void rejectsMalformedMessages() {
+        for (String message : Arrays.asList("{}", "{\"streamId\":\"s\"}", "{\"payload\":\"{\\\"streamId\\\":", "[1]")) {
+            try {
+                decoder.decode(message.getBytes(RouterMessages.UTF_8));
+                fail("Accepted " + message);
+            } catch (JsonParseException e) {
+                // expected
+            }
+        }
+    }
+
+}
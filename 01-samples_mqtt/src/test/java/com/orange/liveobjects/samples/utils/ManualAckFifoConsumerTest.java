@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ManualAckFifoConsumerTest {
+
+    private LocalLiveObjectsBroker broker;
+    private MqttClient client;
+    private ManualAckFifoConsumer consumer;
+
+    @Before
+    public void start() throws Exception {
+        broker = new LocalLiveObjectsBroker(0, null);
+        // the FIFO sends the next message only once the previous one is acknowledged
+        broker.setMaxInflight(1);
+        broker.start();
+        broker.bindFifo("test", LocalLiveObjectsBroker.ROUTING_KEY_DATA_NEW + "#");
+        client = new MqttClient(broker.getServerUri(), "app:test", new MemoryPersistence());
+    }
+
+    @After
+    public void stop() throws Exception {
+        if (consumer != null) {
+            consumer.shutdown(5, TimeUnit.SECONDS);
+        }
+        if (client.isConnected()) {
+            client.disconnect();
+        }
+        client.close();
+        broker.stop();
+    }
+
+    private void connect() throws Exception {
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setUserName(LocalLiveObjectsBroker.MODE_BRIDGE);
+        options.setPassword("test".toCharArray());
+        client.connect(options);
+        consumer.sessionStarted(client);
+    }
+
+    private void route(int i) {
+        broker.publishToRouter(LocalLiveObjectsBroker.ROUTING_KEY_DATA_NEW + "s", "{\"value\":{\"i\":" + i + "}}");
+    }
+
+    @Test
+    public void acknowledgesOnceTheHandlerReturned() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        consumer = new ManualAckFifoConsumer(client, "fifo/test", 2, 4, 10, new MessageHandler() {
+            public void handle(String topic, MqttMessage message) throws Exception {
+                started.countDown();
+                proceed.await();
+            }
+        });
+        connect();
+        route(0);
+        route(1);
+
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        Thread.sleep(200);
+        // the first message is being handled: not acknowledged, the second one stays in the FIFO
+        assertEquals(1, broker.getFifoDepth("test"));
+        assertEquals(1, broker.getDeliveredCount());
+
+        proceed.countDown();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (consumer.getHandledCount() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, consumer.getHandledCount());
+        assertEquals(0, broker.getFifoDepth("test"));
+        assertEquals(2, broker.getDeliveredCount());
+    }
+
+    @Test
+    public void failedMessageIsDeliveredAgain() throws Exception {
+        final List<String> payloads = new CopyOnWriteArrayList<String>();
+        consumer = new ManualAckFifoConsumer(client, "fifo/test", 1, 4, 10, new MessageHandler() {
+            public void handle(String topic, MqttMessage message) {
+                payloads.add(new String(message.getPayload(), RouterMessages.UTF_8));
+                if (payloads.size() == 1) {
+                    throw new IllegalStateException("first attempt");
+                }
+            }
+        });
+        connect();
+        route(0);
+        route(1);
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (consumer.getFailedCount() < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, consumer.getFailedCount());
+        Thread.sleep(200);
+        // not acknowledged: the FIFO holds the next message back
+        assertEquals(1, broker.getFifoDepth("test"));
+        assertEquals(1, payloads.size());
+
+        // back to the FIFO when the connection is lost, delivered again first
+        broker.disconnectAll();
+        while (client.isConnected() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        connect();
+        while (consumer.getHandledCount() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, consumer.getHandledCount());
+        assertEquals(3, payloads.size());
+        assertEquals(payloads.get(0), payloads.get(1));
+        assertEquals(0, broker.getFifoDepth("test"));
+    }
+
+    @Test
+    public void messageRejectedAfterShutdownReleasesItsPermit() throws Exception {
+        MqttClient client = new MqttClient("tcp://localhost:1883", "app:test", new MemoryPersistence());
+        ManualAckFifoConsumer consumer = new ManualAckFifoConsumer(client, "fifo/test", 1, 4, 10,
+                new MessageHandler() {
+                    public void handle(String topic, MqttMessage message) {
+                    }
+                });
+        assertTrue(consumer.shutdown(1, TimeUnit.SECONDS));
+
+        // more messages than the window: the permits are given back
+        for (int i = 0; i < 3; i++) {
+            try {
+                consumer.messageArrived("fifo/test", new MqttMessage(new byte[0]));
+                fail("Message accepted after shutdown");
+            } catch (RejectedExecutionException e) {
+                // expected
+            }
+        }
+        assertEquals(0, consumer.getInFlight());
+        assertEquals(3, consumer.getAbandonedCount());
+        client.close();
+    }
+
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MappedSegmentPersistenceTest {
+
+    private static final String CLIENT_ID = "app:test";
+    private static final String SERVER_URI = "tcp://localhost:1883";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<MappedSegmentPersistence> opened = new ArrayList<MappedSegmentPersistence>();
+
+    /**
+     * Header and payload given at an offset of larger arrays, as Paho does.
+     */
+    private static final class Data implements MqttPersistable {
+        private final byte[] header;
+        private final byte[] payload;
+
+        Data(String header, String payload) {
+            this.header = ("#" + header).getBytes(RouterMessages.UTF_8);
+            this.payload = payload == null ? null : ("#" + payload).getBytes(RouterMessages.UTF_8);
+        }
+
+        public byte[] getHeaderBytes() {
+            return header;
+        }
+
+        public int getHeaderLength() {
+            return header.length - 1;
+        }
+
+        public int getHeaderOffset() {
+            return 1;
+        }
+
+        public byte[] getPayloadBytes() {
+            return payload;
+        }
+
+        public int getPayloadLength() {
+            return payload == null ? 0 : payload.length - 1;
+        }
+
+        public int getPayloadOffset() {
+            return 1;
+        }
+    }
+
+    @After
+    public void close() throws MqttPersistenceException {
+        for (MappedSegmentPersistence persistence : opened) {
+            persistence.close();
+        }
+    }
+
+    private MappedSegmentPersistence open(File dir, int segmentSize) throws MqttPersistenceException {
+        MappedSegmentPersistence persistence = new MappedSegmentPersistence(dir.getPath(), segmentSize, 1);
+        persistence.open(CLIENT_ID, SERVER_URI);
+        opened.add(persistence);
+        return persistence;
+    }
+
+    private static void assertStored(MappedSegmentPersistence persistence, String key, String header, String payload)
+            throws MqttPersistenceException {
+        MqttPersistable stored = persistence.get(key);
+        assertArrayEquals(header.getBytes(RouterMessages.UTF_8), copy(stored.getHeaderBytes(),
+                stored.getHeaderOffset(), stored.getHeaderLength()));
+        assertArrayEquals(payload.getBytes(RouterMessages.UTF_8), copy(stored.getPayloadBytes(),
+                stored.getPayloadOffset(), stored.getPayloadLength()));
+    }
+
+    private static byte[] copy(byte[] bytes, int offset, int length) {
+        byte[] copy = new byte[length];
+        if (length > 0) {
+            System.arraycopy(bytes, offset, copy, 0, length);
+        }
+        return copy;
+    }
+
+    private static List<String> keys(MappedSegmentPersistence persistence) throws MqttPersistenceException {
+        List<String> keys = Collections.list(persistence.keys());
+        Collections.sort(keys);
+        return keys;
+    }
+
+    @Test
+    public void recoversAfterReopening() throws Exception {
+        File dir = folder.newFolder();
+        MappedSegmentPersistence persistence = open(dir, 4096);
+        persistence.put("s-1", new Data("h1", "p1"));
+        persistence.put("s-2", new Data("h2", null));
+        persistence.put("s-3", new Data("h3", "p3"));
+        persistence.put("s-1", new Data("h1'", "p1'"));
+        persistence.remove("s-3");
+        persistence.close();
+        opened.clear();
+
+        persistence = open(dir, 4096);
+        assertEquals(Arrays.asList("s-1", "s-2"), keys(persistence));
+        assertStored(persistence, "s-1", "h1'", "p1'");
+        assertStored(persistence, "s-2", "h2", "");
+        assertFalse(persistence.containsKey("s-3"));
+        assertNull(persistence.get("s-3"));
+
+        persistence.clear();
+        assertTrue(keys(persistence).isEmpty());
+        persistence.close();
+        opened.clear();
+        assertTrue(keys(open(dir, 4096)).isEmpty());
+    }
+
+    @Test
+    public void ignoresTornLastRecord() throws Exception {
+        File dir = folder.newFolder();
+        MappedSegmentPersistence persistence = open(dir, 4096);
+        persistence.put("s-1", new Data("h1", "first"));
+        persistence.put("s-2", new Data("h2", "LAST-RECORD"));
+        persistence.close();
+        opened.clear();
+
+        // corrupt the payload of the last record
+        File[] segments = new File(dir, "apptest-tcplocalhost1883").listFiles();
+        boolean corrupted = false;
+        for (File segment : segments) {
+            if (segment.getName().endsWith(".seg")) {
+                corrupted |= corrupt(segment, "LAST-RECORD");
+            }
+        }
+        assertTrue(corrupted);
+
+        persistence = open(dir, 4096);
+        assertEquals(Collections.singletonList("s-1"), keys(persistence));
+        assertStored(persistence, "s-1", "h1", "first");
+        // the log goes on after the valid records
+        persistence.put("s-3", new Data("h3", "p3"));
+        persistence.close();
+        opened.clear();
+        assertEquals(Arrays.asList("s-1", "s-3"), keys(open(dir, 4096)));
+    }
+
+    private static boolean corrupt(File file, String text) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            byte[] content = new byte[(int) raf.length()];
+            raf.readFully(content);
+            byte[] pattern = text.getBytes(RouterMessages.UTF_8);
+            for (int i = 0; i + pattern.length <= content.length; i++) {
+                if (regionEquals(content, i, pattern)) {
+                    raf.seek(i);
+                    raf.write('X');
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static boolean regionEquals(byte[] content, int offset, byte[] pattern) {
+        for (int j = 0; j < pattern.length; j++) {
+            if (content[offset + j] != pattern[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Test
+    public void compactsAcknowledgedMessages() throws Exception {
+        File dir = folder.newFolder();
+        MappedSegmentPersistence persistence = open(dir, 1024);
+        // kept all along: copied forward when its segment is compacted
+        persistence.put("long-lived", new Data("h", "kept"));
+        StringBuilder payload = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            payload.append('x');
+        }
+        for (int i = 0; i < 1000; i++) {
+            persistence.put("s-" + i, new Data("h", payload.toString()));
+            persistence.remove("s-" + i);
+            assertTrue(persistence.getSegmentCount() <= 2);
+        }
+        persistence.put("s-last", new Data("h", "last"));
+        assertStored(persistence, "long-lived", "h", "kept");
+        persistence.close();
+        opened.clear();
+
+        persistence = open(dir, 1024);
+        assertEquals(Arrays.asList("long-lived", "s-last"), keys(persistence));
+        assertStored(persistence, "long-lived", "h", "kept");
+        assertStored(persistence, "s-last", "h", "last");
+    }
+
+    @Test
+    public void doesNotReplayACompactedSegmentLeftOnDisk() throws Exception {
+        File dir = folder.newFolder();
+        MappedSegmentPersistence persistence = open(dir, 1024);
+        File first = new File(new File(dir, "apptest-tcplocalhost1883"), String.format("%016d.seg", 0));
+        // second name of the first segment: the file outlives its deletion by the compaction
+        File undeleted = new File(dir, "undeleted");
+        Files.createLink(undeleted.toPath(), first.toPath());
+
+        persistence.put("removed", new Data("h", "removed"));
+        putAndRemove(persistence, 1000);
+        persistence.remove("removed");
+        putAndRemove(persistence, 1000);
+        persistence.put("s-last", new Data("h", "last"));
+        persistence.close();
+        opened.clear();
+        assertFalse(first.exists());
+        assertTrue(undeleted.renameTo(first));
+
+        persistence = open(dir, 1024);
+        assertEquals(Collections.singletonList("s-last"), keys(persistence));
+        assertFalse(first.exists());
+    }
+
+    private static void putAndRemove(MappedSegmentPersistence persistence, int count) throws MqttPersistenceException {
+        for (int i = 0; i < count; i++) {
+            persistence.put("s-" + i, new Data("h", "a payload making the segments roll"));
+            persistence.remove("s-" + i);
+        }
+    }
+
+    @Test
+    public void releasesTheLockWhenTheRecoveryFails() throws Exception {
+        File dir = folder.newFolder();
+        File unreadable = new File(new File(dir, "apptest-tcplocalhost1883"), String.format("%016d.seg", 1));
+        assertTrue(unreadable.mkdirs());
+        try {
+            open(dir, 4096);
+            fail("Opened with an unreadable segment");
+        } catch (MqttPersistenceException e) {
+            assertTrue(e.getCause() instanceof java.io.IOException);
+        }
+
+        assertTrue(unreadable.delete());
+        MappedSegmentPersistence persistence = open(dir, 4096);
+        persistence.put("s-1", new Data("h1", "p1"));
+        assertEquals(Collections.singletonList("s-1"), keys(persistence));
+    }
+
+    @Test
+    public void lockedWhileOpen() throws Exception {
+        File dir = folder.newFolder();
+        open(dir, 4096);
+        try {
+            open(dir, 4096);
+            fail("Opened twice");
+        } catch (MqttPersistenceException e) {
+            assertEquals(MqttPersistenceException.REASON_CODE_PERSISTENCE_IN_USE, e.getReasonCode());
+        }
+    }
+
+}
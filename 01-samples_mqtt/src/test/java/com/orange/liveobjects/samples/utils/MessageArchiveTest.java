@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MessageArchiveTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void scansOneStreamOverATimeRange() throws Exception {
+        File dir = folder.newFolder();
+        MessageArchive archive = new MessageArchive(dir, 4, 1024 * 1024, 60000);
+        for (int i = 0; i < 20; i++) {
+            append(archive, 1000L * i, i % 2 == 0 ? "even" : "odd", i);
+        }
+        archive.close();
+
+        List<ArchivedMessage> messages = scan(dir, "odd", 5000, 15000, null);
+        assertEquals(5, messages.size());
+        for (int i = 0; i < 5; i++) {
+            ArchivedMessage message = messages.get(i);
+            assertEquals("odd", message.streamId);
+            assertEquals(5000L + 2000L * i, message.time);
+            assertEquals(5L + 2 * i, ((Number) message.values.get("count")).longValue());
+            assertEquals("model", message.model);
+        }
+        assertEquals(20, scan(dir, null, 0, Long.MAX_VALUE, null).size());
+    }
+
+    @Test
+    public void readsOnlyTheSelectedFields() throws Exception {
+        File dir = folder.newFolder();
+        MessageArchive archive = new MessageArchive(dir, 10, 1024 * 1024, 60000);
+        for (int i = 0; i < 10; i++) {
+            append(archive, i, "stream", i);
+        }
+        archive.close();
+
+        MessageArchiveReader reader = new MessageArchiveReader(dir);
+        final List<ArchivedMessage> messages = new ArrayList<ArchivedMessage>();
+        reader.scan(null, 0, Long.MAX_VALUE, Collections.singleton("tempC"), collector(messages));
+        reader.close();
+
+        assertEquals(10, messages.size());
+        assertEquals(1, reader.getBlocksRead());
+        assertEquals(0, reader.getBlocksSkipped());
+        // time, stream and tempC: not count, label nor model
+        assertEquals(3, reader.getColumnsInflated());
+        ArchivedMessage message = messages.get(3);
+        assertEquals(1, message.values.size());
+        assertEquals(23.5, ((Number) message.values.get("tempC")).doubleValue(), 0);
+        assertNull(message.model);
+    }
+
+    @Test
+    public void skipsBlocksFromTheirHeader() throws Exception {
+        File dir = folder.newFolder();
+        MessageArchive archive = new MessageArchive(dir, 5, 1024 * 1024, 60000);
+        // blocks of 5 messages: [0, 4] and [5, 9] of stream a, [10, 14] of stream b
+        for (int i = 0; i < 15; i++) {
+            append(archive, i, i < 10 ? "a" : "b", i);
+        }
+        archive.close();
+        assertEquals(3, archive.getBlockCount());
+
+        MessageArchiveReader reader = new MessageArchiveReader(dir);
+        final List<ArchivedMessage> messages = new ArrayList<ArchivedMessage>();
+        reader.scan(null, 6, 8, null, collector(messages));
+        assertEquals(2, messages.size());
+        assertEquals(1, reader.getBlocksRead());
+        assertEquals(2, reader.getBlocksSkipped());
+
+        messages.clear();
+        reader.scan("b", 0, Long.MAX_VALUE, null, collector(messages));
+        reader.close();
+        assertEquals(5, messages.size());
+        assertEquals(2, reader.getBlocksRead());
+        assertEquals(4, reader.getBlocksSkipped());
+    }
+
+    @Test
+    public void rollsSegments() throws Exception {
+        File dir = folder.newFolder();
+        // a block per segment
+        MessageArchive archive = new MessageArchive(dir, 2, 1, 60000);
+        for (int i = 0; i < 8; i++) {
+            append(archive, i, "stream", i);
+        }
+        archive.close();
+
+        assertEquals(4, archive.getBlockCount());
+        assertEquals(4, MessageArchive.segments(dir).size());
+        assertEquals(8, scan(dir, null, 0, Long.MAX_VALUE, null).size());
+
+        // a new instance never writes to the existing segments
+        archive = new MessageArchive(dir, 2, 1, 60000);
+        append(archive, 8, "stream", 8);
+        archive.close();
+        List<File> segments = MessageArchive.segments(dir);
+        assertEquals(5, segments.size());
+        assertEquals(4, MessageArchive.segmentIndex(segments.get(4)));
+        assertEquals(9, scan(dir, null, 0, Long.MAX_VALUE, null).size());
+    }
+
+    @Test
+    public void flushWritesThePartialBlock() throws Exception {
+        File dir = folder.newFolder();
+        MessageArchive archive = new MessageArchive(dir, 1000, 1024 * 1024, 60000);
+        for (int i = 0; i < 3; i++) {
+            append(archive, i, "stream", i);
+        }
+        assertEquals(0, scan(dir, null, 0, Long.MAX_VALUE, null).size());
+
+        archive.flush();
+        assertEquals(1, archive.getBlockCount());
+        assertEquals(1, archive.getSyncCount());
+        assertEquals(3, scan(dir, null, 0, Long.MAX_VALUE, null).size());
+        archive.close();
+    }
+
+    @Test
+    public void syncsOncePerBatchOfBlocks() throws Exception {
+        File dir = folder.newFolder();
+        MessageArchive archive = new MessageArchive(dir, 1, 1024 * 1024, 60000);
+        for (int i = 0; i < 200; i++) {
+            append(archive, i, "stream", i);
+        }
+        archive.flush();
+
+        assertEquals(200, archive.getBlockCount());
+        assertTrue(archive.getSyncCount() >= 1);
+        assertTrue(archive.getSyncCount() <= archive.getBlockCount());
+        assertEquals(200, scan(dir, null, 0, Long.MAX_VALUE, null).size());
+        archive.close();
+    }
+
+    @Test
+    public void writesAPartialBlockAfterTheDelay() throws Exception {
+        File dir = folder.newFolder();
+        MessageArchive archive = new MessageArchive(dir, 1000, 1024 * 1024, 50);
+        append(archive, 0, "stream", 0);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (archive.getSyncCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, archive.getSyncCount());
+        assertEquals(1, scan(dir, null, 0, Long.MAX_VALUE, null).size());
+        archive.close();
+    }
+
+    @Test
+    public void recoversFromATornTailBlock() throws Exception {
+        File dir = folder.newFolder();
+        MessageArchive archive = new MessageArchive(dir, 2, 1024 * 1024, 60000);
+        for (int i = 0; i < 6; i++) {
+            append(archive, i, "stream", i);
+        }
+        archive.close();
+        File segment = MessageArchive.segments(dir).get(0);
+
+        // last block only partly written
+        truncate(segment, segment.length() - 3);
+        MessageArchiveReader reader = new MessageArchiveReader(dir);
+        final List<ArchivedMessage> messages = new ArrayList<ArchivedMessage>();
+        assertEquals(4, reader.scan(null, 0, Long.MAX_VALUE, null, collector(messages)));
+        assertEquals(4, messages.size());
+
+        // the archive goes on in a new segment, read after the torn one
+        archive = new MessageArchive(dir, 2, 1024 * 1024, 60000);
+        append(archive, 6, "stream", 6);
+        archive.close();
+        messages.clear();
+        assertEquals(5, reader.scan(null, 0, Long.MAX_VALUE, null, collector(messages)));
+        assertEquals(6L, messages.get(4).time);
+        reader.close();
+    }
+
+    @Test
+    public void stopsTheSegmentAtACorruptedBlock() throws Exception {
+        File dir = folder.newFolder();
+        MessageArchive archive = new MessageArchive(dir, 2, 1024 * 1024, 60000);
+        for (int i = 0; i < 6; i++) {
+            append(archive, i, "stream", i);
+        }
+        archive.close();
+        File segment = MessageArchive.segments(dir).get(0);
+
+        // last column of the last block
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            file.seek(file.length() - 1);
+            int last = file.read();
+            file.seek(file.length() - 1);
+            file.write(last ^ 0xFF);
+        } finally {
+            file.close();
+        }
+
+        MessageArchiveReader reader = new MessageArchiveReader(dir);
+        List<ArchivedMessage> messages = new ArrayList<ArchivedMessage>();
+        assertEquals(4, reader.scan(null, 0, Long.MAX_VALUE, null, collector(messages)));
+        assertEquals(4, messages.size());
+        assertEquals(1, reader.getBlocksCorrupted());
+        reader.close();
+    }
+
+    private static void append(MessageArchive archive, long time, String streamId, int i)
+            throws IOException, InterruptedException {
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        values.put("count", i);
+        values.put("tempC", 20.5 + i);
+        values.put("label", "message " + i);
+        archive.append(time, streamId, "model", values, null, null, null);
+    }
+
+    private static List<ArchivedMessage> scan(File dir, String streamId, long fromMillis, long toMillis,
+                                              Collection<String> fields) throws IOException {
+        List<ArchivedMessage> messages = new ArrayList<ArchivedMessage>();
+        MessageArchiveReader reader = new MessageArchiveReader(dir);
+        try {
+            reader.scan(streamId, fromMillis, toMillis, fields, collector(messages));
+        } finally {
+            reader.close();
+        }
+        return messages;
+    }
+
+    private static MessageArchiveReader.Visitor collector(final List<ArchivedMessage> messages) {
+        return new MessageArchiveReader.Visitor() {
+            public void visit(ArchivedMessage message) {
+                messages.add(message);
+            }
+        };
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MessageRingBufferTest {
+
+    private static final int MESSAGES = 10000;
+
+    /**
+     * Decodes the payload into the attachment of the slot.
+     */
+    private static void decode(MessageRingBuffer.Slot slot) {
+        slot.setAttachment(new String(slot.getPayload(), 0, slot.getLength(), RouterMessages.UTF_8));
+    }
+
+    private static final MessageRingBuffer.Stage DECODE = new MessageRingBuffer.Stage() {
+        public void onMessage(MessageRingBuffer.Slot slot) {
+            decode(slot);
+        }
+    };
+
+    private static final class Collect implements MessageRingBuffer.Stage {
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+
+        public void onMessage(MessageRingBuffer.Slot slot) {
+            received.add(slot.getTopic() + "=" + slot.getAttachment());
+        }
+    }
+
+    @Test
+    public void messagesGoThroughTheStagesInOrder() throws InterruptedException {
+        for (MessageRingBuffer.WaitStrategy strategy : MessageRingBuffer.WaitStrategy.values()) {
+            Collect collect = new Collect();
+            MessageRingBuffer ring = new MessageRingBuffer(100, 4, strategy, MessageRingBuffer.FullPolicy.BLOCK,
+                    DECODE, collect);
+            assertEquals(128, ring.getCapacity());
+
+            for (int i = 0; i < MESSAGES; i++) {
+                // payloads at an offset, some larger than the initial buffer of the slots
+                byte[] payload = ("#" + i).getBytes(RouterMessages.UTF_8);
+                assertTrue(ring.publish("t" + (i % 3), payload, 1, payload.length - 1, 1));
+            }
+            assertTrue(ring.shutdown(10, TimeUnit.SECONDS));
+
+            assertEquals(MESSAGES, collect.received.size());
+            for (int i = 0; i < MESSAGES; i++) {
+                assertEquals(strategy.name(), "t" + (i % 3) + "=" + i, collect.received.get(i));
+            }
+            assertEquals(MESSAGES, ring.getPublishedCount());
+            assertEquals(0, ring.getBacklog());
+            assertEquals(0, ring.getDroppedCount());
+            assertFalse(ring.publish("t", new byte[1], 0, 1, 1));
+        }
+    }
+
+    @Test
+    public void dropsWhenFull() throws InterruptedException {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        Collect collect = new Collect();
+        MessageRingBuffer ring = new MessageRingBuffer(4, 16, MessageRingBuffer.WaitStrategy.BLOCKING,
+                MessageRingBuffer.FullPolicy.DROP, new MessageRingBuffer.Stage() {
+            public void onMessage(MessageRingBuffer.Slot slot) throws InterruptedException {
+                blocked.await();
+                decode(slot);
+            }
+        }, collect);
+
+        int accepted = 0;
+        for (int i = 0; i < 10; i++) {
+            byte[] payload = String.valueOf(i).getBytes(RouterMessages.UTF_8);
+            if (ring.publish("t", payload, 0, payload.length, 0)) {
+                accepted++;
+            }
+        }
+        assertEquals(4, accepted);
+        assertEquals(6, ring.getDroppedCount());
+        blocked.countDown();
+        assertTrue(ring.shutdown(10, TimeUnit.SECONDS));
+        assertEquals(4, collect.received.size());
+    }
+
+    @Test
+    public void failuresDoNotStopTheStage() throws InterruptedException {
+        Collect collect = new Collect();
+        MessageRingBuffer ring = new MessageRingBuffer(8, 16, MessageRingBuffer.WaitStrategy.YIELDING,
+                MessageRingBuffer.FullPolicy.BLOCK, new MessageRingBuffer.Stage() {
+            public void onMessage(MessageRingBuffer.Slot slot) {
+                if (slot.getSequence() % 2 == 0) {
+                    throw new IllegalStateException("even");
+                }
+                decode(slot);
+            }
+        }, collect);
+
+        for (int i = 0; i < 20; i++) {
+            byte[] payload = String.valueOf(i).getBytes(RouterMessages.UTF_8);
+            ring.publish("t", payload, 0, payload.length, 0);
+        }
+        assertTrue(ring.shutdown(10, TimeUnit.SECONDS));
+        assertEquals(10, ring.getFailedCount());
+        assertEquals(20, collect.received.size());
+        assertEquals("t=null", collect.received.get(0));
+        assertEquals("t=1", collect.received.get(1));
+    }
+
+}
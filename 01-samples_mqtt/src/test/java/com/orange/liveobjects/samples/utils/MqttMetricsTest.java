@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MqttMetricsTest {
+
+    private final MqttMetrics metrics = new MqttMetrics();
+
+    private static final MqttCallback FAILING_ON_ERROR_TOPIC = new MqttCallback() {
+        public void connectionLost(Throwable cause) {
+        }
+
+        public void messageArrived(String topic, MqttMessage message) {
+            if ("error".equals(topic)) {
+                throw new IllegalStateException("handling failed");
+            }
+        }
+
+        public void deliveryComplete(IMqttDeliveryToken token) {
+        }
+    };
+
+    @Test
+    public void instrumentedCallback() throws Exception {
+        InstrumentedMqttCallback callback = new InstrumentedMqttCallback(FAILING_ON_ERROR_TOPIC, metrics);
+
+        callback.messageArrived("data", new MqttMessage(new byte[10]));
+        try {
+            callback.messageArrived("error", new MqttMessage(new byte[5]));
+            fail("Exception not rethrown");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        callback.connectionLost(new Exception("lost"));
+        callback.connectComplete(false, "tcp://localhost:1883");
+        callback.connectComplete(true, "tcp://localhost:1883");
+
+        assertEquals(2, metrics.getMessagesReceived());
+        assertEquals(15, metrics.getBytesReceived());
+        assertEquals(2, metrics.getHandlingTime().getCount());
+        assertEquals(1, metrics.getErrors());
+        assertEquals(1, metrics.getConnectionsLost());
+        assertEquals(1, metrics.getReconnects());
+
+        metrics.reset();
+        assertEquals(0, metrics.getMessagesReceived());
+        assertEquals(0, metrics.getHandlingTime().getCount());
+    }
+
+    @Test
+    public void commandRoundTrip() throws InterruptedException {
+        metrics.commandReceived(42);
+        Thread.sleep(5);
+        metrics.commandResponded(42);
+        // responded twice, or never received: not recorded
+        metrics.commandResponded(42);
+        metrics.commandResponded(43);
+
+        assertEquals(1, metrics.getCommandsCompleted());
+        assertTrue(metrics.getCommandRoundTrip().getMax() >= TimeUnit.MILLISECONDS.toNanos(5));
+        assertTrue(metrics.getSummary().contains("command round trip"));
+    }
+
+    @Test
+    public void unknownCommandIsNotRecorded() {
+        // unused slots must not match a cid of 0
+        metrics.commandResponded(0);
+        assertEquals(0, metrics.getCommandsCompleted());
+
+        metrics.commandReceived(0);
+        metrics.commandResponded(0);
+        assertEquals(1, metrics.getCommandsCompleted());
+        assertTrue(metrics.getCommandRoundTrip().getMax() < TimeUnit.SECONDS.toNanos(10));
+    }
+
+    @Test
+    public void publishLatency() throws Exception {
+        LocalLiveObjectsBroker broker = new LocalLiveObjectsBroker(0, null);
+        broker.start();
+        MqttClient client = new MqttClient(broker.getServerUri(), RouterMessages.DEVICE_URN, new MemoryPersistence());
+        MqttAsyncClient asyncClient = new MqttAsyncClient(broker.getServerUri(), "urn:lo:nsid:sensor:test02",
+                new MemoryPersistence());
+        try {
+            MqttConnectOptions options = new MqttConnectOptions();
+            options.setUserName(LocalLiveObjectsBroker.MODE_DEVICE);
+            options.setPassword("test".toCharArray());
+            client.connect(options);
+            asyncClient.setCallback(new InstrumentedMqttCallback(FAILING_ON_ERROR_TOPIC, metrics));
+            asyncClient.connect(options).waitForCompletion(10000);
+
+            byte[] payload = MessageCodecs.JSON.encode(RouterMessages.deviceData("s", null, 20.5));
+            metrics.publish(client, "dev/data", payload, 1, false);
+            IMqttDeliveryToken token = metrics.publish(asyncClient, "dev/data", new MqttMessage(payload));
+            token.waitForCompletion(10000);
+            // deliveryComplete is called right after the token completes
+            long deadline = System.currentTimeMillis() + 10000;
+            while (metrics.getDeliveriesCompleted() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            assertEquals(2, metrics.getMessagesPublished());
+            assertEquals(2L * payload.length, metrics.getBytesPublished());
+            assertEquals(1, metrics.getDeliveriesCompleted());
+            assertEquals(2, metrics.getPublishLatency().getCount());
+            assertTrue(metrics.getPublishLatencyMax() > 0);
+        } finally {
+            client.disconnect();
+            client.close();
+            asyncClient.disconnect().waitForCompletion(10000);
+            asyncClient.close();
+            broker.stop();
+        }
+    }
+
+    @Test
+    public void registeredInJmx() throws Exception {
+        metrics.register("metrics-test");
+        metrics.commandReceived(1);
+        metrics.commandResponded(1);
+
+        ObjectName name = new ObjectName("com.orange.liveobjects.samples:type=MqttMetrics,name="
+                + ObjectName.quote("metrics-test"));
+        try {
+            assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "CommandsCompleted"));
+        } finally {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        }
+    }
+
+}
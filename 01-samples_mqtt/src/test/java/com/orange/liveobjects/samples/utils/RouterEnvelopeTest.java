@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import com.google.gson.JsonParseException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class RouterEnvelopeTest {
+
+    @Test
+    public void unwrapsRoutedMessage() throws Exception {
+        MqttMessage message = RouterMessages.roundTrip(
+                RouterMessages.deviceData("stream-1", "2016-08-29T08:50:04.421Z", 21.5)).get(0);
+
+        DataMessage data = JsonCodecs.gson().fromJson(RouterEnvelope.payloadReader(message.getPayload()),
+                DataMessage.class);
+
+        assertEquals("stream-1", data.streamId);
+        assertEquals("2016-08-29T08:50:04.421Z", data.timestamp);
+        assertEquals(21.5, ((Number) data.value.get("tempC")).doubleValue(), 0);
+        assertEquals("a \"quoted\" label", data.value.get("label"));
+    }
+
+    @Test
+    public void unwrapsInlineObject() throws IOException {
+        byte[] envelope = "{\"other\":[1,{\"a\":\"}\"}], \"payload\" : {\"streamId\":\"s\"}}".getBytes(RouterMessages.UTF_8);
+
+        assertEquals("{\"streamId\":\"s\"}}", read(RouterEnvelope.payloadReader(envelope)));
+    }
+
+    @Test
+    public void decodesEscapes() throws IOException {
+        byte[] envelope = "{\"payload\":\"{\\\"s\\\":\\\"\\u00e9\\\\n\\\"}\"}".getBytes(RouterMessages.UTF_8);
+
+        assertEquals("{\"s\":\"\u00e9\\n\"}", read(RouterEnvelope.payloadReader(envelope)));
+    }
+
+    @Test
+    public void noPayload() {
+        assertNull(RouterEnvelope.payloadReader("{\"streamId\":\"s\"}".getBytes(RouterMessages.UTF_8)));
+        assertNull(RouterEnvelope.payloadReader("{}".getBytes(RouterMessages.UTF_8)));
+    }
+
+    @Test(expected = JsonParseException.class)
+    public void notAnObject() {
+        RouterEnvelope.payloadReader("[1]".getBytes(RouterMessages.UTF_8));
+    }
+
+    private static String read(Reader reader) throws IOException {
+        StringBuilder out = new StringBuilder();
+        char[] buf = new char[3];
+        int n;
+        while ((n = reader.read(buf, 0, buf.length)) > 0) {
+            out.append(buf, 0, n);
+        }
+        return out.toString();
+    }
+
+}
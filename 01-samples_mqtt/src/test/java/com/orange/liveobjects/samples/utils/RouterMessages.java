@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Router messages as an application really receives them: data messages published by a
+ * device on "dev/data", stored and routed by a {@link LocalLiveObjectsBroker}, consumed on
+ * "router/~event/v1/data/new/#".
+ */
+public final class RouterMessages {
+
+    public static final Charset UTF_8 = Charset.forName("UTF-8");
+    public static final String DEVICE_URN = "urn:lo:nsid:sensor:test01";
+
+    private RouterMessages() {
+    }
+
+    /**
+     * Data message with a numeric and a string value.
+     */
+    public static DeviceData deviceData(String streamId, String timestamp, double tempC) {
+        DeviceData data = new DeviceData();
+        data.s = streamId;
+        data.ts = timestamp;
+        data.m = "test";
+        data.v = new HashMap<String, Object>();
+        data.v.put("tempC", tempC);
+        data.v.put("label", "a \"quoted\" label");
+        data.t = Arrays.asList("test");
+        return data;
+    }
+
+    /**
+     * @return the messages received by an application, in order
+     */
+    public static List<MqttMessage> roundTrip(DeviceData... messages) throws Exception {
+        LocalLiveObjectsBroker broker = new LocalLiveObjectsBroker(0, null);
+        broker.start();
+        MqttClient app = null;
+        MqttClient device = null;
+        try {
+            final BlockingQueue<MqttMessage> received = new LinkedBlockingQueue<MqttMessage>();
+            app = new MqttClient(broker.getServerUri(), "app:test", new MemoryPersistence());
+            app.setCallback(new MqttCallback() {
+                public void connectionLost(Throwable cause) {
+                }
+
+                public void messageArrived(String topic, MqttMessage message) {
+                    received.add(message);
+                }
+
+                public void deliveryComplete(IMqttDeliveryToken token) {
+                }
+            });
+            app.connect(options(LocalLiveObjectsBroker.MODE_BRIDGE));
+            app.subscribe("router/" + LocalLiveObjectsBroker.ROUTING_KEY_DATA_NEW + "#", 1);
+
+            device = new MqttClient(broker.getServerUri(), DEVICE_URN, new MemoryPersistence());
+            device.connect(options(LocalLiveObjectsBroker.MODE_DEVICE));
+            for (DeviceData data : messages) {
+                device.publish("dev/data", MessageCodecs.JSON.encode(data), 1, false);
+            }
+
+            List<MqttMessage> result = new ArrayList<MqttMessage>();
+            for (int i = 0; i < messages.length; i++) {
+                MqttMessage message = received.poll(10, TimeUnit.SECONDS);
+                if (message == null) {
+                    throw new AssertionError("Only " + i + " of " + messages.length + " messages routed");
+                }
+                result.add(message);
+            }
+            return result;
+        } finally {
+            if (device != null) {
+                device.disconnect();
+                device.close();
+            }
+            if (app != null) {
+                app.disconnect();
+                app.close();
+            }
+            broker.stop();
+        }
+    }
+
+    private static MqttConnectOptions options(String mode) {
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setUserName(mode);
+        options.setPassword("test".toCharArray());
+        options.setCleanSession(true);
+        return options;
+    }
+
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ShardedMessageDispatcherTest {
+
+    private static MqttMessage message(int value) {
+        return new MqttMessage(String.valueOf(value).getBytes(RouterMessages.UTF_8));
+    }
+
+    @Test
+    public void sameKeyInOrderOnOneThread() throws InterruptedException {
+        final Map<String, List<Integer>> received = new HashMap<String, List<Integer>>();
+        final Map<String, Set<String>> threads = new HashMap<String, Set<String>>();
+        ShardedMessageDispatcher dispatcher = new ShardedMessageDispatcher(4, 16, new MessageHandler() {
+            public void handle(String topic, MqttMessage message) {
+                synchronized (received) {
+                    if (!received.containsKey(topic)) {
+                        received.put(topic, new ArrayList<Integer>());
+                        threads.put(topic, new HashSet<String>());
+                    }
+                    received.get(topic).add(Integer.valueOf(new String(message.getPayload(), RouterMessages.UTF_8)));
+                    threads.get(topic).add(Thread.currentThread().getName());
+                }
+            }
+        });
+
+        for (int i = 0; i < 5000; i++) {
+            String topic = "router/~event/v1/data/new/urn:lo:nsid:sensor:" + (i % 10);
+            dispatcher.dispatch(ShardedMessageDispatcher.routerStreamKey(topic), topic, message(i));
+        }
+        assertTrue(dispatcher.shutdown(10, TimeUnit.SECONDS));
+
+        assertEquals(10, received.size());
+        for (Map.Entry<String, List<Integer>> entry : received.entrySet()) {
+            List<Integer> values = entry.getValue();
+            assertEquals(500, values.size());
+            for (int i = 1; i < values.size(); i++) {
+                assertEquals(values.get(i - 1) + 10, (int) values.get(i));
+            }
+            assertEquals(1, threads.get(entry.getKey()).size());
+        }
+        assertEquals(5000, dispatcher.getDispatchedCount());
+        assertEquals(5000, dispatcher.getHandledCount());
+    }
+
+    @Test
+    public void routerStreamKey() {
+        assertEquals("urn:lo:nsid:sensor:1", ShardedMessageDispatcher.routerStreamKey(
+                "router/~event/v1/data/new/urn:lo:nsid:sensor:1"));
+        assertEquals("fifo/queue", ShardedMessageDispatcher.routerStreamKey("fifo/queue"));
+    }
+
+    @Test
+    public void failuresAreCounted() throws InterruptedException {
+        ShardedMessageDispatcher dispatcher = new ShardedMessageDispatcher(2, 4, new MessageHandler() {
+            public void handle(String topic, MqttMessage message) {
+                if ("bad".equals(topic)) {
+                    throw new IllegalStateException("bad message");
+                }
+            }
+        });
+        dispatcher.dispatch("k", "bad", message(0));
+        dispatcher.dispatch("k", "good", message(1));
+        assertTrue(dispatcher.shutdown(10, TimeUnit.SECONDS));
+        assertEquals(1, dispatcher.getFailedCount());
+        assertEquals(1, dispatcher.getHandledCount());
+    }
+
+    @Test
+    public void fullShardBlocksTheCaller() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final ShardedMessageDispatcher dispatcher = new ShardedMessageDispatcher(1, 2, new MessageHandler() {
+            public void handle(String topic, MqttMessage message) throws InterruptedException {
+                release.await();
+            }
+        });
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread producer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    // one being handled, two queued, the last one waits for room
+                    for (int i = 0; i < 4; i++) {
+                        dispatcher.dispatch("k", "t", message(i));
+                    }
+                    done.countDown();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        producer.start();
+
+        assertFalse(done.await(300, TimeUnit.MILLISECONDS));
+        assertEquals(2, dispatcher.getQueueDepth(0));
+        release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertTrue(dispatcher.shutdown(10, TimeUnit.SECONDS));
+        assertEquals(4, dispatcher.getHandledCount());
+    }
+
+    @Test
+    public void handlesEveryMessageAcceptedWhileShuttingDown() throws InterruptedException {
+        for (int round = 0; round < 20; round++) {
+            final AtomicLong accepted = new AtomicLong();
+            final ShardedMessageDispatcher dispatcher = new ShardedMessageDispatcher(2, 4, new MessageHandler() {
+                public void handle(String topic, MqttMessage message) {
+                }
+            });
+            final CountDownLatch started = new CountDownLatch(4);
+            Thread[] producers = new Thread[4];
+            for (int p = 0; p < producers.length; p++) {
+                final String key = "k" + p;
+                producers[p] = new Thread(new Runnable() {
+                    public void run() {
+                        started.countDown();
+                        try {
+                            while (true) {
+                                dispatcher.dispatch(key, "t", message(0));
+                                accepted.incrementAndGet();
+                            }
+                        } catch (IllegalStateException e) {
+                            // shut down
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+                producers[p].start();
+            }
+            started.await();
+            assertTrue(dispatcher.shutdown(10, TimeUnit.SECONDS));
+            for (Thread producer : producers) {
+                producer.join(10000);
+                assertFalse(producer.isAlive());
+            }
+            assertEquals(accepted.get(), dispatcher.getDispatchedCount());
+            assertEquals(accepted.get(), dispatcher.getHandledCount());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsAfterShutdown() throws InterruptedException {
+        ShardedMessageDispatcher dispatcher = new ShardedMessageDispatcher(1, 1, new MessageHandler() {
+            public void handle(String topic, MqttMessage message) {
+            }
+        });
+        dispatcher.shutdown(1, TimeUnit.SECONDS);
+        dispatcher.dispatch("k", "t", message(0));
+    }
+
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TopicTrieTest {
+
+    private static List<String> sorted(List<String> values) {
+        List<String> copy = new ArrayList<String>(values);
+        Collections.sort(copy);
+        return copy;
+    }
+
+    @Test
+    public void matchesWildcards() {
+        TopicTrie<String> trie = new TopicTrie<String>();
+        for (String filter : Arrays.asList("a/b/c", "a/+/c", "a/#", "+/b/+", "#", "a/b", "+", "a//c")) {
+            trie.add(filter, filter);
+        }
+
+        assertEquals(Arrays.asList("#", "+/b/+", "a/#", "a/+/c", "a/b/c"), sorted(trie.match("a/b/c")));
+        assertEquals(Arrays.asList("#", "+/b/+", "a/#"), sorted(trie.match("a/b/d")));
+        assertEquals(Arrays.asList("#", "a/#", "a/b"), sorted(trie.match("a/b")));
+        // "a/#" also matches "a"
+        assertEquals(Arrays.asList("#", "+", "a/#"), sorted(trie.match("a")));
+        // empty levels
+        assertEquals(Arrays.asList("#", "a/#", "a/+/c", "a//c"), sorted(trie.match("a//c")));
+        assertEquals(Arrays.asList("#"), trie.match("b/c"));
+        assertEquals(8, trie.size());
+    }
+
+    @Test
+    public void wildcardsSkipSystemTopics() {
+        TopicTrie<String> trie = new TopicTrie<String>();
+        trie.add("#", "#");
+        trie.add("+/x", "+/x");
+        trie.add("$SYS/#", "$SYS/#");
+
+        assertEquals(Arrays.asList("$SYS/#"), trie.match("$SYS/x"));
+        assertEquals(Arrays.asList("#", "+/x"), sorted(trie.match("SYS/x")));
+    }
+
+    @Test
+    public void valueOncePerFilter() {
+        TopicTrie<String> trie = new TopicTrie<String>();
+        trie.add("a/#", "v");
+        trie.add("a/+", "v");
+        trie.add("a/+", "v");
+
+        assertEquals(Arrays.asList("v", "v", "v"), trie.match("a/b"));
+        List<String> matches = new ArrayList<String>();
+        matches.add("previous");
+        assertEquals(3, trie.match("a/b", matches));
+        assertEquals(4, matches.size());
+    }
+
+    @Test
+    public void removesRegistrations() {
+        TopicTrie<String> trie = new TopicTrie<String>();
+        trie.add("a/+/c", "x");
+        trie.add("a/+/c", "y");
+        trie.add("a/b/#", "z");
+
+        assertTrue(trie.remove("a/+/c", "x"));
+        assertFalse(trie.remove("a/+/c", "x"));
+        assertFalse(trie.remove("a/b/c", "y"));
+        assertEquals(Arrays.asList("y", "z"), sorted(trie.match("a/b/c")));
+        assertTrue(trie.remove("a/+/c", "y"));
+        assertTrue(trie.remove("a/b/#", "z"));
+        assertEquals(0, trie.size());
+        assertTrue(trie.match("a/b/c").isEmpty());
+
+        // pruned nodes are created again
+        trie.add("a/b/#", "z");
+        assertEquals(Arrays.asList("z"), trie.match("a/b/c"));
+    }
+
+    @Test
+    public void rejectsInvalidFilters() {
+        TopicTrie<String> trie = new TopicTrie<String>();
+        for (String filter : Arrays.asList("", "a/#/b", "a#", "a/b+", "+a")) {
+            try {
+                trie.add(filter, "v");
+                fail("Accepted " + filter);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        assertEquals(0, trie.size());
+    }
+
+    @Test
+    public void agreesWithSingleFilterMatching() {
+        Random random = new Random(42);
+        String[] names = {"a", "b", "c", ""};
+        List<String> filters = new ArrayList<String>();
+        TopicTrie<String> trie = new TopicTrie<String>();
+        for (int i = 0; i < 300; i++) {
+            StringBuilder filter = new StringBuilder();
+            int levels = 1 + random.nextInt(4);
+            for (int level = 0; level < levels; level++) {
+                if (level > 0) {
+                    filter.append('/');
+                }
+                int pick = random.nextInt(names.length + 2);
+                if (pick == names.length + 1 && level == levels - 1) {
+                    filter.append('#');
+                } else if (pick >= names.length) {
+                    filter.append('+');
+                } else {
+                    filter.append(names[pick]);
+                }
+            }
+            if (filter.length() == 0) {
+                continue;
+            }
+            filters.add(filter.toString());
+            trie.add(filter.toString(), filter.toString());
+        }
+
+        for (int i = 0; i < 1000; i++) {
+            StringBuilder topic = new StringBuilder();
+            int levels = 1 + random.nextInt(5);
+            for (int level = 0; level < levels; level++) {
+                if (level > 0) {
+                    topic.append('/');
+                }
+                topic.append(names[random.nextInt(names.length)]);
+            }
+            if (topic.length() == 0) {
+                continue;
+            }
+            List<String> expected = new ArrayList<String>();
+            for (String filter : filters) {
+                if (TopicTrie.matches(filter, topic.toString())) {
+                    expected.add(filter);
+                }
+            }
+            assertEquals(topic.toString(), sorted(expected), sorted(trie.match(topic.toString())));
+        }
+    }
+
+    @Test
+    public void dispatcherCallsEveryMatchingHandler() throws Exception {
+        final List<String> calls = new ArrayList<String>();
+        TopicDispatcher dispatcher = new TopicDispatcher(new MessageHandler() {
+            public void handle(String topic, MqttMessage message) {
+                calls.add("unmatched " + topic);
+            }
+        });
+        MessageHandler failing = new MessageHandler() {
+            public void handle(String topic, MqttMessage message) throws Exception {
+                throw new IllegalStateException("failing");
+            }
+        };
+        MessageHandler recording = new MessageHandler() {
+            public void handle(String topic, MqttMessage message) {
+                calls.add(topic);
+            }
+        };
+        dispatcher.register("a/+", failing).register("a/#", recording);
+
+        try {
+            dispatcher.handle("a/b", new MqttMessage());
+            fail("Failure not thrown");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        dispatcher.handle("b", new MqttMessage());
+        assertEquals(Arrays.asList("a/b", "unmatched b"), calls);
+        assertEquals(1, dispatcher.getFailedCount());
+        assertEquals(1, dispatcher.getUnmatchedCount());
+        assertTrue(dispatcher.unregister("a/+", failing));
+        assertEquals(1, dispatcher.size());
+    }
+
+    @Test
+    public void handlersMayDispatchAgain() throws Exception {
+        final List<String> calls = new ArrayList<String>();
+        final TopicDispatcher dispatcher = new TopicDispatcher(new MessageHandler() {
+            public void handle(String topic, MqttMessage message) {
+                calls.add("unmatched " + topic);
+            }
+        });
+        MessageHandler gateway = new MessageHandler() {
+            public void handle(String topic, MqttMessage message) throws Exception {
+                String device = topic.substring(topic.indexOf('/') + 1);
+                dispatcher.handle("dev/" + device, message);
+                dispatcher.handle("other/" + device, message);
+            }
+        };
+        MessageHandler recording = new MessageHandler() {
+            public void handle(String topic, MqttMessage message) {
+                calls.add(topic);
+            }
+        };
+        // the gateway first: its dispatches must leave the handlers still to call
+        dispatcher.register("gw/+", gateway).register("gw/+", recording).register("dev/#", recording);
+
+        dispatcher.handle("gw/1", new MqttMessage());
+        dispatcher.handle("gw/2", new MqttMessage());
+        assertEquals(Arrays.asList("dev/1", "unmatched other/1", "gw/1", "dev/2", "unmatched other/2", "gw/2"),
+                calls);
+        assertEquals(6, dispatcher.getDispatchedCount());
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TrafficReplayerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<String> topics = new ArrayList<String>();
+    private final List<MqttMessage> messages = new ArrayList<MqttMessage>();
+
+    private final MqttCallback callback = new MqttCallback() {
+        public void connectionLost(Throwable cause) {
+        }
+
+        public void messageArrived(String topic, MqttMessage message) {
+            topics.add(topic);
+            messages.add(message);
+        }
+
+        public void deliveryComplete(IMqttDeliveryToken token) {
+        }
+    };
+
+    private static MqttMessage message(String payload, int qos, final boolean duplicate, boolean retained) {
+        MqttMessage message = new MqttMessage(payload.getBytes(RouterMessages.UTF_8)) {
+            {
+                setDuplicate(duplicate);
+            }
+        };
+        message.setQos(qos);
+        message.setRetained(retained);
+        return message;
+    }
+
+    @Test
+    public void replaysTopicsPayloadsAndFlags() throws Exception {
+        File file = folder.newFile();
+        TrafficRecorder recorder = new TrafficRecorder(file);
+        long now = System.nanoTime();
+        recorder.record(now + 1000, "router/a", message("first", 1, true, false));
+        recorder.record(now + 2000, "router/b", message("second", 0, false, true));
+        recorder.record(now + 3000, "router/a", message("", 2, false, false));
+        recorder.close();
+
+        TrafficReplayer.Report report = new TrafficReplayer(file).replay(callback, 0);
+
+        assertEquals(3, report.getMessageCount());
+        assertEquals(0, report.getErrorCount());
+        assertEquals(2000, report.getRecordedNanos());
+        assertEquals("router/a", topics.get(0));
+        assertEquals("router/b", topics.get(1));
+        assertEquals("router/a", topics.get(2));
+        assertArrayEquals("first".getBytes(RouterMessages.UTF_8), messages.get(0).getPayload());
+        assertEquals(1, messages.get(0).getQos());
+        assertTrue(messages.get(0).isDuplicate());
+        assertFalse(messages.get(0).isRetained());
+        assertFalse(messages.get(1).isDuplicate());
+        assertTrue(messages.get(1).isRetained());
+        assertEquals(2, messages.get(2).getQos());
+        assertEquals(0, messages.get(2).getPayload().length);
+    }
+
+    @Test
+    public void recordingFailureDoesNotStopHandling() throws Exception {
+        TrafficRecorder recorder = new TrafficRecorder(folder.newFile());
+        recorder.close();
+        RecordingMqttCallback recording = new RecordingMqttCallback(callback, recorder);
+
+        recording.messageArrived("router/a", message("first", 1, false, false));
+
+        assertEquals(1, recording.getFailedCount());
+        assertEquals(1, messages.size());
+    }
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import com.google.gson.JsonParser;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TypedDeviceDataTest {
+
+    private static final DataSchema SCHEMA = DataSchema.register(new DataSchema("typedTestV1")
+            .doubleField("temp")
+            .longField("count")
+            .booleanField("on")
+            .stringField("label"));
+
+    private static final int TEMP = SCHEMA.indexOf("temp");
+    private static final int COUNT = SCHEMA.indexOf("count");
+    private static final int ON = SCHEMA.indexOf("on");
+    private static final int LABEL = SCHEMA.indexOf("label");
+
+    private static final String VALUES = "{\"temp\":20.5,\"count\":9007199254740993,\"on\":true,"
+            + "\"label\":\"ok\",\"other\":[1]}";
+
+    private static TypedDeviceData decode(String json) {
+        return JsonCodecs.gson().fromJson(json, TypedDeviceData.class);
+    }
+
+    private static void assertTyped(TypedDeviceData data) {
+        assertSame(SCHEMA, data.getSchema());
+        assertEquals(20.5, data.getDouble(TEMP), 0);
+        // beyond the precision of a double
+        assertEquals(9007199254740993L, data.getLong(COUNT));
+        assertTrue(data.getBoolean(ON));
+        assertEquals("ok", data.getString(LABEL));
+        assertEquals(Arrays.<Object>asList(1.0), data.getExtra().get("other"));
+        assertEquals("s", data.s);
+        assertEquals(Arrays.asList("a"), data.t);
+        assertTrue(data.hasLocation());
+        assertEquals(45.5, data.getLatitude(), 0);
+    }
+
+    @Test
+    public void decodesIntoTheSlots() {
+        assertTyped(decode("{\"s\":\"s\",\"m\":\"typedTestV1\",\"v\":" + VALUES
+                + ",\"t\":[\"a\"],\"loc\":[45.5,4.5]}"));
+    }
+
+    @Test
+    public void valuesBeforeTheModel() {
+        TypedDeviceData data = decode("{\"s\":\"s\",\"v\":" + VALUES.replace("9007199254740993", "12")
+                + ",\"t\":[\"a\"],\"loc\":[45.5,4.5],\"m\":\"typedTestV1\"}");
+        // read generically first: the long value goes through a double
+        assertEquals(12, data.getLong(COUNT));
+        data.setLong(COUNT, 9007199254740993L);
+        assertTyped(data);
+    }
+
+    @Test
+    public void unexpectedTypesGoToTheExtraValues() {
+        TypedDeviceData data = decode("{\"m\":\"typedTestV1\",\"v\":{\"temp\":\"hot\",\"count\":1.5,\"on\":1}}");
+        assertFalse(data.isSet(TEMP));
+        assertFalse(data.isSet(COUNT));
+        assertFalse(data.isSet(ON));
+        assertEquals("hot", data.getExtra().get("temp"));
+        assertEquals(1.5, data.getExtra().get("count"));
+        assertEquals(1.0, data.getExtra().get("on"));
+    }
+
+    @Test
+    public void unknownModel() {
+        TypedDeviceData data = decode("{\"m\":\"typedTestUnknown\",\"v\":{\"temp\":1}}");
+        assertEquals("typedTestUnknown", data.getModel());
+        assertEquals(1.0, data.getExtra().get("temp"));
+    }
+
+    @Test
+    public void sameJsonAsDeviceData() {
+        TypedDeviceData data = new TypedDeviceData(SCHEMA);
+        data.s = "s";
+        data.ts = "2016-08-29T08:50:04.421Z";
+        data.setDouble(TEMP, 20.5);
+        data.setLong(COUNT, 3);
+        data.put("label", "ok");
+        data.put("other", "x");
+        data.setLocation(45.5, 4.5);
+
+        assertEquals(new JsonParser().parse(JsonCodecs.gson().toJson(data.toDeviceData())),
+                new JsonParser().parse(JsonCodecs.gson().toJson(data)));
+
+        data.clear();
+        assertFalse(data.isSet(TEMP));
+        assertNull(data.getExtra());
+        assertEquals("{\"m\":\"typedTestV1\"}", JsonCodecs.gson().toJson(data));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void accessorsAreTyped() {
+        new TypedDeviceData(SCHEMA).getLong(TEMP);
+    }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class WindowedAggregatorTest {
+
+    private final List<WindowedAggregator.Window> windows = new ArrayList<WindowedAggregator.Window>();
+    private final WindowedAggregator.Listener listener = new WindowedAggregator.Listener() {
+        public void windowClosed(WindowedAggregator.Window window) {
+            windows.add(window);
+        }
+    };
+
+    private static void assertWindow(WindowedAggregator.Window window, long start, long count, double min,
+                                     double max, double mean, double last) {
+        assertEquals(start, window.getStartMillis());
+        assertEquals(count, window.getCount());
+        assertEquals(min, window.getMin(), 0);
+        assertEquals(max, window.getMax(), 0);
+        assertEquals(mean, window.getMean(), 1e-9);
+        assertEquals(last, window.getLast(), 0);
+    }
+
+    @Test
+    public void tumblingWindows() {
+        WindowedAggregator aggregator = new WindowedAggregator(1000, 1000, listener);
+
+        aggregator.update("s", "temp", 100, 1);
+        // out of order within the window: not the last value
+        aggregator.update("s", "temp", 600, 3);
+        aggregator.update("s", "temp", 500, 2);
+        aggregator.update("s", "temp", 1200, 5);
+        assertEquals(1, windows.size());
+        assertWindow(windows.get(0), 0, 3, 1, 3, 2, 3);
+        assertEquals(1000, windows.get(0).getEndMillis());
+        assertEquals("s", windows.get(0).getStreamId());
+        assertEquals("temp", windows.get(0).getField());
+
+        // the empty windows in between are not emitted
+        aggregator.update("s", "temp", 5500, 7);
+        assertEquals(2, windows.size());
+        assertWindow(windows.get(1), 1000, 1, 5, 5, 5, 5);
+    }
+
+    @Test
+    public void slidingWindows() {
+        WindowedAggregator aggregator = new WindowedAggregator(3000, 1000, listener);
+
+        aggregator.update("s", "temp", 500, 1);
+        aggregator.update("s", "temp", 1500, 2);
+        aggregator.update("s", "temp", 2500, 3);
+        aggregator.advance(3000);
+        assertEquals(3, windows.size());
+        assertWindow(windows.get(0), -2000, 1, 1, 1, 1, 1);
+        assertWindow(windows.get(1), -1000, 2, 1, 2, 1.5, 2);
+        assertWindow(windows.get(2), 0, 3, 1, 3, 2, 3);
+        assertEquals(1, aggregator.getSeriesCount());
+
+        // the windows still holding values, then the series is forgotten
+        aggregator.advance(10000);
+        assertEquals(5, windows.size());
+        assertWindow(windows.get(3), 1000, 2, 2, 3, 2.5, 3);
+        assertWindow(windows.get(4), 2000, 1, 3, 3, 3, 3);
+        assertEquals(0, aggregator.getSeriesCount());
+        assertEquals(5, aggregator.getEmittedCount());
+    }
+
+    @Test
+    public void lateValuesAreIgnored() {
+        WindowedAggregator aggregator = new WindowedAggregator(3000, 1000, listener);
+
+        aggregator.update("s", "temp", 3500, 1);
+        aggregator.update("s", "temp", 500, 100);
+        aggregator.update("s", "temp", 1500, 2);
+        aggregator.advance(4000);
+
+        assertEquals(1, aggregator.getLateCount());
+        assertEquals(1, windows.size());
+        assertWindow(windows.get(0), 1000, 2, 1, 2, 1.5, 1);
+    }
+
+    @Test
+    public void seriesPerStreamAndNumericField() {
+        WindowedAggregator aggregator = new WindowedAggregator(1000, 1000, listener);
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("temp", 20.5);
+        values.put("hygro", 40L);
+        values.put("status", "ok");
+
+        aggregator.update("s1", values, 100);
+        aggregator.update("s2", values, 100);
+        aggregator.update("s1", null, 100);
+        assertEquals(4, aggregator.getSeriesCount());
+        aggregator.advance(1000);
+        assertEquals(4, windows.size());
+        aggregator.advance(2000);
+        assertEquals(0, aggregator.getSeriesCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sizeMustBeAMultipleOfTheSlide() {
+        new WindowedAggregator(2500, 1000, listener);
+    }
+
+}
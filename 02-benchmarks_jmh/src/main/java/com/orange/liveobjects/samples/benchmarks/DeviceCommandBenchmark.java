@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.benchmarks;
+
+import com.google.gson.Gson;
+import com.orange.liveobjects.samples.utils.DeviceCommand;
+import com.orange.liveobjects.samples.utils.DeviceCommandResponse;
+import com.orange.liveobjects.samples.utils.JsonCodecs;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handling of a "dev/cmd" message (Sample_03): parsing the command, then building and
+ * encoding the "dev/cmd/res" response.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeviceCommandBenchmark {
+
+    @Param({ "2", "16", "64" })
+    public int cardinality;
+
+    @Param({ "8", "128", "1024" })
+    public int payloadSize;
+
+    private final Gson reflectiveGson = new Gson();
+    private byte[] message;
+
+    @Setup
+    public void setUp() {
+        message = Payloads.deviceCommand(cardinality, payloadSize);
+    }
+
+    @Benchmark
+    public byte[] handleReflective() {
+        return handle(reflectiveGson);
+    }
+
+    @Benchmark
+    public byte[] handleJsonCodecs() {
+        return handle(JsonCodecs.gson());
+    }
+
+    private byte[] handle(Gson gson) {
+        DeviceCommand command = gson.fromJson(new String(message, Payloads.UTF_8), DeviceCommand.class);
+        DeviceCommandResponse response = new DeviceCommandResponse();
+        response.cid = command.cid;
+        response.res = new HashMap<String, Object>();
+        response.res.put("msg", "hello friend!");
+        response.res.put("method", command.req);
+        response.res.put("counter", 1);
+        return gson.toJson(response).getBytes(Payloads.UTF_8);
+    }
+
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.benchmarks;
+
+import com.google.gson.Gson;
+import com.orange.liveobjects.samples.utils.DeviceConfig;
+import com.orange.liveobjects.samples.utils.JsonCodecs;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding of a "dev/cfg" message to the MQTT payload (Sample_02).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeviceConfigBenchmark {
+
+    @Param({ "2", "16", "64" })
+    public int cardinality;
+
+    @Param({ "8", "128", "1024" })
+    public int payloadSize;
+
+    private final Gson reflectiveGson = new Gson();
+    private DeviceConfig config;
+
+    @Setup
+    public void setUp() {
+        config = Payloads.deviceConfig(cardinality, payloadSize);
+    }
+
+    @Benchmark
+    public byte[] encodeReflective() {
+        return reflectiveGson.toJson(config).getBytes(Payloads.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] encodeJsonCodecs() {
+        return JsonCodecs.gson().toJson(config).getBytes(Payloads.UTF_8);
+    }
+
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.benchmarks;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.orange.liveobjects.samples.utils.LoraData;
+import com.orange.liveobjects.samples.utils.LoraMessageDecoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of a LoRa router message (Sample_12): the original double parse
+ * (envelope to JsonObject, then "payload" string to LoraData) against the single-pass
+ * {@link LoraMessageDecoder}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoraDecodeBenchmark {
+
+    @Param({ "2", "16", "64" })
+    public int cardinality;
+
+    @Param({ "8", "128", "1024" })
+    public int payloadSize;
+
+    private final Gson reflectiveGson = new Gson();
+    private final LoraMessageDecoder decoder = new LoraMessageDecoder();
+    private byte[] message;
+
+    @Setup
+    public void setUp() {
+        message = Payloads.loraRouterMessage(cardinality, payloadSize);
+    }
+
+    @Benchmark
+    public LoraData doubleParse() {
+        JsonObject mqttPayload = reflectiveGson.fromJson(new String(message, Payloads.UTF_8), JsonObject.class);
+        String liveObjectsPayload = mqttPayload.get("payload").getAsString();
+        return reflectiveGson.fromJson(liveObjectsPayload, LoraData.class);
+    }
+
+    @Benchmark
+    public LoraData streamingDecoder() {
+        return decoder.decode(message);
+    }
+
+}
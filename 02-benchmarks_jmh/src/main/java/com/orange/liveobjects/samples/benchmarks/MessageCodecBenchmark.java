@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.benchmarks;
+
+import com.orange.liveobjects.samples.utils.DeviceData;
+import com.orange.liveobjects.samples.utils.MessageCodec;
+import com.orange.liveobjects.samples.utils.MessageCodecs;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding of a "dev/data" message to the MQTT payload, and decoding back, with each
+ * {@link MessageCodec}. The payload size (bytes per message) is printed at setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageCodecBenchmark {
+
+    @Param({ "json", "cbor" })
+    public String codecName;
+
+    @Param({ "2", "16", "64" })
+    public int cardinality;
+
+    @Param({ "8", "128" })
+    public int payloadSize;
+
+    private MessageCodec codec;
+    private DeviceData data;
+    private byte[] payload;
+
+    @Setup
+    public void setUp() {
+        codec = MessageCodecs.forName(codecName);
+        data = Payloads.deviceData(cardinality, payloadSize);
+        payload = codec.encode(data);
+        System.out.println(codecName + " payload: " + payload.length + " bytes/message");
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return codec.encode(data);
+    }
+
+    @Benchmark
+    public DeviceData decode() {
+        return codec.decode(payload, DeviceData.class);
+    }
+
+}
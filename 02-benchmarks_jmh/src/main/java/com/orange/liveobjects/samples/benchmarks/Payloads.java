@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.benchmarks;
+
+import com.google.gson.JsonObject;
+import com.orange.liveobjects.samples.utils.DataSchema;
+import com.orange.liveobjects.samples.utils.DeviceCommand;
+import com.orange.liveobjects.samples.utils.DeviceConfig;
+import com.orange.liveobjects.samples.utils.DeviceData;
+import com.orange.liveobjects.samples.utils.JsonCodecs;
+import com.orange.liveobjects.samples.utils.TypedDeviceData;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Builds realistic messages for the benchmarks.
+ * <p>
+ * "cardinality" is the number of entries of the free-form map of the message ("v", "cfg",
+ * "arg", extra LoRa value fields) and "payloadSize" the length of its string values.
+ * Values are generated from a fixed seed so that every run uses the same messages.
+ */
+final class Payloads {
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private Payloads() {
+    }
+
+    /**
+     * Data message as pushed by Sample_01: numeric, boolean and string values in turn.
+     */
+    static DeviceData deviceData(int cardinality, int payloadSize) {
+        Random rand = new Random(cardinality * 31L + payloadSize);
+        DeviceData data = new DeviceData();
+        data.s = "test";
+        data.ts = "2016-08-29T08:50:04.421Z";
+        data.m = "sample01";
+        data.v = new HashMap<String, Object>();
+        for (int i = 0; i < cardinality; i++) {
+            switch (i % 3) {
+                case 0:
+                    data.v.put("tempC" + i, ((int) (rand.nextDouble() * 3000)) * 0.01 - 5);
+                    break;
+                case 1:
+                    data.v.put("engineOn" + i, rand.nextBoolean());
+                    break;
+                default:
+                    data.v.put("label" + i, randomString(rand, payloadSize));
+            }
+        }
+        data.loc = new Double[] { 45.759723, 4.84223 };
+        data.t = Arrays.asList("sample.01", "benchmark");
+        return data;
+    }
+
+    /**
+     * Same message as {@link #deviceData}, with the values typed by a schema of its fields.
+     */
+    static TypedDeviceData typedDeviceData(int cardinality, int payloadSize) {
+        DeviceData data = deviceData(cardinality, payloadSize);
+        DataSchema schema = new DataSchema("sample01-" + cardinality);
+        for (int i = 0; i < cardinality; i++) {
+            switch (i % 3) {
+                case 0:
+                    schema.doubleField("tempC" + i);
+                    break;
+                case 1:
+                    schema.booleanField("engineOn" + i);
+                    break;
+                default:
+                    schema.stringField("label" + i);
+            }
+        }
+        DataSchema.register(schema);
+        TypedDeviceData typed = new TypedDeviceData(schema);
+        typed.s = data.s;
+        typed.ts = data.ts;
+        for (Map.Entry<String, Object> entry : data.v.entrySet()) {
+            typed.put(entry.getKey(), entry.getValue());
+        }
+        typed.setLocation(data.loc[0], data.loc[1]);
+        typed.t = data.t;
+        return typed;
+    }
+
+    /**
+     * Configuration message as pushed by Sample_02: "str", "f64" and "u32" parameters in turn.
+     */
+    static DeviceConfig deviceConfig(int cardinality, int payloadSize) {
+        Random rand = new Random(cardinality * 31L + payloadSize);
+        DeviceConfig config = new DeviceConfig();
+        for (int i = 0; i < cardinality; i++) {
+            switch (i % 3) {
+                case 0:
+                    config.cfg.put("logLevel" + i, new DeviceConfig.CfgParameter("str", randomString(rand, payloadSize)));
+                    break;
+                case 1:
+                    config.cfg.put("trigger" + i, new DeviceConfig.CfgParameter("f64", rand.nextDouble() * 100));
+                    break;
+                default:
+                    config.cfg.put("connDelaySec" + i, new DeviceConfig.CfgParameter("u32", rand.nextInt(100000)));
+            }
+        }
+        return config;
+    }
+
+    /**
+     * Raw "dev/cmd" message as received by Sample_03.
+     */
+    static byte[] deviceCommand(int cardinality, int payloadSize) {
+        Random rand = new Random(cardinality * 31L + payloadSize);
+        DeviceCommand command = new DeviceCommand();
+        command.req = "buzz";
+        command.cid = 1234567890L + cardinality;
+        command.arg = new HashMap<String, Object>();
+        for (int i = 0; i < cardinality; i++) {
+            if (i % 2 == 0) {
+                command.arg.put("duration" + i, (double) rand.nextInt(1000));
+            } else {
+                command.arg.put("text" + i, randomString(rand, payloadSize));
+            }
+        }
+        return JsonCodecs.gson().toJson(command).getBytes(UTF_8);
+    }
+
+    /**
+     * Raw router message as received by Sample_12: the LoRa data message is JSON-encoded
+     * as a string in the "payload" field of the envelope. The hexadecimal LoRa payload is
+     * payloadSize bytes long, decoded sensor values (cardinality) are added to "value".
+     */
+    static byte[] loraRouterMessage(int cardinality, int payloadSize) {
+        Random rand = new Random(cardinality * 31L + payloadSize);
+        JsonObject value = new JsonObject();
+        value.addProperty("port", 2);
+        value.addProperty("fcnt", rand.nextInt(65536));
+        value.addProperty("signalLevel", 1 + rand.nextInt(5));
+        StringBuilder hex = new StringBuilder();
+        for (int i = 0; i < payloadSize; i++) {
+            hex.append(String.format("%02x", rand.nextInt(256)));
+        }
+        value.addProperty("payload", hex.toString());
+        for (int i = 0; i < cardinality; i++) {
+            value.addProperty("sensor" + i, rand.nextDouble() * 100);
+        }
+
+        JsonObject metadata = new JsonObject();
+        metadata.addProperty("source", "urn:lora:0123456789ABCDEF");
+        JsonObject lora = new JsonObject();
+        lora.addProperty("streamId", "urn:lora:0123456789ABCDEF!uplink");
+        lora.addProperty("timestamp", "2016-08-29T08:50:04.421Z");
+        lora.addProperty("model", "lora_v0");
+        lora.add("value", value);
+        lora.add("tags", JsonCodecs.gson().toJsonTree(Arrays.asList("Lyon", "benchmark")));
+        lora.add("metadata", metadata);
+
+        JsonObject envelope = new JsonObject();
+        envelope.addProperty("payload", lora.toString());
+        return envelope.toString().getBytes(UTF_8);
+    }
+
+    private static String randomString(Random rand, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) ('a' + rand.nextInt(26));
+        }
+        return new String(chars);
+    }
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.benchmarks;
+
+import com.orange.liveobjects.samples.utils.MappedSegmentPersistence;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPublish;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistence of QoS 1 publishes, as done by the Paho client: each message is stored
+ * before being sent and removed once acknowledged, with a window of 100 messages in flight.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PersistenceBenchmark {
+
+    private static final int IN_FLIGHT = 100;
+
+    /**
+     * "mapped" flushes to disk every 64 writes, "mapped-sync" on each write.
+     */
+    @Param({ "memory", "file", "mapped", "mapped-sync" })
+    public String persistence;
+
+    @Param({ "128", "1024" })
+    public int payloadSize;
+
+    private File directory;
+    private MqttClientPersistence store;
+    private MqttPublish[] messages;
+    private String[] keys;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException, MqttException {
+        directory = Files.createTempDirectory("persistence-bench").toFile();
+        if ("memory".equals(persistence)) {
+            store = new MemoryPersistence();
+        } else if ("file".equals(persistence)) {
+            store = new MqttDefaultFilePersistence(directory.getPath());
+        } else if ("mapped".equals(persistence)) {
+            store = new MappedSegmentPersistence(directory.getPath());
+        } else {
+            store = new MappedSegmentPersistence(directory.getPath(), MappedSegmentPersistence.DEFAULT_SEGMENT_SIZE, 1);
+        }
+        store.open("urn:lo:nsid:sensor:XX56765", "tcp://liveobjects.orange-business.com:1883");
+
+        byte[] payload = new byte[payloadSize];
+        Arrays.fill(payload, (byte) 'x');
+        messages = new MqttPublish[IN_FLIGHT * 2];
+        keys = new String[messages.length];
+        for (int i = 0; i < messages.length; i++) {
+            MqttMessage message = new MqttMessage(payload);
+            message.setQos(1);
+            messages[i] = new MqttPublish("dev/data", message);
+            messages[i].setMessageId(i + 1);
+            keys[i] = "s-" + (i + 1);
+        }
+        next = 0;
+    }
+
+    @TearDown
+    public void tearDown() throws MqttException {
+        store.clear();
+        store.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File clientDirectory : files) {
+                File[] clientFiles = clientDirectory.listFiles();
+                if (clientFiles != null) {
+                    for (File file : clientFiles) {
+                        file.delete();
+                    }
+                }
+                clientDirectory.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * Stores a new message and removes the one acknowledged {@code IN_FLIGHT} messages earlier.
+     */
+    @Benchmark
+    public void putAndRemoveAcknowledged() throws MqttException {
+        int i = next;
+        next = (i + 1) % messages.length;
+        store.put(keys[i], messages[i]);
+        store.remove(keys[(i + messages.length - IN_FLIGHT) % messages.length]);
+    }
+
+}
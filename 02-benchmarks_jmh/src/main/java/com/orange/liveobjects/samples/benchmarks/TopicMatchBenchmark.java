@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2016 Orange
+ *
+ * This software is distributed under the terms and conditions of the 'BSD-3-Clause'
+ * license which can be found in the file 'LICENSE.txt' in this package distribution
+ * or at 'https://opensource.org/licenses/BSD-3-Clause'.
+ */
+package com.orange.liveobjects.samples.benchmarks;
+
+import com.orange.liveobjects.samples.utils.TopicTrie;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finding the handlers of a router message among thousands of topic filters: with a
+ * {@link TopicTrie}, and by testing every filter in turn (as the local broker does for its
+ * few subscriptions).
+ * <p>
+ * Filters are mostly per LoRa device ("urn/lora/&lt;devEUI&gt;/#"), with some '+' filters per
+ * device across namespaces and a few wide ones; half of the topics are of a registered device.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TopicMatchBenchmark {
+
+    private static final String PREFIX = "router/~event/v1/data/new/";
+    private static final int TOPICS = 1024;
+
+    @Param({ "10000", "100000" })
+    public int filterCount;
+
+    private TopicTrie<Integer> trie;
+    private String[] filters;
+    private String[] topics;
+    private final List<Integer> matches = new ArrayList<Integer>();
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random rand = new Random(filterCount);
+        trie = new TopicTrie<Integer>();
+        filters = new String[filterCount];
+        String[] devEUIs = new String[filterCount];
+        for (int i = 0; i < filterCount; i++) {
+            devEUIs[i] = devEUI(rand);
+            String filter;
+            if (i % 20 == 0) {
+                filter = PREFIX + "urn/+/" + devEUIs[i] + "/#";
+            } else if (i % 1000 == 1) {
+                filter = PREFIX + "urn/lora/+/uplink";
+            } else {
+                filter = PREFIX + "urn/lora/" + devEUIs[i] + "/#";
+            }
+            filters[i] = filter;
+            trie.add(filter, i);
+        }
+        topics = new String[TOPICS];
+        for (int i = 0; i < TOPICS; i++) {
+            String device = i % 2 == 0 ? devEUIs[rand.nextInt(filterCount)] : devEUI(rand);
+            topics[i] = PREFIX + "urn/lora/" + device + "/uplink";
+        }
+    }
+
+    private static String devEUI(Random rand) {
+        return String.format("%016X", rand.nextLong());
+    }
+
+    private String nextTopic() {
+        next = (next + 1) & (TOPICS - 1);
+        return topics[next];
+    }
+
+    @Benchmark
+    public int trie() {
+        matches.clear();
+        return trie.match(nextTopic(), matches);
+    }
+
+    @Benchmark
+    public int linearScan() {
+        String topic = nextTopic();
+        int count = 0;
+        for (String filter : filters) {
+            if (TopicTrie.matches(filter, topic)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+}